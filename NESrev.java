@@ -1,17 +1,41 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 /**
  * NESrev - A disassembler for NES PRG-ROMs
@@ -26,7 +50,7 @@ public class NESrev {
     // corresponding AND masks
     private static int NOT_CODE = 0xFE, NOT_DATA = 0xFD, NOT_LABEL = 0xFB, NOT_PTR = 0xF7, NOT_INSTR = 0xEF;
     // enumerated NES addressing modes
-    private static int UNDF=0, IMPL=1, IMMD=2, ZERO=3, ZERX=4, ZERY=5, ABSL=6, ABSX=7, ABSY=8, INDR=9, INDX=10, INDY=11, RELV=12;
+    private static final int UNDF=0, IMPL=1, IMMD=2, ZERO=3, ZERX=4, ZERY=5, ABSL=6, ABSX=7, ABSY=8, INDR=9, INDX=10, INDY=11, RELV=12;
     // the ROM contents
     private static int[] ROM;
     private static final int MAPPER_NROM = 0;
@@ -45,6 +69,8 @@ public class NESrev {
     private static int[] map;
     // the name of the ROM, extracted from the cmdline arg
     private static String name;
+    // -romname: the iNES file the PRG was cut from; see projectName()
+    private static String romName = null;
     // is set to true if HTML output is desired
     private static boolean toHtml=false;
     // iterative code target worklist used by processCode()
@@ -67,6 +93,9 @@ public class NESrev {
     private static ArrayList<Integer> dataPointersCount = new ArrayList<Integer>();
     private static ArrayList<Integer> codeEntries = new ArrayList<Integer>();
     private static int userCodePointersCount = 0;
+    // split lo/hi pointer table rows from the same files: { lo, hi, count }
+    private static ArrayList<int[]> splitCodePointers = new ArrayList<int[]>();
+    private static ArrayList<int[]> splitDataPointers = new ArrayList<int[]>();
     // Resolved inline records known so far, keyed by callsite PRG offset.
     // TreeMap so iteration is in callsite order each pass — keeps trace
     // results independent of the order callsites were discovered.
@@ -82,6 +111,182 @@ public class NESrev {
     // emission; dataBoundaries breaks .DB runs at record/range edges.
     private static HashMap<Integer, ResolvedRecord> recordsByStart = new HashMap<Integer, ResolvedRecord>();
     private static TreeSet<Integer> dataBoundaries = new TreeSet<Integer>();
+    // MMC1 bank-context dataflow, rebuilt every analysis pass. Queued code
+    // targets whose entry state carries a known $8000-$BFFF bank, keyed by
+    // PRG offset; absent means unknown and the legacy context rules apply.
+    private static HashMap<Integer, BankState> pendingBankStates = new HashMap<Integer, BankState>();
+    // JSR/JMP sites whose switchable-window operand was resolved through the
+    // tracked bank rather than the instruction's own context: instruction
+    // PRG offset -> target PRG offset. Read back at output time for labels.
+    private static HashMap<Integer, Integer> bankResolvedOperands = new HashMap<Integer, Integer>();
+    // Memoized mapper effect of calling a routine, keyed by entry offset.
+    private static HashMap<Integer, BankState> bankSwitchSummaries = new HashMap<Integer, BankState>();
+    // Analysis/emit counters. Always maintained (plain increments); printed
+    // to stderr only when -stats is given.
+    private static AnalysisStats stats = new AnalysisStats();
+    private static boolean printStats = false;
+    // -exportmap target; null when no binary analysis export is requested
+    private static String exportMapPath = null;
+    // -previous export read at load time, before this run's -exportmap can
+    // overwrite it, and the -changereport target
+    private static String previousExportPath = null;
+    private static PreviousExport previousExport = null;
+    private static String changeReportPath = null;
+    // -fceuxnl directory and -mesenmlb file: emulator debug symbols from the
+    // final label set
+    private static String fceuxSymbolsPath = null;
+    private static String mesenSymbolsPath = null;
+    // binary analysis export header
+    static final int EXPORT_MAGIC = 0x4E524D50;   // "NRMP"
+    static final int EXPORT_VERSION = 1;
+    // -bankcache: directory shared between projects, its size cap, and the
+    // per-bank results read from it (map slices and inline callsites, null
+    // on a miss) plus the content key of each bank. Preloaded callsites stay
+    // in cachedCallsites until this run's own trace reaches them.
+    private static String bankCachePath = null;
+    private static long bankCacheLimit = 64L << 20;
+    private static byte[][] bankCacheSlices = null;
+    private static int[][] bankCacheCallsites = null;
+    private static String[] bankCacheKeys = null;
+    private static TreeSet<Integer> cachedCallsites = new TreeSet<Integer>();
+    static final int BANK_CACHE_MAGIC = 0x4E524243;   // "NRBC"
+    static final int BANK_CACHE_VERSION = 1;
+    // -ngramindex: corpus directory this ROM's segment is written to. Keys
+    // pack NGRAM_LENGTH consecutive opcodes, NGRAM_PAD filling in after the
+    // last instruction of a run.
+    private static String ngramIndexPath = null;
+    static final int NGRAM_MAGIC = 0x4E524E47;   // "NRNG"
+    static final int NGRAM_VERSION = 1;
+    static final int NGRAM_LENGTH = 4;
+    static final int NGRAM_PAD = 0xFF;
+    // -clonereport target and -clonecorpus directory: MinHash sketches of
+    // the traced routines, compared within this ROM and against the sketch
+    // files other projects left in the corpus. CLONE_HASHES min-hashes are
+    // split into CLONE_BANDS bands for LSH bucketing.
+    private static String cloneReportPath = null;
+    private static String cloneCorpusPath = null;
+    static final int CLONE_MAGIC = 0x4E52434C;   // "NRCL"
+    static final int CLONE_VERSION = 1;
+    static final int CLONE_HASHES = 64;
+    static final int CLONE_BANDS = 16;
+    static final int CLONE_SHINGLE = 3;
+    static final int CLONE_MIN_INSTRUCTIONS = 8;
+    static final double CLONE_THRESHOLD = 0.5;
+    static final int CLONE_MAX_CANDIDATES = 256;
+    // -cycles adds per-instruction cycle comments; -cyclereport writes the
+    // per-routine JSON report
+    private static boolean annotateCycles = false;
+    private static String cycleReportPath = null;
+    // -pagecross adds a comment to instructions that pay a page-crossing
+    // cycle; -pagereport writes the JSON list of them
+    private static boolean annotatePageCrossing = false;
+    private static String pageReportPath = null;
+    // -zpreport target: absolute $00xx operands that could use zero page
+    private static String zeroPageReportPath = null;
+    // -parallelemit: each 16 KB bank is formatted into its own buffer on a
+    // worker pool and the buffers are written in bank order
+    private static boolean parallelEmit = false;
+    static final int EMIT_BANK_SIZE = 0x4000;
+    // -splitout directory and -splitkb segment size: one asm file per
+    // segment plus a master that .INCLUDEs them
+    private static String splitOutPath = null;
+    private static int splitOutSize = EMIT_BANK_SIZE;
+    // Where the emitter writes on this thread: System.out, or a bank buffer
+    // on a -parallelemit worker.
+    private static final ThreadLocal<EmitTarget> emitTarget = new ThreadLocal<EmitTarget>() {
+        protected EmitTarget initialValue() {
+            return new EmitTarget(null);
+        }
+    };
+    // Routine entry points (JSR targets, code entries, code-pointer and vector
+    // targets) and their memoized costs, rebuilt by computeRoutineCosts().
+    private static TreeSet<Integer> routineEntries = new TreeSet<Integer>();
+    private static HashMap<Integer, RoutineCost> routineCosts = new HashMap<Integer, RoutineCost>();
+    // -loopbounds: loop header PRG offset -> maximum iterations. Headers
+    // without a bound count one pass and leave the routine unbounded.
+    private static HashMap<Integer, Integer> loopBounds = new HashMap<Integer, Integer>();
+    // 20 vblank scanlines of 341 dots; NTSC and Dendy run the CPU at 1/3 the
+    // dot clock, PAL at 1/3.2 with 70 vblank lines
+    static final int VBLANK_NTSC_CYCLES = 2273;
+    static final int VBLANK_PAL_CYCLES = 7459;
+    static final int VBLANK_DENDY_CYCLES = 2273;
+    // -nmibudget target and the -vblank window it is checked against
+    private static String nmiBudgetPath = null;
+    private static String vblankName = "ntsc";
+    private static int vblankCycles = VBLANK_NTSC_CYCLES;
+    // -emulate frame count (0 = off) and the emulator's findings: PRG offsets
+    // it executed, and those it reached through JMP (ind) or RTS dispatch
+    private static int emulateFrames = 0;
+    private static boolean[] emulatedCode = null;
+    private static boolean[] emulatedDispatch = null;
+    // -cdl: FCEUX/Mesen code/data log over the PRG. cdlCode marks the
+    // instruction starts decoded from its executed runs, cdlData bytes that
+    // were read but never executed, cdlEntry indirect jump and call targets.
+    private static String cdlPath = null;
+    private static boolean[] cdlCode = null;
+    private static boolean[] cdlData = null;
+    private static boolean[] cdlEntry = null;
+    // executed CDL bytes blocked by a data range or inline record, and
+    // read-only CDL bytes that a static code target lands on
+    private static TreeSet<Integer> cdlConflicts = new TreeSet<Integer>();
+    // CDL flag bits: FCEUX (and Mesen 0.9) logs are headerless, Mesen 2
+    // logs start with "CDLv2" and a CRC32 and flag jump targets differently
+    static final int CDL_CODE = 0x01;
+    static final int CDL_DATA = 0x02;
+    static final int CDL_FCEUX_INDIRECT_CODE = 0x10;
+    static final int CDL_MESEN_JUMP_TARGET = 0x04;
+    static final int CDL_MESEN_SUB_ENTRY = 0x08;
+    static final int CDL_MESEN_HEADER_SIZE = 9;
+    // -tracelog: PRG offsets an FCEUX/Mesen trace log shows executed, and the
+    // -traceseeds codeentries file written from them
+    private static String traceLogPath = null;
+    private static String traceSeedsPath = null;
+    private static boolean[] tracedCode = null;
+    // trace logs are mapped and split across worker threads this much at a time
+    static final int TRACE_CHUNK_BYTES = 64 << 20;
+    // -signatures library and what its matches contribute: entry PRG offsets,
+    // { start, end } data spans, and the names given to both. Spans a static
+    // code target landed on are dropped by their index into signatureData.
+    private static SignatureLibrary signatureLibrary = null;
+    private static ArrayList<Integer> signatureEntries = new ArrayList<Integer>();
+    private static ArrayList<int[]> signatureData = new ArrayList<int[]>();
+    private static TreeSet<Integer> droppedSignatureData = new TreeSet<Integer>();
+    private static HashMap<Integer, String> signatureNames = new HashMap<Integer, String>();
+    // -dedupbanks: canonical bank of each MMC1 switchable bank with identical
+    // bytes (its own number when unique), and per pass the banks currently
+    // traced through their canonical copy (-1 when traced on their own)
+    private static boolean dedupBanks = false;
+    private static int[] bankCanonical = null;
+    private static int[] bankTracedAs = null;
+    // banks differing in at most this many bytes are reported as near-duplicates
+    static final int NEAR_DUPLICATE_BYTES = 256;
+    // -speculate target: ranked candidate code entries in unreached DATA gaps
+    private static String speculateReportPath = null;
+    // a speculative decode stops after this many instructions and is dropped
+    // below the minimum
+    static final int SPECULATE_MAX_INSTRUCTIONS = 64;
+    static final int SPECULATE_MIN_INSTRUCTIONS = 3;
+    // random bytes decode to long valid runs too, so length alone earns at
+    // most this much
+    static final int SPECULATE_LENGTH_CREDIT = 8;
+    // push-then-RTS dispatchers recovered by the current analysis pass: RTS
+    // PRG offset -> { lo table, hi table, stride, entries }
+    private static TreeMap<Integer, int[]> stackDispatchers = new TreeMap<Integer, int[]>();
+    // split pointer tables recovered by the current analysis pass: first
+    // LDA PRG offset -> { lo table, hi table, stride, entries, 1 code / 0 data }
+    private static TreeMap<Integer, int[]> splitTables = new TreeMap<Integer, int[]>();
+    // -input script (frame -> controller 1 buttons, held until the next row)
+    // and the -profile report target with the profile it was built from
+    private static TreeMap<Integer, Integer> inputScript = null;
+    private static String profilePath = null;
+    private static Profiler profile = null;
+    // -profile histogram bucket width
+    static final int PROFILE_BUCKET_CYCLES = 1024;
+    // cycles taken by the interrupt sequence before the first NMI instruction
+    static final int NMI_ENTRY_CYCLES = 7;
+    // a write to $4014 halts the CPU for the 256-byte sprite DMA
+    static final int OAM_DMA_BEST_CYCLES = 513;
+    static final int OAM_DMA_WORST_CYCLES = 514;
     // table-driven opcode classifications used by processCodeSingle()
     private static final boolean[] RELATIVE_BRANCH_OPCODE = createOpcodeFlagTable(
         0x10, 0x30, 0x50, 0x70, 0x90, 0xB0, 0xD0, 0xF0
@@ -94,9 +299,21 @@ public class NESrev {
         0xAC, 0xAD, 0xAE, 0xB9, 0xBC, 0xBD, 0xBE,
         0xCC, 0xCD, 0xD9, 0xDD, 0xEC, 0xED, 0xF9, 0xFD
     );
+    // absolute read-modify-write opcodes; on MMC1 a ROM-window RMW resets
+    // the serial shift register
+    private static final boolean[] ABSOLUTE_RMW_OPCODE = createOpcodeFlagTable(
+        0x0E, 0x1E, 0x2E, 0x3E, 0x4E, 0x5E, 0x6E, 0x7E, 0xCE, 0xDE, 0xEE, 0xFE
+    );
+    // indexed reads that take one extra cycle when the effective address
+    // crosses a page (stores and read-modify-writes always pay it and have it
+    // in opcycleLookup already)
+    private static final boolean[] PAGE_CROSS_READ_OPCODE = createOpcodeFlagTable(
+        0x11, 0x19, 0x1D, 0x31, 0x39, 0x3D, 0x51, 0x59, 0x5D, 0x71, 0x79, 0x7D,
+        0xB1, 0xB9, 0xBC, 0xBD, 0xBE, 0xD1, 0xD9, 0xDD, 0xF1, 0xF9, 0xFD
+    );
 
     private static void printUsage() {
-        System.out.println("Syntax: java NESrev [ROMfile] <-mapper 0|1|nrom|mmc1> <-html> <-codepointers FILE> <-datapointers FILE> <-codeentries FILE> <-inlinecalls FILE> <-dataranges FILE>");
+        System.out.println("Syntax: java NESrev [ROMfile] <-mapper 0|1|nrom|mmc1> <-html> <-codepointers FILE> <-datapointers FILE> <-codeentries FILE> <-inlinecalls FILE> <-dataranges FILE> <-stats> <-exportmap FILE> <-cycles> <-cyclereport FILE> <-loopbounds FILE> <-nmibudget FILE> <-vblank ntsc|pal|dendy> <-pagecross> <-pagereport FILE> <-zpreport FILE> <-emulate FRAMES> <-input FILE> <-profile FILE> <-cdl FILE> <-tracelog FILE> <-traceseeds FILE> <-speculate FILE> <-signatures FILE> <-dedupbanks> <-bankcache DIR> <-bankcachemb MB> <-ngramindex DIR> <-clonereport FILE> <-clonecorpus DIR> <-parallelemit> <-fceuxnl DIR> <-mesenmlb FILE> <-splitout DIR> <-splitkb KB> <-previous FILE> <-changereport FILE> <-romname NAME>");
     }
 
     private static void exitWithError(String message) {
@@ -134,6 +351,21 @@ public class NESrev {
     private static void parsePointerTableConfig(String path, String kindLabel,
                                                 ArrayList<Integer> startsOut,
                                                 ArrayList<Integer> countsOut) throws Exception {
+        parsePointerTableConfig(path, kindLabel, startsOut, countsOut, new ArrayList<int[]>());
+    }
+
+/**
+* Reads a codepointers/datapointers file. Besides start|count and
+* bank|addr|count word-table rows it accepts split-table rows,
+* split|lo|hi|count (raw PRG offsets of the low-byte and high-byte runs) or
+* split|bank|lo|hi|count (CPU addresses in that bank), collected into
+* splitOut as { lo, hi, count }.
+**/
+
+    private static void parsePointerTableConfig(String path, String kindLabel,
+                                                ArrayList<Integer> startsOut,
+                                                ArrayList<Integer> countsOut,
+                                                ArrayList<int[]> splitOut) throws Exception {
         File configFile = new File(path);
         if (!configFile.canRead()) {
             exitWithError("Error: Couldn't read " + path + ".");
@@ -147,10 +379,16 @@ public class NESrev {
                 if (line.length() == 0) {
                     continue;
                 }
-                if (line.equalsIgnoreCase("start|count") || line.equalsIgnoreCase("bank|addr|count")) {
+                if (line.equalsIgnoreCase("start|count") || line.equalsIgnoreCase("bank|addr|count")
+                    || line.equalsIgnoreCase("split|lo|hi|count")
+                    || line.equalsIgnoreCase("split|bank|lo|hi|count")) {
                     continue;
                 }
                 String[] parts = line.split("\\|", -1);
+                if (parts[0].trim().equalsIgnoreCase("split")) {
+                    splitOut.add(parseSplitTableRow(kindLabel, parts, line, lineNo));
+                    continue;
+                }
                 if (parts.length != 2 && parts.length != 3) {
                     exitWithError("Error: Bad " + kindLabel + " config format at line " + lineNo + ": " + line);
                 }
@@ -181,6 +419,36 @@ public class NESrev {
         }
     }
 
+    private static int[] parseSplitTableRow(String kindLabel, String[] parts, String line, int lineNo) {
+        if (parts.length != 4 && parts.length != 5) {
+            exitWithError("Error: Bad " + kindLabel + " config format at line " + lineNo + ": " + line);
+        }
+        int lo;
+        int hi;
+        int count;
+        try {
+            if (parts.length == 4) {
+                lo = Integer.decode(parts[1].trim());
+                hi = Integer.decode(parts[2].trim());
+                count = Integer.decode(parts[3].trim());
+            } else {
+                lo = parseBankedPrgOffset(kindLabel, parts[1].trim(), parts[2].trim(), lineNo);
+                hi = parseBankedPrgOffset(kindLabel, parts[1].trim(), parts[3].trim(), lineNo);
+                count = Integer.decode(parts[4].trim());
+            }
+        } catch (NumberFormatException ex) {
+            exitWithError("Error: Bad numeric value at line " + lineNo + ": " + line);
+            return null;
+        } catch (ConfigException ex) {
+            exitWithError("Error: " + ex.getMessage());
+            return null;
+        }
+        if (lo < 0 || hi < 0 || count < 0 || (long) lo + count > prgSize || (long) hi + count > prgSize) {
+            exitWithError("Error: " + kindLabel + " addresses are out of range at line " + lineNo + ".");
+        }
+        return new int[] { lo, hi, count };
+    }
+
     private static int parseBankedPrgOffset(String kindLabel, String bankStr, String cpuStr, int lineNo) {
         int bank;
         int cpu;
@@ -237,6 +505,24 @@ public class NESrev {
         return flags;
     }
 
+    private static boolean[] createWritesAccumulatorTable() {
+        boolean[] flags = new boolean[256];
+        for (int op = 0; op < 256; op++) {
+            String m = mnemonicLookup[op];
+            if (m.equals("LDA") || m.equals("TXA") || m.equals("TYA") || m.equals("PLA")
+                || m.equals("ADC") || m.equals("SBC") || m.equals("AND")
+                || m.equals("ORA") || m.equals("EOR")) {
+                flags[op] = true;
+            }
+        }
+        // accumulator-mode shifts and rotates
+        flags[0x0A] = true;
+        flags[0x2A] = true;
+        flags[0x4A] = true;
+        flags[0x6A] = true;
+        return flags;
+    }
+
     private static void configurePrgMapping(long length) {
         configurePrgMapping(length, MAPPER_NROM);
     }
@@ -368,6 +654,12 @@ public class NESrev {
     }
 
     private static String labelForOffset(int ofs) {
+        if (!signatureNames.isEmpty()) {
+            String named = signatureNames.get(ofs);
+            if (named != null) {
+                return named;
+            }
+        }
         if (mapperNumber == MAPPER_MMC1) {
             return "L" + hex1(bankNumberForOffset(ofs)) + hex4(offsetToCpu(ofs));
         }
@@ -398,8 +690,10 @@ public class NESrev {
         "BEQ","SBC","???","???","???","SBC","INC","???","SED","SBC","???","???","???","SBC","INC","???"
     };
     private static final boolean[] PROCESSABLE_OPCODE = createProcessableOpcodeTable();
+    private static final boolean[] WRITES_A_OPCODE = createWritesAccumulatorTable();
 
-    // timing info... not used
+    // base cycle counts; branch and page-cross penalties are added by
+    // branchTakenCycles() and indexedPageCrossPenalty()
     private static int[] opcycleLookup = {
         7, 6, 0, 0, 0, 3, 5, 0, 3, 2, 2, 0, 0, 4, 6, 0,
         2, 5, 0, 0, 0, 4, 6, 0, 2, 4, 0, 0, 0, 4, 7, 0,
@@ -520,6 +814,158 @@ public class NESrev {
             printUsage();
             System.exit(1);
         }
+        loadProject(args);
+        if (traceSeedsPath != null) {
+            try {
+                writeTraceSeeds(traceSeedsPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + traceSeedsPath + ": " + ex.getMessage());
+            }
+        }
+        if (emulateFrames > 0) {
+            runEmulation(emulateFrames);
+        }
+
+        try {
+            runAnalysisToFixedPoint();
+        } catch (ConfigException ex) {
+            exitWithError("Error: " + ex.getMessage());
+        }
+        verifyDataLabels();
+        reportCdlConflicts();
+        if (bankCachePath != null) {
+            storeBankCache(bankCachePath);
+        }
+        if (splitOutPath != null) {
+            try {
+                writeSplitOutput(splitOutPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + splitOutPath + ": " + ex.getMessage());
+            }
+        } else {
+            // counts the listing bytes for -stats; UTF-8 like every other
+            // file NESrev writes, flushed once when the listing is done
+            CountingOutputStream counted = new CountingOutputStream(System.out);
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(counted, false, "UTF-8"));
+            try {
+                disassemble();
+            } finally {
+                System.out.flush();
+                System.setOut(stdout);
+            }
+            stats.outputBytes = counted.count;
+        }
+        if (exportMapPath != null) {
+            try {
+                writeAnalysisExport(exportMapPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + exportMapPath + ": " + ex.getMessage());
+            }
+        }
+        if (previousExport != null) {
+            try {
+                writeChangeReport(changeReportPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + changeReportPath + ": " + ex.getMessage());
+            }
+        }
+        if (fceuxSymbolsPath != null) {
+            try {
+                writeFceuxSymbols(fceuxSymbolsPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + fceuxSymbolsPath + ": " + ex.getMessage());
+            }
+        }
+        if (mesenSymbolsPath != null) {
+            try {
+                writeMesenSymbols(mesenSymbolsPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + mesenSymbolsPath + ": " + ex.getMessage());
+            }
+        }
+        if (cycleReportPath != null) {
+            try {
+                writeCycleReport(cycleReportPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + cycleReportPath + ": " + ex.getMessage());
+            }
+        }
+        if (pageReportPath != null) {
+            try {
+                writePageReport(pageReportPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + pageReportPath + ": " + ex.getMessage());
+            }
+        }
+        if (zeroPageReportPath != null) {
+            try {
+                writeZeroPageReport(zeroPageReportPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + zeroPageReportPath + ": " + ex.getMessage());
+            }
+        }
+        if (ngramIndexPath != null) {
+            try {
+                writeNgramSegment(ngramIndexPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + ngramIndexPath + ": " + ex.getMessage());
+            }
+        }
+        if (cloneReportPath != null || cloneCorpusPath != null) {
+            ArrayList<RoutineSketch> own = routineSketches();
+            ArrayList<RoutineSketch> corpus = new ArrayList<RoutineSketch>();
+            if (cloneCorpusPath != null) {
+                corpus = readCloneCorpus(cloneCorpusPath);
+                try {
+                    writeCloneSketches(cloneCorpusPath, own);
+                } catch (IOException ex) {
+                    exitWithError("Error: Couldn't write " + cloneCorpusPath + ": " + ex.getMessage());
+                }
+            }
+            if (cloneReportPath != null) {
+                try {
+                    writeCloneReport(cloneReportPath, own, corpus);
+                } catch (IOException ex) {
+                    exitWithError("Error: Couldn't write " + cloneReportPath + ": " + ex.getMessage());
+                }
+            }
+        }
+        if (speculateReportPath != null) {
+            try {
+                writeSpeculateReport(speculateReportPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + speculateReportPath + ": " + ex.getMessage());
+            }
+        }
+        if (profilePath != null) {
+            try {
+                writeProfileReport(profilePath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + profilePath + ": " + ex.getMessage());
+            }
+        }
+        if (nmiBudgetPath != null) {
+            try {
+                writeNmiBudgetReport(nmiBudgetPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't write " + nmiBudgetPath + ": " + ex.getMessage());
+            }
+        }
+        if (printStats) {
+            stats.print(System.err);
+        }
+        //
+        System.exit(0);
+    }
+
+/**
+* Parses the command line, loads the control files and the ROM image, and
+* leaves the tool ready for runAnalysisToFixedPoint(). Split out of main()
+* so the benchmark harness can set up a run exactly the way the CLI does.
+**/
+
+    static void loadProject(String[] args) throws Exception {
         File f = new File(args[0]);
         if (f==null || !f.canRead()) {
             exitWithError("Error: Couldn't read " + args[0] + ".");
@@ -527,6 +973,7 @@ public class NESrev {
         int cliMapper = parseMapperOption(args);
         configurePrgMapping(f.length(), cliMapper);
         name = f.getName();
+        romName = null;
 
         // Reset lifted state in case a prior invocation populated it.
         codePointersStart = new ArrayList<Integer>();
@@ -534,14 +981,323 @@ public class NESrev {
         dataPointersStart = new ArrayList<Integer>();
         dataPointersCount = new ArrayList<Integer>();
         codeEntries = new ArrayList<Integer>();
+        splitCodePointers = new ArrayList<int[]>();
+        splitDataPointers = new ArrayList<int[]>();
         knownCallsites = new TreeMap<Integer, ResolvedRecord>();
         inlineCalls = InlineCallsConfig.EMPTY;
         dataRanges = DataRangesConfig.EMPTY;
+        stats = new AnalysisStats();
+        toHtml = false;
+        printStats = false;
+        exportMapPath = null;
+        previousExportPath = null;
+        previousExport = null;
+        changeReportPath = null;
+        fceuxSymbolsPath = null;
+        mesenSymbolsPath = null;
+        annotateCycles = false;
+        cycleReportPath = null;
+        loopBounds = new HashMap<Integer, Integer>();
+        nmiBudgetPath = null;
+        annotatePageCrossing = false;
+        pageReportPath = null;
+        zeroPageReportPath = null;
+        cdlPath = null;
+        cdlCode = null;
+        cdlData = null;
+        cdlEntry = null;
+        cdlConflicts = new TreeSet<Integer>();
+        speculateReportPath = null;
+        signatureLibrary = null;
+        signatureEntries = new ArrayList<Integer>();
+        signatureData = new ArrayList<int[]>();
+        droppedSignatureData = new TreeSet<Integer>();
+        signatureNames = new HashMap<Integer, String>();
+        ngramIndexPath = null;
+        cloneReportPath = null;
+        cloneCorpusPath = null;
+        bankCachePath = null;
+        bankCacheLimit = 64L << 20;
+        bankCacheSlices = null;
+        bankCacheCallsites = null;
+        bankCacheKeys = null;
+        cachedCallsites = new TreeSet<Integer>();
+        dedupBanks = false;
+        parallelEmit = false;
+        splitOutPath = null;
+        splitOutSize = EMIT_BANK_SIZE;
+        bankCanonical = null;
+        bankTracedAs = null;
+        traceLogPath = null;
+        traceSeedsPath = null;
+        tracedCode = null;
+        emulateFrames = 0;
+        inputScript = null;
+        profilePath = null;
+        profile = null;
+        emulatedCode = null;
+        emulatedDispatch = null;
+        vblankName = "ntsc";
+        vblankCycles = VBLANK_NTSC_CYCLES;
         // parse rest of arguments
         for (int i=1; i<args.length; i++) {
             if (args[i].equals("-html")) {
                 toHtml = true;
             }
+            else if (args[i].equals("-stats")) {
+                printStats = true;
+            }
+            else if (args[i].equals("-ngramindex")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing directory after -ngramindex.");
+                }
+                ngramIndexPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-clonereport")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -clonereport.");
+                }
+                cloneReportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-clonecorpus")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing directory after -clonecorpus.");
+                }
+                cloneCorpusPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-bankcache")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing directory after -bankcache.");
+                }
+                bankCachePath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-bankcachemb")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing size after -bankcachemb.");
+                }
+                try {
+                    bankCacheLimit = Long.parseLong(args[i+1]) << 20;
+                } catch (NumberFormatException ex) {
+                    bankCacheLimit = -1;
+                }
+                if (bankCacheLimit <= 0) {
+                    exitWithError("Error: -bankcachemb needs a positive size in MB: " + args[i+1]);
+                }
+                ++i;
+            }
+            else if (args[i].equals("-parallelemit")) {
+                parallelEmit = true;
+            }
+            else if (args[i].equals("-splitout")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing directory after -splitout.");
+                }
+                splitOutPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-splitkb")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing size after -splitkb.");
+                }
+                try {
+                    splitOutSize = Integer.parseInt(args[i+1]) << 10;
+                } catch (NumberFormatException ex) {
+                    splitOutSize = -1;
+                }
+                if (splitOutSize <= 0) {
+                    exitWithError("Error: -splitkb needs a positive size in KB: " + args[i+1]);
+                }
+                ++i;
+            }
+            else if (args[i].equals("-dedupbanks")) {
+                dedupBanks = true;
+            }
+            else if (args[i].equals("-cycles")) {
+                annotateCycles = true;
+            }
+            else if (args[i].equals("-cyclereport")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -cyclereport.");
+                }
+                cycleReportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-loopbounds")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -loopbounds.");
+                }
+                try {
+                    loopBounds = parseLoopBounds(args[i+1]);
+                } catch (ConfigException ex) {
+                    exitWithError("Error: " + ex.getMessage());
+                }
+                ++i;
+            }
+            else if (args[i].equals("-pagecross")) {
+                annotatePageCrossing = true;
+            }
+            else if (args[i].equals("-pagereport")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -pagereport.");
+                }
+                pageReportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-zpreport")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -zpreport.");
+                }
+                zeroPageReportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-emulate")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing frame count after -emulate.");
+                }
+                try {
+                    emulateFrames = Integer.parseInt(args[i+1]);
+                } catch (NumberFormatException ex) {
+                    emulateFrames = -1;
+                }
+                if (emulateFrames <= 0) {
+                    exitWithError("Error: -emulate needs a positive frame count: " + args[i+1]);
+                }
+                ++i;
+            }
+            else if (args[i].equals("-cdl")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -cdl.");
+                }
+                if (!new File(args[i+1]).canRead()) {
+                    exitWithError("Error: Couldn't read " + args[i+1] + ".");
+                }
+                cdlPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-speculate")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -speculate.");
+                }
+                speculateReportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-signatures")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -signatures.");
+                }
+                try {
+                    signatureLibrary = SignatureLibrary.parse(args[i+1]);
+                } catch (ConfigException ex) {
+                    exitWithError("Error: " + ex.getMessage());
+                }
+                ++i;
+            }
+            else if (args[i].equals("-tracelog")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -tracelog.");
+                }
+                if (!new File(args[i+1]).canRead()) {
+                    exitWithError("Error: Couldn't read " + args[i+1] + ".");
+                }
+                traceLogPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-traceseeds")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -traceseeds.");
+                }
+                traceSeedsPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-input")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -input.");
+                }
+                try {
+                    inputScript = parseInputScript(args[i+1]);
+                } catch (ConfigException ex) {
+                    exitWithError("Error: " + ex.getMessage());
+                }
+                ++i;
+            }
+            else if (args[i].equals("-profile")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -profile.");
+                }
+                profilePath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-nmibudget")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -nmibudget.");
+                }
+                nmiBudgetPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-vblank")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing region after -vblank.");
+                }
+                String region = args[i+1].trim().toLowerCase();
+                if (region.equals("ntsc")) {
+                    vblankCycles = VBLANK_NTSC_CYCLES;
+                } else if (region.equals("pal")) {
+                    vblankCycles = VBLANK_PAL_CYCLES;
+                } else if (region.equals("dendy")) {
+                    vblankCycles = VBLANK_DENDY_CYCLES;
+                } else {
+                    exitWithError("Error: Unsupported vblank region '" + args[i+1]
+                        + "'. Supported regions: ntsc, pal, dendy.");
+                }
+                vblankName = region;
+                ++i;
+            }
+            else if (args[i].equals("-exportmap")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -exportmap.");
+                }
+                exportMapPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-romname")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing name after -romname.");
+                }
+                romName = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-previous")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -previous.");
+                }
+                previousExportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-changereport")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -changereport.");
+                }
+                changeReportPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-fceuxnl")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing directory after -fceuxnl.");
+                }
+                fceuxSymbolsPath = args[i+1];
+                ++i;
+            }
+            else if (args[i].equals("-mesenmlb")) {
+                if (i + 1 >= args.length) {
+                    exitWithError("Error: Missing filename after -mesenmlb.");
+                }
+                mesenSymbolsPath = args[i+1];
+                ++i;
+            }
             else if (args[i].equals("-mapper")) {
                 if (i + 1 >= args.length) {
                     exitWithError("Error: Missing mapper number after -mapper.");
@@ -595,14 +1351,16 @@ public class NESrev {
                 if (i + 1 >= args.length) {
                     exitWithError("Error: Missing filename after -codepointers.");
                 }
-                parsePointerTableConfig(args[i+1], "code pointer", codePointersStart, codePointersCount);
+                parsePointerTableConfig(args[i+1], "code pointer", codePointersStart, codePointersCount,
+                    splitCodePointers);
                 ++i;
             }
             else if (args[i].equals("-datapointers")) {
                 if (i + 1 >= args.length) {
                     exitWithError("Error: Missing filename after -datapointers.");
                 }
-                parsePointerTableConfig(args[i+1], "data pointer", dataPointersStart, dataPointersCount);
+                parsePointerTableConfig(args[i+1], "data pointer", dataPointersStart, dataPointersCount,
+                    splitDataPointers);
                 ++i;
             }
             else if (args[i].equals("-inlinecalls")) {
@@ -632,6 +1390,19 @@ public class NESrev {
             }
         }
 
+        if ((profilePath != null || inputScript != null) && emulateFrames == 0) {
+            exitWithError("Error: -profile and -input need -emulate FRAMES.");
+        }
+        if (traceSeedsPath != null && traceLogPath == null) {
+            exitWithError("Error: -traceseeds needs -tracelog FILE.");
+        }
+        if (changeReportPath != null && previousExportPath == null) {
+            exitWithError("Error: -changereport needs -previous FILE.");
+        }
+        if (splitOutPath != null && toHtml) {
+            exitWithError("Error: -splitout writes assembler source and can't be used with -html.");
+        }
+
 	// read file
         ROM = new int[(int)f.length()];
         try (FileInputStream fis = new FileInputStream(f)) {
@@ -648,1223 +1419,6796 @@ public class NESrev {
         // restart pass.
         map = new int[ROM.length];
 
+        if (signatureLibrary != null) {
+            matchSignatures();
+        }
+        if (dedupBanks && mapperNumber == MAPPER_MMC1) {
+            findDuplicateBanks();
+        }
+        if (cdlPath != null) {
+            try {
+                loadCdl(cdlPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't read " + cdlPath + ": " + ex.getMessage());
+            } catch (ConfigException ex) {
+                exitWithError("Error: " + ex.getMessage());
+            }
+        }
+        if (traceLogPath != null) {
+            try {
+                loadTraceLog(traceLogPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't read " + traceLogPath + ": " + ex.getMessage());
+            }
+        }
+
         // User-provided code-pointer table count, captured before appending the
         // 6502 fixed-vector table at the PRG tail. Only user-provided tables get a
         // label at their start; vector targets are still labelled like any other
         // code-pointer target so the fixed-vector .DW entries stay symbolic.
         appendFixedVectorTable();
 
-        try {
-            runAnalysisToFixedPoint();
-        } catch (ConfigException ex) {
-            exitWithError("Error: " + ex.getMessage());
+        if (bankCachePath != null) {
+            loadBankCache(bankCachePath);
+        }
+        if (previousExportPath != null) {
+            try {
+                previousExport = PreviousExport.read(previousExportPath);
+            } catch (IOException ex) {
+                exitWithError("Error: Couldn't read " + previousExportPath + ": " + ex.getMessage());
+            }
         }
-        verifyDataLabels();
-        disassemble();
-        //
-        System.exit(0);
     }
 
 /**
-* Runs analysis passes until no new inline callsites are discovered. Each
-* restart promotes the pass's discoveries into knownCallsites so the next
-* pass can block their record bytes and seed their continuations.
-* Termination is guaranteed because each restart adds at least one
-* previously unknown callsite and the ROM is finite. A safety cap converts
-* a runaway loop into a catchable configuration failure.
+* Writes the final status map and resolved inline records in a compact
+* binary form (big-endian): magic, version, mapper, PRG size, one map byte
+* per PRG byte, then the callsite count and (callsite, record end) pairs.
+* NESrevDiff compares these between engines.
 **/
 
-    public static void runAnalysisToFixedPoint() {
-        int passNo = 0;
-        while (true) {
-            runAnalysisPass();
-            passNo++;
-            if (newlyDiscoveredCallsites.isEmpty()) {
-                return;
-            }
-            for (Integer callsite : newlyDiscoveredCallsites) {
-                int jsrTarget = getAddressForContext(callsite + 1, callsite);
-                InlineCallEntry entry = inlineCalls.findForCallsite(callsite, jsrTarget);
-                knownCallsites.put(callsite, resolveRecord(callsite, entry));
+    static void writeAnalysisExport(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(EXPORT_MAGIC);
+            out.writeInt(EXPORT_VERSION);
+            out.writeInt(mapperNumber);
+            out.writeInt(prgSize);
+            for (int i = 0; i < prgSize; i++) {
+                out.writeByte(map[i]);
             }
-            if (passNo > analysisPassLimit) {
-                throw new ConfigException("inline-call discovery did not converge after "
-                    + passNo + " passes.");
+            out.writeInt(knownCallsites.size());
+            for (ResolvedRecord r : knownCallsites.values()) {
+                out.writeInt(r.callsite);
+                out.writeInt(r.recordEnd);
             }
         }
     }
 
-    private static void appendFixedVectorTable() {
-        userCodePointersCount = codePointersStart.size();
-        codePointersStart.add(prgSize - 6);
-        codePointersCount.add(3);
+/**
+* The symbols both emulator sinks write, keyed by PRG offset: every label
+* of the final map under its labelForOffset() name, plus the start of every
+* data range and resolved inline record, which also carry their length and
+* a comment saying what they are.
+**/
+
+    static TreeMap<Integer, DebugSymbol> debugSymbols() {
+        TreeMap<Integer, DebugSymbol> symbols = new TreeMap<Integer, DebugSymbol>();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (isLabel(ofs)) {
+                symbols.put(ofs, new DebugSymbol(labelForOffset(ofs), 1, ""));
+            }
+        }
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry e = dataRanges.entries[k];
+            symbols.put(e.start, new DebugSymbol(labelForOffset(e.start), e.length,
+                "data range, " + e.length + (e.length == 1 ? " byte" : " bytes")));
+        }
+        for (ResolvedRecord r : knownCallsites.values()) {
+            int length = r.recordEnd - r.recordStart;
+            if (length > 0) {
+                symbols.put(r.recordStart, new DebugSymbol(labelForOffset(r.recordStart), length,
+                    "inline record of JSR " + labelForOffset(r.entry.callee) + " at $"
+                    + hex4(offsetToCpu(r.callsite)) + ", " + length + (length == 1 ? " byte" : " bytes")));
+            }
+        }
+        return symbols;
     }
 
 /**
-* One full analysis pass per §7.2 of the inline-call recovery spec: rebuild
-* the role map and the blocked-from-code mask, apply data ranges and
-* resolved inline records, then apply user-provided pointer tables, data
-* pointer tables, and code entries. processCode runs as a side effect of
-* each seed, so by return the map reflects everything reachable under the
-* current set of known callsites.
+* Writes FCEUX name lists into dir, one NAME.N.nl per 16 KB PRG bank (N in
+* hex, as FCEUX numbers them). FCEUX only loads them as <rom>.nes.N.nl next
+* to the ROM it opened, so NAME is projectName(): pass the iNES file name as
+* -romname. Each line is "$CPU#name#comment" with a "/length" (hex) after
+* the address for data ranges and inline records. Every bank gets a file,
+* so a rerun never leaves an older one behind.
 **/
 
-    public static void runAnalysisPass() {
-        newlyDiscoveredCallsites = new LinkedHashSet<Integer>();
-        for (int i = 0; i < map.length; i++) {
-            map[i] = DATA;
+    static void writeFceuxSymbols(String dir) throws IOException {
+        TreeMap<Integer, DebugSymbol> symbols = debugSymbols();
+        outputDirectory(dir);
+        for (int bank = 0; bank < (prgSize + 0x3FFF) / 0x4000; bank++) {
+            File f = new File(dir, projectName() + "." + Integer.toHexString(bank).toUpperCase() + ".nl");
+            try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(f)), false, "UTF-8")) {
+                for (Map.Entry<Integer, DebugSymbol> e : symbols.subMap(bank * 0x4000, (bank + 1) * 0x4000).entrySet()) {
+                    DebugSymbol s = e.getValue();
+                    out.print("$" + hex4(offsetToCpu(e.getKey())));
+                    if (s.length > 1) {
+                        out.print("/" + Integer.toHexString(s.length).toUpperCase());
+                    }
+                    out.print("#" + s.name + "#" + s.comment + "\n");
+                }
+                if (out.checkError()) {
+                    throw new IOException("write failed");
+                }
+            }
         }
-        blockedFromCode = new boolean[ROM.length];
-
-        // Phase 1: build the complete blocked-from-code mask BEFORE any seed
-        // is queued. Interleaving block-and-seed (per range / per record)
-        // would let an earlier continuation trace into a later barrier whose
-        // bytes haven't yet been blocked, decoding them as instructions on
-        // this pass and producing nondeterministic per-pass artifacts.
-        blockDataRanges();
-        blockKnownInlineRecords();
+    }
 
-        // Phase 2: labels and seeds. Every barrier is now in place, so
-        // processCode calls below cannot accidentally walk into a not-yet-
-        // blocked range or record.
-        labelAndSeedDataRanges();
-        labelAndSeedKnownInlineRecords();
+/**
+* Writes a Mesen label file: "P:offset:name" per symbol with the PRG offset
+* in hex, "P:start-end:name:comment" for data ranges and inline records.
+**/
 
-        // mark the code pointer table bytes
-        for (int i = 0; i < codePointersStart.size(); ++i) {
-            int offset = codePointersStart.get(i);
-            int count = codePointersCount.get(i);
-            String source = (i >= userCodePointersCount)
-                ? "fixed vector table at $" + cpuLabel(offset)
-                : "code-pointer table at $" + cpuLabel(offset);
-            markPointerTableBytes(offset, count, source);
+    static void writeMesenSymbols(String path) throws IOException {
+        try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(path)), false, "UTF-8")) {
+            for (Map.Entry<Integer, DebugSymbol> e : debugSymbols().entrySet()) {
+                DebugSymbol s = e.getValue();
+                int ofs = e.getKey();
+                out.print(String.format("P:%04X", ofs));
+                if (s.length > 1) {
+                    out.print(String.format("-%04X", ofs + s.length - 1));
+                }
+                out.print(":" + s.name);
+                if (s.comment.length() > 0) {
+                    out.print(":" + s.comment);
+                }
+                out.print("\n");
+            }
+            if (out.checkError()) {
+                throw new IOException("write failed");
+            }
         }
+    }
 
-        // process code pointers recursively
-        for (int i = 0; i < codePointersStart.size(); ++i) {
-            int offset = codePointersStart.get(i);
-            int count = codePointersCount.get(i);
-            // Label the start of the explicit pointer table so the .DW run is
-            // anchored at its own LXXXX: label instead of trailing the previous
-            // routine anonymously. Skip the auto-added fixed-vector table.
-            if (count > 0 && i < userCodePointersCount) {
-                map[offset] |= LABEL;
+/**
+* Writes the -changereport JSON against the -previous export and prints a
+* one-line summary to stderr (the JSON only when path is set). Both runs
+* are of the same ROM, so every change is a difference in the maps and
+* records: bytes newly CODE and newly DATA and labels added or removed, as
+* PRG ranges split at MMC1 banks; inline records resolved, dropped or
+* with a new extent; and code-pointer table entries added or removed, with
+* their targets.
+**/
+
+    static void writeChangeReport(String path) throws IOException {
+        int[] before = previousExport.map;
+        boolean[] newCode = new boolean[prgSize];
+        boolean[] newData = new boolean[prgSize];
+        boolean[] labelsAdded = new boolean[prgSize];
+        boolean[] labelsRemoved = new boolean[prgSize];
+        int[] counts = new int[4];
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            newCode[ofs] = (map[ofs] & CODE) != 0 && (before[ofs] & CODE) == 0;
+            newData[ofs] = (map[ofs] & DATA) != 0 && (before[ofs] & DATA) == 0;
+            labelsAdded[ofs] = (map[ofs] & LABEL) != 0 && (before[ofs] & LABEL) == 0;
+            labelsRemoved[ofs] = (map[ofs] & LABEL) == 0 && (before[ofs] & LABEL) != 0;
+            counts[0] += newCode[ofs] ? 1 : 0;
+            counts[1] += newData[ofs] ? 1 : 0;
+            counts[2] += labelsAdded[ofs] ? 1 : 0;
+            counts[3] += labelsRemoved[ofs] ? 1 : 0;
+        }
+        TreeMap<Integer, Integer> after = new TreeMap<Integer, Integer>();
+        for (ResolvedRecord r : knownCallsites.values()) {
+            after.put(r.callsite, r.recordEnd);
+        }
+        TreeSet<Integer> entriesBefore = pointerEntries(before);
+        TreeSet<Integer> entriesAfter = pointerEntries(map);
+
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("newCodeBytes").value(counts[0]);
+        json.name("newDataBytes").value(counts[1]);
+        writeChangeRanges(json, "newCode", newCode);
+        writeChangeRanges(json, "newData", newData);
+        json.name("labelsAdded").beginArray();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (labelsAdded[ofs]) {
+                json.beginObject();
+                writeRoutineIdentity(json, ofs);
+                json.endObject();
             }
-            boolean isVectorTable = (i >= userCodePointersCount);
-            for (int j = 0; j < count; ++j) {
-                int pointerOffset = offset + j*2;
-                ArrayList<Integer> targets = codePointerTargetsForContext(pointerOffset, pointerOffset);
-                if (targets.isEmpty()) {
-                    continue;
-                }
-                // Every ROM-window code-pointer target gets a label, even if
-                // processCode can't decode the bytes there.
-                for (Integer target : targets) {
-                    if (blockedFromCode[target]) {
-                        String source = isVectorTable
-                            ? "fixed vector at $" + cpuLabel(pointerOffset)
-                            : "code-pointer table at $" + cpuLabel(offset) + " entry [" + j + "]";
-                        failBlockedConflict(target, source);
+        }
+        json.endArray();
+        json.name("labelsRemoved").beginArray();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (labelsRemoved[ofs]) {
+                json.beginObject();
+                writeRoutineIdentity(json, ofs);
+                json.endObject();
+            }
+        }
+        json.endArray();
+        int[] records = new int[3];
+        json.name("records").beginArray();
+        TreeSet<Integer> callsites = new TreeSet<Integer>(after.keySet());
+        callsites.addAll(previousExport.recordEnds.keySet());
+        for (Integer callsite : callsites) {
+            Integer was = previousExport.recordEnds.get(callsite);
+            Integer now = after.get(callsite);
+            if (was != null && was.equals(now)) {
+                continue;
+            }
+            String change = (was == null) ? "resolved" : (now == null) ? "dropped" : "changed";
+            records[(was == null) ? 0 : (now == null) ? 1 : 2]++;
+            json.beginObject();
+            json.name("change").value(change);
+            json.name("callsite").value("$" + hex4(offsetToCpu(callsite)));
+            if (mapperNumber == MAPPER_MMC1) {
+                json.name("bank").value(bankNumberForOffset(callsite));
+            }
+            json.name("callee").value(labelForOffset(jsrTargetForCallsite(callsite)));
+            if (was != null && was > callsite + 3) {
+                json.name("before").value("$" + hex4(offsetToCpu(callsite + 3)) + "-$" + hex4(offsetToCpu(was - 1)));
+            }
+            if (now != null && now > callsite + 3) {
+                json.name("after").value("$" + hex4(offsetToCpu(callsite + 3)) + "-$" + hex4(offsetToCpu(now - 1)));
+                ResolvedRecord r = knownCallsites.get(callsite);
+                json.name("targets").beginArray();
+                for (int k = 0; k < r.pointerTargets.length; k++) {
+                    if (r.pointerTargets[k] >= 0) {
+                        json.value(labelForOffset(r.pointerTargets[k]));
                     }
-                    map[target] |= LABEL;
-                    processCode(target);
                 }
+                json.endArray();
             }
+            json.endObject();
         }
-
-        // mark data pointer table bytes; targets get labels but are NOT traced as code
-        for (int i = 0; i < dataPointersStart.size(); ++i) {
-            int offset = dataPointersStart.get(i);
-            int count = dataPointersCount.get(i);
-            markPointerTableBytes(offset, count, "data-pointer table at $" + cpuLabel(offset));
-            for (int j = 0; j < count; ++j) {
-                int pointerOffset = offset + j*2;
-                if (!isROMAddress(pointerOffset, pointerOffset)) {
-                    continue;
-                }
-                int target = getAddressForContext(pointerOffset, pointerOffset);
-                map[target] |= LABEL;
+        json.endArray();
+        int[] pointers = new int[2];
+        json.name("pointers").beginArray();
+        TreeSet<Integer> entries = new TreeSet<Integer>(entriesAfter);
+        entries.addAll(entriesBefore);
+        for (Integer ofs : entries) {
+            boolean was = entriesBefore.contains(ofs);
+            if (was == entriesAfter.contains(ofs)) {
+                continue;
             }
-            // Label the table start AFTER the byte-marking loop, since the j=0 store
-            // above would otherwise clobber any earlier LABEL bit on map[offset].
-            if (count > 0) {
-                map[offset] |= LABEL;
+            pointers[was ? 1 : 0]++;
+            json.beginObject();
+            json.name("change").value(was ? "removed" : "added");
+            json.name("entry").value("$" + hex4(offsetToCpu(ofs)));
+            if (mapperNumber == MAPPER_MMC1) {
+                json.name("bank").value(bankNumberForOffset(ofs));
             }
+            json.name("target").value(isCanonicalROMAddress(ofs, ofs)
+                ? labelForOffset(getAddressForContext(ofs, ofs))
+                : "$" + hex4(readCpuAddress(ofs)));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        if (path != null) {
+            json.writeTo(path);
         }
+        System.err.println("changes: +" + counts[0] + " code, +" + counts[1] + " data bytes, "
+            + counts[2] + " labels added, " + counts[3] + " removed, "
+            + records[0] + " records resolved, " + records[1] + " dropped, " + records[2] + " changed, "
+            + pointers[0] + " pointer entries added, " + pointers[1] + " removed");
+    }
 
-        // process direct code entries (CPU addresses already converted to PRG offsets)
-        for (int i = 0; i < codeEntries.size(); ++i) {
-            int target = codeEntries.get(i);
-            if (blockedFromCode[target]) {
-                failBlockedConflict(target, "codeentries entry [" + i + "] -> $" + cpuLabel(target));
+    private static void writeChangeRanges(JsonWriter json, String key, boolean[] flags) {
+        json.name(key).beginArray();
+        int ofs = 0;
+        while (ofs < prgSize) {
+            if (!flags[ofs]) {
+                ofs++;
+                continue;
             }
-            map[target] |= LABEL;
-            processCode(target);
+            int start = ofs++;
+            while (ofs < prgSize && flags[ofs] && (mapperNumber != MAPPER_MMC1 || (ofs & 0x3FFF) != 0)) {
+                ofs++;
+            }
+            json.beginObject();
+            if (mapperNumber == MAPPER_MMC1) {
+                json.name("bank").value(bankNumberForOffset(start));
+            }
+            json.name("range").value("$" + hex4(offsetToCpu(start)) + "-$" + hex4(offsetToCpu(ofs - 1)));
+            json.name("bytes").value(ofs - start);
+            json.endObject();
         }
+        json.endArray();
     }
 
-    private static void markPointerTableBytes(int offset, int count, String source) {
-        for (int j = 0; j < count; ++j) {
-            for (int b = 0; b < 2; ++b) {
-                int byteOffset = offset + j*2 + b;
-                if (blockedFromCode[byteOffset]) {
-                    failBlockedConflict(byteOffset, source + " entry [" + j + "] byte [" + b + "]");
-                }
-                map[byteOffset] = CODE | PTR;
+/**
+* Code-pointer table entries in a map: each run of PTR bytes read as words
+* from its first byte, the way the listing prints them as .DW.
+**/
+
+    static TreeSet<Integer> pointerEntries(int[] m) {
+        TreeSet<Integer> entries = new TreeSet<Integer>();
+        int ofs = 0;
+        while (ofs < prgSize) {
+            if ((m[ofs] & PTR) == 0) {
+                ofs++;
+                continue;
+            }
+            while (ofs < prgSize && (m[ofs] & PTR) != 0) {
+                entries.add(ofs);
+                ofs += 2;
             }
         }
+        return entries;
     }
 
 /**
-* Phase-1 mask construction for resolved inline records. Marks every record
-* byte as blocked-from-code and detects record-vs-record / record-vs-range
-* overlaps. Does NOT label anything or seed continuations — that is phase
-* 2's job, after every record AND every data range has been added to the
-* mask.
+* Content key of a 16 KB bank for -bankcache: SHA-256 over the mapper, the
+* bank's CPU window and bytes, and every control that can put a barrier in
+* the bank or change how its calls are read. Controls are written bank-
+* relative (or by CPU address outside it) and sorted, so two projects that
+* share an engine bank share the key whatever their file layout.
 **/
 
-    public static void blockKnownInlineRecords() {
-        for (ResolvedRecord r : knownCallsites.values()) {
-            for (int i = r.recordStart; i < r.recordEnd; i++) {
-                if (i < blockedFromCode.length && blockedFromCode[i]) {
-                    String blocking = findBlockingSource(i);
-                    throw new ConfigException("inline record at callsite $" + cpuLabel(r.callsite)
-                        + " -> $" + hex4(r.entry.calleeCpu)
-                        + " overlaps already-blocked byte $" + cpuLabel(i)
-                        + " (" + blocking + ")");
+    static String bankCacheKey(int bank) {
+        int base = bank * 0x4000;
+        int end = base + 0x4000;
+        ArrayList<String> controls = new ArrayList<String>();
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry r = dataRanges.entries[k];
+            if (r.start < end && base < r.end) {
+                controls.add("range " + (r.start - base) + " " + r.length);
+            }
+        }
+        for (int k = 0; k < inlineCalls.entries.length; k++) {
+            InlineCallEntry e = inlineCalls.entries[k];
+            boolean calleeInBank = e.callee >= base && e.callee < end;
+            String callee = calleeInBank ? "rel " + (e.callee - base) : "cpu " + hex4(offsetToCpu(e.callee));
+            String site = (e.callsite >= base && e.callsite < end) ? " at " + (e.callsite - base) : "";
+            if (e.callsite != InlineCallEntry.ANY_CALLSITE && site.length() == 0) {
+                continue;
+            }
+            StringBuilder layout = new StringBuilder();
+            for (int f = 0; f < e.layout.fields.length; f++) {
+                InlineField fld = e.layout.fields[f];
+                layout.append(' ').append(fld.kind).append('/').append(fld.byteCount).append('/')
+                    .append(fld.pointerKind).append('/').append(fld.pointerAdjustment);
+            }
+            controls.add("inline " + callee + site + layout);
+        }
+        for (int k = 0; k < codePointersStart.size(); k++) {
+            int ofs = codePointersStart.get(k);
+            if (ofs >= base && ofs < end) {
+                controls.add("codeptr " + (ofs - base) + " " + codePointersCount.get(k));
+            }
+        }
+        for (int k = 0; k < dataPointersStart.size(); k++) {
+            int ofs = dataPointersStart.get(k);
+            if (ofs >= base && ofs < end) {
+                controls.add("dataptr " + (ofs - base) + " " + dataPointersCount.get(k));
+            }
+        }
+        for (int k = 0; k < signatureData.size(); k++) {
+            int[] span = signatureData.get(k);
+            if (span[0] >= base && span[0] < end) {
+                controls.add("sigdata " + (span[0] - base) + " " + (span[1] - span[0]));
+            }
+        }
+        Collections.sort(controls);
+        try {
+            java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+            StringBuilder head = new StringBuilder("nesrev bank " + BANK_CACHE_VERSION + " mapper "
+                + mapperNumber + " cpu " + hex4(offsetToCpu(base)) + "\n");
+            for (int k = 0; k < controls.size(); k++) {
+                head.append(controls.get(k)).append('\n');
+            }
+            md.update(head.toString().getBytes("UTF-8"));
+            byte[] bytes = new byte[0x4000];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) ROM[base + i];
+            }
+            md.update(bytes);
+            if (cdlData != null) {
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) ((cdlCode[base + i] ? 1 : 0) | (cdlData[base + i] ? 2 : 0));
                 }
-                blockedFromCode[i] = true;
+                md.update(bytes);
+            }
+            StringBuilder hex = new StringBuilder();
+            byte[] digest = md.digest();
+            for (int i = 0; i < digest.length; i++) {
+                hex.append(hex2(digest[i] & 0xFF));
             }
+            return hex.toString();
+        } catch (java.security.NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (java.io.UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
         }
     }
 
 /**
-* Phase-2 label + seed for resolved inline records. Labels record_start,
-* labels and seeds adjusted code-pointer targets, labels adjusted data-
-* pointer targets without seeding them, and labels + seeds record_end as a
-* code continuation. Must run only after blockKnownInlineRecords and
-* blockDataRanges have populated the complete barrier mask.
+* Looks every bank up in the -bankcache directory. A hit keeps the cached map
+* slice, so storeBankCache() can skip an unchanged bank, and preloads the
+* cached inline callsites into knownCallsites, which saves the analysis pass
+* each would otherwise cost. The cache never seeds code: a preloaded record
+* only blocks its bytes until confirmCachedCallsites() sees the trace reach
+* its callsite. Unreadable or foreign files count as misses. Hits are touched
+* so eviction drops the least recently used banks first.
 **/
 
-    public static void labelAndSeedKnownInlineRecords() {
-        for (ResolvedRecord r : knownCallsites.values()) {
-            if (inPrgOffset(r.recordStart)) {
-                map[r.recordStart] |= LABEL;
+    static void loadBankCache(String dir) {
+        int banks = prgSize / 0x4000;
+        bankCacheKeys = new String[banks];
+        bankCacheSlices = new byte[banks][];
+        bankCacheCallsites = new int[banks][];
+        int hits = 0;
+        for (int b = 0; b < banks; b++) {
+            bankCacheKeys[b] = bankCacheKey(b);
+            File f = new File(dir, bankCacheKeys[b] + ".nrbc");
+            if (!f.isFile()) {
+                continue;
             }
-            InlineField[] fields = r.entry.layout.fields;
-            for (int k = 0; k < fields.length; k++) {
-                InlineField field = fields[k];
-                if (field.kind != InlineField.PTR16) {
+            try (java.io.DataInputStream in = new java.io.DataInputStream(
+                    new java.io.BufferedInputStream(new FileInputStream(f)))) {
+                if (in.readInt() != BANK_CACHE_MAGIC || in.readInt() != BANK_CACHE_VERSION
+                    || in.readInt() != 0x4000) {
                     continue;
                 }
-                int target = r.pointerTargets[k];
-                if (!inPrgOffset(target)) {
-                    continue;
-                }
-                if (field.pointerKind == PointerKind.CODE && blockedFromCode[target]) {
-                    failBlockedConflict(target, "inline ptr16(code) at callsite $"
-                        + cpuLabel(r.callsite) + " field " + k);
-                }
-                map[target] |= LABEL;
-                if (field.pointerKind == PointerKind.CODE) {
-                    processCode(target);
+                byte[] slice = new byte[0x4000];
+                in.readFully(slice);
+                int[] callsites = new int[in.readInt()];
+                for (int i = 0; i < callsites.length; i++) {
+                    callsites[i] = in.readInt();
                 }
+                bankCacheSlices[b] = slice;
+                bankCacheCallsites[b] = callsites;
+                hits++;
+            } catch (IOException ex) {
+                continue;
+            }
+            f.setLastModified(System.currentTimeMillis());
+            for (int i = 0; i < bankCacheCallsites[b].length; i++) {
+                preloadCachedCallsite(b * 0x4000 + bankCacheCallsites[b][i]);
             }
-            if (inPrgOffset(r.recordEnd)) {
-                if (blockedFromCode[r.recordEnd]) {
-                    failBlockedConflict(r.recordEnd, "inline record continuation at callsite $"
-                        + cpuLabel(r.callsite));
+        }
+        System.err.println("bankcache: " + hits + " of " + banks + " banks cached, "
+            + knownCallsites.size() + " inline callsites preloaded");
+        if (hits == 0) {
+            bankCacheSlices = null;
+        }
+    }
+
+    private static void preloadCachedCallsite(int callsite) {
+        if (callsite + 3 > prgSize || ROM[callsite] != 0x20 || !isROMAddress(callsite + 1, callsite)) {
+            return;
+        }
+        int callee = jsrTargetForCallsite(callsite);
+        try {
+            InlineCallEntry entry = inlineCalls.findForCallsite(callsite, callee);
+            if (entry != null) {
+                knownCallsites.put(callsite, resolveRecord(callsite, entry));
+                cachedCallsites.add(callsite);
+            }
+        } catch (ConfigException ex) {
+            // left for the analysis to rediscover and report
+        }
+    }
+
+/**
+* Confirms preloaded callsites the trace has reached by now and applies their
+* records, repeating while a confirmed record's pointers reach further cached
+* callsites. Records still unconfirmed seeded nothing this pass.
+**/
+
+    private static void confirmCachedCallsites() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Integer callsite : new ArrayList<Integer>(cachedCallsites)) {
+                if (isInstr(callsite)) {
+                    cachedCallsites.remove(callsite);
+                    labelAndSeedRecord(knownCallsites.get(callsite));
+                    changed = true;
                 }
-                map[r.recordEnd] |= LABEL;
-                processCode(r.recordEnd);
             }
         }
     }
 
 /**
-* Convenience composite used by single-record / single-range tests. Runs
-* block + label/seed back-to-back; runAnalysisPass uses the split phase
-* methods directly so all barriers are constructed before any seed traces.
+* Settles the preloaded callsites once a pass finds nothing new: those the
+* trace reached after confirmCachedCallsites() ran are confirmed, the rest
+* are dropped. Returns true if either happened, since the pass then needs a
+* rerun under the settled records.
 **/
 
-    public static void applyKnownInlineRecords() {
-        blockKnownInlineRecords();
-        labelAndSeedKnownInlineRecords();
+    private static boolean settleCachedCallsites() {
+        if (cachedCallsites.isEmpty()) {
+            return false;
+        }
+        for (Integer callsite : cachedCallsites) {
+            if (!isInstr(callsite)) {
+                knownCallsites.remove(callsite);
+            }
+        }
+        cachedCallsites.clear();
+        return true;
     }
 
 /**
-* Describes which configured data range or resolved inline record blocks a
-* given PRG offset. Used to format the "blocked by" line in conflict
-* diagnostics. Returns a generic stub when no source can be identified —
-* that should never happen if the mask was built consistently.
+* Drops every preloaded callsite not yet confirmed, for a pass that failed
+* while they were in place: only a cold run may decide that a run fails.
 **/
 
-    static String findBlockingSource(int target) {
-        for (int k = 0; k < dataRanges.entries.length; k++) {
-            DataRangeEntry r = dataRanges.entries[k];
-            if (target >= r.start && target < r.end) {
-                return "data range $" + hex4(r.startCpu) + "-$"
-                    + hex4(r.startCpu + r.length - 1)
-                    + " (dataranges config line " + r.sourceLine + ")";
-            }
+    private static boolean dropCachedCallsites() {
+        if (cachedCallsites.isEmpty()) {
+            return false;
         }
-        for (ResolvedRecord r : knownCallsites.values()) {
-            if (target >= r.recordStart && target < r.recordEnd) {
-                return "inline record at callsite $" + cpuLabel(r.callsite)
-                    + " -> $" + hex4(r.entry.calleeCpu)
-                    + " (inlinecalls config line " + r.entry.sourceLine + ")"
-                    + " (record $" + cpuLabel(r.recordStart) + "-$"
-                    + cpuLabel(r.recordEnd - 1) + ")";
-            }
+        for (Integer callsite : cachedCallsites) {
+            knownCallsites.remove(callsite);
         }
-        return "blocked byte (source unknown)";
+        cachedCallsites.clear();
+        return true;
     }
 
-    static void failBlockedConflict(int target, String source) {
-        String blocking = findBlockingSource(target);
-        throw new ConfigException("inline-data conflict at $" + cpuLabel(target)
-            + "; blocked by " + blocking + "; conflicting target: " + source);
+/**
+* Writes every bank that holds code and differs from its cached copy, then
+* evicts least recently used files until the directory fits the size cap.
+* Each file is written under a temporary name and renamed into place, so
+* concurrent runs never read a partial file; the last writer of a key wins.
+* Failures only warn: the cache never decides whether a run succeeds.
+**/
+
+    static void storeBankCache(String dir) {
+        int written = 0;
+        for (int b = 0; b < bankCacheKeys.length; b++) {
+            int base = b * 0x4000;
+            byte[] slice = new byte[0x4000];
+            boolean code = false;
+            for (int i = 0; i < slice.length; i++) {
+                slice[i] = (byte) map[base + i];
+                code |= (map[base + i] & CODE) != 0;
+            }
+            if (!code || (bankCacheSlices != null && Arrays.equals(slice, bankCacheSlices[b]))) {
+                continue;
+            }
+            File tmp = null;
+            try {
+                tmp = File.createTempFile(bankCacheKeys[b], ".tmp", outputDirectory(dir));
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    out.writeInt(BANK_CACHE_MAGIC);
+                    out.writeInt(BANK_CACHE_VERSION);
+                    out.writeInt(0x4000);
+                    out.write(slice);
+                    ArrayList<Integer> callsites = new ArrayList<Integer>(
+                        knownCallsites.subMap(base, base + 0x4000).keySet());
+                    out.writeInt(callsites.size());
+                    for (int i = 0; i < callsites.size(); i++) {
+                        out.writeInt(callsites.get(i) - base);
+                    }
+                }
+                java.nio.file.Files.move(tmp.toPath(), new File(dir, bankCacheKeys[b] + ".nrbc").toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                written++;
+            } catch (IOException ex) {
+                System.err.println("Warning: bank cache: couldn't write bank " + b + ": " + ex.getMessage());
+                if (tmp != null) {
+                    tmp.delete();
+                }
+            }
+        }
+        int evicted = evictBankCache(new File(dir), bankCacheLimit);
+        System.err.println("bankcache: " + written + " banks written, " + evicted + " evicted");
     }
 
 /**
-* Resolves a single inline record at the given callsite against its
-* configured layout. Validates the JSR encoding, walks each field, evaluates
-* counted8 payload size from ROM, and computes adjusted pointer targets.
-* Throws ConfigException on any out-of-ROM or pointer-out-of-range condition.
+* Deletes the least recently used cache files until the total fits limit.
+* A file another run already removed is simply skipped.
 **/
 
-    public static ResolvedRecord resolveRecord(int callsite, InlineCallEntry entry) {
-        if (callsite + 3 > prgSize) {
-            throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                + " (callee $" + hex4(entry.calleeCpu) + "): JSR extends past end of ROM");
+    static int evictBankCache(File dir, long limit) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
         }
-        if (ROM[callsite] != 0x20) {
-            throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                + ": expected JSR ($20), got $" + hex2(ROM[callsite]));
+        ArrayList<File> cached = new ArrayList<File>();
+        final HashMap<File, Long> touched = new HashMap<File, Long>();
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].getName().endsWith(".nrbc")) {
+                cached.add(files[i]);
+                touched.put(files[i], files[i].lastModified());
+                total += files[i].length();
+            }
         }
-        int actualTarget = getAddressForContext(callsite + 1, callsite);
-        if (actualTarget != entry.callee) {
-            throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                + ": JSR target $" + cpuLabel(actualTarget) + " does not match configured callee $"
-                + hex4(entry.calleeCpu));
+        Collections.sort(cached, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(touched.get(a), touched.get(b));
+            }
+        });
+        int evicted = 0;
+        for (int i = 0; i < cached.size() && total > limit; i++) {
+            long size = cached.get(i).length();
+            if (cached.get(i).delete()) {
+                evicted++;
+            }
+            total -= size;
         }
-        InlineField[] fields = entry.layout.fields;
-        int[] fieldStarts = new int[fields.length];
-        int[] fieldEnds = new int[fields.length];
-        int[] pointerTargets = new int[fields.length];
-        for (int k = 0; k < pointerTargets.length; k++) {
-            pointerTargets[k] = -1;
+        return evicted;
+    }
+
+/**
+* Adds this ROM to the -ngramindex corpus as one segment file, NAME.ngx
+* (NAME from projectName()), replacing any earlier segment of the same
+* name. Every decoded instruction start is posted under the opcodes of it
+* and the instructions that follow it without a gap in the same bank;
+* opcodes fix mnemonic and addressing mode, operands are left out so
+* relocated copies share keys. Segment layout (big-endian): magic, version, n-gram length, project name (UTF),
+* mapper, PRG size, key count, then one (key, postings, byte offset) row
+* per key sorted as unsigned, then the postings: ascending PRG offsets,
+* delta-coded as 7-bit varints. The file is written under a temporary name
+* and renamed into place, so queries and other writers never see it half
+* done.
+**/
+
+    static void writeNgramSegment(String dir) throws IOException {
+        TreeMap<Integer, ArrayList<Integer>> postings = new TreeMap<Integer, ArrayList<Integer>>(
+            new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Integer.compareUnsigned(a, b);
+                }
+            });
+        int[] ops = new int[NGRAM_LENGTH];
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (!isInstr(ofs)) {
+                continue;
+            }
+            int at = ofs;
+            for (int i = 0; i < NGRAM_LENGTH; i++) {
+                boolean run = at < prgSize && isInstr(at) && bankNumberForOffset(at) == bankNumberForOffset(ofs);
+                ops[i] = run ? ROM[at] : NGRAM_PAD;
+                at = run ? at + Math.max(1, oplengthLookup[ROM[at]]) : prgSize;
+            }
+            int key = ngramKey(ops, 0);
+            ArrayList<Integer> list = postings.get(key);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                postings.put(key, list);
+            }
+            list.add(ofs);
         }
-        int recordStart = callsite + 3;
-        int ofs = recordStart;
-        for (int k = 0; k < fields.length; k++) {
-            InlineField field = fields[k];
-            fieldStarts[k] = ofs;
-            int fieldSize;
-            if (field.kind == InlineField.COUNTED8) {
-                if (ofs >= prgSize) {
-                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                        + " (callee $" + hex4(entry.calleeCpu) + "): counted8 count byte past end of ROM");
+        java.io.ByteArrayOutputStream blob = new java.io.ByteArrayOutputStream();
+        File tmp = File.createTempFile("segment", ".tmp", outputDirectory(dir));
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(NGRAM_MAGIC);
+                out.writeInt(NGRAM_VERSION);
+                out.writeInt(NGRAM_LENGTH);
+                out.writeUTF(projectName());
+                out.writeInt(mapperNumber);
+                out.writeInt(prgSize);
+                out.writeInt(postings.size());
+                for (Map.Entry<Integer, ArrayList<Integer>> e : postings.entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeInt(e.getValue().size());
+                    out.writeInt(blob.size());
+                    int last = 0;
+                    for (Integer ofs : e.getValue()) {
+                        int delta = ofs - last;
+                        while (delta >= 0x80) {
+                            blob.write((delta & 0x7F) | 0x80);
+                            delta >>>= 7;
+                        }
+                        blob.write(delta);
+                        last = ofs;
+                    }
                 }
-                int count = ROM[ofs];
-                fieldSize = 1 + count;
-                if (ofs + fieldSize > prgSize) {
-                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                        + " (callee $" + hex4(entry.calleeCpu) + "): counted8 payload of " + count
-                        + " bytes exceeds ROM");
+                blob.writeTo(out);
+            }
+            java.nio.file.Files.move(tmp.toPath(),
+                new File(dir, projectName().replaceAll("[^A-Za-z0-9._-]", "_") + ".ngx").toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    static int ngramKey(int[] ops, int from) {
+        int key = 0;
+        for (int i = 0; i < NGRAM_LENGTH; i++) {
+            key = (key << 8) | ops[from + i];
+        }
+        return key;
+    }
+
+/**
+* Turns an -ngramindex query into its opcode sequence. Hex text ("A9 00 8D
+* 00 20") is decoded with the opcode length table; anything else is read as
+* assembly, one instruction per line or '/'-separated, with labels and ';'
+* comments ignored. Zero-page versus absolute follows the operand's digit
+* count or a .W suffix; a symbolic operand is taken as absolute when that
+* form exists.
+**/
+
+    static int[] parseNgramQuery(String text) {
+        String compact = text.replaceAll("\\s+", "");
+        ArrayList<Integer> ops = new ArrayList<Integer>();
+        if (compact.matches("([0-9A-Fa-f]{2})+")) {
+            for (int i = 0; i < compact.length(); i += 2 * Math.max(1, oplengthLookup[ops.get(ops.size() - 1)])) {
+                int op = Integer.parseInt(compact.substring(i, i + 2), 16);
+                if (!PROCESSABLE_OPCODE[op]) {
+                    throw new ConfigException("ngram query: $" + hex2(op) + " at byte " + (i / 2)
+                        + " is not an instruction");
                 }
-            } else if (field.kind == InlineField.PTR16) {
-                if (ofs + 2 > prgSize) {
-                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                        + " (callee $" + hex4(entry.calleeCpu) + "): ptr16 extends past end of ROM");
+                ops.add(op);
+            }
+        } else {
+            String[] lines = text.split("[\n/]");
+            for (int k = 0; k < lines.length; k++) {
+                String line = lines[k];
+                int semi = line.indexOf(';');
+                if (semi >= 0) {
+                    line = line.substring(0, semi);
                 }
-                int encoded = readCpuAddress(ofs);
-                int adjustedTarget = (encoded + field.pointerAdjustment) & 0xFFFF;
-                if (!isStaticallyMappedCpuAddress(adjustedTarget, callsite)) {
-                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                        + " (callee $" + hex4(entry.calleeCpu) + "): adjusted pointer target $"
-                        + hex4(adjustedTarget) + " is outside canonical ROM space "
-                        + cpuRangeLabel());
+                line = line.trim();
+                int colon = line.indexOf(':');
+                if (colon >= 0) {
+                    line = line.substring(colon + 1).trim();
                 }
-                pointerTargets[k] = cpuToPrgOffsetForContext(adjustedTarget, callsite);
-                fieldSize = 2;
-            } else {
-                fieldSize = field.byteCount;
-                if (ofs + fieldSize > prgSize) {
-                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
-                        + " (callee $" + hex4(entry.calleeCpu) + "): field " + k + " extends past end of ROM");
+                if (line.length() > 0) {
+                    ops.add(assembleNgramOpcode(line));
                 }
             }
-            ofs += fieldSize;
-            fieldEnds[k] = ofs;
         }
-        int recordEnd = ofs;
-        return new ResolvedRecord(callsite, entry, recordStart, recordEnd, fieldStarts, fieldEnds, pointerTargets);
+        if (ops.isEmpty()) {
+            throw new ConfigException("ngram query: no instructions in '" + text + "'");
+        }
+        int[] result = new int[ops.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ops.get(i);
+        }
+        return result;
     }
 
-    private static String cpuLabel(int prgOffset) {
-        int normalized = normalizePrgOffset(prgOffset);
-        if (!inPrgOffset(normalized)) {
-            return hex4(offsetToCpu(prgOffset));
+    private static int assembleNgramOpcode(String line) {
+        String[] parts = line.split("\\s+", 2);
+        String mnemonic = parts[0].toUpperCase();
+        boolean wide = mnemonic.endsWith(".W");
+        if (wide) {
+            mnemonic = mnemonic.substring(0, mnemonic.length() - 2);
         }
-        return hex4(offsetToCpu(normalized));
+        String operand = (parts.length > 1) ? parts[1].replace(" ", "").toUpperCase() : "";
+        int[] modes;
+        if (operand.length() == 0 || operand.equals("A")) {
+            modes = new int[] { IMPL };
+        } else if (operand.startsWith("#")) {
+            modes = new int[] { IMMD };
+        } else if (operand.startsWith("(") || operand.startsWith("[")) {
+            modes = new int[] { operand.endsWith(",X)") || operand.endsWith(",X]") ? INDX
+                : operand.endsWith(",Y") ? INDY : INDR };
+        } else {
+            String index = operand.endsWith(",X") ? "X" : operand.endsWith(",Y") ? "Y" : "";
+            String address = index.length() > 0 ? operand.substring(0, operand.length() - 2) : operand;
+            int[] absolute = { index.equals("X") ? ABSX : index.equals("Y") ? ABSY : ABSL, RELV };
+            int[] zeroPage = { index.equals("X") ? ZERX : index.equals("Y") ? ZERY : ZERO, RELV };
+            if (address.matches("\\$[0-9A-F]{1,2}") && !wide) {
+                modes = zeroPage;
+            } else if (address.matches("\\$[0-9A-F]{3,4}") || wide) {
+                modes = absolute;
+            } else {
+                modes = new int[] { absolute[0], zeroPage[0], RELV };
+            }
+        }
+        for (int m = 0; m < modes.length; m++) {
+            for (int op = 0; op < 256; op++) {
+                if (PROCESSABLE_OPCODE[op] && mnemonicLookup[op].equals(mnemonic)
+                    && opaddrmodeLookup[op] == modes[m]) {
+                    return op;
+                }
+            }
+        }
+        throw new ConfigException("ngram query: can't assemble '" + line + "'");
     }
 
-    private static String hex2(int b) {
-        String s = Integer.toHexString(b & 0xFF).toUpperCase();
-        return s.length() == 1 ? "0" + s : s;
+/**
+* PRG offsets in seg where the opcode sequence ops starts. Sequences of at
+* least NGRAM_LENGTH instructions intersect the posting list of every
+* n-gram, shifted by its byte position, starting from the shortest list.
+* Shorter ones read every key sharing their prefix.
+**/
+
+    static int[] findNgramMatches(NgramSegment seg, int[] ops) {
+        if (ops.length < NGRAM_LENGTH) {
+            int[] lo = new int[NGRAM_LENGTH];
+            int[] hi = new int[NGRAM_LENGTH];
+            Arrays.fill(hi, 0xFF);
+            System.arraycopy(ops, 0, lo, 0, ops.length);
+            System.arraycopy(ops, 0, hi, 0, ops.length);
+            int hiKey = ngramKey(hi, 0);
+            ArrayList<Integer> found = new ArrayList<Integer>();
+            for (int k = seg.lowerBound(ngramKey(lo, 0));
+                 k < seg.keys && Integer.compareUnsigned(seg.keyAt(k), hiKey) <= 0; k++) {
+                int[] p = seg.postings(k);
+                for (int i = 0; i < p.length; i++) {
+                    found.add(p[i]);
+                }
+            }
+            int[] result = new int[found.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = found.get(i);
+            }
+            Arrays.sort(result);
+            return result;
+        }
+        int grams = ops.length - NGRAM_LENGTH + 1;
+        int[][] lists = new int[grams][];
+        int[] position = new int[grams];
+        int shortest = 0;
+        int pos = 0;
+        for (int g = 0; g < grams; g++) {
+            int k = seg.find(ngramKey(ops, g));
+            if (k < 0) {
+                return new int[0];
+            }
+            lists[g] = seg.postings(k);
+            position[g] = pos;
+            pos += Math.max(1, oplengthLookup[ops[g]]);
+            if (lists[g].length < lists[shortest].length) {
+                shortest = g;
+            }
+        }
+        int[] result = new int[lists[shortest].length];
+        int n = 0;
+        for (int i = 0; i < lists[shortest].length; i++) {
+            int start = lists[shortest][i] - position[shortest];
+            boolean all = true;
+            for (int g = 0; g < grams && all; g++) {
+                all = Arrays.binarySearch(lists[g], start + position[g]) >= 0;
+            }
+            if (all) {
+                result[n++] = start;
+            }
+        }
+        return Arrays.copyOf(result, n);
     }
 
-    private static String hex1(int b) {
-        return Integer.toHexString(b & 0x0F).toUpperCase();
+/**
+* MinHash sketches of every traced routine of at least
+* CLONE_MIN_INSTRUCTIONS instructions. A routine's body is the instructions
+* routineOwners() gives it, in address order; its normalized stream is their
+* opcodes with the operands left out, so relocated or re-addressed copies
+* sketch alike. Routines that are inline-call callees carry their layout.
+**/
+
+    static ArrayList<RoutineSketch> routineSketches() {
+        HashMap<Integer, Integer> owners = routineOwners();
+        TreeMap<Integer, ArrayList<Integer>> bodies = new TreeMap<Integer, ArrayList<Integer>>();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            Integer owner = isInstr(ofs) ? owners.get(ofs) : null;
+            if (owner == null) {
+                continue;
+            }
+            ArrayList<Integer> body = bodies.get(owner);
+            if (body == null) {
+                body = new ArrayList<Integer>();
+                bodies.put(owner, body);
+            }
+            body.add(ROM[ofs]);
+        }
+        HashMap<Integer, String> layouts = new HashMap<Integer, String>();
+        for (int k = 0; k < inlineCalls.entries.length; k++) {
+            InlineCallEntry e = inlineCalls.entries[k];
+            if (!layouts.containsKey(e.callee)) {
+                layouts.put(e.callee, inlineLayoutText(e.layout));
+            }
+        }
+        ArrayList<RoutineSketch> sketches = new ArrayList<RoutineSketch>();
+        for (Map.Entry<Integer, ArrayList<Integer>> e : bodies.entrySet()) {
+            ArrayList<Integer> body = e.getValue();
+            if (body.size() < CLONE_MIN_INSTRUCTIONS) {
+                continue;
+            }
+            int[] ops = new int[body.size()];
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] = body.get(i);
+            }
+            int entry = e.getKey();
+            String layout = layouts.get(entry);
+            sketches.add(new RoutineSketch(projectName(), entry, offsetToCpu(entry),
+                (mapperNumber == MAPPER_MMC1) ? bankNumberForOffset(entry) : -1, ops.length,
+                labelForOffset(entry), (layout != null) ? layout : "", minHash(ops)));
+        }
+        return sketches;
     }
 
 /**
-* Returns PRG offset made up by the two bytes at offset ofs in the ROM.
+* The CLONE_HASHES min-hashes of the set of CLONE_SHINGLE-opcode shingles in
+* ops. Hash k is a fixed bit mix of the shingle's own mix and k, so sketches
+* from different runs and projects compare.
 **/
 
-    public static int getAddress(int ofs) {
-        return getAddressForContext(ofs, ofs);
+    static int[] minHash(int[] ops) {
+        int n = Math.max(1, ops.length - CLONE_SHINGLE + 1);
+        int[] shingles = new int[n];
+        for (int i = 0; i < n; i++) {
+            int s = 0;
+            for (int j = 0; j < CLONE_SHINGLE; j++) {
+                s = (s << 8) | ((i + j < ops.length) ? ops[i + j] : NGRAM_PAD);
+            }
+            shingles[i] = cloneMix(s);
+        }
+        int[] mins = new int[CLONE_HASHES];
+        Arrays.fill(mins, Integer.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < CLONE_HASHES; k++) {
+                mins[k] = Math.min(mins[k], cloneMix(shingles[i] ^ (k * 0x9E3779B9)));
+            }
+        }
+        return mins;
     }
 
-    private static int getAddressForContext(int ofs, int contextOfs) {
-        return cpuToPrgOffsetForContext(readCpuAddress(ofs), contextOfs);
+    // murmur3 32-bit finalizer
+    static int cloneMix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static String inlineLayoutText(InlineLayout layout) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < layout.fields.length; i++) {
+            InlineField f = layout.fields[i];
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (f.kind == InlineField.U8) {
+                sb.append("u8");
+            } else if (f.kind == InlineField.BYTES) {
+                sb.append("bytes(").append(f.byteCount).append(')');
+            } else if (f.kind == InlineField.COUNTED8) {
+                sb.append("counted8");
+            } else {
+                sb.append("ptr16(").append(f.pointerKind == PointerKind.CODE ? "code" : "data");
+                if (f.pointerAdjustment != 0) {
+                    sb.append(f.pointerAdjustment > 0 ? ",+" : ",").append(f.pointerAdjustment);
+                }
+                sb.append(')');
+            }
+        }
+        return sb.toString();
     }
 
 /**
-* Iteratively maps code reachable from an entry offset using a worklist.
-* Returns true if any new code bytes were mapped.
+* Name of this project in files other runs or tools look up: the -romname
+* value, else the PRG file name. Extracted PRGs usually share one file name
+* (the regen script writes rom.prg), so only -romname tells projects apart.
 **/
 
-    public static boolean processCode(int ofs) {
-        queueCodeTarget(ofs);
-        if (processCodeActive) {
-            return false;
-        }
-        boolean mappedAny = false;
-        processCodeActive = true;
+    static String projectName() {
+        return (romName != null) ? romName : name;
+    }
+
+/**
+* Writes this ROM's sketches to the -clonecorpus directory as NAME.nrs
+* (NAME from projectName()), replacing any earlier file of the same name.
+* Layout (big-endian): magic, version, hash count, project name (UTF), routine count, then per routine its
+* PRG offset, CPU address, bank (-1 outside MMC1), instruction count, label
+* and inline layout (UTF, empty when none) and the min-hashes. Written under
+* a temporary name and renamed into place like the -ngramindex segments.
+**/
+
+    static void writeCloneSketches(String dir, ArrayList<RoutineSketch> sketches) throws IOException {
+        File tmp = File.createTempFile("sketches", ".tmp", outputDirectory(dir));
         try {
-            while (!codeWorklist.isEmpty()) {
-                int target = (int)codeWorklist.removeFirst();
-                if (processCodeSingle(target)) {
-                    mappedAny = true;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(CLONE_MAGIC);
+                out.writeInt(CLONE_VERSION);
+                out.writeInt(CLONE_HASHES);
+                out.writeUTF(projectName());
+                out.writeInt(sketches.size());
+                for (RoutineSketch s : sketches) {
+                    out.writeInt(s.entry);
+                    out.writeInt(s.cpu);
+                    out.writeInt(s.bank);
+                    out.writeInt(s.instructions);
+                    out.writeUTF(s.label);
+                    out.writeUTF(s.layout);
+                    for (int k = 0; k < CLONE_HASHES; k++) {
+                        out.writeInt(s.minHash[k]);
+                    }
                 }
             }
+            java.nio.file.Files.move(tmp.toPath(), cloneSketchFile(dir, projectName()).toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
         } finally {
-            processCodeActive = false;
-            codeWorklist.clear();
+            tmp.delete();
         }
-        return mappedAny;
     }
 
-    private static void queueCodeTarget(int ofs) {
-        // Normalize to PRG-ROM address space to avoid out-of-range map access.
-        int target = normalizePrgOffset(ofs);
-        if (isTraceablePrgOffset(target)) {
-            codeWorklist.addLast(target);
-        }
+    static File cloneSketchFile(String dir, String romName) {
+        return new File(dir, romName.replaceAll("[^A-Za-z0-9._-]", "_") + ".nrs");
     }
 
-    private static void queueRelativeBranchTarget(int ofs) {
-        int target = relativeBranchTarget(ofs);
-        if (target < 0 || !isTraceablePrgOffset(target)) {
-            return;
+/**
+* Every other project's sketches in the -clonecorpus directory, in file name
+* order. This ROM's own file is left out; unreadable or foreign files are
+* skipped with a warning.
+**/
+
+    static ArrayList<RoutineSketch> readCloneCorpus(String dir) {
+        ArrayList<RoutineSketch> corpus = new ArrayList<RoutineSketch>();
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            return corpus;
         }
-        if (blockedFromCode[target]) {
-            failBlockedConflict(target, "relative branch at $" + cpuLabel(ofs));
+        Arrays.sort(files);
+        File own = cloneSketchFile(dir, projectName());
+        for (int f = 0; f < files.length; f++) {
+            if (!files[f].getName().endsWith(".nrs") || files[f].equals(own)) {
+                continue;
+            }
+            try {
+                corpus.addAll(readCloneSketches(files[f]));
+            } catch (IOException ex) {
+                System.err.println("Warning: skipping " + files[f] + ": " + ex.getMessage());
+            }
         }
-        queueCodeTarget(target);
+        return corpus;
     }
 
-    private static int relativeBranchTarget(int ofs) {
-        int dist = ROM[ofs+1];
-        int signed = (dist < 0x80) ? dist : -(((dist ^ 0xFF) + 1) & 0xFF);
-        if (mapperNumber == MAPPER_MMC1) {
-            int cpuTarget = (offsetToCpu(ofs) + 2 + signed) & 0xFFFF;
-            if (!isStaticallyMappedCpuAddress(cpuTarget, ofs)) {
-                return -1;
+    static ArrayList<RoutineSketch> readCloneSketches(File f) throws IOException {
+        try (java.io.DataInputStream in = new java.io.DataInputStream(
+                new java.io.BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != CLONE_MAGIC || in.readInt() != CLONE_VERSION || in.readInt() != CLONE_HASHES) {
+                throw new IOException(f + " is not a clone sketch file of this version");
             }
-            return cpuToPrgOffsetForContext(cpuTarget, ofs);
+            String project = in.readUTF();
+            int count = in.readInt();
+            ArrayList<RoutineSketch> sketches = new ArrayList<RoutineSketch>(count);
+            for (int i = 0; i < count; i++) {
+                int entry = in.readInt();
+                int cpu = in.readInt();
+                int bank = in.readInt();
+                int instructions = in.readInt();
+                String label = in.readUTF();
+                String layout = in.readUTF();
+                int[] mins = new int[CLONE_HASHES];
+                for (int k = 0; k < CLONE_HASHES; k++) {
+                    mins[k] = in.readInt();
+                }
+                sketches.add(new RoutineSketch(project, entry, cpu, bank, instructions, label, layout, mins));
+            }
+            return sketches;
         }
-        return normalizePrgOffset(ofs + 2 + signed);
     }
 
-    private static boolean processCodeSingle(int ofs) {
-        if (isCode(ofs) && !isInstr(ofs)) {
-            return false;
+/**
+* Similar routine pairs as { a, b, equal min-hashes }, most similar first.
+* a indexes own; b indexes own followed by corpus, and an own-own pair is
+* listed once with a < b. Each band of CLONE_HASHES / CLONE_BANDS min-hashes
+* buckets the sketches; only sketches sharing a bucket are compared, at most
+* CLONE_MAX_CANDIDATES per routine, and pairs whose estimated Jaccard
+* similarity reaches CLONE_THRESHOLD are kept.
+**/
+
+    static ArrayList<int[]> findClones(ArrayList<RoutineSketch> own, ArrayList<RoutineSketch> corpus) {
+        ArrayList<RoutineSketch> all = new ArrayList<RoutineSketch>(own);
+        all.addAll(corpus);
+        int rows = CLONE_HASHES / CLONE_BANDS;
+        HashMap<Long, ArrayList<Integer>> buckets = new HashMap<Long, ArrayList<Integer>>();
+        long[][] keys = new long[all.size()][CLONE_BANDS];
+        for (int i = 0; i < all.size(); i++) {
+            int[] mins = all.get(i).minHash;
+            for (int b = 0; b < CLONE_BANDS; b++) {
+                long key = b;
+                for (int r = 0; r < rows; r++) {
+                    key = key * 0x100000001B3L + (mins[b * rows + r] & 0xFFFFFFFFL);
+                }
+                keys[i][b] = key;
+                ArrayList<Integer> bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Integer>();
+                    buckets.put(key, bucket);
+                }
+                bucket.add(i);
+            }
         }
-        boolean done=false, jsrchk=false;
-        int op, len;
-        int chkpt=ofs;  // initialize checkpoint to current offset
-        int startofs=ofs;
-        // Stop linearly at any byte explicitly blocked from code (configured
-        // data range or resolved inline-record byte). Fallthrough into the
-        // first byte of a blocked range ends the linear path without decoding
-        // the blocked byte itself.
-        while (!done && isData(ofs) && !blockedFromCode[ofs]) {
-            // process one opcode
-            op = ROM[ofs];
-            len = oplengthLookup[op];
-            if (len > 0) {
-                if ((ofs + len) > map.length) {
-                    return false;
-                }
-                // The opcode byte was unblocked (loop guard above), but the
-                // instruction's operand bytes might still cross into a barrier.
-                // Marking them as code would silently override the explicit
-                // data claim — spec §8 requires this to be a conflict.
-                for (int i = 1; i < len; i++) {
-                    if (blockedFromCode[ofs + i]) {
-                        failBlockedConflict(ofs + i,
-                            "operand of instruction at $" + cpuLabel(ofs));
+        int needed = (int) Math.ceil(CLONE_THRESHOLD * CLONE_HASHES);
+        ArrayList<int[]> pairs = new ArrayList<int[]>();
+        for (int i = 0; i < own.size(); i++) {
+            HashSet<Integer> seen = new HashSet<Integer>();
+            for (int b = 0; b < CLONE_BANDS && seen.size() < CLONE_MAX_CANDIDATES; b++) {
+                ArrayList<Integer> bucket = buckets.get(keys[i][b]);
+                for (int k = 0; k < bucket.size() && seen.size() < CLONE_MAX_CANDIDATES; k++) {
+                    int j = bucket.get(k);
+                    if ((j < own.size() && j <= i) || !seen.add(j)) {
+                        continue;
+                    }
+                    int equal = 0;
+                    for (int h = 0; h < CLONE_HASHES; h++) {
+                        if (all.get(i).minHash[h] == all.get(j).minHash[h]) {
+                            equal++;
+                        }
+                    }
+                    if (equal >= needed) {
+                        pairs.add(new int[] { i, j, equal });
                     }
-                }
-                map[ofs] &= NOT_DATA;
-                map[ofs] |= INSTR | CODE;   // 1st byte of instruction
-                // mark the operand bytes as code too
-                for (int i=1; i<len; i++) {
-                    map[ofs+i] &= NOT_DATA;
-                    map[ofs+i] &= NOT_INSTR;
-                    map[ofs+i] &= NOT_LABEL;
-                    map[ofs+i] |= CODE;
                 }
             }
-            if (!PROCESSABLE_OPCODE[op]) {   // Bad opcode
-                while (ofs >= chkpt) {
-                    map[ofs] &= NOT_CODE;
-                    map[ofs] &= NOT_INSTR;
-                    map[ofs--] |= DATA;
+        }
+        Collections.sort(pairs, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                if (a[2] != b[2]) {
+                    return b[2] - a[2];
                 }
-                ofs++;
-                if (jsrchk) {   // process jump table
-                    while ((ofs + 1 < map.length) && (map[ofs] == DATA)
-                        && isCanonicalROMAddress(ofs, ofs)) {
-                        queueCodeTarget(getAddressForContext(ofs, ofs));
-                        map[ofs++] = CODE | PTR;
-                        map[ofs++] = CODE | PTR;
-                    }
+                if (a[0] != b[0]) {
+                    return a[0] - b[0];
                 }
-                done = true;
+                return a[1] - b[1];
             }
+        });
+        return pairs;
+    }
 
-            if (!done && CHECK_DATA_LABEL_OPCODE[op]) {
-                checkDataLabel(ofs+1, ofs);
-            }
+/**
+* Writes the -clonereport JSON: every pair findClones() keeps, with the
+* estimated similarity and both routines. The match is the side that knows
+* more; when it has a name where the routine has a generic label, or an
+* inline-call layout the routine lacks, those are proposed for the routine.
+**/
 
-            if (!done && RELATIVE_BRANCH_OPCODE[op]) {
-                queueRelativeBranchTarget(ofs);
-                chkpt = ofs+2;
-                jsrchk = false;
-                ofs += len;
-                continue;
+    static void writeCloneReport(String path, ArrayList<RoutineSketch> own,
+        ArrayList<RoutineSketch> corpus) throws IOException {
+        ArrayList<RoutineSketch> all = new ArrayList<RoutineSketch>(own);
+        all.addAll(corpus);
+        HashSet<String> projects = new HashSet<String>();
+        for (RoutineSketch s : corpus) {
+            projects.add(s.project);
+        }
+        ArrayList<int[]> pairs = findClones(own, corpus);
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("routines").value(own.size());
+        json.name("corpusProjects").value(projects.size());
+        json.name("corpusRoutines").value(corpus.size());
+        json.name("threshold").value(CLONE_THRESHOLD);
+        json.name("pairs").beginArray();
+        for (int[] p : pairs) {
+            RoutineSketch routine = all.get(p[0]);
+            RoutineSketch match = all.get(p[1]);
+            if (p[1] < own.size() && !match.proposesTo(routine) && routine.proposesTo(match)) {
+                RoutineSketch swap = routine;
+                routine = match;
+                match = swap;
             }
-
-            switch (op) {
-                case 0x20: {  // JSR
-                    boolean romTarget = isROMAddress(ofs+1, ofs);
-                    if (romTarget) {
-                        int jsrTarget = getAddressForContext(ofs+1, ofs);
-                        if (blockedFromCode[jsrTarget]) {
-                            failBlockedConflict(jsrTarget, "JSR at $" + cpuLabel(ofs));
-                        }
-                        queueCodeTarget(jsrTarget);
-                        InlineCallEntry inlineEntry = inlineCalls.findForCallsite(ofs, jsrTarget);
-                        if (inlineEntry != null) {
-                            // Configured inline call: record the callsite if new
-                            // and terminate the linear path. The record bytes are
-                            // (or will be) blocked, and record_end is (or will be)
-                            // a separate code seed, so falling through here would
-                            // either decode garbage or violate the barrier.
-                            if (!knownCallsites.containsKey(ofs)) {
-                                newlyDiscoveredCallsites.add(ofs);
-                            }
-                            done = true;
-                            break;
-                        }
-                    }
-                    chkpt = ofs+3;
-                    jsrchk = romTarget;
-                    break;
+            json.beginObject();
+            json.name("similarity").value((double) p[2] / CLONE_HASHES);
+            json.name("routine").beginObject();
+            writeSketchIdentity(json, routine, false);
+            json.endObject();
+            json.name("match").beginObject();
+            writeSketchIdentity(json, match, p[1] >= own.size());
+            json.endObject();
+            if (match.proposesTo(routine)) {
+                json.name("propose").beginObject();
+                if (match.namesBetterThan(routine)) {
+                    json.name("label").value(match.label);
                 }
+                if (match.layout.length() > 0 && routine.layout.length() == 0) {
+                    json.name("layout").value(match.layout);
+                }
+                json.endObject();
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.writeTo(path);
+    }
 
-                case 0x40:  // RTI
-                case 0x60:  // RTS
-                    done = true;
-                    break;
+    private static void writeSketchIdentity(JsonWriter json, RoutineSketch s, boolean withProject) {
+        if (withProject) {
+            json.name("project").value(s.project);
+        }
+        json.name("label").value(s.label);
+        json.name("cpu").value("$" + hex4(s.cpu));
+        if (s.bank >= 0) {
+            json.name("bank").value(s.bank);
+        }
+        json.name("instructions").value(s.instructions);
+        if (s.layout.length() > 0) {
+            json.name("layout").value(s.layout);
+        }
+    }
 
-                case 0x4C: {  // JMP Abs
-                    if (isROMAddress(ofs+1, ofs)) {
-                        int jmpTarget = getAddressForContext(ofs+1, ofs);
-                        if (blockedFromCode[jmpTarget]) {
-                            failBlockedConflict(jmpTarget, "JMP at $" + cpuLabel(ofs));
-                        }
-                        queueCodeTarget(jmpTarget);
-                    }
-                    done = true;
-                    break;
-                }
+/**
+* Runs analysis passes until no new inline callsites are discovered. Each
+* restart promotes the pass's discoveries into knownCallsites so the next
+* pass can block their record bytes and seed their continuations.
+* Termination is guaranteed because each restart adds at least one
+* previously unknown callsite and the ROM is finite. A safety cap converts
+* a runaway loop into a catchable configuration failure.
+**/
 
-                case 0x6C: {  // JMP Ind
-                    if (isROMAddress(ofs+1, ofs)) {
-                        int vectorOffset = getAddressForContext(ofs+1, ofs);
-                        if ((vectorOffset + 1 < map.length) && isROMAddress(vectorOffset, vectorOffset)) {
-                            int indTarget = getAddressForContext(vectorOffset, vectorOffset);
-                            if (blockedFromCode[indTarget]) {
-                                failBlockedConflict(indTarget, "JMP indirect via $" + cpuLabel(ofs));
-                            }
-                            queueCodeTarget(indTarget);
-                        }
-                    }
-                    done = true;
-                    break;
+    public static void runAnalysisToFixedPoint() {
+        int passNo = 0;
+        while (true) {
+            AnalysisPassEvent event = new AnalysisPassEvent();
+            event.begin();
+            long seedsBefore = stats.seeds;
+            long tracedBefore = stats.bytesTraced;
+            long passStart = System.nanoTime();
+            int droppedBefore = droppedSignatureData.size();
+            boolean aborted = false;
+            try {
+                runAnalysisPass();
+            } catch (ConfigException ex) {
+                if (!dropCachedCallsites()) {
+                    throw ex;
                 }
-
-                default:
-                    break;
-            }   // switch
-            ofs += len;
-        }   // while
-        if ((ofs != startofs) || isCode(startofs)) {
-            map[startofs] |= LABEL;
+                aborted = true;
+            }
+            stats.passNanos.add(System.nanoTime() - passStart);
+            passNo++;
+            event.end();
+            if (event.shouldCommit()) {
+                event.pass = passNo;
+                event.seeds = stats.seeds - seedsBefore;
+                event.bytesTraced = stats.bytesTraced - tracedBefore;
+                event.newCallsites = newlyDiscoveredCallsites.size();
+                event.commit();
+            }
+            if (aborted) {
+                // the pass stopped half-built: rerun it without the preloads
+                continue;
+            }
+            if (newlyDiscoveredCallsites.isEmpty()) {
+                if (settleCachedCallsites() || droppedSignatureData.size() != droppedBefore) {
+                    continue;
+                }
+                return;
+            }
+            for (Integer callsite : newlyDiscoveredCallsites) {
+                int jsrTarget = jsrTargetForCallsite(callsite);
+                InlineCallEntry entry = inlineCalls.findForCallsite(callsite, jsrTarget);
+                knownCallsites.put(callsite, resolveRecord(callsite, entry));
+            }
+            if (passNo > analysisPassLimit) {
+                throw new ConfigException("inline-call discovery did not converge after "
+                    + passNo + " passes.");
+            }
         }
-        return (ofs != startofs);   // true if new code was mapped, false otherwise
+    }
+
+    private static void appendFixedVectorTable() {
+        userCodePointersCount = codePointersStart.size();
+        codePointersStart.add(prgSize - 6);
+        codePointersCount.add(3);
     }
 
 /**
-* Use the ROM & map to output a (possible HTML) formatted disassembly.
+* One full analysis pass per §7.2 of the inline-call recovery spec: rebuild
+* the role map and the blocked-from-code mask, apply data ranges and
+* resolved inline records, then apply user-provided pointer tables, data
+* pointer tables, and code entries. processCode runs as a side effect of
+* each seed, so by return the map reflects everything reachable under the
+* current set of known callsites.
 **/
 
-    public static void disassemble() {
-        if (toHtml) {
-            System.out.println("<HTML>");
-            System.out.println("<BODY>");
-            System.out.println("<FONT FACE=\"Courier\">");
-        }
-        // Precompute output-time indices from the resolved analysis state.
-        // recordsByStart maps a record_start PRG offset to its resolved record;
-        // dataBoundaries holds every start/end offset of a record or a data
-        // range so the .DB walker can break runs at those boundaries (spec §9.2).
-        recordsByStart = new HashMap<Integer, ResolvedRecord>();
-        dataBoundaries = new TreeSet<Integer>();
-        for (ResolvedRecord r : knownCallsites.values()) {
-            recordsByStart.put(r.recordStart, r);
-            dataBoundaries.add(r.recordStart);
-            dataBoundaries.add(r.recordEnd);
+    public static void runAnalysisPass() {
+        newlyDiscoveredCallsites = new LinkedHashSet<Integer>();
+        pendingBankStates = new HashMap<Integer, BankState>();
+        bankResolvedOperands = new HashMap<Integer, Integer>();
+        bankSwitchSummaries = new HashMap<Integer, BankState>();
+        stackDispatchers = new TreeMap<Integer, int[]>();
+        splitTables = new TreeMap<Integer, int[]>();
+        for (int i = 0; i < map.length; i++) {
+            map[i] = DATA;
         }
-        for (int k = 0; k < dataRanges.entries.length; k++) {
-            DataRangeEntry e = dataRanges.entries[k];
-            dataBoundaries.add(e.start);
-            dataBoundaries.add(e.end);
+        blockedFromCode = new boolean[ROM.length];
+
+        // Phase 1: build the complete blocked-from-code mask BEFORE any seed
+        // is queued. Interleaving block-and-seed (per range / per record)
+        // would let an earlier continuation trace into a later barrier whose
+        // bytes haven't yet been blocked, decoding them as instructions on
+        // this pass and producing nondeterministic per-pass artifacts.
+        blockDataRanges();
+        blockKnownInlineRecords();
+        blockSignatureData();
+        if (cdlData != null) {
+            blockCdlData();
         }
-        addBankBoundaries();
-        //
-        int ofs = 0, op, amode;
-        while (ofs < prgSize) {
-            maybeEmitOrg(ofs);
-            if (isCode(ofs)) {
-                if (isPtr(ofs)) {   // print jump table
-                    newLine();
-                    if (isLabel(ofs)) {
-                        String tableLabel = labelForOffset(ofs);
-                        if (toHtml)
-                            System.out.print("<A NAME="+tableLabel+">");
-                        System.out.print(tableLabel+":");
-                        newLine();
-                    }
-                    while ((ofs < prgSize) && isPtr(ofs)) {
-                        System.out.print(".DW ");
-                        // Only emit a label form when the pointer bytes are in the canonical
-                        // project ROM range. For NROM-128 mirror operands, or MMC1 switchable
-                        // bank operands, a plain CPU address is not a unique output label.
-                        // Match the canonical-output guard used in printAddress().
-                        if (isCanonicalROMAddress(ofs, ofs) && isLabel(getAddressForContext(ofs, ofs))) {
-                            printLabel(labelForOffset(getAddressForContext(ofs, ofs)));
-                        }
-                        else {
-                            System.out.print("$"+hexLookup[ROM[ofs+1]]+hexLookup[ROM[ofs]]);
-                        }
-                        newLine();
-                        ofs += 2;
-                    }
-                    newLine();
+        if (bankCanonical != null) {
+            selectSharedBanks();
+        }
+
+        // Phase 2: labels and seeds. Every barrier is now in place, so
+        // processCode calls below cannot accidentally walk into a not-yet-
+        // blocked range or record.
+        labelAndSeedDataRanges();
+        labelAndSeedKnownInlineRecords();
+
+        // mark the code pointer table bytes
+        for (int i = 0; i < codePointersStart.size(); ++i) {
+            int offset = codePointersStart.get(i);
+            int count = codePointersCount.get(i);
+            String source = (i >= userCodePointersCount)
+                ? "fixed vector table at $" + cpuLabel(offset)
+                : "code-pointer table at $" + cpuLabel(offset);
+            markPointerTableBytes(offset, count, source);
+        }
+
+        // process code pointers recursively
+        for (int i = 0; i < codePointersStart.size(); ++i) {
+            int offset = codePointersStart.get(i);
+            int count = codePointersCount.get(i);
+            // Label the start of the explicit pointer table so the .DW run is
+            // anchored at its own LXXXX: label instead of trailing the previous
+            // routine anonymously. Skip the auto-added fixed-vector table.
+            if (count > 0 && i < userCodePointersCount) {
+                map[offset] |= LABEL;
+            }
+            boolean isVectorTable = (i >= userCodePointersCount);
+            for (int j = 0; j < count; ++j) {
+                int pointerOffset = offset + j*2;
+                ArrayList<Integer> targets = codePointerTargetsForContext(pointerOffset, pointerOffset);
+                if (targets.isEmpty()) {
+                    continue;
                 }
-                else {
-                    if (isLabel(ofs)) {
-                        String label = labelForOffset(ofs);
-                        if (toHtml)
-                            System.out.print("<A NAME="+label+">");
-                        System.out.print(label+":");
-                        newLine();
-                    }
-                    op = ROM[ofs];
-                    if (toHtml)
-                        System.out.print("&nbsp;&nbsp;&nbsp;&nbsp;");
-                    else
-                        System.out.print("    ");
-                    if ((oplengthLookup[op] <= 0) || (opaddrmodeLookup[op] == UNDF)) {
-                        System.out.print(".DB $"+hexLookup[op]);
-                        newLine();
-                        ofs++;
-                        continue;
-                    }
-                    System.out.print(mnemonicLookup[op]);
-                    amode = opaddrmodeLookup[op];
-                    if (amode == IMPL) {
-                        newLine();
-                        if ((op == 0x40) || (op == 0x60) || (op == 0x4C)) {
-                            newLine();
-                        }
-                    }
-                    else if (amode == IMMD) {
-                        System.out.print(" #$"+hexLookup[ROM[ofs+1]]);
-                        newLine();
+                // Every ROM-window code-pointer target gets a label, even if
+                // processCode can't decode the bytes there.
+                for (Integer target : targets) {
+                    if (blockedFromCode[target]) {
+                        String source = isVectorTable
+                            ? "fixed vector at $" + cpuLabel(pointerOffset)
+                            : "code-pointer table at $" + cpuLabel(offset) + " entry [" + j + "]";
+                        failBlockedConflict(target, source);
                     }
-                    else if (amode == ZERO) {
-                        System.out.print(" $"+hexLookup[ROM[ofs+1]]);
-                        newLine();
+                    map[target] |= LABEL;
+                    processCode(target);
+                }
+            }
+        }
+
+        // split lo/hi code-pointer tables: both runs stay data, targets are traced
+        for (int i = 0; i < splitCodePointers.size(); ++i) {
+            int[] t = splitCodePointers.get(i);
+            if (t[2] == 0) {
+                continue;
+            }
+            map[t[0]] |= LABEL;
+            map[t[1]] |= LABEL;
+            for (int j = 0; j < t[2]; ++j) {
+                int cpu = (ROM[t[1] + j] << 8) | ROM[t[0] + j];
+                for (Integer target : codePointerTargetsForCpu(cpu, t[0])) {
+                    if (blockedFromCode[target]) {
+                        failBlockedConflict(target, "split code-pointer table at $" + cpuLabel(t[0])
+                            + " entry [" + j + "]");
                     }
-                    else if (amode == ZERX) {
-                        System.out.print(" $"+hexLookup[ROM[ofs+1]]+",X");
-                        newLine();
+                    map[target] |= LABEL;
+                    processCode(target);
+                }
+            }
+        }
+
+        // mark data pointer table bytes; targets get labels but are NOT traced as code
+        for (int i = 0; i < dataPointersStart.size(); ++i) {
+            int offset = dataPointersStart.get(i);
+            int count = dataPointersCount.get(i);
+            markPointerTableBytes(offset, count, "data-pointer table at $" + cpuLabel(offset));
+            for (int j = 0; j < count; ++j) {
+                int pointerOffset = offset + j*2;
+                if (!isROMAddress(pointerOffset, pointerOffset)) {
+                    continue;
+                }
+                int target = getAddressForContext(pointerOffset, pointerOffset);
+                map[target] |= LABEL;
+            }
+            // Label the table start AFTER the byte-marking loop, since the j=0 store
+            // above would otherwise clobber any earlier LABEL bit on map[offset].
+            if (count > 0) {
+                map[offset] |= LABEL;
+            }
+        }
+
+        for (int i = 0; i < splitDataPointers.size(); ++i) {
+            int[] t = splitDataPointers.get(i);
+            for (int j = 0; j < t[2]; ++j) {
+                int cpu = (ROM[t[1] + j] << 8) | ROM[t[0] + j];
+                if (isStaticallyMappedCpuAddress(cpu, t[0])) {
+                    map[cpuToPrgOffsetForContext(cpu, t[0])] |= LABEL;
+                }
+            }
+            if (t[2] > 0) {
+                map[t[0]] |= LABEL;
+                map[t[1]] |= LABEL;
+            }
+        }
+
+        // process direct code entries (CPU addresses already converted to PRG offsets)
+        for (int i = 0; i < codeEntries.size(); ++i) {
+            int target = codeEntries.get(i);
+            if (blockedFromCode[target]) {
+                failBlockedConflict(target, "codeentries entry [" + i + "] -> $" + cpuLabel(target));
+            }
+            map[target] |= LABEL;
+            processCode(target);
+        }
+
+        seedSignatureMatches();
+
+        if (cdlCode != null) {
+            seedCdlCode();
+        }
+
+        if (emulatedCode != null) {
+            seedExecutedCode(emulatedCode, emulatedDispatch);
+        }
+
+        if (tracedCode != null) {
+            seedExecutedCode(tracedCode, null);
+        }
+
+        if (!cachedCallsites.isEmpty()) {
+            confirmCachedCallsites();
+        }
+
+        recoverDispatchTables();
+
+        if (bankTracedAs != null) {
+            projectSharedBanks();
+        }
+    }
+
+/**
+* Groups byte-identical MMC1 switchable banks under the lowest-numbered copy
+* and reports them, plus pairs that differ in only a few bytes. Banks holding
+* a bank-qualified inline-call row keep their own trace: the row would not
+* apply to the copy. Prints the groups to stderr.
+**/
+
+    static void findDuplicateBanks() {
+        int banks = fixedBankOffset / 0x4000;
+        bankCanonical = new int[banks];
+        boolean[] inlineRows = new boolean[banks];
+        for (int k = 0; k < inlineCalls.entries.length; k++) {
+            InlineCallEntry e = inlineCalls.entries[k];
+            if (e.callee < fixedBankOffset) {
+                inlineRows[bankNumberForOffset(e.callee)] = true;
+            }
+            if (e.callsite >= 0 && e.callsite < fixedBankOffset) {
+                inlineRows[bankNumberForOffset(e.callsite)] = true;
+            }
+        }
+        int[] hashes = new int[banks];
+        for (int b = 0; b < banks; b++) {
+            hashes[b] = Arrays.hashCode(Arrays.copyOfRange(ROM, b * 0x4000, (b + 1) * 0x4000));
+            bankCanonical[b] = b;
+            if (inlineRows[b]) {
+                continue;
+            }
+            for (int c = 0; c < b; c++) {
+                if (bankCanonical[c] == c && !inlineRows[c] && hashes[c] == hashes[b]
+                    && bankDifference(c, b, 0) == 0) {
+                    bankCanonical[b] = c;
+                    break;
+                }
+            }
+        }
+        int shared = 0;
+        for (int b = 0; b < banks; b++) {
+            if (bankCanonical[b] != b) {
+                shared++;
+                System.err.println("dedupbanks: bank " + b + " = bank " + bankCanonical[b]);
+            }
+        }
+        for (int b = 0; b < banks; b++) {
+            for (int c = 0; c < b; c++) {
+                if (bankCanonical[b] != b || bankCanonical[c] != c) {
+                    continue;
+                }
+                int diff = bankDifference(c, b, NEAR_DUPLICATE_BYTES + 1);
+                if (diff > 0 && diff <= NEAR_DUPLICATE_BYTES) {
+                    System.err.println("dedupbanks: bank " + b + " ~ bank " + c + " (" + diff
+                        + " bytes differ, traced separately)");
+                }
+            }
+        }
+        System.err.println("dedupbanks: " + banks + " switchable banks, " + shared + " traced as a copy");
+        if (shared == 0) {
+            bankCanonical = null;
+        }
+    }
+
+    // bytes that differ between two banks, counting stops past limit (0 = all)
+    private static int bankDifference(int a, int b, int limit) {
+        int diff = 0;
+        for (int i = 0; i < 0x4000; i++) {
+            if (ROM[a * 0x4000 + i] != ROM[b * 0x4000 + i]) {
+                diff++;
+                if (limit > 0 && diff >= limit) {
+                    break;
+                }
+            }
+        }
+        return diff;
+    }
+
+/**
+* Decides, once the pass's barriers are built, which duplicate banks trace
+* through their canonical copy. A copy whose blocked-from-code bytes differ
+* (a data range, CDL or inline record in only one of them) traces on its own
+* this pass.
+**/
+
+    private static void selectSharedBanks() {
+        bankTracedAs = new int[bankCanonical.length];
+        boolean any = false;
+        for (int b = 0; b < bankCanonical.length; b++) {
+            int c = bankCanonical[b];
+            bankTracedAs[b] = -1;
+            if (c == b) {
+                continue;
+            }
+            boolean same = true;
+            for (int i = 0; i < 0x4000 && same; i++) {
+                same = blockedFromCode[c * 0x4000 + i] == blockedFromCode[b * 0x4000 + i];
+            }
+            if (same) {
+                bankTracedAs[b] = c;
+                any = true;
+            }
+        }
+        if (!any) {
+            bankTracedAs = null;
+        }
+    }
+
+    // the offset a trace starting at ofs actually runs from
+    private static int sharedTraceOffset(int ofs) {
+        if (ofs >= 0 && ofs < fixedBankOffset) {
+            int c = bankTracedAs[bankNumberForOffset(ofs)];
+            if (c >= 0) {
+                return c * 0x4000 + (ofs & 0x3FFF);
+            }
+        }
+        return ofs;
+    }
+
+    // ofs moved from bank from to bank to, or unchanged if it's elsewhere
+    private static int translateBankOffset(int ofs, int from, int to) {
+        if (ofs >= 0 && ofs < fixedBankOffset && bankNumberForOffset(ofs) == from) {
+            return to * 0x4000 + (ofs & 0x3FFF);
+        }
+        return ofs;
+    }
+
+/**
+* Copies what the pass traced in each canonical bank onto its shared copies:
+* the code/data map (a copy keeps its own labels, except on operand bytes,
+* and its own configured pointer tables), recovered dispatch tables, bank-
+* resolved operands and newly found inline callsites.
+**/
+
+    private static void projectSharedBanks() {
+        for (int b = 0; b < bankTracedAs.length; b++) {
+            int c = bankTracedAs[b];
+            if (c < 0) {
+                continue;
+            }
+            for (int i = 0; i < 0x4000; i++) {
+                int src = map[c * 0x4000 + i];
+                int dst = map[b * 0x4000 + i];
+                if ((dst & PTR) != 0 && (src & PTR) == 0) {
+                    continue;
+                }
+                int label = ((src & CODE) != 0 && (src & INSTR) == 0) ? 0 : (dst & LABEL);
+                map[b * 0x4000 + i] = src | label;
+            }
+            for (Map.Entry<Integer, int[]> e : new ArrayList<Map.Entry<Integer, int[]>>(stackDispatchers.entrySet())) {
+                projectTableEntry(stackDispatchers, e.getKey(), e.getValue(), c, b);
+            }
+            for (Map.Entry<Integer, int[]> e : new ArrayList<Map.Entry<Integer, int[]>>(splitTables.entrySet())) {
+                projectTableEntry(splitTables, e.getKey(), e.getValue(), c, b);
+            }
+            for (Map.Entry<Integer, Integer> e : new ArrayList<Map.Entry<Integer, Integer>>(bankResolvedOperands.entrySet())) {
+                int key = translateBankOffset(e.getKey(), c, b);
+                if (key != e.getKey() && !bankResolvedOperands.containsKey(key)) {
+                    bankResolvedOperands.put(key, translateBankOffset(e.getValue(), c, b));
+                }
+            }
+            for (Integer callsite : new ArrayList<Integer>(newlyDiscoveredCallsites)) {
+                int copy = translateBankOffset(callsite, c, b);
+                if (copy != callsite && !knownCallsites.containsKey(copy)) {
+                    newlyDiscoveredCallsites.add(copy);
+                }
+            }
+        }
+    }
+
+    private static void projectTableEntry(TreeMap<Integer, int[]> tables, int key, int[] table, int from, int to) {
+        int copyKey = translateBankOffset(key, from, to);
+        if (copyKey == key || tables.containsKey(copyKey)) {
+            return;
+        }
+        int[] copy = table.clone();
+        copy[0] = translateBankOffset(table[0], from, to);
+        copy[1] = translateBankOffset(table[1], from, to);
+        tables.put(copyKey, copy);
+    }
+
+/**
+* Runs the emulator from RESET for the given number of frames, feeding the
+* -input script and collecting the -profile when requested, and keeps what
+* it executed for seedExecutedCode(). Prints a one-line summary to stderr.
+**/
+
+    static void runEmulation(int frames) {
+        Emulator emu = new Emulator(ROM, prgSize, mapperNumber);
+        if (profilePath != null) {
+            emu.profiler = new Profiler(frames);
+        }
+        long start = System.nanoTime();
+        emu.reset();
+        int buttons = 0;
+        for (int f = 0; f < frames && emu.halted == null; f++) {
+            Integer held = (inputScript != null) ? inputScript.get(f) : null;
+            if (held != null) {
+                buttons = held;
+            }
+            emu.buttons = buttons;
+            emu.runFrame();
+        }
+        long nanos = System.nanoTime() - start;
+        emulatedCode = emu.executed;
+        emulatedDispatch = emu.dispatched;
+        profile = emu.profiler;
+        int pcs = 0;
+        for (int i = 0; i < prgSize; i++) {
+            if (emu.executed[i]) {
+                pcs++;
+            }
+        }
+        System.err.println("emulate: " + emu.frames + " frames, " + emu.instructions + " instructions, "
+            + emu.cycles + " cycles in " + String.format("%.3f", nanos / 1000000.0) + " ms, "
+            + pcs + " distinct PCs"
+            + (emu.halted != null ? "; stopped at " + emu.halted : ""));
+    }
+
+/**
+* Comment line above a profiled routine entry in the disassembly.
+**/
+
+    private static void printProfileComment(int ofs) {
+        Profiler.Entry e = profile.routines.get(ofs);
+        if (e == null) {
+            return;
+        }
+        long peak = 0;
+        for (int f = 0; f < e.frameCycles.length; f++) {
+            peak = Math.max(peak, e.frameCycles[f]);
+        }
+        emitOut().print("; profile: " + e.calls + " calls, " + e.inclusive + " cycles inclusive ("
+            + String.format("%.1f", percentOfProfile(e.inclusive)) + "%), " + e.exclusive
+            + " exclusive, peak " + peak + "/frame");
+        newLine();
+    }
+
+    private static double percentOfProfile(long cycles) {
+        return profile.totalCycles == 0 ? 0.0 : 100.0 * cycles / profile.totalCycles;
+    }
+
+/**
+* Writes the -profile JSON, hottest routine (inclusive cycles) first. Per
+* routine: calls, inclusive and exclusive cycles, and a histogram of its
+* inclusive cycles over the frames in which it ran, in
+* PROFILE_BUCKET_CYCLES-wide buckets.
+**/
+
+    static void writeProfileReport(String path) throws IOException {
+        ArrayList<Profiler.Entry> all = new ArrayList<Profiler.Entry>(profile.routines.values());
+        Collections.sort(all, new Comparator<Profiler.Entry>() {
+            public int compare(Profiler.Entry a, Profiler.Entry b) {
+                if (a.inclusive != b.inclusive) {
+                    return Long.compare(b.inclusive, a.inclusive);
+                }
+                return Integer.compare(a.key, b.key);
+            }
+        });
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("frames").value(profile.frameCount);
+        json.name("totalCycles").value(profile.totalCycles);
+        json.name("bucketCycles").value(PROFILE_BUCKET_CYCLES);
+        json.name("routines").beginArray();
+        for (Profiler.Entry e : all) {
+            json.beginObject();
+            if (e.key >= 0) {
+                writeRoutineIdentity(json, e.key);
+            } else {
+                json.name("label").value(null);
+                json.name("cpu").value("$" + hex4(-e.key - 1));
+                json.name("ram").value(true);
+            }
+            json.name("calls").value(e.calls);
+            json.name("inclusiveCycles").value(e.inclusive);
+            json.name("exclusiveCycles").value(e.exclusive);
+            json.name("inclusivePercent").value(percentOfProfile(e.inclusive));
+            int active = 0;
+            long peak = 0;
+            TreeMap<Long, Integer> buckets = new TreeMap<Long, Integer>();
+            for (int f = 0; f < e.frameCycles.length; f++) {
+                long c = e.frameCycles[f];
+                if (c == 0) {
+                    continue;
+                }
+                active++;
+                peak = Math.max(peak, c);
+                long from = (c / PROFILE_BUCKET_CYCLES) * PROFILE_BUCKET_CYCLES;
+                Integer n = buckets.get(from);
+                buckets.put(from, (n == null) ? 1 : n + 1);
+            }
+            json.name("activeFrames").value(active);
+            json.name("meanCyclesPerActiveFrame").value(active == 0 ? 0.0 : (double) e.inclusive / active);
+            json.name("peakCyclesPerFrame").value(peak);
+            json.name("histogram").beginArray();
+            for (Map.Entry<Long, Integer> b : buckets.entrySet()) {
+                json.beginObject();
+                json.name("fromCycles").value(b.getKey());
+                json.name("frames").value(b.getValue());
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.writeTo(path);
+    }
+
+/**
+* Parses an -input script: header 'frame|buttons', then rows giving the
+* controller 1 buttons held from that frame on. Buttons are names joined
+* with '+' (A, B, Select, Start, Up, Down, Left, Right), a $xx/0xNN byte,
+* or empty for none.
+**/
+
+    static TreeMap<Integer, Integer> parseInputScript(String path) {
+        File f = new File(path);
+        if (!f.canRead()) {
+            throw new ConfigException("input: couldn't read " + path);
+        }
+        TreeMap<Integer, Integer> script = new TreeMap<Integer, Integer>();
+        boolean headerSeen = false;
+        int lineNo = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+            String raw;
+            while ((raw = br.readLine()) != null) {
+                lineNo++;
+                String line = stripConfigComments(raw).trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                if (!headerSeen) {
+                    if (!line.equals("frame|buttons")) {
+                        throw new ConfigException("input: expected header 'frame|buttons' at line "
+                            + lineNo + ", got '" + line + "'");
                     }
-                    else if (amode == ZERY) {
-                        System.out.println(" $"+hexLookup[ROM[ofs+1]]+",Y");
+                    headerSeen = true;
+                    continue;
+                }
+                String[] parts = line.split("\\|", -1);
+                if (parts.length != 2) {
+                    throw new ConfigException("input: bad row at line " + lineNo + ": " + line);
+                }
+                int frame;
+                try {
+                    frame = Integer.parseInt(parts[0].trim());
+                } catch (NumberFormatException ex) {
+                    frame = -1;
+                }
+                if (frame < 0) {
+                    throw new ConfigException("input: frame must be a decimal integer >= 0 at line "
+                        + lineNo + ": " + parts[0].trim());
+                }
+                if (script.put(frame, parseButtons(parts[1].trim(), lineNo)) != null) {
+                    throw new ConfigException("input: duplicate frame " + frame + " at line " + lineNo);
+                }
+            }
+        } catch (IOException ex) {
+            throw new ConfigException("input: I/O error reading " + path + ": " + ex.getMessage());
+        }
+        if (!headerSeen) {
+            throw new ConfigException("input: missing header in " + path);
+        }
+        return script;
+    }
+
+    private static final String[] BUTTON_NAMES = {
+        "a", "b", "select", "start", "up", "down", "left", "right"
+    };
+
+    private static int parseButtons(String token, int lineNo) {
+        if (token.length() == 0) {
+            return 0;
+        }
+        if (token.startsWith("$") || token.startsWith("0x") || token.startsWith("0X")) {
+            try {
+                int v = Integer.parseInt(token.substring(token.startsWith("$") ? 1 : 2), 16);
+                if (v <= 0xFF) {
+                    return v;
+                }
+            } catch (NumberFormatException ex) {
+                // reported below
+            }
+            throw new ConfigException("input: bad button byte at line " + lineNo + ": " + token);
+        }
+        int buttons = 0;
+        for (String part : token.split("\\+")) {
+            int bit = Arrays.asList(BUTTON_NAMES).indexOf(part.trim().toLowerCase());
+            if (bit < 0) {
+                throw new ConfigException("input: unknown button '" + part.trim() + "' at line " + lineNo);
+            }
+            buttons |= 1 << bit;
+        }
+        return buttons;
+    }
+
+/**
+* Seeds every instruction the emulator (or a trace log) executed that static
+* tracing didn't reach. Targets of JMP (ind) and RTS dispatch, when known,
+* get labels like code-pointer targets; bytes inside data ranges or inline
+* records are left alone.
+**/
+
+    private static void seedExecutedCode(boolean[] executed, boolean[] dispatch) {
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (!executed[ofs] || blockedFromCode[ofs]) {
+                continue;
+            }
+            if (!isCode(ofs)) {
+                processCode(ofs);
+            }
+            if (dispatch != null && dispatch[ofs] && isInstr(ofs)) {
+                map[ofs] |= LABEL;
+            }
+        }
+    }
+
+/**
+* Streams an FCEUX or Mesen trace log into tracedCode. The file is mapped
+* TRACE_CHUNK_BYTES at a time, each chunk cut at a line end and split into
+* one slice per worker thread; every slice fills its own PRG bitset, so
+* memory stays proportional to the PRG however long the log is. Prints a
+* one-line summary to stderr.
+**/
+
+    static void loadTraceLog(String path) throws IOException {
+        loadTraceLog(path, Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    static void loadTraceLog(String path, int threads) throws IOException {
+        long startNanos = System.nanoTime();
+        int words = (prgSize + 63) >>> 6;
+        long[] seen = new long[words];
+        long[] counts = new long[TraceSlice.COUNTERS];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (FileChannel ch = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            long pos = 0;
+            while (pos < size) {
+                int len = (int) Math.min(TRACE_CHUNK_BYTES, size - pos);
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                int end = len;
+                if (pos + len < size) {
+                    while (end > 0 && buf.get(end - 1) != '\n') {
+                        end--;
                     }
-                    else if (amode == ABSL) {
-                        printAddress(ofs+1, op, ofs);
-                        newLine();
+                    if (end == 0) {
+                        end = len;   // a line longer than a chunk; it gets cut
                     }
-                    else if (amode == ABSX) {
-                        printAddress(ofs+1, op, ofs);
-                        System.out.print(",X");
-                        newLine();
+                }
+                ArrayList<Future<long[]>> slices = new ArrayList<Future<long[]>>();
+                int from = 0;
+                for (int t = 1; t <= threads && from < end; t++) {
+                    int to = (t == threads) ? end : Math.max(from + 1, (int) ((long) end * t / threads));
+                    while (to < end && buf.get(to - 1) != '\n') {
+                        to++;
                     }
-                    else if (amode == ABSY) {
-                        printAddress(ofs+1, op, ofs);
-                        System.out.print(",Y");
-                        newLine();
+                    slices.add(pool.submit(new TraceSlice(buf, from, to, words)));
+                    from = to;
+                }
+                for (Future<long[]> f : slices) {
+                    long[] r = f.get();
+                    for (int w = 0; w < words; w++) {
+                        seen[w] |= r[w];
                     }
-                    else if (amode == INDR) {
-                        System.out.print(" [$"+hexLookup[ROM[ofs+2]]+hexLookup[ROM[ofs+1]]+"]");
-                        newLine();
+                    for (int k = 0; k < counts.length; k++) {
+                        counts[k] += r[words + k];
                     }
-                    else if (amode == INDX) {
-                        System.out.print(" [$"+hexLookup[ROM[ofs+1]]+",X]");
-                        newLine();
+                }
+                pos += end;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().toString());
+        } finally {
+            pool.shutdown();
+        }
+        tracedCode = new boolean[prgSize];
+        int distinct = 0;
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if ((seen[ofs >>> 6] & (1L << ofs)) != 0) {
+                tracedCode[ofs] = true;
+                distinct++;
+            }
+        }
+        System.err.println("tracelog: " + counts[0] + " lines, " + counts[1] + " ROM instructions, "
+            + distinct + " distinct PCs, " + counts[2] + " in RAM, " + counts[3]
+            + " unmapped in " + String.format("%.3f", (System.nanoTime() - startNanos) / 1000000.0)
+            + " ms on " + threads + ((threads == 1) ? " thread" : " threads"));
+    }
+
+/**
+* PC of one trace line: the first token of the form [$][bank:]PPPP[:...]
+* (bank 1-3 hex digits, PC exactly 4). FCEUX's frame, cycle and instruction
+* counters (f, c or i and a decimal count) are skipped by their prefix, since
+* f123 or c999 would otherwise read as a PC; the register columns never
+* match. Returns the PC with bank + 1 in bits 16 and up (0 when the line has
+* no bank), or -1.
+**/
+
+    static int tracePc(ByteBuffer buf, int from, int to) {
+        int i = from;
+        while (i < to) {
+            while (i < to && isTraceSpace(buf.get(i))) {
+                i++;
+            }
+            int tok = i;
+            while (i < to && !isTraceSpace(buf.get(i))) {
+                i++;
+            }
+            if (tok < i) {
+                int pc = traceTokenPc(buf, tok, i);
+                if (pc >= 0) {
+                    return pc;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isTraceSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean isTraceCounter(ByteBuffer buf, int from, int to) {
+        byte prefix = buf.get(from);
+        if ((prefix != 'f' && prefix != 'c' && prefix != 'i') || from + 1 == to) {
+            return false;
+        }
+        for (int i = from + 1; i < to; i++) {
+            if (buf.get(i) < '0' || buf.get(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int traceTokenPc(ByteBuffer buf, int from, int to) {
+        if (isTraceCounter(buf, from, to)) {
+            return -1;
+        }
+        int i = (buf.get(from) == '$') ? from + 1 : from;
+        int first = 0;
+        int digits = 0;
+        while (i < to && buf.get(i) != ':') {
+            int d = Character.digit(buf.get(i), 16);
+            if (d < 0 || ++digits > 4) {
+                return -1;
+            }
+            first = (first << 4) | d;
+            i++;
+        }
+        if (digits == 4) {
+            return first;
+        }
+        if (digits == 0 || i == to) {
+            return -1;
+        }
+        i++;
+        int pc = 0;
+        int pcDigits = 0;
+        while (i < to && buf.get(i) != ':') {
+            int d = Character.digit(buf.get(i), 16);
+            if (d < 0 || ++pcDigits > 4) {
+                return -1;
+            }
+            pc = (pc << 4) | d;
+            i++;
+        }
+        return (pcDigits == 4) ? ((first + 1) << 16) | pc : -1;
+    }
+
+/**
+* PRG offset a traced PC ran from: -1 for RAM, -2 when it can't be placed
+* (MMC1 $8000-$BFFF without a bank, or a bank past the PRG). Trace banks are
+* 16 KB PRG bank numbers.
+**/
+
+    static int tracePrgOffset(int pc, int bank) {
+        if (pc < 0x8000) {
+            return -1;
+        }
+        if (mapperNumber == MAPPER_MMC1) {
+            if (bank >= 0) {
+                int ofs = bank * 0x4000 + (pc & 0x3FFF);
+                return (ofs < prgSize) ? ofs : -2;
+            }
+            return (pc >= 0xC000) ? fixedBankOffset + (pc - 0xC000) : -2;
+        }
+        return cpuToPrgOffset(pc);
+    }
+
+/**
+* Writes the -traceseeds file: the first instruction of every traced run
+* (a traced PC no traced instruction falls through to) as codeentries rows,
+* bank-qualified for MMC1 switchable banks.
+**/
+
+    static void writeTraceSeeds(String path) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(path), false, "UTF-8")) {
+            out.println("# run starts from " + traceLogPath);
+            for (int ofs = 0; ofs < prgSize; ofs++) {
+                if (!tracedCode[ofs] || fallsThroughFromTraced(ofs)) {
+                    continue;
+                }
+                if (mapperNumber == MAPPER_MMC1 && ofs < fixedBankOffset) {
+                    out.println(bankNumberForOffset(ofs) + "|$" + hex4(offsetToCpu(ofs)));
+                } else {
+                    out.println("$" + hex4(offsetToCpu(ofs)));
+                }
+            }
+        }
+    }
+
+    private static boolean fallsThroughFromTraced(int ofs) {
+        for (int k = 1; k <= 3; k++) {
+            int prev = ofs - k;
+            if (prev < 0 || !tracedCode[prev] || oplengthLookup[ROM[prev]] != k) {
+                continue;
+            }
+            int op = ROM[prev];
+            if (op != 0x00 && op != 0x40 && op != 0x60 && op != 0x4C && op != 0x6C) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+/**
+* Repeats the dispatch-table scans until neither finds a new table, so
+* tables reached only through another table's targets are recovered in the
+* same pass.
+**/
+
+    private static void recoverDispatchTables() {
+        boolean found = true;
+        while (found) {
+            found = recoverStackDispatch();
+            found |= recoverSplitTables();
+        }
+    }
+
+/**
+* Recovers push-then-RTS dispatchers. An RTS preceded by
+*     LDA hi,X / PHA / LDA lo,X / PHA
+* (either index register, the same for both loads) returns to the pushed
+* address + 1, so the two loads name a table of handler addresses minus one:
+* split lo/hi tables, or one interleaved word table when hi is lo + 1. Each
+* target + 1 is labelled and traced. Returns true when a new dispatcher was
+* found.
+**/
+
+    private static boolean recoverStackDispatch() {
+        boolean found = false;
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (ROM[ofs] != 0x60 || !isInstr(ofs) || stackDispatchers.containsKey(ofs)) {
+                continue;
+            }
+            int[] table = stackDispatchTable(ofs);
+            if (table == null) {
+                continue;
+            }
+            stackDispatchers.put(ofs, table);
+            found = true;
+            labelDispatchTable(table);
+            for (int i = 0; i < table[3]; i++) {
+                int target = dispatchTableTarget(table, i, 1, ofs);
+                map[target] |= LABEL;
+                processCode(target);
+            }
+        }
+        return found;
+    }
+
+/**
+* Recovers split pointer tables built in RAM by
+*     LDA lo,X / STA ptr / LDA hi,X / STA ptr+1
+* (either order, either index register, ptr in zero page or RAM) when the
+* pointer is then used by JMP (ptr), by a JSR to a JMP (ptr) trampoline, or
+* by a (ptr),Y read. Code-pointer targets are labelled and traced, data
+* targets only labelled. Tables pinned by a split row in codepointers or
+* datapointers are left to that row. Returns true when a new table was found.
+**/
+
+    private static boolean recoverSplitTables() {
+        boolean found = false;
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if ((ROM[ofs] != 0xBD && ROM[ofs] != 0xB9) || !isInstr(ofs) || splitTables.containsKey(ofs)) {
+                continue;
+            }
+            int[] table = splitPointerTable(ofs);
+            if (table == null) {
+                continue;
+            }
+            splitTables.put(ofs, table);
+            found = true;
+            labelDispatchTable(table);
+            for (int i = 0; i < table[3]; i++) {
+                int target = dispatchTableTarget(table, i, 0, ofs);
+                map[target] |= LABEL;
+                if (table[4] == 1) {
+                    processCode(target);
+                }
+            }
+        }
+        return found;
+    }
+
+/**
+* { lo table, hi table, stride, entries, 1 code / 0 data } for the split
+* pointer load starting with the LDA at load, or null when the idiom or a
+* pointer use doesn't follow.
+**/
+
+    static int[] splitPointerTable(int load) {
+        int store = load + 3;
+        int ptr = ramStoreAddress(store);
+        if (ptr < 0 || (ROM[store] != 0x85 && ROM[store] != 0x8D)) {
+            return null;
+        }
+        int load2 = store + oplengthLookup[ROM[store]];
+        int store2 = load2 + 3;
+        if (load2 >= prgSize || !isInstr(load2) || ROM[load2] != ROM[load]) {
+            return null;
+        }
+        int ptr2 = ramStoreAddress(store2);
+        if ((ptr2 != ptr + 1 && ptr2 != ptr - 1) || (ROM[store2] != 0x85 && ROM[store2] != 0x8D)) {
+            return null;
+        }
+        if (isLabel(store) || isLabel(load2) || isLabel(store2)) {
+            return null;
+        }
+        if (!isROMAddress(load+1, load) || !isROMAddress(load2+1, load2)) {
+            return null;
+        }
+        int loLoad = (ptr2 == ptr + 1) ? load : load2;
+        int hiLoad = (loLoad == load) ? load2 : load;
+        int use = splitPointerUse(store2 + oplengthLookup[ROM[store2]], Math.min(ptr, ptr2));
+        if (use < 0) {
+            return null;
+        }
+        int lo = getAddressForContext(loLoad+1, loLoad);
+        int hi = getAddressForContext(hiLoad+1, hiLoad);
+        if (isPinnedSplitTable(lo)) {
+            return null;
+        }
+        int stride = (readCpuAddress(hiLoad+1) == readCpuAddress(loLoad+1) + 1) ? 2 : 1;
+        int[] table = { lo, hi, stride, 0, use };
+        table[3] = dispatchTableExtent(table, 0, use == 1, load);
+        return (table[3] > 0) ? table : null;
+    }
+
+/**
+* How the pointer at ptr is used by the straight-line code from ofs: 1 for
+* JMP (ptr) or a JSR to a JMP (ptr) trampoline, 0 for a (ptr),Y read, -1
+* when the path ends, calls elsewhere, or overwrites the pointer first.
+**/
+
+    private static int splitPointerUse(int ofs, int ptr) {
+        for (int k = 0; k < 8 && ofs < prgSize && isInstr(ofs); k++) {
+            int op = ROM[ofs];
+            if (op == 0x6C) {
+                return (readCpuAddress(ofs+1) == ptr) ? 1 : -1;
+            }
+            if (op == 0x20) {
+                int t = resolvedOperandTarget(ofs);
+                return (t >= 0 && isInstr(t) && ROM[t] == 0x6C && readCpuAddress(t+1) == ptr) ? 1 : -1;
+            }
+            if (opaddrmodeLookup[op] == INDY && ROM[ofs+1] == ptr) {
+                return 0;
+            }
+            int written = ramStoreAddress(ofs);
+            if (op == 0x00 || op == 0x40 || op == 0x60 || op == 0x4C
+                    || written == ptr || written == ptr + 1) {
+                return -1;
+            }
+            ofs += oplengthLookup[op];
+        }
+        return -1;
+    }
+
+/**
+* RAM address written by a traced STA/STX/STY zp or abs at ofs, or -1.
+**/
+
+    private static int ramStoreAddress(int ofs) {
+        if (ofs + 1 >= prgSize || !isInstr(ofs)) {
+            return -1;
+        }
+        int op = ROM[ofs];
+        if (op == 0x84 || op == 0x85 || op == 0x86) {
+            return ROM[ofs+1];
+        }
+        if ((op == 0x8C || op == 0x8D || op == 0x8E) && ofs + 2 < prgSize) {
+            int addr = readCpuAddress(ofs+1);
+            return (addr < 0x0800) ? addr : -1;
+        }
+        return -1;
+    }
+
+    private static boolean isPinnedSplitTable(int lo) {
+        for (int i = 0; i < splitCodePointers.size(); i++) {
+            if (splitCodePointers.get(i)[0] == lo) {
+                return true;
+            }
+        }
+        for (int i = 0; i < splitDataPointers.size(); i++) {
+            if (splitDataPointers.get(i)[0] == lo) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void labelDispatchTable(int[] table) {
+        map[table[0]] |= LABEL;
+        if (table[2] == 1) {
+            map[table[1]] |= LABEL;
+        }
+    }
+
+/**
+* { lo table, hi table, stride, entries } for the push-then-RTS sequence
+* ending at the RTS at rts, or null when the instructions before it don't
+* match or the first entry isn't a plausible target.
+**/
+
+    static int[] stackDispatchTable(int rts) {
+        int pushLo = previousInstruction(rts);
+        int loadLo = previousInstruction(pushLo);
+        int pushHi = previousInstruction(loadLo);
+        int loadHi = previousInstruction(pushHi);
+        if (loadHi < 0 || ROM[pushLo] != 0x48 || ROM[pushHi] != 0x48) {
+            return null;
+        }
+        int op = ROM[loadLo];
+        if ((op != 0xBD && op != 0xB9) || ROM[loadHi] != op) {
+            return null;
+        }
+        // a label inside the sequence means another path joins it with
+        // something else on the stack
+        if (isLabel(pushHi) || isLabel(loadLo) || isLabel(pushLo) || isLabel(rts)) {
+            return null;
+        }
+        if (!isROMAddress(loadLo+1, loadLo) || !isROMAddress(loadHi+1, loadHi)) {
+            return null;
+        }
+        int lo = getAddressForContext(loadLo+1, loadLo);
+        int hi = getAddressForContext(loadHi+1, loadHi);
+        int stride = (readCpuAddress(loadHi+1) == readCpuAddress(loadLo+1) + 1) ? 2 : 1;
+        int[] table = { lo, hi, stride, 0 };
+        table[3] = dispatchTableExtent(table, 1, true, rts);
+        return (table[3] > 0) ? table : null;
+    }
+
+/**
+* Number of leading entries of a lo/hi table that look like pointers: both
+* bytes unmapped data, no label past the first entry, the lo and hi runs not
+* overlapping each other or leaving the bank, and the target (entry +
+* adjust) a statically mapped ROM byte that can start an instruction, or
+* for data tables one that isn't code.
+**/
+
+    static int dispatchTableExtent(int[] table, int adjust, boolean code, int contextOfs) {
+        int lo = table[0];
+        int hi = table[1];
+        int stride = table[2];
+        int limit = 0x100 / stride;
+        int n = 0;
+        while (n < limit) {
+            int l = lo + n * stride;
+            int h = hi + n * stride;
+            if (l >= prgSize || h >= prgSize) {
+                break;
+            }
+            if (n > 0 && (isLabel(l) || isLabel(h)
+                    || (stride == 1 && (l == hi || h == lo))
+                    || bankBaseOffset(l) != bankBaseOffset(lo)
+                    || bankBaseOffset(h) != bankBaseOffset(hi))) {
+                break;
+            }
+            if (!isData(l) || !isData(h) || blockedFromCode[l] != blockedFromCode[h]) {
+                break;
+            }
+            int cpu = (((ROM[h] << 8) | ROM[l]) + adjust) & 0xFFFF;
+            if (!isStaticallyMappedCpuAddress(cpu, contextOfs)) {
+                break;
+            }
+            int target = cpuToPrgOffsetForContext(cpu, contextOfs);
+            if (code ? (blockedFromCode[target] || (isCode(target) && !isInstr(target))
+                        || (isData(target) && !PROCESSABLE_OPCODE[ROM[target]]))
+                     : isCode(target)) {
+                break;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    static int dispatchTableTarget(int[] table, int i, int adjust, int contextOfs) {
+        int cpu = (((ROM[table[1] + i * table[2]] << 8) | ROM[table[0] + i * table[2]]) + adjust) & 0xFFFF;
+        return cpuToPrgOffsetForContext(cpu, contextOfs);
+    }
+
+/**
+* Offset of the traced instruction that ends right before ofs, or -1.
+**/
+
+    private static int previousInstruction(int ofs) {
+        for (int k = 1; k <= 3; k++) {
+            if (ofs - k >= 0 && isInstr(ofs - k) && oplengthLookup[ROM[ofs - k]] == k) {
+                return ofs - k;
+            }
+        }
+        return -1;
+    }
+
+/**
+* Maps the -cdl file and decodes its PRG flags. Executed runs are walked
+* with the opcode length table from their first byte (and from every
+* flagged jump target) because both emulators flag operand bytes as code
+* too. Bytes read but never executed become cdlData.
+**/
+
+    static void loadCdl(String path) throws IOException {
+        try (FileChannel ch = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            int base = 0;
+            int entryMask = CDL_FCEUX_INDIRECT_CODE;
+            if (ch.size() >= CDL_MESEN_HEADER_SIZE && buf.get(0) == 'C' && buf.get(1) == 'D'
+                    && buf.get(2) == 'L' && buf.get(3) == 'v' && buf.get(4) == '2') {
+                base = CDL_MESEN_HEADER_SIZE;
+                entryMask = CDL_MESEN_JUMP_TARGET | CDL_MESEN_SUB_ENTRY;
+            }
+            if (ch.size() - base < prgSize) {
+                throw new ConfigException("cdl: " + path + " covers " + (ch.size() - base)
+                    + " PRG bytes; the ROM has " + prgSize + ".");
+            }
+            cdlCode = new boolean[prgSize];
+            cdlData = new boolean[prgSize];
+            cdlEntry = new boolean[prgSize];
+            int nextStart = 0;
+            for (int ofs = 0; ofs < prgSize; ofs++) {
+                int flags = buf.get(base + ofs) & 0xFF;
+                if ((flags & CDL_CODE) == 0) {
+                    cdlData[ofs] = (flags & CDL_DATA) != 0;
+                    nextStart = ofs + 1;
+                    continue;
+                }
+                boolean entry = (flags & entryMask) != 0;
+                if (ofs >= nextStart || entry) {
+                    cdlCode[ofs] = true;
+                    cdlEntry[ofs] = entry;
+                    nextStart = ofs + Math.max(oplengthLookup[ROM[ofs]], 1);
+                }
+            }
+        }
+    }
+
+/**
+* Phase-1 barriers for bytes the CDL saw read but never executed. Bytes of
+* configured pointer tables are left to markPointerTableBytes(). A static
+* code target on one of these bytes is not fatal, since the log may simply
+* be partial: failBlockedConflict() adds it to cdlConflicts.
+**/
+
+    private static void blockCdlData() {
+        boolean[] pointerBytes = new boolean[prgSize];
+        for (int i = 0; i < codePointersStart.size(); i++) {
+            Arrays.fill(pointerBytes, codePointersStart.get(i),
+                codePointersStart.get(i) + codePointersCount.get(i) * 2, true);
+        }
+        for (int i = 0; i < dataPointersStart.size(); i++) {
+            Arrays.fill(pointerBytes, dataPointersStart.get(i),
+                dataPointersStart.get(i) + dataPointersCount.get(i) * 2, true);
+        }
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (cdlData[ofs] && !pointerBytes[ofs]) {
+                blockedFromCode[ofs] = true;
+            }
+        }
+    }
+
+/**
+* Seeds every instruction start the CDL saw executed. Logged jump targets
+* get labels; executed bytes inside data ranges or inline records are
+* collected in cdlConflicts instead.
+**/
+
+    private static void seedCdlCode() {
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (!cdlCode[ofs]) {
+                continue;
+            }
+            if (blockedFromCode[ofs]) {
+                cdlConflicts.add(ofs);
+                continue;
+            }
+            if (!isCode(ofs)) {
+                processCode(ofs);
+            }
+            if (cdlEntry[ofs] && isInstr(ofs)) {
+                map[ofs] |= LABEL;
+            }
+        }
+    }
+
+/**
+* Scans the PRG for every -signatures pattern in one pass and keeps the
+* verified matches: entries and data spans by PRG offset, plus their names.
+* Matches that cross an MMC1 bank or touch a configured data range are
+* skipped. Prints a one-line summary to stderr.
+**/
+
+    static void matchSignatures() {
+        long start = System.nanoTime();
+        signatureEntries = new ArrayList<Integer>();
+        signatureData = new ArrayList<int[]>();
+        droppedSignatureData = new TreeSet<Integer>();
+        signatureNames = new HashMap<Integer, String>();
+        HashSet<String> used = new HashSet<String>();
+        ArrayList<int[]> candidates = signatureLibrary.scan(ROM, prgSize);
+        int matches = 0;
+        int skipped = 0;
+        for (int k = 0; k < candidates.size(); k++) {
+            Signature sig = signatureLibrary.signatures[candidates.get(k)[0]];
+            int ofs = candidates.get(k)[1];
+            int end = ofs + sig.pattern.length;
+            if (bankNumberForOffset(ofs) != bankNumberForOffset(end - 1)
+                || !sig.matchesAt(ROM, ofs, offsetToCpu(ofs))) {
+                continue;
+            }
+            if (overlapsDataRange(ofs, end)) {
+                skipped++;
+                continue;
+            }
+            matches++;
+            for (int i = 0; i < sig.entryOffsets.length; i++) {
+                signatureEntries.add(ofs + sig.entryOffsets[i]);
+                nameSignatureLabel(ofs + sig.entryOffsets[i], sig.entryNames[i], used);
+            }
+            for (int i = 0; i < sig.dataOffsets.length; i++) {
+                int dataStart = ofs + sig.dataOffsets[i];
+                signatureData.add(new int[] { dataStart, dataStart + sig.dataLengths[i] });
+                nameSignatureLabel(dataStart, sig.dataNames[i], used);
+            }
+        }
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.err.println("signatures: " + signatureLibrary.signatures.length + " patterns, "
+            + matches + " matches, " + skipped + " inside data ranges in "
+            + String.format("%.3f", ms) + " ms");
+    }
+
+    private static boolean overlapsDataRange(int start, int end) {
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry r = dataRanges.entries[k];
+            if (r.start < end && start < r.end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+/**
+* Names a matched offset. The first match keeps the library name; repeats
+* (the same driver in several banks, say) get the generic label as a suffix.
+* An offset already named by an earlier match keeps that name.
+**/
+
+    private static void nameSignatureLabel(int ofs, String name, HashSet<String> used) {
+        if (signatureNames.containsKey(ofs)) {
+            return;
+        }
+        String label = used.add(name) ? name : name + "_" + labelForOffset(ofs).substring(1);
+        signatureNames.put(ofs, label);
+    }
+
+/**
+* Phase-1 barriers for the data spans of signature matches. A span is only a
+* guess, so a static code target landing on it drops it for later passes
+* (see failBlockedConflict) rather than failing the run.
+**/
+
+    private static void blockSignatureData() {
+        for (int i = 0; i < signatureData.size(); i++) {
+            if (droppedSignatureData.contains(i)) {
+                continue;
+            }
+            int[] span = signatureData.get(i);
+            for (int ofs = span[0]; ofs < span[1]; ofs++) {
+                blockedFromCode[ofs] = true;
+            }
+        }
+    }
+
+/**
+* Labels signature data spans and traces signature entries. An entry that
+* an inline record or CDL barrier covers is left alone: the library is a
+* guess, configuration and logs are not.
+**/
+
+    private static void seedSignatureMatches() {
+        for (int i = 0; i < signatureData.size(); i++) {
+            if (!droppedSignatureData.contains(i)) {
+                map[signatureData.get(i)[0]] |= LABEL;
+            }
+        }
+        for (int i = 0; i < signatureEntries.size(); i++) {
+            int target = signatureEntries.get(i);
+            if (blockedFromCode[target]) {
+                continue;
+            }
+            map[target] |= LABEL;
+            processCode(target);
+        }
+    }
+
+/**
+* Prints the -cdl conflicts left after analysis: executed instructions that
+* a configured data range or inline record claims, and read-only bytes that
+* static control flow targets.
+**/
+
+    private static void reportCdlConflicts() {
+        if (cdlConflicts.isEmpty()) {
+            return;
+        }
+        System.err.println("Warning: " + cdlPath + " disagrees with the analysis at "
+            + cdlConflicts.size() + " offset(s):");
+        int shown = 0;
+        for (Integer ofs : cdlConflicts) {
+            if (shown++ == 10) {
+                System.err.println("  ...");
+                break;
+            }
+            if (cdlCode[ofs]) {
+                System.err.println("  $" + cpuLabel(ofs) + " executed, in " + findBlockingSource(ofs));
+            } else {
+                System.err.println("  $" + cpuLabel(ofs) + " read, never executed, but a static code target");
+            }
+        }
+    }
+
+    private static void markPointerTableBytes(int offset, int count, String source) {
+        for (int j = 0; j < count; ++j) {
+            for (int b = 0; b < 2; ++b) {
+                int byteOffset = offset + j*2 + b;
+                if (blockedFromCode[byteOffset]) {
+                    failBlockedConflict(byteOffset, source + " entry [" + j + "] byte [" + b + "]");
+                }
+                map[byteOffset] = CODE | PTR;
+            }
+        }
+    }
+
+/**
+* Phase-1 mask construction for resolved inline records. Marks every record
+* byte as blocked-from-code and detects record-vs-record / record-vs-range
+* overlaps. Does NOT label anything or seed continuations — that is phase
+* 2's job, after every record AND every data range has been added to the
+* mask.
+**/
+
+    public static void blockKnownInlineRecords() {
+        for (ResolvedRecord r : knownCallsites.values()) {
+            for (int i = r.recordStart; i < r.recordEnd; i++) {
+                if (i < blockedFromCode.length && blockedFromCode[i]) {
+                    String blocking = findBlockingSource(i);
+                    throw new ConfigException("inline record at callsite $" + cpuLabel(r.callsite)
+                        + " -> $" + hex4(r.entry.calleeCpu)
+                        + " overlaps already-blocked byte $" + cpuLabel(i)
+                        + " (" + blocking + ")");
+                }
+                blockedFromCode[i] = true;
+            }
+        }
+    }
+
+/**
+* Phase-2 label + seed for resolved inline records. Labels record_start,
+* labels and seeds adjusted code-pointer targets, labels adjusted data-
+* pointer targets without seeding them, and labels + seeds record_end as a
+* code continuation. Must run only after blockKnownInlineRecords and
+* blockDataRanges have populated the complete barrier mask.
+**/
+
+    public static void labelAndSeedKnownInlineRecords() {
+        for (ResolvedRecord r : knownCallsites.values()) {
+            if (!cachedCallsites.contains(r.callsite)) {
+                labelAndSeedRecord(r);
+            }
+        }
+    }
+
+    private static void labelAndSeedRecord(ResolvedRecord r) {
+        if (inPrgOffset(r.recordStart)) {
+            map[r.recordStart] |= LABEL;
+        }
+        InlineField[] fields = r.entry.layout.fields;
+        for (int k = 0; k < fields.length; k++) {
+            InlineField field = fields[k];
+            if (field.kind != InlineField.PTR16) {
+                continue;
+            }
+            int target = r.pointerTargets[k];
+            if (!inPrgOffset(target)) {
+                continue;
+            }
+            if (field.pointerKind == PointerKind.CODE && blockedFromCode[target]) {
+                failBlockedConflict(target, "inline ptr16(code) at callsite $"
+                    + cpuLabel(r.callsite) + " field " + k);
+            }
+            map[target] |= LABEL;
+            if (field.pointerKind == PointerKind.CODE) {
+                processCode(target);
+            }
+        }
+        if (inPrgOffset(r.recordEnd)) {
+            if (blockedFromCode[r.recordEnd]) {
+                failBlockedConflict(r.recordEnd, "inline record continuation at callsite $"
+                    + cpuLabel(r.callsite));
+            }
+            map[r.recordEnd] |= LABEL;
+            processCode(r.recordEnd);
+        }
+    }
+
+/**
+* Convenience composite used by single-record / single-range tests. Runs
+* block + label/seed back-to-back; runAnalysisPass uses the split phase
+* methods directly so all barriers are constructed before any seed traces.
+**/
+
+    public static void applyKnownInlineRecords() {
+        blockKnownInlineRecords();
+        labelAndSeedKnownInlineRecords();
+    }
+
+/**
+* Describes which configured data range or resolved inline record blocks a
+* given PRG offset. Used to format the "blocked by" line in conflict
+* diagnostics. Returns a generic stub when no source can be identified —
+* that should never happen if the mask was built consistently.
+**/
+
+    static String findBlockingSource(int target) {
+        String configured = configuredBlockingSource(target);
+        if (configured != null) {
+            return configured;
+        }
+        int span = signatureSpanAt(target);
+        if (span >= 0) {
+            int[] s = signatureData.get(span);
+            return "signature data span $" + cpuLabel(s[0]) + "-$" + cpuLabel(s[1] - 1);
+        }
+        if (cdlData != null && cdlData[target]) {
+            return "data byte in " + cdlPath + " (read, never executed)";
+        }
+        return "blocked byte (source unknown)";
+    }
+
+    private static String configuredBlockingSource(int target) {
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry r = dataRanges.entries[k];
+            if (target >= r.start && target < r.end) {
+                return "data range $" + hex4(r.startCpu) + "-$"
+                    + hex4(r.startCpu + r.length - 1)
+                    + " (dataranges config line " + r.sourceLine + ")";
+            }
+        }
+        for (ResolvedRecord r : knownCallsites.values()) {
+            if (target >= r.recordStart && target < r.recordEnd) {
+                return "inline record at callsite $" + cpuLabel(r.callsite)
+                    + " -> $" + hex4(r.entry.calleeCpu)
+                    + " (inlinecalls config line " + r.entry.sourceLine + ")"
+                    + " (record $" + cpuLabel(r.recordStart) + "-$"
+                    + cpuLabel(r.recordEnd - 1) + ")";
+            }
+        }
+        return null;
+    }
+
+/**
+* Index of the signature data span blocking target this pass, or -1. Spans
+* dropped earlier in the pass still count, since their bytes stay blocked
+* until the next one.
+**/
+
+    private static int signatureSpanAt(int target) {
+        int found = -1;
+        for (int i = 0; i < signatureData.size(); i++) {
+            int[] span = signatureData.get(i);
+            if (target >= span[0] && target < span[1]) {
+                if (!droppedSignatureData.contains(i)) {
+                    return i;
+                }
+                found = i;
+            }
+        }
+        return found;
+    }
+
+/**
+* Fails the run for a code target on a configured barrier. A signature data
+* span the target lands on is dropped, so the next pass traces through it.
+* A target that only a -cdl read-only byte blocks is recorded in
+* cdlConflicts instead and left untraced; callers stop at the barrier
+* either way.
+**/
+
+    static void failBlockedConflict(int target, String source) {
+        if (configuredBlockingSource(target) == null) {
+            int span = signatureSpanAt(target);
+            if (span >= 0 && droppedSignatureData.add(span)) {
+                int start = signatureData.get(span)[0];
+                if (!signatureEntries.contains(start)) {
+                    signatureNames.remove(start);
+                }
+                return;
+            }
+            if (cdlData != null && cdlData[target]) {
+                cdlConflicts.add(target);
+                return;
+            }
+            if (span >= 0) {
+                return;
+            }
+        }
+        String blocking = findBlockingSource(target);
+        throw new ConfigException("inline-data conflict at $" + cpuLabel(target)
+            + "; blocked by " + blocking + "; conflicting target: " + source);
+    }
+
+/**
+* Resolves a single inline record at the given callsite against its
+* configured layout. Validates the JSR encoding, walks each field, evaluates
+* counted8 payload size from ROM, and computes adjusted pointer targets.
+* Throws ConfigException on any out-of-ROM or pointer-out-of-range condition.
+**/
+
+    public static ResolvedRecord resolveRecord(int callsite, InlineCallEntry entry) {
+        if (callsite + 3 > prgSize) {
+            throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                + " (callee $" + hex4(entry.calleeCpu) + "): JSR extends past end of ROM");
+        }
+        if (ROM[callsite] != 0x20) {
+            throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                + ": expected JSR ($20), got $" + hex2(ROM[callsite]));
+        }
+        int actualTarget = jsrTargetForCallsite(callsite);
+        if (actualTarget != entry.callee) {
+            throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                + ": JSR target $" + cpuLabel(actualTarget) + " does not match configured callee $"
+                + hex4(entry.calleeCpu));
+        }
+        InlineField[] fields = entry.layout.fields;
+        int[] fieldStarts = new int[fields.length];
+        int[] fieldEnds = new int[fields.length];
+        int[] pointerTargets = new int[fields.length];
+        for (int k = 0; k < pointerTargets.length; k++) {
+            pointerTargets[k] = -1;
+        }
+        int recordStart = callsite + 3;
+        int ofs = recordStart;
+        for (int k = 0; k < fields.length; k++) {
+            InlineField field = fields[k];
+            fieldStarts[k] = ofs;
+            int fieldSize;
+            if (field.kind == InlineField.COUNTED8) {
+                if (ofs >= prgSize) {
+                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                        + " (callee $" + hex4(entry.calleeCpu) + "): counted8 count byte past end of ROM");
+                }
+                int count = ROM[ofs];
+                fieldSize = 1 + count;
+                if (ofs + fieldSize > prgSize) {
+                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                        + " (callee $" + hex4(entry.calleeCpu) + "): counted8 payload of " + count
+                        + " bytes exceeds ROM");
+                }
+            } else if (field.kind == InlineField.PTR16) {
+                if (ofs + 2 > prgSize) {
+                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                        + " (callee $" + hex4(entry.calleeCpu) + "): ptr16 extends past end of ROM");
+                }
+                int encoded = readCpuAddress(ofs);
+                int adjustedTarget = (encoded + field.pointerAdjustment) & 0xFFFF;
+                if (!isStaticallyMappedCpuAddress(adjustedTarget, callsite)) {
+                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                        + " (callee $" + hex4(entry.calleeCpu) + "): adjusted pointer target $"
+                        + hex4(adjustedTarget) + " is outside canonical ROM space "
+                        + cpuRangeLabel());
+                }
+                pointerTargets[k] = cpuToPrgOffsetForContext(adjustedTarget, callsite);
+                fieldSize = 2;
+            } else {
+                fieldSize = field.byteCount;
+                if (ofs + fieldSize > prgSize) {
+                    throw new ConfigException("inline record at callsite $" + cpuLabel(callsite)
+                        + " (callee $" + hex4(entry.calleeCpu) + "): field " + k + " extends past end of ROM");
+                }
+            }
+            ofs += fieldSize;
+            fieldEnds[k] = ofs;
+        }
+        int recordEnd = ofs;
+        return new ResolvedRecord(callsite, entry, recordStart, recordEnd, fieldStarts, fieldEnds, pointerTargets);
+    }
+
+    private static String cpuLabel(int prgOffset) {
+        int normalized = normalizePrgOffset(prgOffset);
+        if (!inPrgOffset(normalized)) {
+            return hex4(offsetToCpu(prgOffset));
+        }
+        return hex4(offsetToCpu(normalized));
+    }
+
+    private static String hex2(int b) {
+        String s = Integer.toHexString(b & 0xFF).toUpperCase();
+        return s.length() == 1 ? "0" + s : s;
+    }
+
+    private static String hex1(int b) {
+        return Integer.toHexString(b & 0x0F).toUpperCase();
+    }
+
+/**
+* Returns PRG offset made up by the two bytes at offset ofs in the ROM.
+**/
+
+    public static int getAddress(int ofs) {
+        return getAddressForContext(ofs, ofs);
+    }
+
+    private static int getAddressForContext(int ofs, int contextOfs) {
+        return cpuToPrgOffsetForContext(readCpuAddress(ofs), contextOfs);
+    }
+
+/**
+* Iteratively maps code reachable from an entry offset using a worklist.
+* Returns true if any new code bytes were mapped.
+**/
+
+    public static boolean processCode(int ofs) {
+        stats.seeds++;
+        queueCodeTarget(ofs);
+        if (processCodeActive) {
+            return false;
+        }
+        boolean mappedAny = false;
+        processCodeActive = true;
+        try {
+            while (!codeWorklist.isEmpty()) {
+                int target = (int)codeWorklist.removeFirst();
+                if (processCodeSingle(target)) {
+                    mappedAny = true;
+                }
+            }
+        } finally {
+            processCodeActive = false;
+            codeWorklist.clear();
+        }
+        return mappedAny;
+    }
+
+    private static void queueCodeTarget(int ofs) {
+        // Normalize to PRG-ROM address space to avoid out-of-range map access.
+        int target = normalizePrgOffset(ofs);
+        if (bankTracedAs != null) {
+            target = sharedTraceOffset(target);
+        }
+        if (isTraceablePrgOffset(target)) {
+            codeWorklist.addLast(target);
+            if (codeWorklist.size() > stats.worklistPeak) {
+                stats.worklistPeak = codeWorklist.size();
+            }
+        }
+    }
+
+    private static void queueRelativeBranchTarget(int ofs, BankState bankState) {
+        int target = relativeBranchTarget(ofs);
+        if (target < 0 || !isTraceablePrgOffset(target)) {
+            return;
+        }
+        if (blockedFromCode[target]) {
+            failBlockedConflict(target, "relative branch at $" + cpuLabel(ofs));
+        }
+        notePendingBankState(target, bankState);
+        queueCodeTarget(target);
+    }
+
+    private static int relativeBranchTarget(int ofs) {
+        int dist = ROM[ofs+1];
+        int signed = (dist < 0x80) ? dist : -(((dist ^ 0xFF) + 1) & 0xFF);
+        if (mapperNumber == MAPPER_MMC1) {
+            int cpuTarget = (offsetToCpu(ofs) + 2 + signed) & 0xFFFF;
+            if (!isStaticallyMappedCpuAddress(cpuTarget, ofs)) {
+                return -1;
+            }
+            return cpuToPrgOffsetForContext(cpuTarget, ofs);
+        }
+        return normalizePrgOffset(ofs + 2 + signed);
+    }
+
+    private static boolean processCodeSingle(int ofs) {
+        stats.processCodeSingleCalls++;
+        if (isCode(ofs) && !isInstr(ofs)) {
+            stats.processCodeSingleEarlyOuts++;
+            return false;
+        }
+        boolean done=false, jsrchk=false;
+        int op, len;
+        int chkpt=ofs;  // initialize checkpoint to current offset
+        int startofs=ofs;
+        // null unless MMC1; tracks mapper writes along this linear path
+        BankState bankState = initialBankState(ofs);
+        // Stop linearly at any byte explicitly blocked from code (configured
+        // data range or resolved inline-record byte). Fallthrough into the
+        // first byte of a blocked range ends the linear path without decoding
+        // the blocked byte itself.
+        while (!done && isData(ofs) && !blockedFromCode[ofs]) {
+            // process one opcode
+            op = ROM[ofs];
+            len = oplengthLookup[op];
+            if (len > 0) {
+                if ((ofs + len) > map.length) {
+                    return false;
+                }
+                // The opcode byte was unblocked (loop guard above), but the
+                // instruction's operand bytes might still cross into a barrier.
+                // Marking them as code would silently override the explicit
+                // data claim — spec §8 requires this to be a conflict.
+                boolean operandBlocked = false;
+                for (int i = 1; i < len; i++) {
+                    if (blockedFromCode[ofs + i]) {
+                        failBlockedConflict(ofs + i,
+                            "operand of instruction at $" + cpuLabel(ofs));
+                        operandBlocked = true;
+                    }
+                }
+                if (operandBlocked) {
+                    break;
+                }
+                stats.bytesTraced += len;
+                map[ofs] &= NOT_DATA;
+                map[ofs] |= INSTR | CODE;   // 1st byte of instruction
+                // mark the operand bytes as code too
+                for (int i=1; i<len; i++) {
+                    map[ofs+i] &= NOT_DATA;
+                    map[ofs+i] &= NOT_INSTR;
+                    map[ofs+i] &= NOT_LABEL;
+                    map[ofs+i] |= CODE;
+                }
+            }
+            if (!PROCESSABLE_OPCODE[op]) {   // Bad opcode
+                stats.bytesRolledBack += ofs - chkpt + 1;
+                while (ofs >= chkpt) {
+                    map[ofs] &= NOT_CODE;
+                    map[ofs] &= NOT_INSTR;
+                    map[ofs--] |= DATA;
+                }
+                ofs++;
+                if (jsrchk) {   // process jump table
+                    while ((ofs + 1 < map.length) && (map[ofs] == DATA)
+                        && isCanonicalROMAddress(ofs, ofs)) {
+                        queueCodeTarget(getAddressForContext(ofs, ofs));
+                        map[ofs++] = CODE | PTR;
+                        map[ofs++] = CODE | PTR;
+                    }
+                }
+                done = true;
+            }
+
+            if (!done && CHECK_DATA_LABEL_OPCODE[op]) {
+                checkDataLabel(ofs+1, ofs);
+            }
+
+            if (!done && bankState != null) {
+                bankState.step(op, ofs);
+            }
+
+            if (!done && RELATIVE_BRANCH_OPCODE[op]) {
+                queueRelativeBranchTarget(ofs, bankState);
+                chkpt = ofs+2;
+                jsrchk = false;
+                ofs += len;
+                continue;
+            }
+
+            switch (op) {
+                case 0x20: {  // JSR
+                    int jsrTarget = bankAwareOperandTarget(ofs, bankState);
+                    boolean romTarget = jsrTarget >= 0;
+                    if (romTarget) {
+                        if (blockedFromCode[jsrTarget]) {
+                            failBlockedConflict(jsrTarget, "JSR at $" + cpuLabel(ofs));
+                        }
+                        notePendingBankState(jsrTarget, bankState);
+                        queueCodeTarget(jsrTarget);
+                        InlineCallEntry inlineEntry = inlineCalls.findForCallsite(ofs, jsrTarget);
+                        if (inlineEntry != null) {
+                            // Configured inline call: record the callsite if new
+                            // and terminate the linear path. The record bytes are
+                            // (or will be) blocked, and record_end is (or will be)
+                            // a separate code seed, so falling through here would
+                            // either decode garbage or violate the barrier.
+                            if (!knownCallsites.containsKey(ofs)) {
+                                newlyDiscoveredCallsites.add(ofs);
+                            }
+                            done = true;
+                            break;
+                        }
+                    }
+                    if (bankState != null) {
+                        bankState.applyCall(romTarget ? bankSwitchSummary(jsrTarget, 0) : null);
+                    }
+                    chkpt = ofs+3;
+                    jsrchk = romTarget;
+                    break;
+                }
+
+                case 0x40:  // RTI
+                case 0x60:  // RTS
+                    done = true;
+                    break;
+
+                case 0x4C: {  // JMP Abs
+                    int jmpTarget = bankAwareOperandTarget(ofs, bankState);
+                    if (jmpTarget >= 0) {
+                        if (blockedFromCode[jmpTarget]) {
+                            failBlockedConflict(jmpTarget, "JMP at $" + cpuLabel(ofs));
+                        }
+                        notePendingBankState(jmpTarget, bankState);
+                        queueCodeTarget(jmpTarget);
+                    }
+                    done = true;
+                    break;
+                }
+
+                case 0x6C: {  // JMP Ind
+                    if (isROMAddress(ofs+1, ofs)) {
+                        int vectorOffset = getAddressForContext(ofs+1, ofs);
+                        if ((vectorOffset + 1 < map.length) && isROMAddress(vectorOffset, vectorOffset)) {
+                            int indTarget = getAddressForContext(vectorOffset, vectorOffset);
+                            if (blockedFromCode[indTarget]) {
+                                failBlockedConflict(indTarget, "JMP indirect via $" + cpuLabel(ofs));
+                            }
+                            queueCodeTarget(indTarget);
+                        }
+                    }
+                    done = true;
+                    break;
+                }
+
+                default:
+                    break;
+            }   // switch
+            ofs += len;
+        }   // while
+        if ((ofs != startofs) || isCode(startofs)) {
+            map[startofs] |= LABEL;
+        }
+        if (ofs == startofs) {
+            stats.processCodeSingleEarlyOuts++;
+        }
+        return (ofs != startofs);   // true if new code was mapped, false otherwise
+    }
+
+/**
+* Starting mapper state for a linear trace at ofs. Code running from a
+* switchable bank proves that bank is mapped; a state noted by the path that
+* queued ofs overrides that. Returns null for mappers without banking so the
+* NROM trace pays nothing for the tracking.
+**/
+
+    private static BankState initialBankState(int ofs) {
+        if (mapperNumber != MAPPER_MMC1) {
+            return null;
+        }
+        BankState pending = pendingBankStates.get(ofs);
+        if (pending != null && pending.prgBank >= 0) {
+            return pending.copy();
+        }
+        int bank = (ofs < fixedBankOffset) ? bankNumberForOffset(ofs) : BankState.BANK_UNKNOWN;
+        return new BankState(BankState.A_UNKNOWN, 0, bank);
+    }
+
+    private static void notePendingBankState(int target, BankState bankState) {
+        if (bankState == null || bankState.prgBank < 0) {
+            return;
+        }
+        BankState known = pendingBankStates.get(target);
+        if (known == null) {
+            pendingBankStates.put(target, bankState.copy());
+        } else if (known.prgBank != bankState.prgBank) {
+            // Paths disagree on the mapped bank; fall back to the legacy rules.
+            pendingBankStates.put(target, new BankState(BankState.A_UNKNOWN, 0, BankState.BANK_UNKNOWN));
+        }
+    }
+
+/**
+* Resolves the absolute operand of the JSR/JMP at ofs to a PRG offset, or
+* -1 when it is not statically traceable. A $8000-$BFFF operand resolves
+* through the tracked bank when that differs from the instruction's own
+* context (fixed-bank callers, or code that switched banks); such sites are
+* remembered so the output can label them.
+**/
+
+    private static int bankAwareOperandTarget(int ofs, BankState bankState) {
+        int legacy = isROMAddress(ofs+1, ofs) ? getAddressForContext(ofs+1, ofs) : -1;
+        int mapped = (bankState != null) ? bankState.switchableTarget(readCpuAddress(ofs+1)) : -1;
+        if (mapped >= 0 && mapped != legacy) {
+            bankResolvedOperands.put(ofs, mapped);
+            return mapped;
+        }
+        return legacy;
+    }
+
+    private static int jsrTargetForCallsite(int callsite) {
+        Integer banked = bankResolvedOperands.get(callsite);
+        if (banked != null) {
+            return banked;
+        }
+        return getAddressForContext(callsite + 1, callsite);
+    }
+
+/**
+* Mapper effect of JSR to entry, as a BankState relative to the caller. The
+* fallthrough path is interpreted up to RTS, following JMP and nested JSRs.
+* A routine with branches is only summarized when no reachable instruction
+* can touch the mapper; anything else is an opaque call. Memoized per pass.
+**/
+
+    private static final int BANK_SUMMARY_DEPTH = 8;
+    private static final int BANK_SUMMARY_STEPS = 256;
+
+    private static BankState bankSwitchSummary(int entry, int depth) {
+        BankState known = bankSwitchSummaries.get(entry);
+        if (known != null) {
+            return known;
+        }
+        // Placeholder breaks recursion through mutually recursive routines.
+        bankSwitchSummaries.put(entry, BankState.opaqueCall());
+        BankState summary = computeBankSwitchSummary(entry, depth);
+        bankSwitchSummaries.put(entry, summary);
+        return summary;
+    }
+
+    private static BankState computeBankSwitchSummary(int entry, int depth) {
+        if (depth >= BANK_SUMMARY_DEPTH) {
+            return BankState.opaqueCall();
+        }
+        BankState s = BankState.routineEntry();
+        boolean branched = false;
+        int ofs = entry;
+        for (int steps = 0; ; steps++) {
+            if (steps >= BANK_SUMMARY_STEPS || !inPrgOffset(ofs)) {
+                return BankState.opaqueCall();
+            }
+            int op = ROM[ofs];
+            int len = oplengthLookup[op];
+            if (!PROCESSABLE_OPCODE[op] || ofs + len > prgSize) {
+                return BankState.opaqueCall();
+            }
+            if (op == 0x60) {
+                break;
+            }
+            if (op == 0x40 || op == 0x6C) {
+                return BankState.opaqueCall();
+            }
+            if (RELATIVE_BRANCH_OPCODE[op]) {
+                branched = true;
+            } else if (op == 0x20 || op == 0x4C) {
+                int target = summaryOperandTarget(ofs, s);
+                if (target < 0) {
+                    return BankState.opaqueCall();
+                }
+                if (op == 0x4C) {
+                    ofs = target;
+                    continue;
+                }
+                s.applyCall(bankSwitchSummary(target, depth + 1));
+            } else {
+                s.step(op, ofs);
+            }
+            ofs += len;
+        }
+        if (branched) {
+            if (s.touchedMapper || mayTouchMapper(entry, depth)) {
+                return BankState.opaqueCall();
+            }
+            s.aKind = BankState.A_UNKNOWN;
+        }
+        return s;
+    }
+
+    private static int summaryOperandTarget(int ofs, BankState s) {
+        int mapped = s.switchableTarget(readCpuAddress(ofs+1));
+        int target = (mapped >= 0) ? mapped
+            : isROMAddress(ofs+1, ofs) ? getAddressForContext(ofs+1, ofs) : -1;
+        if (target >= 0 && ROM[ofs] == 0x20 && isInlineCallsite(ofs, target)) {
+            // The continuation sits behind an inline record; don't decode it.
+            return -1;
+        }
+        return target;
+    }
+
+    private static boolean isInlineCallsite(int ofs, int target) {
+        try {
+            return inlineCalls.findForCallsite(ofs, target) != null;
+        } catch (ConfigException ex) {
+            return true;
+        }
+    }
+
+    private static boolean mayTouchMapper(int entry, int depth) {
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        work.add(entry);
+        while (!work.isEmpty()) {
+            int ofs = work.removeFirst();
+            while (seen.add(ofs)) {
+                if (seen.size() > BANK_SUMMARY_STEPS * 4 || !inPrgOffset(ofs)) {
+                    return true;
+                }
+                int op = ROM[ofs];
+                int len = oplengthLookup[op];
+                if (!PROCESSABLE_OPCODE[op] || ofs + len > prgSize
+                    || op == 0x40 || op == 0x6C || BankState.writesMapper(op, ofs)) {
+                    return true;
+                }
+                if (op == 0x60) {
+                    break;
+                }
+                if (RELATIVE_BRANCH_OPCODE[op]) {
+                    int target = relativeBranchTarget(ofs);
+                    if (target < 0) {
+                        return true;
+                    }
+                    work.add(target);
+                } else if (op == 0x20 || op == 0x4C) {
+                    int target = isROMAddress(ofs+1, ofs) ? getAddressForContext(ofs+1, ofs) : -1;
+                    if (target < 0 || (op == 0x20 && isInlineCallsite(ofs, target))) {
+                        return true;
+                    }
+                    if (op == 0x4C) {
+                        ofs = target;
+                        continue;
+                    }
+                    if (bankSwitchSummary(target, depth + 1).touchedMapper) {
+                        return true;
+                    }
+                }
+                ofs += len;
+            }
+        }
+        return false;
+    }
+
+/**
+* Use the ROM & map to output a (possible HTML) formatted disassembly.
+**/
+
+    public static void disassemble() {
+        EmitEvent event = new EmitEvent();
+        event.begin();
+        long emitStart = System.nanoTime();
+        disassembleBody();
+        stats.emitNanos += System.nanoTime() - emitStart;
+        event.end();
+        if (event.shouldCommit()) {
+            event.html = toHtml;
+            event.prgSize = prgSize;
+            event.commit();
+        }
+    }
+
+    private static void disassembleBody() {
+        if (toHtml) {
+            emitOut().println("<HTML>");
+            emitOut().println("<BODY>");
+            emitOut().println("<FONT FACE=\"Courier\">");
+        }
+        prepareEmit();
+        if (parallelEmit && prgSize > EMIT_BANK_SIZE) {
+            byte[][] banks = emitSegments(EMIT_BANK_SIZE);
+            for (int b = 0; b < banks.length; b++) {
+                emitOut().write(banks[b], 0, banks[b].length);
+            }
+        } else {
+            emitRange(0, prgSize);
+        }
+        emitOut().print(".END");
+        newLine();
+        if (toHtml) {
+            emitOut().println("</FONT>");
+            emitOut().println("</BODY>");
+            emitOut().println("</HTML>");
+        }
+    }
+
+/**
+* Emits the lines for everything from ofs up to end and returns the offset
+* the walk stopped at. That is end, or past it when the last instruction,
+* pointer table, inline record or .DB run carried on over end, exactly as
+* the walk over the whole PRG would.
+**/
+
+    private static int emitRange(int ofs, int end) {
+        int op, amode;
+        while (ofs < end) {
+            maybeEmitOrg(ofs);
+            if (isCode(ofs)) {
+                if (isPtr(ofs)) {   // print jump table
+                    newLine();
+                    if (isLabel(ofs)) {
+                        String tableLabel = labelForOffset(ofs);
+                        if (toHtml)
+                            emitOut().print("<A NAME="+tableLabel+">");
+                        emitOut().print(tableLabel+":");
+                        newLine();
+                    }
+                    while ((ofs < prgSize) && isPtr(ofs)) {
+                        emitOut().print(".DW ");
+                        // Only emit a label form when the pointer bytes are in the canonical
+                        // project ROM range. For NROM-128 mirror operands, or MMC1 switchable
+                        // bank operands, a plain CPU address is not a unique output label.
+                        // Match the canonical-output guard used in printAddress().
+                        if (isCanonicalROMAddress(ofs, ofs) && isLabel(getAddressForContext(ofs, ofs))) {
+                            printLabel(labelForOffset(getAddressForContext(ofs, ofs)));
+                        }
+                        else {
+                            emitOut().print("$"+hexLookup[ROM[ofs+1]]+hexLookup[ROM[ofs]]);
+                        }
+                        newLine();
+                        ofs += 2;
+                    }
+                    newLine();
+                }
+                else {
+                    if (profile != null) {
+                        printProfileComment(ofs);
+                    }
+                    if (isLabel(ofs)) {
+                        String label = labelForOffset(ofs);
+                        if (toHtml)
+                            emitOut().print("<A NAME="+label+">");
+                        emitOut().print(label+":");
+                        newLine();
+                    }
+                    op = ROM[ofs];
+                    if (toHtml)
+                        emitOut().print("&nbsp;&nbsp;&nbsp;&nbsp;");
+                    else
+                        emitOut().print("    ");
+                    if ((oplengthLookup[op] <= 0) || (opaddrmodeLookup[op] == UNDF)) {
+                        emitOut().print(".DB $"+hexLookup[op]);
+                        newLine();
+                        ofs++;
+                        continue;
+                    }
+                    emitOut().print(mnemonicLookup[op]);
+                    if (annotateCycles || annotatePageCrossing || stackDispatchers.containsKey(ofs)
+                        || splitTables.containsKey(ofs)) {
+                        emitTarget.get().commentOfs = ofs;
+                    }
+                    amode = opaddrmodeLookup[op];
+                    if (amode == IMPL) {
+                        newLine();
+                        if ((op == 0x40) || (op == 0x60) || (op == 0x4C)) {
+                            newLine();
+                        }
+                    }
+                    else if (amode == IMMD) {
+                        emitOut().print(" #$"+hexLookup[ROM[ofs+1]]);
+                        newLine();
+                    }
+                    else if (amode == ZERO) {
+                        emitOut().print(" $"+hexLookup[ROM[ofs+1]]);
+                        newLine();
+                    }
+                    else if (amode == ZERX) {
+                        emitOut().print(" $"+hexLookup[ROM[ofs+1]]+",X");
+                        newLine();
+                    }
+                    else if (amode == ZERY) {
+                        emitOut().print(" $"+hexLookup[ROM[ofs+1]]+",Y");
+                        flushInstructionComment();
+                        emitOut().println();
+                    }
+                    else if (amode == ABSL) {
+                        printAddress(ofs+1, op, ofs);
+                        newLine();
+                    }
+                    else if (amode == ABSX) {
+                        printAddress(ofs+1, op, ofs);
+                        emitOut().print(",X");
+                        newLine();
+                    }
+                    else if (amode == ABSY) {
+                        printAddress(ofs+1, op, ofs);
+                        emitOut().print(",Y");
+                        newLine();
+                    }
+                    else if (amode == INDR) {
+                        emitOut().print(" [$"+hexLookup[ROM[ofs+2]]+hexLookup[ROM[ofs+1]]+"]");
+                        newLine();
+                    }
+                    else if (amode == INDX) {
+                        emitOut().print(" [$"+hexLookup[ROM[ofs+1]]+",X]");
+                        newLine();
+                    }
+                    else if (amode == INDY) {
+                        emitOut().print(" [$"+hexLookup[ROM[ofs+1]]+"],Y");
+                        newLine();
+                    }
+                    else if (amode == RELV) {
+                        emitOut().print(" ");
+                        int addr = relativeBranchTarget(ofs);
+                        if (addr >= 0 && isLabel(addr)) {
+                            printLabel(labelForOffset(addr));
+                        }
+                        else {
+                            printRelativeLiteral(ofs);
+                        }
+                        newLine();
+                    }
+                    ofs += oplengthLookup[op];
+                }
+            }   // isCode(ofs)
+            else if (isData(ofs)) { // print data table
+                // If an inline record starts here, emit it field-by-field
+                // instead of running a normal .DB block. The label is printed
+                // inside emitInlineRecord.
+                ResolvedRecord record = recordsByStart.get(ofs);
+                if (record != null) {
+                    emitInlineRecord(record);
+                    ofs = record.recordEnd;
+                    newLine();
+                    continue;
+                }
+                if (isLabel(ofs)) {
+                    String label = labelForOffset(ofs);
+                    if (toHtml)
+                        emitOut().println("<A NAME="+label+"><BR>");
+                    emitOut().print(label+":");
+                    newLine();
+                }
+                emitOut().print(".DB $"+hexLookup[ROM[ofs++]]);
+                int i=1;
+                // Stop the .DB run at the next data-block boundary so that
+                // configured data ranges and resolved inline records remain
+                // distinct from adjacent generic data (spec §9.2).
+                while ((ofs < prgSize) && (map[ofs] == DATA) && !dataBoundaries.contains(ofs)) {
+                    if ((i++ & 15) == 0) {
+                        newLine();
+                        emitOut().print(".DB ");
+                    }
+                    else {
+                        emitOut().print(",");
+                    }
+                    emitOut().print("$"+hexLookup[ROM[ofs++]]);
+                    }
+                newLine();
+                newLine();
+            }   // isData(ofs)
+        }   // while
+        return ofs;
+    }
+
+/**
+* Output-time indices from the resolved analysis state. recordsByStart maps
+* a record_start PRG offset to its resolved record; dataBoundaries holds
+* every start/end offset of a record or a data range so the .DB walker can
+* break runs at those boundaries (spec §9.2).
+**/
+
+    private static void prepareEmit() {
+        recordsByStart = new HashMap<Integer, ResolvedRecord>();
+        dataBoundaries = new TreeSet<Integer>();
+        for (ResolvedRecord r : knownCallsites.values()) {
+            recordsByStart.put(r.recordStart, r);
+            dataBoundaries.add(r.recordStart);
+            dataBoundaries.add(r.recordEnd);
+        }
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry e = dataRanges.entries[k];
+            dataBoundaries.add(e.start);
+            dataBoundaries.add(e.end);
+        }
+        addBankBoundaries();
+    }
+
+/**
+* The listing cut into size-byte segments of the PRG, one buffer each.
+* Segment k holds the lines of the walk from where segment k-1's stopped,
+* so the buffers concatenate to exactly emitRange(0, prgSize); a segment a
+* run over the boundary covered entirely is empty. Under -parallelemit every
+* segment is formatted from its first byte on the worker pool, and one the
+* walk did not stop at the start of is formatted again from where it did.
+**/
+
+    static byte[][] emitSegments(int size) {
+        int count = (prgSize + size - 1) / size;
+        ExecutorService pool = null;
+        ArrayList<Future<EmitSlice>> slices = new ArrayList<Future<EmitSlice>>();
+        try {
+            if (parallelEmit && count > 1) {
+                pool = Executors.newFixedThreadPool(
+                    Math.min(count, Math.max(1, Runtime.getRuntime().availableProcessors())));
+                for (int k = 0; k < count; k++) {
+                    slices.add(pool.submit(new EmitSlice(k * size, Math.min(prgSize, (k + 1) * size))));
+                }
+            }
+            byte[][] texts = new byte[count][];
+            int ofs = 0;
+            for (int k = 0; k < count; k++) {
+                int start = k * size;
+                int end = Math.min(prgSize, start + size);
+                EmitSlice slice = null;
+                if (ofs == start && pool != null) {
+                    slice = slices.get(k).get();
+                } else if (ofs < end) {
+                    slice = new EmitSlice(ofs, end).call();
+                }
+                texts[k] = (slice != null) ? slice.text : new byte[0];
+                if (slice != null) {
+                    ofs = slice.stop;
+                }
+            }
+            return texts;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+/**
+* -splitout: writes the listing as one NAME.NN.asm per segment (NAME from
+* projectName(), NN the segment number in hex) and a master NAME.asm that
+* .INCLUDEs them in order, together byte-identical to the single-file
+* listing. A file whose content is unchanged is left alone, keeping its
+* mtime, so consumers can redo only the segments that changed; segment
+* files beyond the current count are removed.
+**/
+
+    static void writeSplitOutput(String dir) throws IOException {
+        long emitStart = System.nanoTime();
+        prepareEmit();
+        byte[][] texts = emitSegments(splitOutSize);
+        java.io.ByteArrayOutputStream master = new java.io.ByteArrayOutputStream();
+        PrintStream m = new PrintStream(master, false, "UTF-8");
+        int rewritten = 0;
+        long bytes = 0;
+        outputDirectory(dir);
+        for (int k = 0; k < texts.length; k++) {
+            String segment = splitSegmentName(k);
+            if (writeIfChanged(new File(dir, segment), texts[k])) {
+                rewritten++;
+            }
+            bytes += texts[k].length;
+            m.println(".INCLUDE \"" + segment + "\"");
+        }
+        m.println(".END");
+        m.flush();
+        if (writeIfChanged(new File(dir, projectName() + ".asm"), master.toByteArray())) {
+            rewritten++;
+        }
+        File[] files = new File(dir).listFiles();
+        java.util.regex.Pattern own = java.util.regex.Pattern.compile(
+            java.util.regex.Pattern.quote(projectName()) + "\\.([0-9A-F]{2,})\\.asm");
+        for (int f = 0; files != null && f < files.length; f++) {
+            java.util.regex.Matcher mt = own.matcher(files[f].getName());
+            if (mt.matches() && Integer.parseInt(mt.group(1), 16) >= texts.length) {
+                files[f].delete();
+            }
+        }
+        stats.emitNanos += System.nanoTime() - emitStart;
+        stats.outputBytes = bytes + master.size();
+        System.err.println("splitout: " + texts.length + " segments, " + rewritten + " files rewritten");
+    }
+
+    static String splitSegmentName(int k) {
+        return projectName() + "." + String.format("%02X", k) + ".asm";
+    }
+
+    // Creates an output directory option's directory right before its first
+    // write, so a run that fails earlier leaves no empty directory behind.
+    static File outputDirectory(String dir) throws IOException {
+        File f = new File(dir);
+        if (!f.isDirectory() && !f.mkdirs()) {
+            throw new IOException("couldn't create directory " + dir);
+        }
+        return f;
+    }
+
+    // Replaces f with bytes through a temporary file unless it already holds
+    // exactly them; returns whether it was written.
+    private static boolean writeIfChanged(File f, byte[] bytes) throws IOException {
+        if (f.isFile() && f.length() == bytes.length
+            && Arrays.equals(java.nio.file.Files.readAllBytes(f.toPath()), bytes)) {
+            return false;
+        }
+        File tmp = File.createTempFile("split", ".tmp", f.getAbsoluteFile().getParentFile());
+        try {
+            java.nio.file.Files.write(tmp.toPath(), bytes);
+            java.nio.file.Files.move(tmp.toPath(), f.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        return true;
+    }
+
+    static PrintStream emitOut() {
+        return emitTarget.get().out();
+    }
+
+    private static void addBankBoundaries() {
+        if (mapperNumber != MAPPER_MMC1) {
+            return;
+        }
+        for (int ofs = 0x4000; ofs < prgSize; ofs += 0x4000) {
+            dataBoundaries.add(ofs);
+        }
+    }
+
+    private static void maybeEmitOrg(int ofs) {
+        if (mapperNumber == MAPPER_MMC1) {
+            if ((ofs & 0x3FFF) != 0) {
+                return;
+            }
+            int org = (ofs >= fixedBankOffset) ? 0xC000 : 0x8000;
+            emitOut().print(".ORG $" + hex4(org));
+            newLine();
+            newLine();
+            return;
+        }
+        if (ofs == 0) {
+            emitOut().print(".ORG $" + hex4(cpuBase));
+            newLine();
+            newLine();
+        }
+    }
+
+/**
+* Appends the -cycles and -pagecross comment for the open instruction line.
+**/
+
+    private static void flushInstructionComment() {
+        EmitTarget target = emitTarget.get();
+        if (target.commentOfs < 0) {
+            return;
+        }
+        int ofs = target.commentOfs;
+        target.commentOfs = -1;
+        String text = annotateCycles ? cycleText(ofs) : null;
+        String note = annotatePageCrossing ? pageCrossNote(ofs) : null;
+        if (note != null) {
+            text = (text == null) ? note : text + " " + note;
+        }
+        int[] dispatch = stackDispatchers.get(ofs);
+        if (dispatch != null) {
+            note = "RTS dispatch: " + dispatch[3] + " targets " + dispatchTableNote(dispatch);
+            text = (text == null) ? note : text + " " + note;
+        }
+        int[] split = splitTables.get(ofs);
+        if (split != null) {
+            note = "split table: " + split[3] + ((split[4] == 1) ? " code" : " data") + " targets "
+                + dispatchTableNote(split);
+            text = (text == null) ? note : text + " " + note;
+        }
+        if (text != null) {
+            emitOut().print(" ; " + text);
+        }
+    }
+
+    private static String dispatchTableNote(int[] table) {
+        return (table[2] == 2) ? "(words at " + labelForOffset(table[0]) + ")"
+            : "(lo " + labelForOffset(table[0]) + ", hi " + labelForOffset(table[1]) + ")";
+    }
+
+/**
+* -pagecross comment for the instruction at ofs, or null when it pays no
+* page-crossing cycle.
+**/
+
+    static String pageCrossNote(int ofs) {
+        if (RELATIVE_BRANCH_OPCODE[ROM[ofs]] && branchTakenCycles(ofs) == 4) {
+            return "[page cross when taken +1]";
+        }
+        int[] span = tableReadSpan(ofs);
+        if (span != null) {
+            return "[table crosses page: " + span[2] + "/" + span[1] + " entries +1]";
+        }
+        return null;
+    }
+
+/**
+* For an abs,X/abs,Y read whose base is a labelled ROM data table that runs
+* over a page boundary, returns { base offset, entries reachable from the
+* base (at most 256), entries on the far side of the boundary }; else null.
+* The table ends at the next label or at the first byte that isn't data or
+* a pointer table.
+**/
+
+    static int[] tableReadSpan(int ofs) {
+        int op = ROM[ofs];
+        if (!PAGE_CROSS_READ_OPCODE[op] || opaddrmodeLookup[op] == INDY) {
+            return null;
+        }
+        if (ofs + 2 >= prgSize || !isROMAddress(ofs+1, ofs)) {
+            return null;
+        }
+        int base = getAddressForContext(ofs+1, ofs);
+        if (!isTableByte(base) || !isLabelledTable(base)) {
+            return null;
+        }
+        int end = base + 1;
+        while (end < prgSize && end - base < 0x100 && isTableByte(end) && !isLabel(end)
+               && (mapperNumber != MAPPER_MMC1 || (end & 0x3FFF) != 0)) {
+            end++;
+        }
+        int baseCpu = readCpuAddress(ofs+1);
+        int length = end - base;
+        int past = baseCpu + length - 1 - (baseCpu | 0xFF);
+        if (past <= 0) {
+            return null;
+        }
+        return new int[] { base, length, past };
+    }
+
+    private static boolean isTableByte(int ofs) {
+        return isData(ofs) || isPtr(ofs);
+    }
+
+    // the base is labelled, or within the 3-byte slack checkDataLabel()
+    // allows before reusing a neighbouring label
+    private static boolean isLabelledTable(int base) {
+        for (int i = 0; i < 4; i++) {
+            if (base - i >= 0 && isTableByte(base - i) && isLabel(base - i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+/**
+* Cycle text for one instruction: "N", or "best/worst" when a branch may be
+* taken, an indexed read may cross a page, or a $4014 write stalls for DMA.
+**/
+
+    static String cycleText(int ofs) {
+        int op = ROM[ofs];
+        int best = opcycleLookup[op];
+        int worst = RELATIVE_BRANCH_OPCODE[op] ? branchTakenCycles(ofs)
+            : best + indexedPageCrossPenalty(ofs);
+        if (isOamDmaWrite(ofs)) {
+            best += OAM_DMA_BEST_CYCLES;
+            worst += OAM_DMA_WORST_CYCLES;
+        }
+        return (best == worst) ? Integer.toString(best) : best + "/" + worst;
+    }
+
+/**
+* Cycles for a taken branch at ofs: 3, or 4 when the target is on a different
+* page from the following instruction.
+**/
+
+    static int branchTakenCycles(int ofs) {
+        int next = offsetToCpu(ofs) + 2;
+        int dist = ROM[ofs+1];
+        int target = next + ((dist < 0x80) ? dist : dist - 0x100);
+        return ((next & 0xFF00) == (target & 0xFF00)) ? 3 : 4;
+    }
+
+/**
+* Worst-case page-cross cycle for an indexed read. An absolute base that is
+* page aligned can't cross with an 8-bit index; (zp),Y depends on a runtime
+* pointer and is always charged.
+**/
+
+    static int indexedPageCrossPenalty(int ofs) {
+        int op = ROM[ofs];
+        if (!PAGE_CROSS_READ_OPCODE[op]) {
+            return 0;
+        }
+        if (opaddrmodeLookup[op] == INDY) {
+            return 1;
+        }
+        return (ROM[ofs+1] != 0) ? 1 : 0;
+    }
+
+/**
+* True for an absolute store to $4014, which starts sprite DMA.
+**/
+
+    static boolean isOamDmaWrite(int ofs) {
+        int op = ROM[ofs];
+        return (op == 0x8C || op == 0x8D || op == 0x8E) && ofs + 2 < prgSize
+            && (ROM[ofs+1] | (ROM[ofs+2] << 8)) == 0x4014;
+    }
+
+/**
+* PPU register an absolute store at ofs writes ("$2000".."$2007", mirrors
+* folded, or "$4014" for sprite DMA), or null when it writes elsewhere.
+**/
+
+    static String ppuWriteRegister(int ofs) {
+        int op = ROM[ofs];
+        if (op != 0x8C && op != 0x8D && op != 0x8E && op != 0x99 && op != 0x9D) {
+            return null;
+        }
+        if (ofs + 2 >= prgSize) {
+            return null;
+        }
+        int addr = ROM[ofs+1] | (ROM[ofs+2] << 8);
+        if (addr >= 0x2000 && addr < 0x4000) {
+            return "$" + hex4(0x2000 | (addr & 7));
+        }
+        return (addr == 0x4014) ? "$4014" : null;
+    }
+
+/**
+* Target of the JSR/JMP operand at ofs as resolved by analysis (bank-aware
+* when tracking resolved it), or -1 when it isn't a ROM address.
+**/
+
+    private static int resolvedOperandTarget(int ofs) {
+        Integer banked = bankResolvedOperands.get(ofs);
+        if (banked != null) {
+            return banked;
+        }
+        return isROMAddress(ofs+1, ofs) ? getAddressForContext(ofs+1, ofs) : -1;
+    }
+
+/**
+* Collects routine entry points from the final map and computes the cost of
+* each. Must run after runAnalysisToFixedPoint().
+**/
+
+    static void computeRoutineCosts() {
+        routineEntries = new TreeSet<Integer>();
+        routineCosts = new HashMap<Integer, RoutineCost>();
+        for (Integer e : codeEntries) {
+            if (isInstr(e)) {
+                routineEntries.add(e);
+            }
+        }
+        for (int i = 0; i < codePointersStart.size(); ++i) {
+            for (int j = 0; j < codePointersCount.get(i); ++j) {
+                int pointerOffset = codePointersStart.get(i) + j*2;
+                for (Integer t : codePointerTargetsForContext(pointerOffset, pointerOffset)) {
+                    if (isInstr(t)) {
+                        routineEntries.add(t);
+                    }
+                }
+            }
+        }
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (isInstr(ofs) && ROM[ofs] == 0x20) {
+                int t = resolvedOperandTarget(ofs);
+                if (t >= 0 && isInstr(t)) {
+                    routineEntries.add(t);
+                }
+            }
+        }
+        for (Integer e : routineEntries) {
+            routineCost(e);
+        }
+    }
+
+/**
+* Best and worst cycles from entry to any exit of one routine, both for the
+* routine's own instructions and including the routines it calls. Paths run
+* over the traced instruction graph with loop back edges dropped. A loop whose
+* header has a -loopbounds entry adds (bound - 1) further worst-case
+* iterations at the header; any other loop body counts once and leaves the
+* routine unbounded. A call into a routine whose cost is still being computed
+* marks the caller recursive.
+**/
+
+    static RoutineCost routineCost(int entry) {
+        RoutineCost rc = routineCosts.get(entry);
+        if (rc != null) {
+            return rc;
+        }
+        rc = new RoutineCost(entry);
+        routineCosts.put(entry, rc);
+
+        HashMap<Integer, long[][]> edges = rc.edges;
+        HashMap<Integer, Integer> state = new HashMap<Integer, Integer>();
+        HashSet<Long> backEdges = rc.backEdges;
+        ArrayList<Integer> postorder = rc.postorder;
+        ArrayDeque<int[]> stack = new ArrayDeque<int[]>();
+        stack.push(new int[] { entry, 0 });
+        state.put(entry, 1);
+        edges.put(entry, cycleEdges(entry, rc));
+        while (!stack.isEmpty()) {
+            int[] top = stack.peek();
+            long[][] out = edges.get(top[0]);
+            if (top[1] >= out.length) {
+                stack.pop();
+                state.put(top[0], 2);
+                postorder.add(top[0]);
+                continue;
+            }
+            int k = top[1]++;
+            int succ = (int) out[k][0];
+            if (succ < 0) {
+                continue;
+            }
+            Integer st = state.get(succ);
+            if (st == null) {
+                state.put(succ, 1);
+                edges.put(succ, cycleEdges(succ, rc));
+                stack.push(new int[] { succ, 0 });
+            } else if (st == 1) {
+                backEdges.add(((long) top[0] << 32) | k);
+                rc.loopHeaders.add(succ);
+            }
+        }
+
+        // cost to exit per node: self best, self worst, inclusive best, inclusive worst
+        HashMap<Integer, long[]> dist = new HashMap<Integer, long[]>();
+        for (int i = 0; i < postorder.size(); i++) {
+            int n = postorder.get(i);
+            long[][] out = edges.get(n);
+            long[] d = null;
+            for (int k = 0; k < out.length; k++) {
+                long[] via;
+                int succ = (int) out[k][0];
+                if (succ < 0) {
+                    via = new long[] { out[k][1], out[k][2], out[k][3], out[k][4] };
+                } else if (backEdges.contains(((long) n << 32) | k)) {
+                    continue;
+                } else {
+                    long[] sd = dist.get(succ);
+                    via = new long[] { out[k][1] + sd[0], out[k][2] + sd[1],
+                        out[k][3] + sd[2], out[k][4] + sd[3] };
+                }
+                if (d == null) {
+                    d = via;
+                } else {
+                    d[0] = Math.min(d[0], via[0]);
+                    d[1] = Math.max(d[1], via[1]);
+                    d[2] = Math.min(d[2], via[2]);
+                    d[3] = Math.max(d[3], via[3]);
+                }
+            }
+            if (d == null) {
+                // every way out loops back (e.g. JMP to itself): one pass
+                long c = out.length > 0 ? out[0][1] : 0;
+                d = new long[] { c, c, c, c };
+            }
+            if (rc.loopHeaders.contains(n)) {
+                Integer bound = loopBounds.get(n);
+                if (bound == null) {
+                    rc.unboundedLoops.add(n);
+                } else if (bound > 1) {
+                    long[] iteration = loopIterationCost(rc, n);
+                    long[] extra = { iteration[0] * (bound - 1), iteration[1] * (bound - 1) };
+                    rc.loopExtra.put(n, extra);
+                    d[1] += extra[0];
+                    d[3] += extra[1];
+                }
+            }
+            dist.put(n, d);
+        }
+        long[] d = dist.get(entry);
+        rc.selfBest = d[0];
+        rc.selfWorst = d[1];
+        rc.best = d[2];
+        rc.worst = d[3];
+        rc.instructions = postorder.size();
+        rc.done = true;
+        return rc;
+    }
+
+/**
+* Outgoing edges of the instruction at ofs within a routine, each as
+* { successor or -1 for exit, self best, self worst, inclusive best,
+* inclusive worst } cycles for executing the instruction along that edge.
+**/
+
+    private static long[][] cycleEdges(int ofs, RoutineCost rc) {
+        int op = ROM[ofs];
+        int len = oplengthLookup[op];
+        long base = opcycleLookup[op];
+        long worst = base + indexedPageCrossPenalty(ofs);
+        if (op == 0x40 || op == 0x60) {   // RTI, RTS
+            return new long[][] { { -1, base, base, base, base } };
+        }
+        if (op == 0x6C) {   // JMP Ind
+            rc.indirectExits++;
+            return new long[][] { { -1, base, base, base, base } };
+        }
+        if (RELATIVE_BRANCH_OPCODE[op]) {
+            ArrayList<long[]> out = new ArrayList<long[]>();
+            long taken = branchTakenCycles(ofs);
+            int target = relativeBranchTarget(ofs);
+            out.add(cycleEdge(nextInstruction(ofs + 2), base, base, 0, 0));
+            out.add(cycleEdge(target >= 0 && isInstr(target) ? target : -1, taken, taken, 0, 0));
+            return out.toArray(new long[0][]);
+        }
+        if (op == 0x4C || op == 0x20) {   // JMP Abs, JSR
+            int target = resolvedOperandTarget(ofs);
+            long calleeBest = 0;
+            long calleeWorst = 0;
+            boolean call = op == 0x20 || (target >= 0 && target != rc.entry && routineEntries.contains(target));
+            if (call) {
+                if (target >= 0 && isInstr(target)) {
+                    RoutineCost callee = routineCost(target);
+                    rc.callees.add(target);
+                    if (!callee.done || callee.recursive) {
+                        rc.recursive = true;
+                    }
+                    calleeBest = callee.best;
+                    calleeWorst = callee.worst;
+                } else {
+                    rc.unresolvedCalls++;
+                }
+            }
+            if (op == 0x4C) {
+                int succ = (!call && target >= 0 && isInstr(target)) ? target : -1;
+                if (!call && succ < 0) {
+                    rc.unresolvedCalls++;
+                }
+                return new long[][] { cycleEdge(succ, base, base, calleeBest, calleeWorst) };
+            }
+            ResolvedRecord record = knownCallsites.get(ofs);
+            int next = (record != null) ? record.recordEnd : ofs + 3;
+            if (next < prgSize && isPtr(next)) {
+                // JSR followed by a jump table: the callee dispatches
+                rc.indirectExits++;
+            }
+            return new long[][] { cycleEdge(nextInstruction(next), base, base, calleeBest, calleeWorst) };
+        }
+        long best = base;
+        if (isOamDmaWrite(ofs)) {
+            best += OAM_DMA_BEST_CYCLES;
+            worst += OAM_DMA_WORST_CYCLES;
+        }
+        return new long[][] { cycleEdge(nextInstruction(ofs + len), best, worst, 0, 0) };
+    }
+
+/**
+* Worst {self, inclusive} cycles for one more trip around the loop at header:
+* the longest path from the header back to it, including the extra
+* iterations of any bounded inner loop on the way.
+**/
+
+    private static long[] loopIterationCost(RoutineCost rc, int header) {
+        HashMap<Integer, long[]> arrival = worstArrival(rc, header);
+        long[] iteration = { 0, 0 };
+        for (Map.Entry<Integer, long[]> e : arrival.entrySet()) {
+            int n = e.getKey();
+            long[][] out = rc.edges.get(n);
+            // the header's own extra isn't recorded until this returns
+            long[] extra = rc.loopExtra.get(n);
+            for (int k = 0; k < out.length; k++) {
+                if (out[k][0] != header || !rc.backEdges.contains(((long) n << 32) | k)) {
+                    continue;
+                }
+                long self = e.getValue()[0] + out[k][2] + (extra != null ? extra[0] : 0);
+                long incl = e.getValue()[1] + out[k][4] + (extra != null ? extra[1] : 0);
+                iteration[0] = Math.max(iteration[0], self);
+                iteration[1] = Math.max(iteration[1], incl);
+            }
+        }
+        return iteration;
+    }
+
+/**
+* Worst-case {self, inclusive} start cycle of every instruction reachable from
+* `from` over the routine's acyclic graph, relative to `from`. Leaving a
+* bounded loop header adds its extra iterations, so an instruction inside a
+* loop gets the start of its last iteration.
+**/
+
+    static HashMap<Integer, long[]> worstArrival(RoutineCost rc, int from) {
+        HashMap<Integer, long[]> arrival = new HashMap<Integer, long[]>();
+        arrival.put(from, new long[] { 0, 0 });
+        // reverse postorder is a topological order of the acyclic graph, and
+        // everything reachable from `from` comes after it
+        for (int i = rc.postorder.indexOf(from); i >= 0; i--) {
+            int n = rc.postorder.get(i);
+            long[] at = arrival.get(n);
+            if (at == null) {
+                continue;
+            }
+            long[][] out = rc.edges.get(n);
+            long[] extra = rc.loopExtra.get(n);
+            for (int k = 0; k < out.length; k++) {
+                int succ = (int) out[k][0];
+                if (succ < 0 || rc.backEdges.contains(((long) n << 32) | k)) {
+                    continue;
+                }
+                long self = at[0] + out[k][2] + (extra != null ? extra[0] : 0);
+                long incl = at[1] + out[k][4] + (extra != null ? extra[1] : 0);
+                long[] prev = arrival.get(succ);
+                if (prev == null) {
+                    arrival.put(succ, new long[] { self, incl });
+                } else {
+                    prev[0] = Math.max(prev[0], self);
+                    prev[1] = Math.max(prev[1], incl);
+                }
+            }
+        }
+        return arrival;
+    }
+
+    private static long[] cycleEdge(int succ, long best, long worst, long calleeBest, long calleeWorst) {
+        return new long[] { succ, best, worst, best + calleeBest, worst + calleeWorst };
+    }
+
+    private static int nextInstruction(int ofs) {
+        return (ofs < prgSize && isInstr(ofs)) ? ofs : -1;
+    }
+
+/**
+* Writes the per-routine cycle report as JSON, most expensive routine
+* (inclusive worst case) first.
+**/
+
+    static void writeCycleReport(String path) throws IOException {
+        computeRoutineCosts();
+        ArrayList<RoutineCost> all = new ArrayList<RoutineCost>(routineCosts.values());
+        Collections.sort(all, new Comparator<RoutineCost>() {
+            public int compare(RoutineCost a, RoutineCost b) {
+                if (a.worst != b.worst) {
+                    return Long.compare(b.worst, a.worst);
+                }
+                return Integer.compare(a.entry, b.entry);
+            }
+        });
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("routines").beginArray();
+        for (RoutineCost rc : all) {
+            json.beginObject();
+            writeRoutineIdentity(json, rc.entry);
+            json.name("instructions").value(rc.instructions);
+            json.name("bestCycles").value(rc.best);
+            json.name("worstCycles").value(rc.worst);
+            json.name("selfBestCycles").value(rc.selfBest);
+            json.name("selfWorstCycles").value(rc.selfWorst);
+            json.name("loopHeaders").beginArray();
+            for (Integer h : rc.loopHeaders) {
+                json.value(labelForOffset(h));
+            }
+            json.endArray();
+            json.name("unboundedLoops").beginArray();
+            for (Integer h : rc.unboundedLoops) {
+                json.value(labelForOffset(h));
+            }
+            json.endArray();
+            json.name("recursive").value(rc.recursive);
+            json.name("calls").beginArray();
+            for (Integer c : rc.callees) {
+                json.value(labelForOffset(c));
+            }
+            json.endArray();
+            json.name("unresolvedCalls").value(rc.unresolvedCalls);
+            json.name("indirectExits").value(rc.indirectExits);
+            json.name("bounded").value(rc.isBounded());
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.writeTo(path);
+    }
+
+    private static void writeRoutineIdentity(JsonWriter json, int ofs) {
+        json.name("label").value(labelForOffset(ofs));
+        json.name("cpu").value("$" + hex4(offsetToCpu(ofs)));
+        if (mapperNumber == MAPPER_MMC1) {
+            json.name("bank").value(bankNumberForOffset(ofs));
+        }
+    }
+
+/**
+* Worst-case NMI timing against the vblank window. Starting from the NMI
+* vector, routines are visited callers-first over the call graph; each
+* routine's entry time is the latest time any caller can reach its JSR (or
+* tail JMP), and each PPU register write (including $4014 sprite DMA) gets
+* the latest cycle at which it can complete. Returns null when the NMI
+* vector does not point at traced code.
+**/
+
+    static NmiBudget computeNmiBudget() {
+        computeRoutineCosts();
+        int vector = prgSize - 6;
+        if (!isROMAddress(vector, vector)) {
+            return null;
+        }
+        int nmi = getAddressForContext(vector, vector);
+        if (!isInstr(nmi)) {
+            return null;
+        }
+        NmiBudget budget = new NmiBudget(nmi);
+        RoutineCost root = routineCost(nmi);
+        budget.best = NMI_ENTRY_CYCLES + root.best;
+        budget.worst = NMI_ENTRY_CYCLES + root.worst;
+
+        // reverse postorder of the call graph, recursive calls dropped
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+        ArrayDeque<Iterator<Integer>> pending = new ArrayDeque<Iterator<Integer>>();
+        seen.add(nmi);
+        stack.push(nmi);
+        pending.push(root.callees.iterator());
+        while (!stack.isEmpty()) {
+            Iterator<Integer> it = pending.peek();
+            if (!it.hasNext()) {
+                pending.pop();
+                order.add(stack.pop());
+                continue;
+            }
+            int callee = it.next();
+            if (seen.add(callee)) {
+                stack.push(callee);
+                pending.push(routineCost(callee).callees.iterator());
+            }
+        }
+        Collections.reverse(order);
+
+        HashMap<Integer, Long> entryTime = new HashMap<Integer, Long>();
+        HashMap<Integer, Integer> calledFrom = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> callerRoutine = new HashMap<Integer, Integer>();
+        HashMap<Integer, NmiBudget.PpuWrite> writes = new HashMap<Integer, NmiBudget.PpuWrite>();
+        entryTime.put(nmi, (long) NMI_ENTRY_CYCLES);
+        for (Integer r : order) {
+            RoutineCost rc = routineCost(r);
+            long start = entryTime.get(r);
+            budget.unboundedLoops.addAll(rc.unboundedLoops);
+            if (!rc.isBounded()) {
+                budget.bounded = false;
+            }
+            for (Map.Entry<Integer, long[]> e : worstArrival(rc, r).entrySet()) {
+                int ofs = e.getKey();
+                long at = start + e.getValue()[1];
+                String register = ppuWriteRegister(ofs);
+                if (register != null) {
+                    long done = at + rc.edges.get(ofs)[0][4];
+                    NmiBudget.PpuWrite w = writes.get(ofs);
+                    if (w == null) {
+                        writes.put(ofs, new NmiBudget.PpuWrite(ofs, r, register, done));
+                    } else if (done > w.worstCycles) {
+                        w.worstCycles = done;
+                        w.routine = r;
+                    }
+                }
+                int op = ROM[ofs];
+                if (op == 0x20 || op == 0x4C) {
+                    int target = resolvedOperandTarget(ofs);
+                    if (rc.callees.contains(target)) {
+                        long enter = at + opcycleLookup[op];
+                        Long prev = entryTime.get(target);
+                        if (prev == null || enter > prev) {
+                            entryTime.put(target, enter);
+                            calledFrom.put(target, ofs);
+                            callerRoutine.put(target, r);
+                        }
+                    }
+                }
+            }
+        }
+
+        budget.ppuWrites.addAll(writes.values());
+        Collections.sort(budget.ppuWrites, new Comparator<NmiBudget.PpuWrite>() {
+            public int compare(NmiBudget.PpuWrite a, NmiBudget.PpuWrite b) {
+                if (a.worstCycles != b.worstCycles) {
+                    return Long.compare(b.worstCycles, a.worstCycles);
+                }
+                return Integer.compare(a.ofs, b.ofs);
+            }
+        });
+        if (!budget.ppuWrites.isEmpty()) {
+            NmiBudget.PpuWrite last = budget.ppuWrites.get(0);
+            budget.lastPpuWrite = last.worstCycles;
+            // walk the latest callers back from the routine holding the last write
+            Integer r = last.routine;
+            while (r != null) {
+                budget.criticalPath.add(0, new long[] { r, entryTime.get(r),
+                    calledFrom.containsKey(r) ? calledFrom.get(r) : -1 });
+                r = callerRoutine.get(r);
+            }
+        }
+        return budget;
+    }
+
+/**
+* Writes the -nmibudget JSON report and warns on stderr when the last PPU
+* write can land after the selected vblank window.
+**/
+
+    static void writeNmiBudgetReport(String path) throws IOException {
+        NmiBudget budget = computeNmiBudget();
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("vblank").value(vblankName);
+        json.name("budgetCycles").value(vblankCycles);
+        if (budget == null) {
+            json.name("error").value("NMI vector does not point at traced code");
+            json.endObject();
+            json.writeTo(path);
+            return;
+        }
+        json.name("nmi").beginObject();
+        writeRoutineIdentity(json, budget.entry);
+        json.endObject();
+        json.name("entryCycles").value(NMI_ENTRY_CYCLES);
+        json.name("bestCycles").value(budget.best);
+        json.name("worstCycles").value(budget.worst);
+        json.name("lastPpuWriteCycles").value(budget.lastPpuWrite);
+        json.name("exceedsBudget").value(budget.exceeds(vblankCycles));
+        json.name("bounded").value(budget.bounded);
+        json.name("unboundedLoops").beginArray();
+        for (Integer h : budget.unboundedLoops) {
+            json.value(labelForOffset(h));
+        }
+        json.endArray();
+        json.name("criticalPath").beginArray();
+        for (long[] step : budget.criticalPath) {
+            json.beginObject();
+            writeRoutineIdentity(json, (int) step[0]);
+            json.name("entryCycles").value(step[1]);
+            if (step[2] >= 0) {
+                json.name("calledFrom").value("$" + hex4(offsetToCpu((int) step[2])));
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.name("ppuWrites").beginArray();
+        for (NmiBudget.PpuWrite w : budget.ppuWrites) {
+            json.beginObject();
+            json.name("cpu").value("$" + hex4(offsetToCpu(w.ofs)));
+            if (mapperNumber == MAPPER_MMC1) {
+                json.name("bank").value(bankNumberForOffset(w.ofs));
+            }
+            json.name("register").value(w.register);
+            json.name("routine").value(labelForOffset(w.routine));
+            json.name("worstCycles").value(w.worstCycles);
+            json.name("late").value(w.worstCycles > vblankCycles);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.writeTo(path);
+        if (budget.exceeds(vblankCycles)) {
+            System.err.println("Warning: NMI PPU writes can finish at cycle " + budget.lastPpuWrite
+                + ", past the " + vblankCycles + "-cycle " + vblankName.toUpperCase() + " vblank"
+                + (budget.bounded ? "." : " (unbounded loops counted once)."));
+        }
+    }
+
+/**
+* Writes the -pagereport JSON: every traced branch whose taken path crosses
+* a page, and every indexed read of a labelled table that spans one (see
+* tableReadSpan()). A branch pays +1 cycle each time it is taken; a table
+* read's expected cost assumes indexes spread evenly over the reachable
+* entries.
+**/
+
+    static void writePageReport(String path) throws IOException {
+        HashMap<Integer, Integer> owners = routineOwners();
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        int branches = 0;
+        json.name("branches").beginArray();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (!isInstr(ofs) || !RELATIVE_BRANCH_OPCODE[ROM[ofs]] || branchTakenCycles(ofs) != 4) {
+                continue;
+            }
+            int next = offsetToCpu(ofs) + 2;
+            int dist = ROM[ofs+1];
+            int target = (next + ((dist < 0x80) ? dist : dist - 0x100)) & 0xFFFF;
+            json.beginObject();
+            writePageSiteIdentity(json, ofs, owners);
+            json.name("target").value("$" + hex4(target));
+            json.name("backward").value(dist >= 0x80);
+            json.name("takenPenaltyCycles").value(1);
+            json.endObject();
+            branches++;
+        }
+        json.endArray();
+        int reads = 0;
+        json.name("tableReads").beginArray();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            int[] span = isInstr(ofs) ? tableReadSpan(ofs) : null;
+            if (span == null) {
+                continue;
+            }
+            int baseCpu = readCpuAddress(ofs+1);
+            json.beginObject();
+            writePageSiteIdentity(json, ofs, owners);
+            json.name("table").value(labelForOffset(span[0]));
+            json.name("base").value("$" + hex4(baseCpu));
+            json.name("entries").value(span[1]);
+            json.name("entriesPastBoundary").value(span[2]);
+            json.name("expectedPenaltyCycles").value((double) span[2] / span[1]);
+            json.name("worstPenaltyCycles").value(1);
+            // moving the base to the next page start keeps it on one page
+            json.name("alignPadding").value(0x100 - (baseCpu & 0xFF));
+            json.endObject();
+            reads++;
+        }
+        json.endArray();
+        json.name("summary").beginObject();
+        json.name("branches").value(branches);
+        json.name("tableReads").value(reads);
+        json.endObject();
+        json.endObject();
+        json.writeTo(path);
+    }
+
+    private static void writePageSiteIdentity(JsonWriter json, int ofs, HashMap<Integer, Integer> owners) {
+        json.name("cpu").value("$" + hex4(offsetToCpu(ofs)));
+        if (mapperNumber == MAPPER_MMC1) {
+            json.name("bank").value(bankNumberForOffset(ofs));
+        }
+        json.name("mnemonic").value(mnemonicLookup[ROM[ofs]]);
+        Integer owner = owners.get(ofs);
+        if (owner != null) {
+            json.name("routine").value(labelForOffset(owner));
+        }
+    }
+
+/**
+* Maps each traced instruction to the lowest routine entry whose cost graph
+* reaches it.
+**/
+
+    static HashMap<Integer, Integer> routineOwners() {
+        computeRoutineCosts();
+        HashMap<Integer, Integer> owners = new HashMap<Integer, Integer>();
+        for (Integer e : routineEntries) {
+            for (Integer n : routineCost(e).postorder) {
+                if (!owners.containsKey(n)) {
+                    owners.put(n, e);
+                }
+            }
+        }
+        return owners;
+    }
+
+/**
+* Writes the -zpreport JSON: every traced absolute-mode instruction with a
+* $00xx operand that has a zero-page form (the sites printAddress() widens
+* with .W). Re-encoding saves one byte and the cycle difference between the
+* two opcodes. Sites are weighted by how many times they run per call of
+* their routine, from the enclosing -loopbounds loops, and ranked by
+* weighted cycles; totals are also grouped per routine and per address.
+**/
+
+    static void writeZeroPageReport(String path) throws IOException {
+        HashMap<Integer, Integer> owners = routineOwners();
+        HashMap<Long, HashSet<Integer>> bodies = new HashMap<Long, HashSet<Integer>>();
+        ArrayList<long[]> sites = new ArrayList<long[]>();
+        for (int ofs = 0; ofs < prgSize; ofs++) {
+            if (!isInstr(ofs) || ofs + 2 >= prgSize) {
+                continue;
+            }
+            int op = ROM[ofs];
+            if (ROM[ofs+2] != 0 || !needsWideningSuffixForZeroPageAddresses(op)) {
+                continue;
+            }
+            // every widenable absolute opcode sits 8 above its zero-page form
+            long cycles = opcycleLookup[op] - opcycleLookup[op - 8];
+            Integer owner = owners.get(ofs);
+            long runs = (owner != null) ? executionsPerCall(routineCost(owner), ofs, bodies) : 1;
+            sites.add(new long[] { ofs, owner != null ? owner : -1, ROM[ofs+1], cycles, runs, cycles * runs });
+        }
+        Collections.sort(sites, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                if (a[5] != b[5]) {
+                    return Long.compare(b[5], a[5]);
+                }
+                if (a[3] != b[3]) {
+                    return Long.compare(b[3], a[3]);
+                }
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        // { sites, bytes, cycles, weighted cycles } per routine and per address
+        TreeMap<Integer, long[]> byRoutine = new TreeMap<Integer, long[]>();
+        TreeMap<Integer, long[]> byAddress = new TreeMap<Integer, long[]>();
+        long[] totals = new long[4];
+        for (long[] site : sites) {
+            addZeroPageSite(totals, site);
+            addZeroPageSite(zeroPageGroup(byRoutine, (int) site[1]), site);
+            addZeroPageSite(zeroPageGroup(byAddress, (int) site[2]), site);
+        }
+
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("hotness").value(loopBounds.isEmpty() ? "none" : "loopbounds");
+        json.name("totals").beginObject();
+        writeZeroPageGroup(json, totals);
+        json.endObject();
+        json.name("sites").beginArray();
+        for (long[] site : sites) {
+            int ofs = (int) site[0];
+            json.beginObject();
+            json.name("cpu").value("$" + hex4(offsetToCpu(ofs)));
+            if (mapperNumber == MAPPER_MMC1) {
+                json.name("bank").value(bankNumberForOffset(ofs));
+            }
+            if (site[1] >= 0) {
+                json.name("routine").value(labelForOffset((int) site[1]));
+            }
+            json.name("mnemonic").value(mnemonicLookup[ROM[ofs]]);
+            json.name("address").value("$" + hex4((int) site[2]));
+            // zp,X/zp,Y wraps inside page zero where abs,X/abs,Y carries into
+            // page one; check the index range before re-encoding
+            json.name("indexed").value(opaddrmodeLookup[ROM[ofs]] != ABSL);
+            json.name("bytesSaved").value(1);
+            json.name("cyclesSaved").value(site[3]);
+            json.name("executionsPerCall").value(site[4]);
+            json.name("weightedCycles").value(site[5]);
+            json.endObject();
+        }
+        json.endArray();
+        json.name("byRoutine").beginArray();
+        for (Integer r : rankZeroPageGroups(byRoutine)) {
+            json.beginObject();
+            json.name("routine").value(r >= 0 ? labelForOffset(r) : null);
+            writeZeroPageGroup(json, byRoutine.get(r));
+            json.endObject();
+        }
+        json.endArray();
+        json.name("byAddress").beginArray();
+        for (Integer a : rankZeroPageGroups(byAddress)) {
+            json.beginObject();
+            json.name("address").value("$" + hex4(a));
+            writeZeroPageGroup(json, byAddress.get(a));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.writeTo(path);
+    }
+
+    private static long[] zeroPageGroup(TreeMap<Integer, long[]> groups, int key) {
+        long[] g = groups.get(key);
+        if (g == null) {
+            g = new long[4];
+            groups.put(key, g);
+        }
+        return g;
+    }
+
+    private static void addZeroPageSite(long[] group, long[] site) {
+        group[0]++;
+        group[1]++;
+        group[2] += site[3];
+        group[3] += site[5];
+    }
+
+    private static ArrayList<Integer> rankZeroPageGroups(final TreeMap<Integer, long[]> groups) {
+        ArrayList<Integer> keys = new ArrayList<Integer>(groups.keySet());
+        Collections.sort(keys, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long[] ga = groups.get(a);
+                long[] gb = groups.get(b);
+                if (ga[3] != gb[3]) {
+                    return Long.compare(gb[3], ga[3]);
+                }
+                if (ga[1] != gb[1]) {
+                    return Long.compare(gb[1], ga[1]);
+                }
+                return Integer.compare(a, b);
+            }
+        });
+        return keys;
+    }
+
+    private static void writeZeroPageGroup(JsonWriter json, long[] g) {
+        json.name("sites").value(g[0]);
+        json.name("bytesSaved").value(g[1]);
+        json.name("cyclesSaved").value(g[2]);
+        json.name("weightedCycles").value(g[3]);
+    }
+
+/**
+* How many times the instruction at ofs runs per call of its routine: the
+* product of the -loopbounds of every loop whose body contains it. Loops
+* without a bound count once. Bodies are cached in `bodies`, keyed by
+* (routine entry << 32 | header).
+**/
+
+    static long executionsPerCall(RoutineCost rc, int ofs, HashMap<Long, HashSet<Integer>> bodies) {
+        long runs = 1;
+        for (Integer h : rc.loopHeaders) {
+            Integer bound = loopBounds.get(h);
+            if (bound == null) {
+                continue;
+            }
+            long key = ((long) rc.entry << 32) | h;
+            HashSet<Integer> body = bodies.get(key);
+            if (body == null) {
+                body = loopBody(rc, h);
+                bodies.put(key, body);
+            }
+            if (body.contains(ofs)) {
+                runs *= bound;
+            }
+        }
+        return runs;
+    }
+
+/**
+* Instructions of the natural loop at header: those on an acyclic path from
+* the header to the source of one of its back edges.
+**/
+
+    static HashSet<Integer> loopBody(RoutineCost rc, int header) {
+        HashMap<Integer, long[]> reach = worstArrival(rc, header);
+        HashMap<Integer, ArrayList<Integer>> preds = new HashMap<Integer, ArrayList<Integer>>();
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+        for (Integer n : reach.keySet()) {
+            long[][] out = rc.edges.get(n);
+            for (int k = 0; k < out.length; k++) {
+                int succ = (int) out[k][0];
+                if (succ < 0) {
+                    continue;
+                }
+                if (rc.backEdges.contains(((long) n << 32) | k)) {
+                    if (succ == header) {
+                        work.add(n);
+                    }
+                    continue;
+                }
+                ArrayList<Integer> p = preds.get(succ);
+                if (p == null) {
+                    p = new ArrayList<Integer>();
+                    preds.put(succ, p);
+                }
+                p.add(n);
+            }
+        }
+        HashSet<Integer> body = new HashSet<Integer>();
+        body.add(header);
+        while (!work.isEmpty()) {
+            int n = work.poll();
+            if (!body.add(n)) {
+                continue;
+            }
+            ArrayList<Integer> p = preds.get(n);
+            if (p != null) {
+                work.addAll(p);
+            }
+        }
+        return body;
+    }
+
+/**
+* Writes the -speculate report: the best non-overlapping speculative decodes
+* of every DATA gap, ranked by score. The map is not changed; accepted
+* candidates go into codeentries.txt by hand.
+**/
+
+    static void writeSpeculateReport(String path) throws IOException {
+        ArrayList<int[]> gaps = dataGaps();
+        long gapBytes = 0;
+        for (int[] g : gaps) {
+            gapBytes += g[1] - g[0];
+        }
+        ArrayList<SpeculativeCandidate> ranked = speculateGaps(gaps);
+        JsonWriter json = new JsonWriter();
+        json.beginObject();
+        json.name("rom").value(name);
+        json.name("mapper").value(mapperNumber);
+        json.name("gaps").value(gaps.size());
+        json.name("gapBytes").value(gapBytes);
+        json.name("candidates").beginArray();
+        for (int i = 0; i < ranked.size(); i++) {
+            SpeculativeCandidate c = ranked.get(i);
+            json.beginObject();
+            json.name("rank").value(i + 1);
+            writeRoutineIdentity(json, c.start);
+            json.name("codeentry").value((mapperNumber == MAPPER_MMC1 && c.start < fixedBankOffset)
+                ? bankNumberForOffset(c.start) + "|$" + hex4(offsetToCpu(c.start))
+                : "$" + hex4(offsetToCpu(c.start)));
+            json.name("bytes").value(c.end - c.start);
+            json.name("instructions").value(c.instructions);
+            json.name("ends").value(c.ending);
+            json.name("score").value(c.good - c.bad);
+            json.name("confidence").value((double) c.good / (c.good + c.bad));
+            json.name("gap").value("$" + hex4(offsetToCpu(c.gapStart)) + "-$" + hex4(offsetToCpu(c.gapEnd - 1)));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.writeTo(path);
+    }
+
+/**
+* Maximal runs of DATA bytes that no data range or inline record claims,
+* split at MMC1 bank boundaries, as { start, end } PRG offsets.
+**/
+
+    static ArrayList<int[]> dataGaps() {
+        ArrayList<int[]> gaps = new ArrayList<int[]>();
+        int ofs = 0;
+        while (ofs < prgSize) {
+            if (!isData(ofs) || blockedFromCode[ofs]) {
+                ofs++;
+                continue;
+            }
+            int start = ofs++;
+            while (ofs < prgSize && isData(ofs) && !blockedFromCode[ofs]
+                   && (mapperNumber != MAPPER_MMC1 || (ofs & 0x3FFF) != 0)) {
+                ofs++;
+            }
+            gaps.add(new int[] { start, ofs });
+        }
+        return gaps;
+    }
+
+/**
+* Decodes every gap on the common fork-join pool (gaps are independent and
+* only read the map) and returns the accepted candidates, best first.
+**/
+
+    static ArrayList<SpeculativeCandidate> speculateGaps(ArrayList<int[]> gaps) {
+        ArrayList<SpeculativeCandidate> all = ForkJoinPool.commonPool().invoke(
+            new SpeculateTask(gaps, 0, gaps.size()));
+        Collections.sort(all, SpeculativeCandidate.BY_SCORE);
+        return all;
+    }
+
+/**
+* Candidates for one gap: a decode from every byte, then greedily the
+* highest-scoring ones that don't overlap an already accepted one.
+**/
+
+    static ArrayList<SpeculativeCandidate> speculateGap(int start, int end) {
+        ArrayList<SpeculativeCandidate> decoded = new ArrayList<SpeculativeCandidate>();
+        for (int s = start; s < end; s++) {
+            SpeculativeCandidate c = speculativeDecode(s, start, end);
+            if (c != null && c.good > c.bad) {
+                decoded.add(c);
+            }
+        }
+        Collections.sort(decoded, SpeculativeCandidate.BY_SCORE);
+        ArrayList<SpeculativeCandidate> accepted = new ArrayList<SpeculativeCandidate>();
+        boolean[] taken = new boolean[end - start];
+        for (SpeculativeCandidate c : decoded) {
+            boolean free = true;
+            for (int i = c.start; i < c.end && free; i++) {
+                free = !taken[i - start];
+            }
+            if (free) {
+                Arrays.fill(taken, c.start - start, c.end - start, true);
+                accepted.add(c);
+            }
+        }
+        return accepted;
+    }
+
+/**
+* Linear decode from s inside the gap [gapStart, gapEnd). Returns null when
+* it hits an unprocessable opcode, an operand running out of the gap, a jump
+* into the middle of a traced instruction's bytes, or fewer than
+* SPECULATE_MIN_INSTRUCTIONS. Evidence for code: the first
+* SPECULATE_LENGTH_CREDIT instructions, a terminator, falling into traced
+* code, and plausible operands (calls into traced code, hardware registers,
+* in-ROM branches). Evidence against: a data label at s, running off the gap
+* or past the decode limit, and implausible operands.
+**/
+
+    static SpeculativeCandidate speculativeDecode(int s, int gapStart, int gapEnd) {
+        int good = 0;
+        // something reads s as data
+        int bad = isLabel(s) ? 2 : 0;
+        int n = 0;
+        int ofs = s;
+        String ending = "limit";
+        while (n < SPECULATE_MAX_INSTRUCTIONS) {
+            if (ofs >= gapEnd) {
+                if (ofs < prgSize && isInstr(ofs)) {
+                    good += 4;
+                    ending = "joins code";
+                } else if (ofs < prgSize && isCode(ofs)) {
+                    return null;
+                } else {
+                    bad += 4;
+                    ending = "gap end";
+                }
+                break;
+            }
+            int op = ROM[ofs];
+            int len = oplengthLookup[op];
+            if (!PROCESSABLE_OPCODE[op] || len <= 0 || ofs + len > gapEnd) {
+                return null;
+            }
+            int evidence = speculativeOperandEvidence(ofs, s, gapEnd);
+            if (evidence == Integer.MIN_VALUE) {
+                return null;
+            }
+            good += ((n < SPECULATE_LENGTH_CREDIT) ? 1 : 0) + Math.max(evidence, 0);
+            bad -= Math.min(evidence, 0);
+            n++;
+            ofs += len;
+            if (op == 0x40 || op == 0x60 || op == 0x4C || op == 0x6C) {
+                good += 4;
+                ending = mnemonicLookup[op];
+                break;
+            }
+        }
+        if (n < SPECULATE_MIN_INSTRUCTIONS) {
+            return null;
+        }
+        if (ending.equals("limit")) {
+            bad += 2;
+        }
+        return new SpeculativeCandidate(s, ofs, n, good, bad, ending, gapStart, gapEnd);
+    }
+
+/**
+* Operand evidence for the instruction at ofs in a decode starting at s:
+* positive for code, negative against, Integer.MIN_VALUE when a JSR, JMP or
+* branch lands inside a traced instruction.
+**/
+
+    private static int speculativeOperandEvidence(int ofs, int s, int gapEnd) {
+        int op = ROM[ofs];
+        int mode = opaddrmodeLookup[op];
+        if (RELATIVE_BRANCH_OPCODE[op]) {
+            int t = relativeBranchTarget(ofs);
+            if (t < 0) {
+                return -1;
+            }
+            if (isCode(t) && !isInstr(t)) {
+                return Integer.MIN_VALUE;
+            }
+            return (isInstr(t) || (t >= s && t < gapEnd)) ? 1 : 0;
+        }
+        if (mode != ABSL && mode != ABSX && mode != ABSY && mode != INDR) {
+            return 0;
+        }
+        int addr = readCpuAddress(ofs+1);
+        if (op == 0x20 || op == 0x4C) {
+            if (!isCpuRomAddress(addr)) {
+                return -2;
+            }
+            if (!isStaticallyMappedCpuAddress(addr, ofs)) {
+                // fixed-bank call into the switchable window
+                return 0;
+            }
+            int t = cpuToPrgOffsetForContext(addr, ofs);
+            if (isCode(t) && !isInstr(t)) {
+                return Integer.MIN_VALUE;
+            }
+            return isInstr(t) ? 3 : 0;
+        }
+        if (addr < 0x0800 || (addr >= 0x6000 && addr < 0x8000)) {
+            return (mode == INDR) ? 1 : 0;
+        }
+        if ((addr >= 0x2000 && addr < 0x2008) || (addr >= 0x4000 && addr < 0x4018)) {
+            return 2;
+        }
+        if (addr >= 0x8000) {
+            return 0;
+        }
+        // RAM mirrors, PPU mirrors and the unmapped expansion area
+        return -2;
+    }
+
+/**
+* Splits the gap list in half until a slice is small enough to decode on
+* the current worker.
+**/
+
+    static final class SpeculateTask extends RecursiveTask<ArrayList<SpeculativeCandidate>> {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<int[]> gaps;
+        private final int lo;
+        private final int hi;
+
+        SpeculateTask(ArrayList<int[]> gaps, int lo, int hi) {
+            this.gaps = gaps;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected ArrayList<SpeculativeCandidate> compute() {
+            if (hi - lo <= 4) {
+                ArrayList<SpeculativeCandidate> out = new ArrayList<SpeculativeCandidate>();
+                for (int i = lo; i < hi; i++) {
+                    out.addAll(speculateGap(gaps.get(i)[0], gaps.get(i)[1]));
+                }
+                return out;
+            }
+            int mid = (lo + hi) >>> 1;
+            SpeculateTask left = new SpeculateTask(gaps, lo, mid);
+            left.fork();
+            ArrayList<SpeculativeCandidate> out = new SpeculateTask(gaps, mid, hi).compute();
+            out.addAll(left.join());
+            return out;
+        }
+    }
+
+    public static boolean isROMAddress(int ofs) {
+        return isROMAddress(ofs, ofs);
+    }
+
+    private static boolean isROMAddress(int ofs, int contextOfs) {
+        return isStaticallyMappedCpuAddress(readCpuAddress(ofs), contextOfs);
+    }
+
+    private static ArrayList<Integer> codePointerTargetsForContext(int ofs, int contextOfs) {
+        return codePointerTargetsForCpu(readCpuAddress(ofs), contextOfs);
+    }
+
+    private static ArrayList<Integer> codePointerTargetsForCpu(int cpu, int contextOfs) {
+        ArrayList<Integer> targets = new ArrayList<Integer>();
+        if (!isCpuRomAddress(cpu)) {
+            return targets;
+        }
+        if (mapperNumber == MAPPER_MMC1
+            && cpu < 0xC000
+            && inPrgOffset(contextOfs)
+            && contextOfs >= fixedBankOffset) {
+            int bankCount = prgSize / 0x4000;
+            for (int bank = 0; bank < bankCount - 1; bank++) {
+                targets.add((bank * 0x4000) + (cpu - 0x8000));
+            }
+            return targets;
+        }
+        if (isStaticallyMappedCpuAddress(cpu, contextOfs)) {
+            targets.add(cpuToPrgOffsetForContext(cpu, contextOfs));
+        }
+        return targets;
+    }
+
+    private static boolean isCanonicalROMAddress(int ofs) {
+        return isCanonicalROMAddress(ofs, ofs);
+    }
+
+    private static boolean isCanonicalROMAddress(int ofs, int contextOfs) {
+        // Output only labels in the project's canonical CPU range. For
+        // NROM-128, emitting a label for a mirror operand would rewrite the
+        // high byte and break parity.
+        if (mapperNumber == MAPPER_MMC1) {
+            return isStaticallyMappedCpuAddress(readCpuAddress(ofs), contextOfs);
+        }
+        return isCanonicalCpuAddress(readCpuAddress(ofs));
+    }
+
+    public static void checkDataLabel(int ofs) {
+        checkDataLabel(ofs, ofs);
+    }
+
+    public static void checkDataLabel(int ofs, int contextOfs) {
+        if (isROMAddress(ofs, contextOfs)) {
+            int addr = getAddressForContext(ofs, contextOfs);
+            if (!isCode(addr)) {
+                for (int i=1; i<4; i++) {
+                    if ((addr-i > 0) && isData(addr-i) && isLabel(addr-i)) {
+                        return;
+                    }
+                    if ((addr+i < prgSize) && isData(addr+i) && isLabel(addr+i)) {
+                        return;
+                    }
+                }
+                map[addr] |= LABEL;
+            }
+        }
+    }
+
+/**
+* Makes sure that every non-mapped (DATA) chunk is labelled in the disassembly.
+**/
+
+    public static void verifyDataLabels() {
+        for (int i=1; i<prgSize; i++) {
+            if (isCode(i-1) && isData(i)) {
+                map[i] |= LABEL;
+            }
+        }
+    }
+
+/**
+* Emits one resolved inline record in spec §9.1 form. Adjacent u8 and
+* bytes(N) fields share a .DB line, each pointer field emits a single .DW
+* expression that reproduces the original encoded word, and counted8 emits
+* its count and payload as one logical .DB record (wrap may split it across
+* multiple .DB lines but the count never gets a dedicated line). Records
+* from separate callsites are never merged because the outer loop dispatches
+* per record_start.
+**/
+
+    public static void emitInlineRecord(ResolvedRecord r) {
+        // Label the record start.
+        String startLabel = labelForOffset(r.recordStart);
+        if (toHtml) {
+            emitOut().println("<A NAME=" + startLabel + "><BR>");
+        }
+        emitOut().print(startLabel + ":");
+        newLine();
+        InlineField[] fields = r.layout.fields;
+        int k = 0;
+        while (k < fields.length) {
+            InlineField f = fields[k];
+            if (f.kind == InlineField.PTR16) {
+                emitPointerField(r, k);
+                k++;
+            } else if (f.kind == InlineField.COUNTED8) {
+                emitCountedField(r, k);
+                k++;
+            } else {
+                // U8 or BYTES — collect adjacent run for one .DB sequence.
+                int runEnd = k;
+                while (runEnd < fields.length
+                       && (fields[runEnd].kind == InlineField.U8
+                           || fields[runEnd].kind == InlineField.BYTES)) {
+                    runEnd++;
+                }
+                emitDataRunFields(r, k, runEnd);
+                k = runEnd;
+            }
+        }
+    }
+
+    private static void emitDataRunFields(ResolvedRecord r, int kStart, int kEnd) {
+        int start = r.fieldStarts[kStart];
+        int end = r.fieldEnds[kEnd - 1];
+        emitDbRun(start, end);
+    }
+
+    private static void emitCountedField(ResolvedRecord r, int k) {
+        int start = r.fieldStarts[k];
+        int end = r.fieldEnds[k];
+        emitDbRun(start, end);
+    }
+
+    private static void emitDbRun(int start, int end) {
+        emitOut().print(".DB $" + hexLookup[ROM[start]]);
+        int wrapCount = 1;
+        for (int i = start + 1; i < end; i++) {
+            if ((wrapCount++ & 15) == 0) {
+                newLine();
+                emitOut().print(".DB ");
+            } else {
+                emitOut().print(",");
+            }
+            emitOut().print("$" + hexLookup[ROM[i]]);
+        }
+        newLine();
+    }
+
+    private static void emitPointerField(ResolvedRecord r, int k) {
+        InlineField f = r.layout.fields[k];
+        int target = r.pointerTargets[k];
+        int adj = f.pointerAdjustment;
+        String labelStr = labelForOffset(target);
+        emitOut().print(".DW ");
+        printLabel(labelStr);
+        if (adj > 0) {
+            // adjusted target = encoded + adj ⇒ encoded = target - adj
+            emitOut().print("-" + adj);
+        } else if (adj < 0) {
+            emitOut().print("+" + (-adj));
+        }
+        newLine();
+    }
+
+/**
+* Phase-1 mask construction for configured data ranges. Blocks every byte
+* in each range from being decoded as code. The parser already guarantees
+* ranges don't overlap or touch each other, so no overlap check is needed
+* here. Record-vs-range overlaps are caught by blockKnownInlineRecords
+* when it runs after this method.
+**/
+
+    public static void blockDataRanges() {
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry r = dataRanges.entries[k];
+            for (int i = r.start; i < r.end; i++) {
+                blockedFromCode[i] = true;
+            }
+        }
+    }
+
+/**
+* Phase-2 label + seed for configured data ranges. Labels each range start
+* and labels + seeds the exclusive end as a code continuation when the end
+* is still inside ROM. Must run only after blockDataRanges and
+* blockKnownInlineRecords have populated the complete barrier mask.
+**/
+
+    public static void labelAndSeedDataRanges() {
+        for (int k = 0; k < dataRanges.entries.length; k++) {
+            DataRangeEntry r = dataRanges.entries[k];
+            map[r.start] |= LABEL;
+            if (r.end < prgSize) {
+                if (blockedFromCode[r.end]) {
+                    failBlockedConflict(r.end, "data range continuation after $"
+                        + hex4(r.startCpu) + "+" + r.length);
+                }
+                map[r.end] |= LABEL;
+                processCode(r.end);
+            }
+        }
+    }
+
+/**
+* Convenience composite used by single-range tests. Runs block + label/seed
+* back-to-back; runAnalysisPass uses the split phase methods directly so all
+* barriers are constructed before any seed traces.
+**/
+
+    public static void applyDataRangeBarriers() {
+        blockDataRanges();
+        labelAndSeedDataRanges();
+    }
+
+/**
+*
+**/
+
+    public static boolean needsWideningSuffixForZeroPageAddresses(int op) {
+        switch (op) {
+            case 0x6D:  return true;    /* ADC oper */
+            case 0x7D:  return true;    /* ADC oper,X */
+            case 0x2D:  return true;    /* AND oper */
+            case 0x3D:  return true;    /* AND oper,X */
+            case 0x0E:  return true;    /* ASL oper */
+            case 0x1E:  return true;    /* ASL oper,X */
+            case 0x2C:  return true;    /* BIT oper */
+            case 0xCD:  return true;    /* CMP oper */
+            case 0xDD:  return true;    /* CMP oper,X */
+            case 0xEC:  return true;    /* CPX oper */
+            case 0xCC:  return true;    /* CPY oper */
+            case 0xCE:  return true;    /* DEC oper */
+            case 0xDE:  return true;    /* DEC oper,X */
+            case 0x4D:  return true;    /* EOR oper */
+            case 0x5D:  return true;    /* EOR oper,X */
+            case 0xEE:  return true;    /* INC oper */
+            case 0xFE:  return true;    /* INC oper,X */
+            case 0xAD:  return true;    /* LDA oper */
+            case 0xBD:  return true;    /* LDA oper,X */
+            case 0xAE:  return true;    /* LDX oper */
+            case 0xBE:  return true;    /* LDX oper,Y */
+            case 0xAC:  return true;    /* LDY oper */
+            case 0xBC:  return true;    /* LDY oper,X */
+            case 0x4E:  return true;    /* LSR oper */
+            case 0x5E:  return true;    /* LSR oper,X */
+            case 0x0D:  return true;    /* ORA oper */
+            case 0x1D:  return true;    /* ORA oper,X */
+            case 0x2E:  return true;    /* ROL oper */
+            case 0x3E:  return true;    /* ROL oper,X */
+            case 0x6E:  return true;    /* ROR oper */
+            case 0x7E:  return true;    /* ROR oper,X */
+            case 0xED:  return true;    /* SBC oper */
+            case 0xFD:  return true;    /* SBC oper,X */
+            case 0x8D:  return true;    /* STA oper */
+            case 0x9D:  return true;    /* STA oper,X */
+            case 0x8E:  return true;    /* STX oper */
+            case 0x8C:  return true;    /* STY oper */
+        }
+        return false;
+    }
+
+    public static void printAddress(int ofs, int op) {
+        printAddress(ofs, op, ofs);
+    }
+
+    public static void printAddress(int ofs, int op, int contextOfs) {
+        String label=null;
+        Integer banked = bankResolvedOperands.get(contextOfs);
+        if (banked != null && ofs == contextOfs + 1 && isLabel(banked)) {
+            // switchable-window operand resolved through the tracked bank
+            emitOut().print(" ");
+            printLabel(labelForOffset(banked));
+            return;
+        }
+        if (isCanonicalROMAddress(ofs, contextOfs)) {   // safe canonical ROM operand
+            emitOut().print(" ");
+            int a = getAddressForContext(ofs, contextOfs);
+            if (!isLabel(a)) {  // no label exists for this address!
+                for (int i=1; i<16; i++) {
+                    if (isLabel(a-i)) { // no problem, use label of address-i
+                        a-=i;
+                        printLabel(labelForOffset(a));
+                        emitOut().print("+"+i);
+                        return;
                     }
-                    else if (amode == INDY) {
-                        System.out.print(" [$"+hexLookup[ROM[ofs+1]]+"],Y");
-                        newLine();
+                    else if (isLabel(a+i)) {    // no problem, use label of address+i
+                        a+=i;
+                        printLabel(labelForOffset(a));
+                        emitOut().print("-"+i);
+                        return;
                     }
-                    else if (amode == RELV) {
-                        System.out.print(" ");
-                        int addr = relativeBranchTarget(ofs);
-                        if (addr >= 0 && isLabel(addr)) {
-                            printLabel(labelForOffset(addr));
-                        }
-                        else {
-                            printRelativeLiteral(ofs);
-                        }
-                        newLine();
+                }
+                // whoops, no label found, need to print hardcoded address...
+                emitOut().print("$"+hexLookup[ROM[ofs+1]]+hexLookup[ROM[ofs]]);
+            }
+            else {
+                printLabel(labelForOffset(a));
+            }
+        }
+        else {  // print address as direct memory offset ($XXXX)
+	    if ((ROM[ofs+1] == 0) && needsWideningSuffixForZeroPageAddresses(op))
+                emitOut().print(".W");
+            emitOut().print(" ");
+            emitOut().print("$"+hexLookup[ROM[ofs+1]]+hexLookup[ROM[ofs]]);
+        }
+    }
+
+    private static void printRelativeLiteral(int ofs) {
+        int dist = ROM[ofs+1];
+        if (dist < 0x80) {
+            int addr = ofs + 2 + dist;
+            emitOut().print("$+" + (addr - ofs));
+        }
+        else {
+            dist = (dist ^ 0xFF) + 1;
+            int addr = ofs + 2 - dist;
+            emitOut().print("$-" + (ofs - 2 - addr));
+        }
+    }
+
+/**
+*
+**/
+
+    public static void printLabel(String label) {
+        if (toHtml)
+            emitOut().print("<A HREF=\"#"+label+"\">");
+        emitOut().print(label);
+        if (toHtml)
+            emitOut().print("</A>");
+    }
+
+/**
+*
+**/
+
+    public static boolean isCode(int ofs) {
+        if (!inPrgOffset(ofs))
+            return false;
+        else
+            return ((map[ofs] & CODE) != 0);
+    }
+
+/**
+*
+**/
+
+    public static boolean isData(int ofs) {
+        if (!inPrgOffset(ofs))
+            return false;
+        else
+            return ((map[ofs] & DATA) != 0);
+    }
+
+/**
+*
+**/
+
+    public static boolean isLabel(int ofs) {
+        if (!inPrgOffset(ofs))
+            return false;
+        else
+            return ((map[ofs] & LABEL) != 0);
+    }
+
+/**
+*
+**/
+
+    public static boolean isPtr(int ofs) {
+        if (!inPrgOffset(ofs))
+            return false;
+        else
+            return ((map[ofs] & PTR) != 0);
+    }
+
+/**
+*
+**/
+
+    public static boolean isInstr(int ofs) {
+        if (!inPrgOffset(ofs))
+            return false;
+        else
+            return ((map[ofs] & INSTR) != 0);
+    }
+
+/**
+*
+**/
+
+    public static void newLine() {
+        flushInstructionComment();
+        if (toHtml)
+            emitOut().println("<BR>");
+        else
+            emitOut().println("");
+    }
+
+/**
+* A configured inline record after a JSR callsite has been validated against
+* the ROM. Carries per-field start/end offsets and adjusted pointer targets
+* so the analysis and output passes don't have to re-walk the layout against
+* raw bytes.
+**/
+
+    public static final class ResolvedRecord {
+        public final int callsite;          // PRG offset of the JSR opcode
+        public final InlineCallEntry entry; // schema this record was resolved against
+        public final int recordStart;       // callsite + 3
+        public final int recordEnd;         // exclusive PRG offset
+        public final int[] fieldStarts;     // per-field start offset, parallel to entry.layout.fields
+        public final int[] fieldEnds;       // per-field exclusive end offset
+        public final int[] pointerTargets;  // adjusted target as PRG offset; -1 for non-pointer fields
+
+        public final InlineLayout layout;   // alias of entry.layout for convenience
+
+        ResolvedRecord(int callsite, InlineCallEntry entry, int recordStart, int recordEnd,
+                       int[] fieldStarts, int[] fieldEnds, int[] pointerTargets) {
+            this.callsite = callsite;
+            this.entry = entry;
+            this.layout = entry.layout;
+            this.recordStart = recordStart;
+            this.recordEnd = recordEnd;
+            this.fieldStarts = fieldStarts;
+            this.fieldEnds = fieldEnds;
+            this.pointerTargets = pointerTargets;
+        }
+    }
+
+/**
+* Abstract MMC1 mapper state along one traced path: what is known about the
+* accumulator, the five-write serial shift register, and the bank mapped at
+* $8000-$BFFF. Routine summaries reuse the same shape with the accumulator
+* and bank expressed relative to the caller (A_ARG, BANK_ARG, BANK_ENTRY).
+* Every path and routine is assumed to start with an empty shift register,
+* which is how games keep their five-write loads atomic.
+**/
+
+    static final class BankState {
+        static final int A_UNKNOWN = 0;
+        static final int A_CONST = 1;
+        static final int A_ARG = 2;         // caller's A shifted right by aValue
+        static final int BANK_UNKNOWN = -1;
+        static final int BANK_ARG = -2;     // low four bits of the caller's A
+        static final int BANK_ENTRY = -3;   // unchanged since routine entry
+        static final int BIT_UNKNOWN = -1;
+        static final int BIT_ARG = 2;       // BIT_ARG + n: bit n of the caller's A
+
+        int aKind;
+        int aValue;
+        int serialCount;                    // bits shifted in so far; -1 when unknown
+        final int[] serialBits = new int[5];
+        int prgBank;                        // >= 0 for a known bank, else BANK_*
+        boolean touchedMapper;
+
+        BankState(int aKind, int aValue, int prgBank) {
+            this.aKind = aKind;
+            this.aValue = aValue;
+            this.prgBank = prgBank;
+        }
+
+        static BankState opaqueCall() {
+            BankState s = new BankState(A_UNKNOWN, 0, BANK_UNKNOWN);
+            s.touchedMapper = true;
+            return s;
+        }
+
+        static BankState routineEntry() {
+            return new BankState(A_ARG, 0, BANK_ENTRY);
+        }
+
+        BankState copy() {
+            BankState s = new BankState(aKind, aValue, prgBank);
+            s.serialCount = serialCount;
+            System.arraycopy(serialBits, 0, s.serialBits, 0, serialBits.length);
+            s.touchedMapper = touchedMapper;
+            return s;
+        }
+
+        static boolean writesMapper(int op, int ofs) {
+            boolean store = op == 0x8D || op == 0x9D || op == 0x99 || op == 0x8E || op == 0x8C
+                || ABSOLUTE_RMW_OPCODE[op];
+            return store && readCpuAddress(ofs + 1) >= 0x8000;
+        }
+
+        void step(int op, int ofs) {
+            switch (op) {
+                case 0xA9:  // LDA #
+                    aKind = A_CONST;
+                    aValue = ROM[ofs + 1];
+                    return;
+                case 0x4A:  // LSR A
+                    if (aKind == A_CONST) {
+                        aValue >>= 1;
+                    } else if (aKind == A_ARG) {
+                        aValue++;
                     }
-                    ofs += oplengthLookup[op];
+                    return;
+                case 0x29:  // AND #
+                case 0x09:  // ORA #
+                case 0x49:  // EOR #
+                    if (aKind == A_CONST) {
+                        int imm = ROM[ofs + 1];
+                        aValue = (op == 0x29) ? (aValue & imm)
+                            : (op == 0x09) ? (aValue | imm) : (aValue ^ imm);
+                    } else {
+                        aKind = A_UNKNOWN;
+                    }
+                    return;
+                default:
+                    break;
+            }
+            if (writesMapper(op, ofs)) {
+                touchedMapper = true;
+                if (ABSOLUTE_RMW_OPCODE[op]) {
+                    // INC/DEC/shift on ROM: the reset idiom
+                    serialCount = 0;
+                } else if (op == 0x8E || op == 0x8C) {
+                    // X/Y contents are not tracked
+                    serialCount = -1;
+                } else {
+                    shiftIn(readCpuAddress(ofs + 1));
                 }
-            }   // isCode(ofs)
-            else if (isData(ofs)) { // print data table
-                // If an inline record starts here, emit it field-by-field
-                // instead of running a normal .DB block. The label is printed
-                // inside emitInlineRecord.
-                ResolvedRecord record = recordsByStart.get(ofs);
-                if (record != null) {
-                    emitInlineRecord(record);
-                    ofs = record.recordEnd;
-                    newLine();
-                    continue;
+                return;
+            }
+            if (WRITES_A_OPCODE[op]) {
+                aKind = A_UNKNOWN;
+            }
+        }
+
+        private void shiftIn(int cpu) {
+            if (aKind == A_CONST && (aValue & 0x80) != 0) {
+                serialCount = 0;
+                return;
+            }
+            if (serialCount < 0) {
+                return;
+            }
+            serialBits[serialCount++] = accumulatorBit0();
+            if (serialCount < 5) {
+                return;
+            }
+            serialCount = 0;
+            // the fifth write's address selects the register; $E000-$FFFF is PRG
+            if (cpu >= 0xE000) {
+                prgBank = completedPrgBank();
+            }
+        }
+
+        private int accumulatorBit0() {
+            if (aKind == A_CONST) {
+                return aValue & 1;
+            }
+            if (aKind == A_ARG && aValue < 8) {
+                return BIT_ARG + aValue;
+            }
+            return BIT_UNKNOWN;
+        }
+
+        private int completedPrgBank() {
+            int value = 0;
+            boolean constant = true;
+            boolean fromArg = true;
+            for (int i = 0; i < 4; i++) {
+                int bit = serialBits[i];
+                if (bit == 0 || bit == 1) {
+                    value |= bit << i;
+                } else {
+                    constant = false;
                 }
-                if (isLabel(ofs)) {
-                    String label = labelForOffset(ofs);
-                    if (toHtml)
-                        System.out.println("<A NAME="+label+"><BR>");
-                    System.out.print(label+":");
-                    newLine();
+                if (bit != BIT_ARG + i) {
+                    fromArg = false;
+                }
+            }
+            if (constant) {
+                return value;
+            }
+            return fromArg ? BANK_ARG : BANK_UNKNOWN;
+        }
+
+        // Composes a callee summary (null: unknown callee) onto this state.
+        void applyCall(BankState callee) {
+            if (callee == null) {
+                callee = opaqueCall();
+            }
+            if (callee.prgBank >= 0) {
+                prgBank = callee.prgBank;
+            } else if (callee.prgBank == BANK_ARG) {
+                prgBank = (aKind == A_CONST) ? (aValue & 0x0F)
+                    : (aKind == A_ARG && aValue == 0) ? BANK_ARG : BANK_UNKNOWN;
+            } else if (callee.prgBank == BANK_UNKNOWN) {
+                prgBank = BANK_UNKNOWN;
+            }
+            if (callee.touchedMapper) {
+                touchedMapper = true;
+                serialCount = (callee.serialCount == 0) ? 0 : -1;
+            }
+            if (callee.aKind == A_CONST) {
+                aKind = A_CONST;
+                aValue = callee.aValue;
+            } else if (callee.aKind == A_ARG) {
+                if (aKind == A_CONST) {
+                    aValue >>= callee.aValue;
+                } else if (aKind == A_ARG) {
+                    aValue += callee.aValue;
                 }
-                System.out.print(".DB $"+hexLookup[ROM[ofs++]]);
-                int i=1;
-                // Stop the .DB run at the next data-block boundary so that
-                // configured data ranges and resolved inline records remain
-                // distinct from adjacent generic data (spec §9.2).
-                while ((ofs < prgSize) && (map[ofs] == DATA) && !dataBoundaries.contains(ofs)) {
-                    if ((i++ & 15) == 0) {
-                        newLine();
-                        System.out.print(".DB ");
-                    }
-                    else {
-                        System.out.print(",");
-                    }
-                    System.out.print("$"+hexLookup[ROM[ofs++]]);
-                    }
-                newLine();
-                newLine();
-            }   // isData(ofs)
-        }   // while
-        System.out.print(".END");
-        newLine();
-        if (toHtml) {
-            System.out.println("</FONT>");
-            System.out.println("</BODY>");
-            System.out.println("</HTML>");
+            } else {
+                aKind = A_UNKNOWN;
+            }
+        }
+
+        // PRG offset of a $8000-$BFFF address under the known bank, else -1.
+        int switchableTarget(int cpu) {
+            if (prgBank < 0 || cpu < 0x8000 || cpu > 0xBFFF) {
+                return -1;
+            }
+            int bankCount = prgSize / 0x4000;
+            int bank = prgBank % bankCount;
+            if (bank == bankCount - 1) {
+                // the fixed bank's $8000 image has no label in this model
+                return -1;
+            }
+            return (bank * 0x4000) + (cpu - 0x8000);
         }
     }
 
-    private static void addBankBoundaries() {
-        if (mapperNumber != MAPPER_MMC1) {
-            return;
+/**
+* Counters behind -stats. Byte counts are PRG bytes, except outputBytes
+* which counts the emitted listing. The bad-opcode rollback figure includes
+* the offending byte itself.
+**/
+
+    static final class AnalysisStats {
+        long seeds;
+        long processCodeSingleCalls;
+        long processCodeSingleEarlyOuts;
+        int worklistPeak;
+        long bytesTraced;
+        long bytesRolledBack;
+        final ArrayList<Long> passNanos = new ArrayList<Long>();
+        long emitNanos;
+        long outputBytes;
+
+        void print(PrintStream ps) {
+            long analysisNanos = 0;
+            for (Long n : passNanos) {
+                analysisNanos += n;
+            }
+            ps.println("stats: analysis passes: " + passNanos.size());
+            for (int i = 0; i < passNanos.size(); i++) {
+                ps.println("stats:   pass " + (i + 1) + ": " + millis(passNanos.get(i)) + " ms");
+            }
+            ps.println("stats: analysis time: " + millis(analysisNanos) + " ms");
+            ps.println("stats: seeds processed: " + seeds);
+            ps.println("stats: processCodeSingle calls: " + processCodeSingleCalls
+                + " (early-outs: " + processCodeSingleEarlyOuts + ")");
+            ps.println("stats: worklist peak: " + worklistPeak);
+            ps.println("stats: bytes traced: " + bytesTraced
+                + " (rolled back: " + bytesRolledBack + ")");
+            ps.println("stats: emit time: " + millis(emitNanos) + " ms");
+            ps.println("stats: output bytes: " + outputBytes);
         }
-        for (int ofs = 0x4000; ofs < prgSize; ofs += 0x4000) {
-            dataBoundaries.add(ofs);
+
+        private static String millis(long nanos) {
+            return String.format("%.3f", nanos / 1000000.0);
         }
     }
 
-    private static void maybeEmitOrg(int ofs) {
-        if (mapperNumber == MAPPER_MMC1) {
-            if ((ofs & 0x3FFF) != 0) {
-                return;
-            }
-            int org = (ofs >= fixedBankOffset) ? 0xC000 : 0x8000;
-            System.out.print(".ORG $" + hex4(org));
-            newLine();
-            newLine();
-            return;
+    static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream target) {
+            super(target);
         }
-        if (ofs == 0) {
-            System.out.print(".ORG $" + hex4(cpuBase));
-            newLine();
-            newLine();
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
         }
     }
 
 /**
-*
+* One speculative decode: PRG span [start, end), instruction count, evidence
+* for (good) and against (bad) it being code, how the decode ended, and the
+* gap it came from.
 **/
 
-    public static boolean isROMAddress(int ofs) {
-        return isROMAddress(ofs, ofs);
+    static final class SpeculativeCandidate {
+        // best score first, then PRG order
+        static final Comparator<SpeculativeCandidate> BY_SCORE = new Comparator<SpeculativeCandidate>() {
+            public int compare(SpeculativeCandidate a, SpeculativeCandidate b) {
+                int sa = a.good - a.bad;
+                int sb = b.good - b.bad;
+                if (sa != sb) {
+                    return sb - sa;
+                }
+                return a.start - b.start;
+            }
+        };
+        final int start;
+        final int end;
+        final int instructions;
+        final int good;
+        final int bad;
+        final String ending;
+        final int gapStart;
+        final int gapEnd;
+
+        SpeculativeCandidate(int start, int end, int instructions, int good, int bad, String ending,
+                             int gapStart, int gapEnd) {
+            this.start = start;
+            this.end = end;
+            this.instructions = instructions;
+            this.good = good;
+            this.bad = bad;
+            this.ending = ending;
+            this.gapStart = gapStart;
+            this.gapEnd = gapEnd;
+        }
     }
 
-    private static boolean isROMAddress(int ofs, int contextOfs) {
-        return isStaticallyMappedCpuAddress(readCpuAddress(ofs), contextOfs);
-    }
+/**
+* One worker's share of a mapped trace-log chunk: whole lines from..to.
+* call() returns a PRG bitset of the traced PCs followed by COUNTERS totals
+* (lines, ROM instructions, RAM instructions, unmapped instructions).
+**/
 
-    private static ArrayList<Integer> codePointerTargetsForContext(int ofs, int contextOfs) {
-        ArrayList<Integer> targets = new ArrayList<Integer>();
-        int cpu = readCpuAddress(ofs);
-        if (!isCpuRomAddress(cpu)) {
-            return targets;
+    static final class TraceSlice implements Callable<long[]> {
+        static final int COUNTERS = 4;
+        private final ByteBuffer buf;
+        private final int from;
+        private final int to;
+        private final int words;
+
+        TraceSlice(ByteBuffer buf, int from, int to, int words) {
+            this.buf = buf;
+            this.from = from;
+            this.to = to;
+            this.words = words;
         }
-        if (mapperNumber == MAPPER_MMC1
-            && cpu < 0xC000
-            && inPrgOffset(contextOfs)
-            && contextOfs >= fixedBankOffset) {
-            int bankCount = prgSize / 0x4000;
-            for (int bank = 0; bank < bankCount - 1; bank++) {
-                targets.add((bank * 0x4000) + (cpu - 0x8000));
+
+        public long[] call() {
+            long[] r = new long[words + COUNTERS];
+            int i = from;
+            while (i < to) {
+                int eol = i;
+                while (eol < to && buf.get(eol) != '\n') {
+                    eol++;
+                }
+                r[words]++;
+                int pc = tracePc(buf, i, eol);
+                if (pc >= 0) {
+                    int ofs = tracePrgOffset(pc & 0xFFFF, (pc >>> 16) - 1);
+                    if (ofs >= 0) {
+                        r[ofs >>> 6] |= 1L << ofs;
+                        r[words + 1]++;
+                    } else {
+                        r[words + ((ofs == -1) ? 2 : 3)]++;
+                    }
+                }
+                i = eol + 1;
             }
-            return targets;
-        }
-        if (isStaticallyMappedCpuAddress(cpu, contextOfs)) {
-            targets.add(cpuToPrgOffsetForContext(cpu, contextOfs));
+            return r;
         }
-        return targets;
     }
 
-    private static boolean isCanonicalROMAddress(int ofs) {
-        return isCanonicalROMAddress(ofs, ofs);
+/**
+* The emitter's output stream on one thread and its open -cycles/-pagecross
+* comment: the offset of the instruction whose line is still open, so
+* newLine() can append it, or -1. A null stream means System.out, looked up
+* on every write so callers that swap System.out are followed.
+**/
+
+    static final class EmitTarget {
+        private final PrintStream out;
+        int commentOfs = -1;
+
+        EmitTarget(PrintStream out) {
+            this.out = out;
+        }
+
+        PrintStream out() {
+            return (out != null) ? out : System.out;
+        }
     }
 
-    private static boolean isCanonicalROMAddress(int ofs, int contextOfs) {
-        // Output only labels in the project's canonical CPU range. For
-        // NROM-128, emitting a label for a mirror operand would rewrite the
-        // high byte and break parity.
-        if (mapperNumber == MAPPER_MMC1) {
-            return isStaticallyMappedCpuAddress(readCpuAddress(ofs), contextOfs);
+/**
+* One -parallelemit worker's bank: call() formats start..end into text and
+* records the offset its walk stopped at.
+**/
+
+    static final class EmitSlice implements Callable<EmitSlice> {
+        final int start;
+        final int end;
+        byte[] text;
+        int stop;
+
+        EmitSlice(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public EmitSlice call() {
+            java.io.ByteArrayOutputStream buf = new java.io.ByteArrayOutputStream();
+            EmitTarget target;
+            try {
+                target = new EmitTarget(new PrintStream(buf, false, "UTF-8"));
+            } catch (java.io.UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+            emitTarget.set(target);
+            try {
+                stop = emitRange(start, end);
+                target.out.flush();
+            } finally {
+                emitTarget.remove();
+            }
+            text = buf.toByteArray();
+            return this;
         }
-        return isCanonicalCpuAddress(readCpuAddress(ofs));
     }
 
-    public static void checkDataLabel(int ofs) {
-        checkDataLabel(ofs, ofs);
+/**
+* One -fceuxnl/-mesenmlb symbol: its name, the bytes it covers (1 for a
+* plain label) and its comment, empty for a plain label.
+**/
+
+    static final class DebugSymbol {
+        final String name;
+        final int length;
+        final String comment;
+
+        DebugSymbol(String name, int length, String comment) {
+            this.name = name;
+            this.length = length;
+            this.comment = comment;
+        }
     }
 
-    public static void checkDataLabel(int ofs, int contextOfs) {
-        if (isROMAddress(ofs, contextOfs)) {
-            int addr = getAddressForContext(ofs, contextOfs);
-            if (!isCode(addr)) {
-                for (int i=1; i<4; i++) {
-                    if ((addr-i > 0) && isData(addr-i) && isLabel(addr-i)) {
-                        return;
-                    }
-                    if ((addr+i < prgSize) && isData(addr+i) && isLabel(addr+i)) {
-                        return;
-                    }
+/**
+* The -previous run's -exportmap: its map, one status byte per PRG byte, and
+* the record end of every resolved inline callsite.
+**/
+
+    static final class PreviousExport {
+        final int[] map;
+        final TreeMap<Integer, Integer> recordEnds = new TreeMap<Integer, Integer>();
+
+        private PreviousExport(int[] map) {
+            this.map = map;
+        }
+
+        static PreviousExport read(String path) throws IOException {
+            try (java.io.DataInputStream in = new java.io.DataInputStream(
+                    new java.io.BufferedInputStream(new FileInputStream(path)))) {
+                if (in.readInt() != EXPORT_MAGIC) {
+                    throw new IOException("not a NESrev analysis export");
                 }
-                map[addr] |= LABEL;
+                int version = in.readInt();
+                if (version != EXPORT_VERSION) {
+                    throw new IOException("unsupported export version " + version);
+                }
+                int mapper = in.readInt();
+                int size = in.readInt();
+                if (mapper != mapperNumber || size != prgSize) {
+                    throw new IOException("export is for mapper " + mapper + ", " + size
+                        + " bytes of PRG, not this ROM");
+                }
+                int[] map = new int[size];
+                for (int i = 0; i < size; i++) {
+                    map[i] = in.readUnsignedByte();
+                }
+                PreviousExport e = new PreviousExport(map);
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    int callsite = in.readInt();
+                    e.recordEnds.put(callsite, in.readInt());
+                }
+                return e;
             }
         }
     }
 
 /**
-* Makes sure that every non-mapped (DATA) chunk is labelled in the disassembly.
+* Cycle cost of one routine; see routineCost().
 **/
 
-    public static void verifyDataLabels() {
-        for (int i=1; i<prgSize; i++) {
-            if (isCode(i-1) && isData(i)) {
-                map[i] |= LABEL;
+    static final class RoutineCost {
+        final int entry;
+        long best;
+        long worst;
+        long selfBest;
+        long selfWorst;
+        int instructions;
+        final TreeSet<Integer> loopHeaders = new TreeSet<Integer>();
+        // loop headers with no -loopbounds entry
+        final TreeSet<Integer> unboundedLoops = new TreeSet<Integer>();
+        final TreeSet<Integer> callees = new TreeSet<Integer>();
+        int unresolvedCalls;
+        int indirectExits;
+        boolean recursive;
+        boolean done;
+        // instruction graph kept for worstArrival(): cycleEdges() per
+        // instruction, DFS postorder, back edges as (ofs << 32 | edge index),
+        // and the {self, inclusive} extra iterations of each bounded loop
+        final HashMap<Integer, long[][]> edges = new HashMap<Integer, long[][]>();
+        final ArrayList<Integer> postorder = new ArrayList<Integer>();
+        final HashSet<Long> backEdges = new HashSet<Long>();
+        final HashMap<Integer, long[]> loopExtra = new HashMap<Integer, long[]>();
+
+        RoutineCost(int entry) {
+            this.entry = entry;
+        }
+
+        // true when worst is a real upper bound: every loop bounded, no
+        // recursion, and no control flow the static model can't follow
+        boolean isBounded() {
+            return unboundedLoops.isEmpty() && !recursive && unresolvedCalls == 0 && indirectExits == 0;
+        }
+    }
+
+/**
+* Result of computeNmiBudget(). Cycle counts include the interrupt sequence.
+**/
+
+    static final class NmiBudget {
+        final int entry;
+        long best;
+        long worst;
+        // latest completion of any PPU write; 0 when the handler makes none
+        long lastPpuWrite;
+        boolean bounded = true;
+        final TreeSet<Integer> unboundedLoops = new TreeSet<Integer>();
+        // PPU writes, latest first
+        final ArrayList<PpuWrite> ppuWrites = new ArrayList<PpuWrite>();
+        // { routine, entry cycle, calling instruction or -1 } from the NMI
+        // entry down to the routine holding the last PPU write
+        final ArrayList<long[]> criticalPath = new ArrayList<long[]>();
+
+        NmiBudget(int entry) {
+            this.entry = entry;
+        }
+
+        boolean exceeds(int budgetCycles) {
+            return lastPpuWrite > budgetCycles;
+        }
+
+        static final class PpuWrite {
+            final int ofs;
+            final String register;
+            int routine;
+            long worstCycles;
+
+            PpuWrite(int ofs, int routine, String register, long worstCycles) {
+                this.ofs = ofs;
+                this.routine = routine;
+                this.register = register;
+                this.worstCycles = worstCycles;
+            }
+        }
+    }
+
+/**
+* Headless 2A03 interpreter for -emulate. Runs the PRG image from the RESET
+* vector frame by frame, firing NMI at the start of each vblank when PPUCTRL
+* enables it, and records every PRG offset it executes. PPU, APU and
+* controller registers are stubs: $2002 reports vblank for the first
+* VBLANK_NTSC_CYCLES of a frame and sprite-zero hit from a fixed cycle
+* onward so polling loops fall through, $4014 costs the DMA stall, and $4016
+* shifts out `buttons`. MMC1 banking follows the serial register protocol.
+* BRK and undefined opcodes halt the run, since static analysis treats both
+* as non-code.
+**/
+
+    static final class Emulator {
+        // 262 scanlines of 341 dots at 3 dots per CPU cycle
+        static final int FRAME_CYCLES = 29781;
+        // roughly where a status-bar split's sprite zero is hit
+        static final int SPRITE_ZERO_CYCLE = VBLANK_NTSC_CYCLES + 33 * 114;
+
+        final int[] prg;
+        final int prgSize;
+        final int mapper;
+        final int[] ram = new int[0x800];
+        final int[] prgRam = new int[0x2000];
+        // PRG offsets mapped at $8000 and $C000
+        final int[] window = new int[2];
+        // PRG offsets where an instruction was executed, and those reached
+        // through JMP (ind) or an RTS that doesn't return after a JSR
+        final boolean[] executed;
+        final boolean[] dispatched;
+        int a, x, y, s, pc;
+        boolean carry, zero, interruptDisable, decimal, overflow, negative;
+        long cycles;
+        long instructions;
+        long frameStart;
+        int frames;
+        // reason the run stopped early, or null
+        String halted;
+        int ppuCtrl;
+        boolean vblank;
+        boolean nmiPending;
+        // controller 1 state (bit 0 = A ... bit 7 = Right) and its shifter
+        int buttons;
+        private int joyShift;
+        private boolean strobe;
+        private int mmc1Shift;
+        private int mmc1Count;
+        private int mmc1Control = 0x0C;
+        private int mmc1PrgBank;
+        // bus cycle of the last MMC1 write, and how far into the current
+        // instruction the write in progress lands; MMC1 ignores a write on
+        // the cycle right after another (the second write of an RMW)
+        private long mmc1WriteCycle = Long.MIN_VALUE;
+        private int writeCycleOffset;
+        // set by the indexed addressing helpers when the effective address
+        // leaves the base page
+        private boolean crossed;
+        // -profile hook; call/return events are applied after the step's
+        // cycles are accounted, so JSR costs the caller and RTS the callee
+        Profiler profiler;
+        private int pendingCall = -1;
+        private boolean stackRaised;
+
+        Emulator(int[] prg, int prgSize, int mapper) {
+            this.prg = prg;
+            this.prgSize = prgSize;
+            this.mapper = mapper;
+            this.executed = new boolean[prgSize];
+            this.dispatched = new boolean[prgSize];
+            updateWindows();
+        }
+
+        void reset() {
+            s = 0xFD;
+            interruptDisable = true;
+            pc = read16(0xFFFC);
+            cycles = 7;
+            if (profiler != null) {
+                profiler.enter(routineKey(pc), 0x100, false);
+            }
+        }
+
+        int routineKey(int addr) {
+            return (addr >= 0x8000) ? prgOffset(addr) : -(addr + 1);
+        }
+
+        void runFrames(int count) {
+            for (int f = 0; f < count && halted == null; f++) {
+                runFrame();
+            }
+        }
+
+        void runFrame() {
+            frameStart = cycles;
+            vblank = true;
+            if ((ppuCtrl & 0x80) != 0) {
+                nmiPending = true;
+            }
+            long end = frameStart + FRAME_CYCLES;
+            while (cycles < end && halted == null) {
+                cycles += step();
+            }
+            frames++;
+        }
+
+        int prgOffset(int addr) {
+            return (addr >= 0x8000) ? window[(addr >> 14) & 1] + (addr & 0x3FFF) : -1;
+        }
+
+/**
+* Executes one instruction (or takes a pending NMI) and returns its cycles.
+**/
+
+        int step() {
+            if (profiler == null) {
+                return execute();
+            }
+            boolean nmi = nmiPending;
+            int cyc = execute();
+            if (nmi) {
+                // the interrupt sequence is charged to the handler
+                profiler.enter(routineKey(pc), s, true);
+            }
+            profiler.account(frames, cyc);
+            if (pendingCall >= 0) {
+                profiler.enter(routineKey(pendingCall), s, false);
+            } else if (stackRaised) {
+                profiler.unwind(s);
+            }
+            pendingCall = -1;
+            stackRaised = false;
+            return cyc;
+        }
+
+        private int execute() {
+            if (nmiPending) {
+                nmiPending = false;
+                interrupt(0xFFFA);
+                return 7;
+            }
+            int at = pc;
+            int op;
+            if (at >= 0x8000) {
+                int ofs = window[(at >> 14) & 1] + (at & 0x3FFF);
+                executed[ofs] = true;
+                op = prg[ofs];
+            } else {
+                op = read(at);
+            }
+            pc = (pc + 1) & 0xFFFF;
+            instructions++;
+            int cyc = opcycleLookup[op];
+            crossed = false;
+            int ea = 0;
+            switch (opaddrmodeLookup[op]) {
+                case IMMD: ea = pc; pc = (pc + 1) & 0xFFFF; break;
+                case ZERO: ea = fetch(); break;
+                case ZERX: ea = (fetch() + x) & 0xFF; break;
+                case ZERY: ea = (fetch() + y) & 0xFF; break;
+                case ABSL: ea = fetch16(); break;
+                case ABSX: ea = indexed(fetch16(), x); break;
+                case ABSY: ea = indexed(fetch16(), y); break;
+                case INDR: ea = fetch16(); break;
+                case INDX: {
+                    int zp = (fetch() + x) & 0xFF;
+                    ea = read(zp) | (read((zp + 1) & 0xFF) << 8);
+                    break;
+                }
+                case INDY: {
+                    int zp = fetch();
+                    ea = indexed(read(zp) | (read((zp + 1) & 0xFF) << 8), y);
+                    break;
+                }
+                case RELV: ea = fetch(); break;
+                case UNDF: halted = "undefined opcode $" + hex2(op) + " at $" + hex4(at); return 0;
+                default: break;
+            }
+            if (crossed && PAGE_CROSS_READ_OPCODE[op]) {
+                cyc++;
+            }
+            switch (op) {
+                // loads and stores
+                case 0xA9: case 0xA5: case 0xB5: case 0xAD: case 0xBD: case 0xB9: case 0xA1: case 0xB1:
+                    a = read(ea); flags(a); break;
+                case 0xA2: case 0xA6: case 0xB6: case 0xAE: case 0xBE:
+                    x = read(ea); flags(x); break;
+                case 0xA0: case 0xA4: case 0xB4: case 0xAC: case 0xBC:
+                    y = read(ea); flags(y); break;
+                case 0x85: case 0x95: case 0x8D: case 0x9D: case 0x99: case 0x81: case 0x91:
+                    cyc += write(ea, a); break;
+                case 0x86: case 0x96: case 0x8E:
+                    cyc += write(ea, x); break;
+                case 0x84: case 0x94: case 0x8C:
+                    cyc += write(ea, y); break;
+                // arithmetic and logic
+                case 0x69: case 0x65: case 0x75: case 0x6D: case 0x7D: case 0x79: case 0x61: case 0x71:
+                    adc(read(ea)); break;
+                case 0xE9: case 0xE5: case 0xF5: case 0xED: case 0xFD: case 0xF9: case 0xE1: case 0xF1:
+                    adc(read(ea) ^ 0xFF); break;
+                case 0x29: case 0x25: case 0x35: case 0x2D: case 0x3D: case 0x39: case 0x21: case 0x31:
+                    a &= read(ea); flags(a); break;
+                case 0x09: case 0x05: case 0x15: case 0x0D: case 0x1D: case 0x19: case 0x01: case 0x11:
+                    a |= read(ea); flags(a); break;
+                case 0x49: case 0x45: case 0x55: case 0x4D: case 0x5D: case 0x59: case 0x41: case 0x51:
+                    a ^= read(ea); flags(a); break;
+                case 0xC9: case 0xC5: case 0xD5: case 0xCD: case 0xDD: case 0xD9: case 0xC1: case 0xD1:
+                    compare(a, read(ea)); break;
+                case 0xE0: case 0xE4: case 0xEC:
+                    compare(x, read(ea)); break;
+                case 0xC0: case 0xC4: case 0xCC:
+                    compare(y, read(ea)); break;
+                case 0x24: case 0x2C: {
+                    int m = read(ea);
+                    zero = (a & m) == 0;
+                    negative = (m & 0x80) != 0;
+                    overflow = (m & 0x40) != 0;
+                    break;
+                }
+                // shifts and read-modify-write
+                case 0x0A: a = asl(a); break;
+                case 0x4A: a = lsr(a); break;
+                case 0x2A: a = rol(a); break;
+                case 0x6A: a = ror(a); break;
+                case 0x06: case 0x16: case 0x0E: case 0x1E: {
+                    int old = read(ea);
+                    modify(ea, old, asl(old));
+                    break;
+                }
+                case 0x46: case 0x56: case 0x4E: case 0x5E: {
+                    int old = read(ea);
+                    modify(ea, old, lsr(old));
+                    break;
+                }
+                case 0x26: case 0x36: case 0x2E: case 0x3E: {
+                    int old = read(ea);
+                    modify(ea, old, rol(old));
+                    break;
+                }
+                case 0x66: case 0x76: case 0x6E: case 0x7E: {
+                    int old = read(ea);
+                    modify(ea, old, ror(old));
+                    break;
+                }
+                case 0xE6: case 0xF6: case 0xEE: case 0xFE: {
+                    int old = read(ea);
+                    int m = (old + 1) & 0xFF;
+                    modify(ea, old, m);
+                    flags(m);
+                    break;
+                }
+                case 0xC6: case 0xD6: case 0xCE: case 0xDE: {
+                    int old = read(ea);
+                    int m = (old - 1) & 0xFF;
+                    modify(ea, old, m);
+                    flags(m);
+                    break;
+                }
+                case 0xE8: x = (x + 1) & 0xFF; flags(x); break;
+                case 0xC8: y = (y + 1) & 0xFF; flags(y); break;
+                case 0xCA: x = (x - 1) & 0xFF; flags(x); break;
+                case 0x88: y = (y - 1) & 0xFF; flags(y); break;
+                // transfers and stack
+                case 0xAA: x = a; flags(x); break;
+                case 0xA8: y = a; flags(y); break;
+                case 0x8A: a = x; flags(a); break;
+                case 0x98: a = y; flags(a); break;
+                case 0xBA: x = s; flags(x); break;
+                case 0x9A: s = x; stackRaised = true; break;
+                case 0x48: push(a); break;
+                case 0x68: a = pull(); flags(a); break;
+                case 0x08: push(status() | 0x10); break;
+                case 0x28: setStatus(pull()); break;
+                // flags
+                case 0x18: carry = false; break;
+                case 0x38: carry = true; break;
+                case 0x58: interruptDisable = false; break;
+                case 0x78: interruptDisable = true; break;
+                case 0xB8: overflow = false; break;
+                case 0xD8: decimal = false; break;
+                case 0xF8: decimal = true; break;
+                case 0xEA: break;
+                // control flow
+                case 0x10: cyc += branch(!negative, ea); break;
+                case 0x30: cyc += branch(negative, ea); break;
+                case 0x50: cyc += branch(!overflow, ea); break;
+                case 0x70: cyc += branch(overflow, ea); break;
+                case 0x90: cyc += branch(!carry, ea); break;
+                case 0xB0: cyc += branch(carry, ea); break;
+                case 0xD0: cyc += branch(!zero, ea); break;
+                case 0xF0: cyc += branch(zero, ea); break;
+                case 0x4C: pc = ea; break;
+                case 0x6C: {
+                    // the pointer's high byte is fetched without carrying into
+                    // the next page
+                    pc = read(ea) | (read((ea & 0xFF00) | ((ea + 1) & 0xFF)) << 8);
+                    markDispatch(pc);
+                    break;
+                }
+                case 0x20: {
+                    int ret = (pc - 1) & 0xFFFF;
+                    push(ret >> 8);
+                    push(ret & 0xFF);
+                    pc = ea;
+                    pendingCall = ea;
+                    break;
+                }
+                case 0x60: {
+                    int lo = pull();
+                    pc = ((lo | (pull() << 8)) + 1) & 0xFFFF;
+                    if (!followsJsr(pc)) {
+                        markDispatch(pc);
+                    }
+                    stackRaised = true;
+                    break;
+                }
+                case 0x40: {
+                    setStatus(pull());
+                    int lo = pull();
+                    pc = lo | (pull() << 8);
+                    stackRaised = true;
+                    break;
+                }
+                default:
+                    // 0x00 (BRK) and anything mnemonicLookup calls "???"
+                    halted = "BRK/undefined opcode $" + hex2(op) + " at $" + hex4(at);
+                    return 0;
+            }
+            return cyc;
+        }
+
+        private int fetch() {
+            int v = read(pc);
+            pc = (pc + 1) & 0xFFFF;
+            return v;
+        }
+
+        private int fetch16() {
+            int lo = fetch();
+            return lo | (fetch() << 8);
+        }
+
+        private int indexed(int base, int index) {
+            int ea = (base + index) & 0xFFFF;
+            crossed = ((base ^ ea) & 0xFF00) != 0;
+            return ea;
+        }
+
+        private int branch(boolean taken, int rel) {
+            if (!taken) {
+                return 0;
+            }
+            int target = (pc + ((rel < 0x80) ? rel : rel - 0x100)) & 0xFFFF;
+            int extra = ((pc ^ target) & 0xFF00) != 0 ? 2 : 1;
+            pc = target;
+            return extra;
+        }
+
+        private void interrupt(int vector) {
+            push(pc >> 8);
+            push(pc & 0xFF);
+            push(status());
+            interruptDisable = true;
+            pc = read16(vector);
+        }
+
+        private void markDispatch(int addr) {
+            int ofs = prgOffset(addr);
+            if (ofs >= 0) {
+                dispatched[ofs] = true;
+            }
+        }
+
+        // true when the three bytes before addr are a JSR, i.e. the RTS is
+        // an ordinary subroutine return
+        private boolean followsJsr(int addr) {
+            int op = (addr - 3) & 0xFFFF;
+            if (op >= 0x8000) {
+                return prg[prgOffset(op)] == 0x20;
             }
+            return op < 0x2000 && ram[op & 0x7FF] == 0x20;
+        }
+
+        private void flags(int v) {
+            zero = v == 0;
+            negative = (v & 0x80) != 0;
+        }
+
+        private void adc(int m) {
+            int sum = a + m + (carry ? 1 : 0);
+            carry = sum > 0xFF;
+            overflow = (~(a ^ m) & (a ^ sum) & 0x80) != 0;
+            a = sum & 0xFF;
+            flags(a);
+        }
+
+        private void compare(int r, int m) {
+            carry = r >= m;
+            flags((r - m) & 0xFF);
+        }
+
+        private int asl(int v) {
+            carry = (v & 0x80) != 0;
+            v = (v << 1) & 0xFF;
+            flags(v);
+            return v;
         }
-    }
 
-/**
-* Emits one resolved inline record in spec §9.1 form. Adjacent u8 and
-* bytes(N) fields share a .DB line, each pointer field emits a single .DW
-* expression that reproduces the original encoded word, and counted8 emits
-* its count and payload as one logical .DB record (wrap may split it across
-* multiple .DB lines but the count never gets a dedicated line). Records
-* from separate callsites are never merged because the outer loop dispatches
-* per record_start.
-**/
+        private int lsr(int v) {
+            carry = (v & 1) != 0;
+            v >>= 1;
+            flags(v);
+            return v;
+        }
 
-    public static void emitInlineRecord(ResolvedRecord r) {
-        // Label the record start.
-        String startLabel = labelForOffset(r.recordStart);
-        if (toHtml) {
-            System.out.println("<A NAME=" + startLabel + "><BR>");
+        private int rol(int v) {
+            int r = ((v << 1) | (carry ? 1 : 0)) & 0xFF;
+            carry = (v & 0x80) != 0;
+            flags(r);
+            return r;
         }
-        System.out.print(startLabel + ":");
-        newLine();
-        InlineField[] fields = r.layout.fields;
-        int k = 0;
-        while (k < fields.length) {
-            InlineField f = fields[k];
-            if (f.kind == InlineField.PTR16) {
-                emitPointerField(r, k);
-                k++;
-            } else if (f.kind == InlineField.COUNTED8) {
-                emitCountedField(r, k);
-                k++;
-            } else {
-                // U8 or BYTES — collect adjacent run for one .DB sequence.
-                int runEnd = k;
-                while (runEnd < fields.length
-                       && (fields[runEnd].kind == InlineField.U8
-                           || fields[runEnd].kind == InlineField.BYTES)) {
-                    runEnd++;
-                }
-                emitDataRunFields(r, k, runEnd);
-                k = runEnd;
-            }
+
+        private int ror(int v) {
+            int r = (v >> 1) | (carry ? 0x80 : 0);
+            carry = (v & 1) != 0;
+            flags(r);
+            return r;
         }
-    }
 
-    private static void emitDataRunFields(ResolvedRecord r, int kStart, int kEnd) {
-        int start = r.fieldStarts[kStart];
-        int end = r.fieldEnds[kEnd - 1];
-        emitDbRun(start, end);
-    }
+        private void push(int v) {
+            ram[0x100 | s] = v;
+            s = (s - 1) & 0xFF;
+        }
 
-    private static void emitCountedField(ResolvedRecord r, int k) {
-        int start = r.fieldStarts[k];
-        int end = r.fieldEnds[k];
-        emitDbRun(start, end);
-    }
+        private int pull() {
+            s = (s + 1) & 0xFF;
+            return ram[0x100 | s];
+        }
 
-    private static void emitDbRun(int start, int end) {
-        System.out.print(".DB $" + hexLookup[ROM[start]]);
-        int wrapCount = 1;
-        for (int i = start + 1; i < end; i++) {
-            if ((wrapCount++ & 15) == 0) {
-                newLine();
-                System.out.print(".DB ");
-            } else {
-                System.out.print(",");
-            }
-            System.out.print("$" + hexLookup[ROM[i]]);
+        int status() {
+            return (negative ? 0x80 : 0) | (overflow ? 0x40 : 0) | 0x20 | (decimal ? 0x08 : 0)
+                | (interruptDisable ? 0x04 : 0) | (zero ? 0x02 : 0) | (carry ? 0x01 : 0);
         }
-        newLine();
-    }
 
-    private static void emitPointerField(ResolvedRecord r, int k) {
-        InlineField f = r.layout.fields[k];
-        int target = r.pointerTargets[k];
-        int adj = f.pointerAdjustment;
-        String labelStr = labelForOffset(target);
-        System.out.print(".DW ");
-        printLabel(labelStr);
-        if (adj > 0) {
-            // adjusted target = encoded + adj ⇒ encoded = target - adj
-            System.out.print("-" + adj);
-        } else if (adj < 0) {
-            System.out.print("+" + (-adj));
+        private void setStatus(int p) {
+            negative = (p & 0x80) != 0;
+            overflow = (p & 0x40) != 0;
+            decimal = (p & 0x08) != 0;
+            interruptDisable = (p & 0x04) != 0;
+            zero = (p & 0x02) != 0;
+            carry = (p & 0x01) != 0;
         }
-        newLine();
-    }
 
-/**
-* Phase-1 mask construction for configured data ranges. Blocks every byte
-* in each range from being decoded as code. The parser already guarantees
-* ranges don't overlap or touch each other, so no overlap check is needed
-* here. Record-vs-range overlaps are caught by blockKnownInlineRecords
-* when it runs after this method.
-**/
+        int read16(int addr) {
+            return read(addr) | (read((addr + 1) & 0xFFFF) << 8);
+        }
 
-    public static void blockDataRanges() {
-        for (int k = 0; k < dataRanges.entries.length; k++) {
-            DataRangeEntry r = dataRanges.entries[k];
-            for (int i = r.start; i < r.end; i++) {
-                blockedFromCode[i] = true;
+        int read(int addr) {
+            if (addr < 0x2000) {
+                return ram[addr & 0x7FF];
+            }
+            if (addr >= 0x8000) {
+                return prg[window[(addr >> 14) & 1] + (addr & 0x3FFF)];
+            }
+            if (addr < 0x4000) {
+                if ((addr & 7) == 2) {
+                    long t = cycles - frameStart;
+                    int v = ((vblank && t < VBLANK_NTSC_CYCLES) ? 0x80 : 0)
+                        | ((t >= SPRITE_ZERO_CYCLE) ? 0x40 : 0);
+                    vblank = false;
+                    return v;
+                }
+                return 0;
             }
+            if (addr == 0x4016) {
+                int bit = strobe ? (buttons & 1) : (joyShift & 1);
+                if (!strobe) {
+                    joyShift = (joyShift >> 1) | 0x80;
+                }
+                return bit | 0x40;
+            }
+            if (addr < 0x4020) {
+                return 0x40;
+            }
+            if (addr >= 0x6000) {
+                return prgRam[addr & 0x1FFF];
+            }
+            // open bus
+            return addr >> 8;
         }
-    }
 
-/**
-* Phase-2 label + seed for configured data ranges. Labels each range start
-* and labels + seeds the exclusive end as a code continuation when the end
-* is still inside ROM. Must run only after blockDataRanges and
-* blockKnownInlineRecords have populated the complete barrier mask.
-**/
+        // a read-modify-write writes the unmodified value back, then the
+        // result on the next cycle; an MMC1 reset by INC $FFFF relies on it
+        private void modify(int addr, int old, int v) {
+            write(addr, old);
+            writeCycleOffset = 1;
+            write(addr, v);
+            writeCycleOffset = 0;
+        }
 
-    public static void labelAndSeedDataRanges() {
-        for (int k = 0; k < dataRanges.entries.length; k++) {
-            DataRangeEntry r = dataRanges.entries[k];
-            map[r.start] |= LABEL;
-            if (r.end < prgSize) {
-                if (blockedFromCode[r.end]) {
-                    failBlockedConflict(r.end, "data range continuation after $"
-                        + hex4(r.startCpu) + "+" + r.length);
+        // returns the extra cycles a write stalls the CPU for
+        int write(int addr, int v) {
+            if (addr < 0x2000) {
+                ram[addr & 0x7FF] = v;
+            } else if (addr < 0x4000) {
+                if ((addr & 7) == 0) {
+                    // enabling NMI during vblank raises one immediately
+                    if ((v & 0x80) != 0 && (ppuCtrl & 0x80) == 0
+                        && vblank && cycles - frameStart < VBLANK_NTSC_CYCLES) {
+                        nmiPending = true;
+                    }
+                    ppuCtrl = v;
                 }
-                map[r.end] |= LABEL;
-                processCode(r.end);
+            } else if (addr == 0x4014) {
+                return OAM_DMA_BEST_CYCLES + (int) (cycles & 1);
+            } else if (addr == 0x4016) {
+                strobe = (v & 1) != 0;
+                joyShift = buttons;
+            } else if (addr >= 0x8000) {
+                if (mapper == MAPPER_MMC1) {
+                    writeMmc1(addr, v);
+                }
+            } else if (addr >= 0x6000) {
+                prgRam[addr & 0x1FFF] = v;
             }
+            return 0;
         }
-    }
 
-/**
-* Convenience composite used by single-range tests. Runs block + label/seed
-* back-to-back; runAnalysisPass uses the split phase methods directly so all
-* barriers are constructed before any seed traces.
-**/
+        private void writeMmc1(int addr, int v) {
+            long cycle = cycles + writeCycleOffset;
+            boolean consecutive = cycle == mmc1WriteCycle + 1;
+            mmc1WriteCycle = cycle;
+            if (consecutive) {
+                return;
+            }
+            if ((v & 0x80) != 0) {
+                mmc1Shift = 0;
+                mmc1Count = 0;
+                mmc1Control |= 0x0C;
+                updateWindows();
+                return;
+            }
+            mmc1Shift |= (v & 1) << mmc1Count;
+            if (++mmc1Count < 5) {
+                return;
+            }
+            int reg = (addr >> 13) & 3;
+            if (reg == 0) {
+                mmc1Control = mmc1Shift;
+            } else if (reg == 3) {
+                mmc1PrgBank = mmc1Shift & 0x0F;
+            }
+            mmc1Shift = 0;
+            mmc1Count = 0;
+            updateWindows();
+        }
 
-    public static void applyDataRangeBarriers() {
-        blockDataRanges();
-        labelAndSeedDataRanges();
+        private void updateWindows() {
+            int banks = prgSize / 0x4000;
+            if (mapper != MAPPER_MMC1) {
+                window[0] = 0;
+                window[1] = (banks - 1) * 0x4000;
+                return;
+            }
+            int bank = mmc1PrgBank % banks;
+            switch ((mmc1Control >> 2) & 3) {
+                case 0:
+                case 1:
+                    window[0] = (bank & ~1) * 0x4000;
+                    window[1] = ((bank & ~1) + 1) % banks * 0x4000;
+                    break;
+                case 2:
+                    window[0] = 0;
+                    window[1] = bank * 0x4000;
+                    break;
+                default:
+                    window[0] = bank * 0x4000;
+                    window[1] = (banks - 1) * 0x4000;
+                    break;
+            }
+        }
+
+        private static String hex2(int v) {
+            return hexLookup[v & 0xFF];
+        }
     }
 
 /**
-*
+* Shadow call stack over an Emulator run for -profile. Each step's cycles go
+* to the routine on top of the stack (exclusive) and once to every distinct
+* routine on the stack above the innermost interrupt (inclusive), bucketed
+* per frame; an NMI's cycles are not charged to the code it interrupted.
+* JSR and NMI push a routine; after RTS, RTI, or TXS every routine whose
+* return address now lies above the stack pointer is popped, so PLA/PLA
+* early returns unwind correctly and push/RTS dispatch stays inside the
+* dispatching routine. Routines are keyed by PRG offset, or by
+* -(address + 1) for RAM code.
 **/
 
-    public static boolean needsWideningSuffixForZeroPageAddresses(int op) {
-        switch (op) {
-            case 0x6D:  return true;    /* ADC oper */
-            case 0x7D:  return true;    /* ADC oper,X */
-            case 0x2D:  return true;    /* AND oper */
-            case 0x3D:  return true;    /* AND oper,X */
-            case 0x0E:  return true;    /* ASL oper */
-            case 0x1E:  return true;    /* ASL oper,X */
-            case 0x2C:  return true;    /* BIT oper */
-            case 0xCD:  return true;    /* CMP oper */
-            case 0xDD:  return true;    /* CMP oper,X */
-            case 0xEC:  return true;    /* CPX oper */
-            case 0xCC:  return true;    /* CPY oper */
-            case 0xCE:  return true;    /* DEC oper */
-            case 0xDE:  return true;    /* DEC oper,X */
-            case 0x4D:  return true;    /* EOR oper */
-            case 0x5D:  return true;    /* EOR oper,X */
-            case 0xEE:  return true;    /* INC oper */
-            case 0xFE:  return true;    /* INC oper,X */
-            case 0xAD:  return true;    /* LDA oper */
-            case 0xBD:  return true;    /* LDA oper,X */
-            case 0xAE:  return true;    /* LDX oper */
-            case 0xBE:  return true;    /* LDX oper,Y */
-            case 0xAC:  return true;    /* LDY oper */
-            case 0xBC:  return true;    /* LDY oper,X */
-            case 0x4E:  return true;    /* LSR oper */
-            case 0x5E:  return true;    /* LSR oper,X */
-            case 0x0D:  return true;    /* ORA oper */
-            case 0x1D:  return true;    /* ORA oper,X */
-            case 0x2E:  return true;    /* ROL oper */
-            case 0x3E:  return true;    /* ROL oper,X */
-            case 0x6E:  return true;    /* ROR oper */
-            case 0x7E:  return true;    /* ROR oper,X */
-            case 0xED:  return true;    /* SBC oper */
-            case 0xFD:  return true;    /* SBC oper,X */
-            case 0x8D:  return true;    /* STA oper */
-            case 0x9D:  return true;    /* STA oper,X */
-            case 0x8E:  return true;    /* STX oper */
-            case 0x8C:  return true;    /* STY oper */
+    static final class Profiler {
+        static final int MAX_DEPTH = 256;
+
+        final int frameCount;
+        final HashMap<Integer, Entry> routines = new HashMap<Integer, Entry>();
+        long totalCycles;
+        private final Entry[] stackEntry = new Entry[MAX_DEPTH];
+        private final int[] stackSp = new int[MAX_DEPTH];
+        // whether the frame is the routine's outermost activation since the
+        // innermost interrupt, the one that collects its inclusive cycles
+        private final boolean[] stackOuter = new boolean[MAX_DEPTH];
+        // index of the innermost interrupt frame (0 when none), and the
+        // value to restore when each frame is popped
+        private final int[] stackPrevBase = new int[MAX_DEPTH];
+        private int base;
+        private int depth;
+
+        Profiler(int frameCount) {
+            this.frameCount = frameCount;
         }
-        return false;
-    }
 
-    public static void printAddress(int ofs, int op) {
-        printAddress(ofs, op, ofs);
-    }
+        Entry entry(int key) {
+            Entry e = routines.get(key);
+            if (e == null) {
+                e = new Entry(key, frameCount);
+                routines.put(key, e);
+            }
+            return e;
+        }
 
-    public static void printAddress(int ofs, int op, int contextOfs) {
-        String label=null;
-        if (isCanonicalROMAddress(ofs, contextOfs)) {   // safe canonical ROM operand
-            System.out.print(" ");
-            int a = getAddressForContext(ofs, contextOfs);
-            if (!isLabel(a)) {  // no label exists for this address!
-                for (int i=1; i<16; i++) {
-                    if (isLabel(a-i)) { // no problem, use label of address-i
-                        a-=i;
-                        printLabel(labelForOffset(a));
-                        System.out.print("+"+i);
-                        return;
-                    }
-                    else if (isLabel(a+i)) {    // no problem, use label of address+i
-                        a+=i;
-                        printLabel(labelForOffset(a));
-                        System.out.print("-"+i);
-                        return;
-                    }
-                }
-                // whoops, no label found, need to print hardcoded address...
-                System.out.print("$"+hexLookup[ROM[ofs+1]]+hexLookup[ROM[ofs]]);
+        void enter(int key, int sp, boolean interrupt) {
+            Entry e = entry(key);
+            e.calls++;
+            if (depth == MAX_DEPTH) {
+                return;
             }
-            else {
-                printLabel(labelForOffset(a));
+            stackPrevBase[depth] = base;
+            if (interrupt) {
+                base = depth;
+            }
+            boolean outer = true;
+            for (int i = base; i < depth; i++) {
+                if (stackEntry[i] == e) {
+                    outer = false;
+                    break;
+                }
             }
+            stackEntry[depth] = e;
+            stackSp[depth] = sp;
+            stackOuter[depth] = outer;
+            depth++;
         }
-        else {  // print address as direct memory offset ($XXXX)
-	    if ((ROM[ofs+1] == 0) && needsWideningSuffixForZeroPageAddresses(op))
-                System.out.print(".W");
-            System.out.print(" ");
-            System.out.print("$"+hexLookup[ROM[ofs+1]]+hexLookup[ROM[ofs]]);
+
+        void unwind(int sp) {
+            // the bottom frame (RESET) is never popped
+            while (depth > 1 && stackSp[depth - 1] < sp) {
+                depth--;
+                stackEntry[depth] = null;
+                base = stackPrevBase[depth];
+            }
         }
-    }
 
-    private static void printRelativeLiteral(int ofs) {
-        int dist = ROM[ofs+1];
-        if (dist < 0x80) {
-            int addr = ofs + 2 + dist;
-            System.out.print("$+" + (addr - ofs));
+        void account(int frame, int cycles) {
+            if (depth == 0 || frame >= frameCount) {
+                return;
+            }
+            totalCycles += cycles;
+            stackEntry[depth - 1].exclusive += cycles;
+            for (int i = base; i < depth; i++) {
+                if (stackOuter[i]) {
+                    Entry e = stackEntry[i];
+                    e.inclusive += cycles;
+                    e.frameCycles[frame] += cycles;
+                }
+            }
         }
-        else {
-            dist = (dist ^ 0xFF) + 1;
-            int addr = ofs + 2 - dist;
-            System.out.print("$-" + (ofs - 2 - addr));
+
+        static final class Entry {
+            final int key;
+            final long[] frameCycles;
+            long calls;
+            long inclusive;
+            long exclusive;
+
+            Entry(int key, int frameCount) {
+                this.key = key;
+                this.frameCycles = new long[frameCount];
+            }
         }
     }
 
 /**
-*
+* Minimal pretty-printing JSON writer for the report options. Commas and
+* indentation follow the begin/end nesting; name() precedes each member.
 **/
 
-    public static void printLabel(String label) {
-        if (toHtml)
-            System.out.print("<A HREF=\"#"+label+"\">");
-        System.out.print(label);
-        if (toHtml)
-            System.out.print("</A>");
-    }
+    static final class JsonWriter {
+        private final StringBuilder sb = new StringBuilder();
+        // per nesting level: whether the next element needs a leading comma
+        private final ArrayList<Boolean> needComma = new ArrayList<Boolean>();
+        private boolean afterName = false;
 
-/**
-*
-**/
+        JsonWriter beginObject() {
+            return open('{');
+        }
 
-    public static boolean isCode(int ofs) {
-        if (!inPrgOffset(ofs))
-            return false;
-        else
-            return ((map[ofs] & CODE) != 0);
-    }
+        JsonWriter endObject() {
+            return close('}');
+        }
 
-/**
-*
-**/
+        JsonWriter beginArray() {
+            return open('[');
+        }
+
+        JsonWriter endArray() {
+            return close(']');
+        }
+
+        JsonWriter name(String name) {
+            element();
+            sb.append(quote(name)).append(": ");
+            afterName = true;
+            return this;
+        }
+
+        JsonWriter value(String v) {
+            element();
+            sb.append(v == null ? "null" : quote(v));
+            return this;
+        }
+
+        JsonWriter value(long v) {
+            element();
+            sb.append(v);
+            return this;
+        }
 
-    public static boolean isData(int ofs) {
-        if (!inPrgOffset(ofs))
-            return false;
-        else
-            return ((map[ofs] & DATA) != 0);
-    }
+        JsonWriter value(double v) {
+            element();
+            sb.append(String.format("%.3f", v));
+            return this;
+        }
 
-/**
-*
-**/
+        JsonWriter value(boolean v) {
+            element();
+            sb.append(v);
+            return this;
+        }
 
-    public static boolean isLabel(int ofs) {
-        if (!inPrgOffset(ofs))
-            return false;
-        else
-            return ((map[ofs] & LABEL) != 0);
-    }
+        String toJson() {
+            return sb.toString() + "\n";
+        }
 
-/**
-*
-**/
+        void writeTo(String path) throws IOException {
+            try (java.io.Writer w = new java.io.OutputStreamWriter(
+                    new FileOutputStream(path), java.nio.charset.StandardCharsets.UTF_8)) {
+                w.write(toJson());
+            }
+        }
 
-    public static boolean isPtr(int ofs) {
-        if (!inPrgOffset(ofs))
-            return false;
-        else
-            return ((map[ofs] & PTR) != 0);
-    }
+        private JsonWriter open(char c) {
+            element();
+            sb.append(c);
+            needComma.add(false);
+            return this;
+        }
 
-/**
-*
-**/
+        private JsonWriter close(char c) {
+            boolean empty = !needComma.remove(needComma.size() - 1);
+            if (!empty) {
+                newline();
+            }
+            sb.append(c);
+            return this;
+        }
 
-    public static boolean isInstr(int ofs) {
-        if (!inPrgOffset(ofs))
-            return false;
-        else
-            return ((map[ofs] & INSTR) != 0);
-    }
+        private void element() {
+            if (afterName) {
+                afterName = false;
+                return;
+            }
+            int depth = needComma.size();
+            if (depth > 0) {
+                if (needComma.get(depth - 1)) {
+                    sb.append(',');
+                }
+                needComma.set(depth - 1, true);
+                newline();
+            }
+        }
 
-/**
-*
-**/
+        private void newline() {
+            sb.append('\n');
+            for (int i = 0; i < needComma.size(); i++) {
+                sb.append("  ");
+            }
+        }
 
-    public static void newLine() {
-        if (toHtml)
-            System.out.println("<BR>");
-        else
-            System.out.println("");
+        static String quote(String s) {
+            StringBuilder q = new StringBuilder("\"");
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    q.append('\\').append(c);
+                } else if (c < 0x20) {
+                    q.append(String.format("\\u%04x", (int) c));
+                } else {
+                    q.append(c);
+                }
+            }
+            return q.append('"').toString();
+        }
     }
 
 /**
-* A configured inline record after a JSR callsite has been validated against
-* the ROM. Carries per-field start/end offsets and adjusted pointer targets
-* so the analysis and output passes don't have to re-walk the layout against
-* raw bytes.
+* Flight Recorder events, one per analysis pass and one per emit. They cost
+* nothing unless a recording is active (java -XX:StartFlightRecording ...).
 **/
 
-    public static final class ResolvedRecord {
-        public final int callsite;          // PRG offset of the JSR opcode
-        public final InlineCallEntry entry; // schema this record was resolved against
-        public final int recordStart;       // callsite + 3
-        public final int recordEnd;         // exclusive PRG offset
-        public final int[] fieldStarts;     // per-field start offset, parallel to entry.layout.fields
-        public final int[] fieldEnds;       // per-field exclusive end offset
-        public final int[] pointerTargets;  // adjusted target as PRG offset; -1 for non-pointer fields
-
-        public final InlineLayout layout;   // alias of entry.layout for convenience
+    @Name("nesrev.AnalysisPass")
+    @Label("Analysis Pass")
+    @Category("NESrev")
+    @Description("One runAnalysisPass() inside the inline-call fixed point")
+    static final class AnalysisPassEvent extends jdk.jfr.Event {
+        @Label("Pass")
+        int pass;
+        @Label("Seeds")
+        long seeds;
+        @Label("Bytes Traced")
+        long bytesTraced;
+        @Label("New Callsites")
+        int newCallsites;
+    }
 
-        ResolvedRecord(int callsite, InlineCallEntry entry, int recordStart, int recordEnd,
-                       int[] fieldStarts, int[] fieldEnds, int[] pointerTargets) {
-            this.callsite = callsite;
-            this.entry = entry;
-            this.layout = entry.layout;
-            this.recordStart = recordStart;
-            this.recordEnd = recordEnd;
-            this.fieldStarts = fieldStarts;
-            this.fieldEnds = fieldEnds;
-            this.pointerTargets = pointerTargets;
-        }
+    @Name("nesrev.Emit")
+    @Label("Emit")
+    @Category("NESrev")
+    @Description("One disassemble() call")
+    static final class EmitEvent extends jdk.jfr.Event {
+        @Label("HTML")
+        boolean html;
+        @Label("PRG Size")
+        int prgSize;
     }
 
 /**
@@ -2313,6 +8657,575 @@ public class NESrev {
         }
     }
 
+/**
+* One -ngramindex segment, mapped read-only. The dictionary is searched in
+* place, so opening a segment and looking a key up costs a few page reads
+* however large the corpus is.
+**/
+
+    static final class NgramSegment {
+        final String name;
+        final int mapper;
+        final int prgSize;
+        final int keys;
+        private final ByteBuffer buf;
+        private final int dictionary;
+        private final int blob;
+
+        private NgramSegment(String name, int mapper, int prgSize, int keys, ByteBuffer buf, int dictionary) {
+            this.name = name;
+            this.mapper = mapper;
+            this.prgSize = prgSize;
+            this.keys = keys;
+            this.buf = buf;
+            this.dictionary = dictionary;
+            this.blob = dictionary + keys * 12;
+        }
+
+        static NgramSegment open(File f) throws IOException {
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (buf.getInt(0) != NGRAM_MAGIC || buf.getInt(4) != NGRAM_VERSION
+                    || buf.getInt(8) != NGRAM_LENGTH) {
+                    throw new IOException(f + " is not an n-gram segment of this version");
+                }
+                int nameLength = buf.getShort(12) & 0xFFFF;
+                byte[] nameBytes = new byte[nameLength];
+                buf.position(14);
+                buf.get(nameBytes);
+                int at = 14 + nameLength;
+                return new NgramSegment(new String(nameBytes, "UTF-8"), buf.getInt(at), buf.getInt(at + 4),
+                    buf.getInt(at + 8), buf, at + 12);
+            }
+        }
+
+        int keyAt(int k) {
+            return buf.getInt(dictionary + k * 12);
+        }
+
+        // first dictionary row whose key is >= key, unsigned
+        int lowerBound(int key) {
+            int lo = 0;
+            int hi = keys;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (Integer.compareUnsigned(keyAt(mid), key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        int find(int key) {
+            int k = lowerBound(key);
+            return (k < keys && keyAt(k) == key) ? k : -1;
+        }
+
+        int[] postings(int k) {
+            int count = buf.getInt(dictionary + k * 12 + 4);
+            int at = blob + buf.getInt(dictionary + k * 12 + 8);
+            int[] result = new int[count];
+            int last = 0;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = buf.get(at++) & 0xFF;
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                last += delta;
+                result[i] = last;
+            }
+            return result;
+        }
+
+        // CPU address of a PRG offset under this segment's mapping
+        int cpu(int ofs) {
+            if (mapper == MAPPER_MMC1) {
+                return (ofs >= prgSize - 0x4000 ? 0xC000 : 0x8000) + (ofs & 0x3FFF);
+            }
+            return 0x10000 - prgSize + ofs;
+        }
+    }
+
+/**
+* One routine's -clonereport sketch, from this ROM or read from a corpus
+* file. bank is -1 outside MMC1; layout is empty unless the routine is an
+* inline-call callee.
+**/
+
+    static final class RoutineSketch {
+        final String project;
+        final int entry;
+        final int cpu;
+        final int bank;
+        final int instructions;
+        final String label;
+        final String layout;
+        final int[] minHash;
+
+        RoutineSketch(String project, int entry, int cpu, int bank, int instructions,
+            String label, String layout, int[] minHash) {
+            this.project = project;
+            this.entry = entry;
+            this.cpu = cpu;
+            this.bank = bank;
+            this.instructions = instructions;
+            this.label = label;
+            this.layout = layout;
+            this.minHash = minHash;
+        }
+
+        boolean isNamed() {
+            return !label.matches("L[0-9A-F]{4,5}");
+        }
+
+        boolean namesBetterThan(RoutineSketch other) {
+            return isNamed() && !other.isNamed();
+        }
+
+        // whether this routine has a name or layout to offer other
+        boolean proposesTo(RoutineSketch other) {
+            return namesBetterThan(other) || (layout.length() > 0 && other.layout.length() == 0);
+        }
+    }
+
+/**
+* One -signatures row. pattern[] holds literal bytes or the wildcard codes
+* below; relative[] is the pattern offset a self-relative operand points at.
+* Entry 0 is the match start under the signature's own name; further entries
+* and data spans come from the layout column. The anchor is the run of
+* literal bytes the automaton searches for.
+**/
+
+    public static final class Signature {
+        static final int ANY = -1;
+        static final int WORD = -2;
+        static final int SELF_LO = -3;
+        static final int SELF_HI = -4;
+
+        public final String name;
+        final int[] pattern;
+        final int[] relative;
+        final int[] entryOffsets;
+        final String[] entryNames;
+        final int[] dataOffsets;
+        final int[] dataLengths;
+        final String[] dataNames;
+        final int anchor;
+        final int anchorLength;
+        final int sourceLine;
+
+        Signature(String name, int[] pattern, int[] relative, int[] entryOffsets, String[] entryNames,
+                  int[] dataOffsets, int[] dataLengths, String[] dataNames, int anchor, int anchorLength,
+                  int sourceLine) {
+            this.name = name;
+            this.pattern = pattern;
+            this.relative = relative;
+            this.entryOffsets = entryOffsets;
+            this.entryNames = entryNames;
+            this.dataOffsets = dataOffsets;
+            this.dataLengths = dataLengths;
+            this.dataNames = dataNames;
+            this.anchor = anchor;
+            this.anchorLength = anchorLength;
+            this.sourceLine = sourceLine;
+        }
+
+        // cpu is the CPU address the match would start at
+        boolean matchesAt(int[] rom, int ofs, int cpu) {
+            for (int i = 0; i < pattern.length; i++) {
+                int p = pattern[i];
+                if (p >= 0) {
+                    if (rom[ofs + i] != p) {
+                        return false;
+                    }
+                } else if (p == SELF_LO) {
+                    int target = cpu + relative[i];
+                    if (rom[ofs + i] != (target & 0xFF) || rom[ofs + i + 1] != ((target >> 8) & 0xFF)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+/**
+* Parsed -signatures file plus an Aho-Corasick automaton over every
+* signature's anchor, so one pass over the PRG finds all candidate matches
+* no matter how many signatures are loaded. Trie edges live in one map keyed
+* by (node << 8 | byte); hits[node] lists the signatures whose anchor ends at
+* that node or at any node on its failure chain.
+**/
+
+    public static final class SignatureLibrary {
+        // shortest literal run that can anchor a pattern, and the longest
+        // prefix of it the automaton needs
+        static final int MIN_ANCHOR = 3;
+        static final int MAX_ANCHOR = 16;
+
+        public final Signature[] signatures;
+        private final HashMap<Integer, Integer> edges = new HashMap<Integer, Integer>();
+        private int[] fail;
+        private int[][] hits;
+
+        SignatureLibrary(Signature[] signatures) {
+            this.signatures = signatures;
+            build();
+        }
+
+        private void build() {
+            ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>();
+            ArrayList<ArrayList<Integer>> own = new ArrayList<ArrayList<Integer>>();
+            children.add(new ArrayList<Integer>());
+            own.add(new ArrayList<Integer>());
+            for (int s = 0; s < signatures.length; s++) {
+                Signature sig = signatures[s];
+                int node = 0;
+                for (int i = 0; i < sig.anchorLength; i++) {
+                    int key = (node << 8) | sig.pattern[sig.anchor + i];
+                    Integer next = edges.get(key);
+                    if (next == null) {
+                        next = children.size();
+                        edges.put(key, next);
+                        children.get(node).add(key);
+                        children.add(new ArrayList<Integer>());
+                        own.add(new ArrayList<Integer>());
+                    }
+                    node = next;
+                }
+                own.get(node).add(s);
+            }
+            int nodes = children.size();
+            fail = new int[nodes];
+            hits = new int[nodes][];
+            hits[0] = new int[0];
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            for (Integer key : children.get(0)) {
+                int child = edges.get(key);
+                fail[child] = 0;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                ArrayList<Integer> out = own.get(node);
+                int[] inherited = hits[fail[node]];
+                int[] merged = new int[out.size() + inherited.length];
+                for (int i = 0; i < out.size(); i++) {
+                    merged[i] = out.get(i);
+                }
+                System.arraycopy(inherited, 0, merged, out.size(), inherited.length);
+                hits[node] = merged;
+                for (Integer key : children.get(node)) {
+                    int child = edges.get(key);
+                    int b = key & 0xFF;
+                    int f = fail[node];
+                    Integer next = edges.get((f << 8) | b);
+                    while (next == null && f != 0) {
+                        f = fail[f];
+                        next = edges.get((f << 8) | b);
+                    }
+                    fail[child] = (next != null && next != child) ? next : 0;
+                    queue.add(child);
+                }
+            }
+        }
+
+/**
+* Returns { signature index, PRG offset } for every place in rom[0, length)
+* where a signature's anchor occurs with room for the whole pattern, in
+* offset order. Callers still verify the full pattern with matchesAt().
+**/
+
+        ArrayList<int[]> scan(int[] rom, int length) {
+            ArrayList<int[]> found = new ArrayList<int[]>();
+            int node = 0;
+            for (int pos = 0; pos < length; pos++) {
+                int b = rom[pos];
+                Integer next = edges.get((node << 8) | b);
+                while (next == null && node != 0) {
+                    node = fail[node];
+                    next = edges.get((node << 8) | b);
+                }
+                node = (next != null) ? next : 0;
+                int[] h = hits[node];
+                for (int i = 0; i < h.length; i++) {
+                    Signature sig = signatures[h[i]];
+                    int start = pos + 1 - sig.anchorLength - sig.anchor;
+                    if (start >= 0 && start + sig.pattern.length <= length) {
+                        found.add(new int[] { h[i], start });
+                    }
+                }
+            }
+            Collections.sort(found, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    if (a[1] != b[1]) {
+                        return Integer.compare(a[1], b[1]);
+                    }
+                    return Integer.compare(a[0], b[0]);
+                }
+            });
+            return found;
+        }
+
+/**
+* Reads a signature file: header 'name|pattern' or 'name|pattern|layout',
+* then one signature per row. Pattern tokens are hex bytes, '??' for any
+* byte, '@@' for any operand word and '@+XX' for an operand word pointing
+* XX bytes past the match start. Layout items, comma-separated, are
+* '+XX=Name' for another entry and '+XX+LEN=Name' for LEN data bytes.
+**/
+
+        public static SignatureLibrary parse(String path) {
+            File f = new File(path);
+            if (!f.canRead()) {
+                throw new ConfigException("signatures: couldn't read " + path);
+            }
+            ArrayList<Signature> rows = new ArrayList<Signature>();
+            HashSet<String> names = new HashSet<String>();
+            boolean headerSeen = false;
+            int lineNo = 0;
+            try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+                String raw;
+                while ((raw = br.readLine()) != null) {
+                    lineNo++;
+                    String line = stripConfigComments(raw).trim();
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    if (!headerSeen) {
+                        if (!line.equals("name|pattern") && !line.equals("name|pattern|layout")) {
+                            throw new ConfigException("signatures: expected header 'name|pattern' or "
+                                + "'name|pattern|layout' at line " + lineNo + ", got '" + line + "'");
+                        }
+                        headerSeen = true;
+                        continue;
+                    }
+                    String[] parts = line.split("\\|", -1);
+                    if (parts.length != 2 && parts.length != 3) {
+                        throw new ConfigException("signatures: bad row at line " + lineNo + ": " + line);
+                    }
+                    rows.add(parseSignature(parts[0].trim(), parts[1].trim(),
+                        parts.length == 3 ? parts[2].trim() : "", names, lineNo));
+                }
+            } catch (IOException ex) {
+                throw new ConfigException("signatures: I/O error reading " + path + ": " + ex.getMessage());
+            }
+            if (!headerSeen) {
+                throw new ConfigException("signatures: missing header in " + path);
+            }
+            return new SignatureLibrary(rows.toArray(new Signature[0]));
+        }
+
+        private static Signature parseSignature(String name, String patternStr, String layout,
+                                                HashSet<String> names, int lineNo) {
+            checkName(name, names, lineNo);
+            ArrayList<Integer> pattern = new ArrayList<Integer>();
+            ArrayList<Integer> relative = new ArrayList<Integer>();
+            String[] tokens = patternStr.split("\\s+");
+            for (int t = 0; t < tokens.length; t++) {
+                String tok = tokens[t];
+                if (tok.equals("??")) {
+                    pattern.add(Signature.ANY);
+                    relative.add(0);
+                } else if (tok.equals("@@")) {
+                    pattern.add(Signature.WORD);
+                    pattern.add(Signature.WORD);
+                    relative.add(0);
+                    relative.add(0);
+                } else if (tok.startsWith("@+")) {
+                    int rel = parseHex(tok.substring(2), "operand offset", lineNo);
+                    pattern.add(Signature.SELF_LO);
+                    pattern.add(Signature.SELF_HI);
+                    relative.add(rel);
+                    relative.add(rel);
+                } else if (tok.length() == 2) {
+                    pattern.add(parseHex(tok, "pattern byte", lineNo));
+                    relative.add(0);
+                } else {
+                    throw new ConfigException("signatures: bad pattern token at line " + lineNo + ": " + tok);
+                }
+            }
+            int length = pattern.size();
+            int[] pat = new int[length];
+            int[] rel = new int[length];
+            int bestStart = 0;
+            int bestLength = 0;
+            int run = 0;
+            for (int i = 0; i < length; i++) {
+                pat[i] = pattern.get(i);
+                rel[i] = relative.get(i);
+                if (pat[i] == Signature.SELF_LO && rel[i] >= length) {
+                    throw new ConfigException("signatures: operand offset +" + hex2(rel[i])
+                        + " is past the end of " + name + " at line " + lineNo);
+                }
+                run = (pat[i] >= 0) ? run + 1 : 0;
+                if (run > bestLength) {
+                    bestLength = run;
+                    bestStart = i + 1 - run;
+                }
+            }
+            if (bestLength < MIN_ANCHOR) {
+                throw new ConfigException("signatures: " + name + " needs " + MIN_ANCHOR
+                    + " consecutive literal bytes at line " + lineNo);
+            }
+
+            ArrayList<Integer> entryOffsets = new ArrayList<Integer>();
+            ArrayList<String> entryNames = new ArrayList<String>();
+            ArrayList<Integer> dataOffsets = new ArrayList<Integer>();
+            ArrayList<Integer> dataLengths = new ArrayList<Integer>();
+            ArrayList<String> dataNames = new ArrayList<String>();
+            entryOffsets.add(0);
+            entryNames.add(name);
+            if (layout.length() > 0) {
+                String[] items = layout.split(",");
+                for (int k = 0; k < items.length; k++) {
+                    String item = items[k].trim();
+                    int eq = item.indexOf('=');
+                    if (!item.startsWith("+") || eq < 0) {
+                        throw new ConfigException("signatures: bad layout item at line " + lineNo + ": " + item);
+                    }
+                    String where = item.substring(1, eq).trim();
+                    String itemName = item.substring(eq + 1).trim();
+                    checkName(itemName, names, lineNo);
+                    int plus = where.indexOf('+');
+                    int ofs = parseHex(plus < 0 ? where : where.substring(0, plus), "layout offset", lineNo);
+                    if (plus < 0) {
+                        if (ofs >= length) {
+                            throw new ConfigException("signatures: entry +" + hex2(ofs)
+                                + " is past the end of " + name + " at line " + lineNo);
+                        }
+                        entryOffsets.add(ofs);
+                        entryNames.add(itemName);
+                        continue;
+                    }
+                    int len;
+                    try {
+                        len = Integer.parseInt(where.substring(plus + 1).trim());
+                    } catch (NumberFormatException ex) {
+                        len = 0;
+                    }
+                    if (len <= 0 || ofs + len > length) {
+                        throw new ConfigException("signatures: data span " + item
+                            + " must be a positive length inside " + name + " at line " + lineNo);
+                    }
+                    dataOffsets.add(ofs);
+                    dataLengths.add(len);
+                    dataNames.add(itemName);
+                }
+            }
+            for (int i = 0; i < entryOffsets.size(); i++) {
+                for (int d = 0; d < dataOffsets.size(); d++) {
+                    int e = entryOffsets.get(i);
+                    if (e >= dataOffsets.get(d) && e < dataOffsets.get(d) + dataLengths.get(d)) {
+                        throw new ConfigException("signatures: entry " + entryNames.get(i)
+                            + " is inside data span " + dataNames.get(d) + " at line " + lineNo);
+                    }
+                }
+            }
+            return new Signature(name, pat, rel, toIntArray(entryOffsets), entryNames.toArray(new String[0]),
+                toIntArray(dataOffsets), toIntArray(dataLengths), dataNames.toArray(new String[0]),
+                bestStart, Math.min(bestLength, MAX_ANCHOR), lineNo);
+        }
+
+        // names become labels: assembler identifiers, unique, and never
+        // mistakable for a generated LXXXX label
+        private static void checkName(String name, HashSet<String> names, int lineNo) {
+            if (!name.matches("[A-Za-z_][A-Za-z0-9_]*") || name.matches("L[0-9A-Fa-f]{4,5}")) {
+                throw new ConfigException("signatures: bad label name '" + name + "' at line " + lineNo);
+            }
+            if (!names.add(name)) {
+                throw new ConfigException("signatures: duplicate name " + name + " at line " + lineNo);
+            }
+        }
+
+        private static int parseHex(String tok, String what, int lineNo) {
+            try {
+                int v = Integer.parseInt(tok.trim(), 16);
+                if (v >= 0 && v <= 0xFFFF) {
+                    return v;
+                }
+            } catch (NumberFormatException ex) {
+                // fall through
+            }
+            throw new ConfigException("signatures: bad " + what + " at line " + lineNo + ": " + tok);
+        }
+
+        private static int[] toIntArray(ArrayList<Integer> list) {
+            int[] a = new int[list.size()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = list.get(i);
+            }
+            return a;
+        }
+    }
+
+/**
+* Parses a -loopbounds file: header 'addr|bound' or 'bank|addr|bound', then
+* one row per loop header (the target of the loop's backward branch or jump)
+* with the maximum number of times the loop body runs.
+**/
+
+    static HashMap<Integer, Integer> parseLoopBounds(String path) {
+        File f = new File(path);
+        if (!f.canRead()) {
+            throw new ConfigException("loopbounds: couldn't read " + path);
+        }
+        HashMap<Integer, Integer> bounds = new HashMap<Integer, Integer>();
+        boolean headerSeen = false;
+        int lineNo = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+            String raw;
+            while ((raw = br.readLine()) != null) {
+                lineNo++;
+                String line = stripConfigComments(raw).trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                if (!headerSeen) {
+                    if (!line.equals("addr|bound") && !line.equals("bank|addr|bound")) {
+                        throw new ConfigException("loopbounds: expected header 'addr|bound' or "
+                            + "'bank|addr|bound' at line " + lineNo + ", got '" + line + "'");
+                    }
+                    headerSeen = true;
+                    continue;
+                }
+                String[] parts = line.split("\\|", -1);
+                if (parts.length != 2 && parts.length != 3) {
+                    throw new ConfigException("loopbounds: bad row at line " + lineNo + ": " + line);
+                }
+                String boundStr = parts[parts.length - 1].trim();
+                int bound;
+                try {
+                    bound = Integer.parseInt(boundStr);
+                } catch (NumberFormatException ex) {
+                    throw new ConfigException("loopbounds: bound must be a positive decimal integer at line "
+                        + lineNo + ": " + boundStr);
+                }
+                if (bound <= 0) {
+                    throw new ConfigException("loopbounds: bound must be > 0 at line " + lineNo + ": " + boundStr);
+                }
+                int header = parts.length == 2
+                    ? cpuToPrgOffset(parseCpuAddress("loopbounds", parts[0].trim(), lineNo))
+                    : parseBankedPrgOffset("loopbounds", parts[0].trim(), parts[1].trim(), lineNo);
+                if (bounds.put(header, bound) != null) {
+                    throw new ConfigException("loopbounds: duplicate loop header at line " + lineNo + ": " + line);
+                }
+            }
+        } catch (IOException ex) {
+            throw new ConfigException("loopbounds: I/O error reading " + path + ": " + ex.getMessage());
+        }
+        if (!headerSeen) {
+            throw new ConfigException("loopbounds: missing header in " + path);
+        }
+        return bounds;
+    }
+
 /**
 * Shared parser helpers.
 **/
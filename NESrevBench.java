@@ -0,0 +1,360 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * NESrevBench - Microbenchmarks for the NESrev analysis and emit hot paths
+ *
+ * Each benchmark runs against NROM-128, NROM-256 and 256 KB MMC1 inputs from
+ * NESrevSynth, plus an NROM-256 input with a 256-record inline-call chain.
+ * Iterations are time-boxed; warmup iterations are discarded and the
+ * measured ones are reported as average time per operation.
+ **/
+
+public class NESrevBench {
+
+    // Consumes benchmark results so the JIT can't drop the measured work.
+    static volatile long sink;
+
+    private static int warmupIterations = 5;
+    private static int measureIterations = 10;
+    private static long iterationMillis = 500;
+    private static String filter = null;
+
+    private static void printUsage() {
+        System.out.println("Syntax: java NESrevBench <-warmup N> <-iterations N> <-time MS> <-filter TEXT>");
+    }
+
+/**
+* One benchmark body. setup() runs once per (benchmark, input) pair before
+* warmup; run() is the measured operation and returns a value for the sink.
+**/
+
+    interface Benchmark {
+        void setup(Input input) throws Exception;
+        long run() throws Exception;
+    }
+
+/**
+* One generated ROM plus its control files, written to a temp directory.
+**/
+
+    static final class Input {
+        final String name;
+        final String[] args;
+        final File inlineCalls;
+
+        Input(String name, String[] args, File inlineCalls) {
+            this.name = name;
+            this.args = args;
+            this.inlineCalls = inlineCalls;
+        }
+
+        String[] args(boolean html) {
+            if (!html) {
+                return args;
+            }
+            String[] a = Arrays.copyOf(args, args.length + 1);
+            a[args.length] = "-html";
+            return a;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                System.exit(1);
+            }
+            if (args[i].equals("-warmup")) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-iterations")) {
+                measureIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-time")) {
+                iterationMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-filter")) {
+                filter = args[++i];
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+
+        File dir = File.createTempFile("nesrev-bench-", "");
+        dir.delete();
+        dir.mkdirs();
+        Input[] inputs = {
+            generateInput(dir, "nrom128", 0x4000, 0),
+            generateInput(dir, "nrom256", 0x8000, 0),
+            generateInput(dir, "mmc1-256k", 0x40000, 1),
+            generateChainInput(dir, "chain256", 256)
+        };
+
+        String[] names = {
+            "processCode",
+            "runAnalysisToFixedPoint",
+            "resolveRecord",
+            "InlineCallsConfig.parse",
+            "parseInlineLayout",
+            "disassemble.text",
+            "disassemble.html"
+        };
+        System.out.println(String.format("%-26s %-10s %5s %14s %12s %14s  %s",
+            "Benchmark", "Input", "Cnt", "Score", "Error", "Min", "Units"));
+        for (int b = 0; b < names.length; b++) {
+            if (filter != null && names[b].indexOf(filter) < 0) {
+                continue;
+            }
+            for (int k = 0; k < inputs.length; k++) {
+                Benchmark bench = createBenchmark(names[b]);
+                bench.setup(inputs[k]);
+                report(names[b], inputs[k].name, measure(bench));
+            }
+        }
+        deleteTree(dir);
+    }
+
+    private static Benchmark createBenchmark(String name) {
+        if (name.equals("processCode")) {
+            return new ProcessCodeBenchmark();
+        }
+        if (name.equals("runAnalysisToFixedPoint")) {
+            return new AnalysisBenchmark();
+        }
+        if (name.equals("resolveRecord")) {
+            return new ResolveRecordBenchmark();
+        }
+        if (name.equals("InlineCallsConfig.parse")) {
+            return new ParseInlineCallsBenchmark();
+        }
+        if (name.equals("parseInlineLayout")) {
+            return new ParseLayoutBenchmark();
+        }
+        if (name.equals("disassemble.text")) {
+            return new DisassembleBenchmark(false);
+        }
+        return new DisassembleBenchmark(true);
+    }
+
+/**
+* Runs warmup and measured iterations and returns nanoseconds per operation
+* for each measured iteration.
+**/
+
+    private static double[] measure(Benchmark bench) throws Exception {
+        double[] results = new double[measureIterations];
+        for (int it = 0; it < warmupIterations + measureIterations; it++) {
+            long deadline = System.nanoTime() + iterationMillis * 1000000L;
+            long ops = 0;
+            long acc = 0;
+            long start = System.nanoTime();
+            long now;
+            do {
+                acc += bench.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now < deadline);
+            sink += acc;
+            if (it >= warmupIterations) {
+                results[it - warmupIterations] = (double) (now - start) / (double) ops;
+            }
+        }
+        return results;
+    }
+
+    private static void report(String bench, String input, double[] results) {
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < results.length; i++) {
+            sum += results[i];
+            min = Math.min(min, results[i]);
+        }
+        double mean = sum / results.length;
+        double var = 0;
+        for (int i = 0; i < results.length; i++) {
+            var += (results[i] - mean) * (results[i] - mean);
+        }
+        double stdev = results.length > 1 ? Math.sqrt(var / (results.length - 1)) : 0;
+        // ~99.9% interval for the mean under a normal approximation.
+        double error = results.length > 1 ? 3.29 * stdev / Math.sqrt(results.length) : 0;
+        System.out.println(String.format("%-26s %-10s %5d %14.3f %12.3f %14.3f  us/op",
+            bench, input, results.length, mean / 1000.0, error / 1000.0, min / 1000.0));
+    }
+
+/**
+* Re-traces every code seed over a cleared map. Drives processCodeSingle()
+* through the public processCode() entry with the blocked mask and known
+* inline records left in place by a full analysis.
+**/
+
+    static final class ProcessCodeBenchmark implements Benchmark {
+        private int[] map;
+        private int data;
+        private ArrayList<Integer> seeds;
+
+        @SuppressWarnings("unchecked")
+        public void setup(Input input) throws Exception {
+            NESrev.loadProject(input.args(false));
+            NESrev.runAnalysisToFixedPoint();
+            map = (int[]) getStatic("map");
+            data = (Integer) getStatic("DATA");
+            seeds = new ArrayList<Integer>((ArrayList<Integer>) getStatic("codeEntries"));
+            int prgSize = (Integer) getStatic("prgSize");
+            for (int v = prgSize - 6; v < prgSize; v += 2) {
+                seeds.add(NESrev.getAddress(v));
+            }
+        }
+
+        public long run() {
+            Arrays.fill(map, data);
+            long n = 0;
+            for (int i = 0; i < seeds.size(); i++) {
+                if (NESrev.processCode(seeds.get(i))) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+
+    static final class AnalysisBenchmark implements Benchmark {
+        public void setup(Input input) throws Exception {
+            NESrev.loadProject(input.args(false));
+        }
+
+        public long run() throws Exception {
+            setStatic("knownCallsites", new java.util.TreeMap<Integer, NESrev.ResolvedRecord>());
+            NESrev.runAnalysisToFixedPoint();
+            return ((Map<?, ?>) getStatic("knownCallsites")).size();
+        }
+    }
+
+    static final class ResolveRecordBenchmark implements Benchmark {
+        private NESrev.ResolvedRecord[] records;
+
+        public void setup(Input input) throws Exception {
+            NESrev.loadProject(input.args(false));
+            NESrev.runAnalysisToFixedPoint();
+            Map<?, ?> known = (Map<?, ?>) getStatic("knownCallsites");
+            records = known.values().toArray(new NESrev.ResolvedRecord[0]);
+        }
+
+        public long run() {
+            long n = 0;
+            for (int i = 0; i < records.length; i++) {
+                n += NESrev.resolveRecord(records[i].callsite, records[i].entry).recordEnd;
+            }
+            return n;
+        }
+    }
+
+    static final class ParseInlineCallsBenchmark implements Benchmark {
+        private String path;
+
+        public void setup(Input input) throws Exception {
+            NESrev.loadProject(input.args(false));
+            path = input.inlineCalls.getPath();
+        }
+
+        public long run() {
+            return NESrev.InlineCallsConfig.parse(path).entries.length;
+        }
+    }
+
+    static final class ParseLayoutBenchmark implements Benchmark {
+        private String[] layouts;
+
+        public void setup(Input input) {
+            layouts = NESrevSynth.LAYOUTS;
+        }
+
+        public long run() {
+            long n = 0;
+            for (int i = 0; i < layouts.length; i++) {
+                n += NESrev.parseInlineLayout(layouts[i], i + 1).fixedSize;
+            }
+            return n;
+        }
+    }
+
+    static final class DisassembleBenchmark implements Benchmark {
+        private final boolean html;
+        private final NESrev.CountingOutputStream counter =
+            new NESrev.CountingOutputStream(new OutputStream() {
+                public void write(int b) {
+                }
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        private final PrintStream discard = new PrintStream(counter, false);
+
+        DisassembleBenchmark(boolean html) {
+            this.html = html;
+        }
+
+        public void setup(Input input) throws Exception {
+            NESrev.loadProject(input.args(html));
+            NESrev.runAnalysisToFixedPoint();
+            NESrev.verifyDataLabels();
+        }
+
+        public long run() {
+            PrintStream stdout = System.out;
+            System.setOut(discard);
+            try {
+                NESrev.disassemble();
+            } finally {
+                discard.flush();
+                System.setOut(stdout);
+            }
+            return counter.count;
+        }
+    }
+
+    private static Input generateInput(File dir, String name, int size, int mapper) throws IOException {
+        NESrevSynth.Options opt = new NESrevSynth.Options();
+        opt.seed = 0x6502L + size;
+        opt.mapper = mapper;
+        opt.prgSize = size;
+        NESrevSynth.Result r = NESrevSynth.generate(opt);
+        return new Input(name, r.write(dir, name), new File(dir, name + ".inlinecalls"));
+    }
+
+    // Worst case for the fixed-point loop: every record in the chain costs a
+    // full analysis pass.
+    private static Input generateChainInput(File dir, String name, int chain) throws IOException {
+        NESrevSynth.Options opt = new NESrevSynth.Options();
+        opt.seed = 0x6502L + chain;
+        opt.prgSize = 0x8000;
+        opt.chain = chain;
+        NESrevSynth.Result r = NESrevSynth.generate(opt);
+        return new Input(name, r.write(dir, name), new File(dir, name + ".inlinecalls"));
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteTree(children[i]);
+            }
+        }
+        f.delete();
+    }
+
+    private static Object getStatic(String name) throws Exception {
+        Field f = NESrev.class.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(null);
+    }
+
+    private static void setStatic(String name, Object value) throws Exception {
+        Field f = NESrev.class.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(null, value);
+    }
+}
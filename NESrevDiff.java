@@ -0,0 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * NESrevDiff - Differential equivalence check between two NESrev engines
+ *
+ * Runs a reference and a candidate build of NESrev side by side over a
+ * corpus of PRG images (local files plus NESrevSynth output) and compares,
+ * in order, the exit status, the classification map, the label set, the
+ * resolved inline records and the emitted text. The first divergence of
+ * each ROM is reported with surrounding context. ROMs run in parallel.
+ *
+ * Each engine is a directory holding compiled NESrev classes. A local ROM
+ * NAME.prg may have a NAME.prg.args sidecar listing extra NESrev arguments
+ * (whitespace separated, '#' comments).
+ **/
+
+public class NESrevDiff {
+
+    // status bit defs, mirrored from NESrev
+    private static final int CODE = 0x01, DATA = 0x02, LABEL = 0x04, PTR = 0x08, INSTR = 0x10;
+
+    private static File referenceDir;
+    private static File candidateDir;
+    private static ArrayList<File> corpusDirs = new ArrayList<File>();
+    private static int synthCount = 0;
+    private static int jobs = Runtime.getRuntime().availableProcessors();
+    private static int contextLines = 3;
+    private static boolean keepWork = false;
+
+    private static void printUsage() {
+        System.out.println("Syntax: java NESrevDiff -reference DIR -candidate DIR <-corpus DIR>... <-synth N> <-jobs N> <-context N> <-keep>");
+    }
+
+    private static void exitWithError(String message) {
+        System.err.println(message);
+        System.exit(2);
+    }
+
+/**
+* One ROM to check: a display name and the NESrev arguments (ROM path
+* first) shared by both engines.
+**/
+
+    static final class Case {
+        final String name;
+        final String[] args;
+
+        Case(String name, String[] args) {
+            this.name = name;
+            this.args = args;
+        }
+    }
+
+/**
+* Output of one engine on one case.
+**/
+
+    static final class Run {
+        int exitCode;
+        byte[] stdout;
+        String stderr;
+        AnalysisExport export;
+    }
+
+/**
+* Parsed -exportmap file. See NESrev.writeAnalysisExport().
+**/
+
+    static final class AnalysisExport {
+        int mapper;
+        int prgSize;
+        byte[] map;
+        int[] callsites;
+        int[] recordEnds;
+
+        static AnalysisExport read(File f) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(f)))) {
+                if (in.readInt() != NESrev.EXPORT_MAGIC) {
+                    throw new IOException(f + ": not a NESrev analysis export");
+                }
+                int version = in.readInt();
+                if (version != NESrev.EXPORT_VERSION) {
+                    throw new IOException(f + ": unsupported export version " + version);
+                }
+                AnalysisExport e = new AnalysisExport();
+                e.mapper = in.readInt();
+                e.prgSize = in.readInt();
+                e.map = new byte[e.prgSize];
+                in.readFully(e.map);
+                int n = in.readInt();
+                e.callsites = new int[n];
+                e.recordEnds = new int[n];
+                for (int i = 0; i < n; i++) {
+                    e.callsites[i] = in.readInt();
+                    e.recordEnds[i] = in.readInt();
+                }
+                return e;
+            }
+        }
+
+        String cpuLabel(int ofs) {
+            if (mapper == 1) {
+                int bank = ofs / 0x4000;
+                int base = (bank == prgSize / 0x4000 - 1) ? 0xC000 : 0x8000;
+                return bank + ":$" + hex4(base + (ofs & 0x3FFF));
+            }
+            return "$" + hex4((prgSize == 0x4000 ? 0xC000 : 0x8000) + ofs);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-keep")) {
+                keepWork = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                printUsage();
+                System.exit(2);
+            }
+            String v = args[++i];
+            if (args[i-1].equals("-reference")) {
+                referenceDir = new File(v);
+            } else if (args[i-1].equals("-candidate")) {
+                candidateDir = new File(v);
+            } else if (args[i-1].equals("-corpus")) {
+                corpusDirs.add(new File(v));
+            } else if (args[i-1].equals("-synth")) {
+                synthCount = Integer.parseInt(v);
+            } else if (args[i-1].equals("-jobs")) {
+                jobs = Math.max(1, Integer.parseInt(v));
+            } else if (args[i-1].equals("-context")) {
+                contextLines = Integer.parseInt(v);
+            } else {
+                exitWithError("Bad argument: " + args[i-1]);
+            }
+        }
+        if (referenceDir == null || candidateDir == null) {
+            printUsage();
+            System.exit(2);
+        }
+        checkEngine(referenceDir);
+        checkEngine(candidateDir);
+
+        final File work = Files.createTempDirectory("nesrev-diff-").toFile();
+        ArrayList<Case> cases = new ArrayList<Case>();
+        for (File dir : corpusDirs) {
+            collectCorpus(dir, cases);
+        }
+        for (int i = 0; i < synthCount; i++) {
+            cases.add(synthCase(work, i));
+        }
+        if (cases.isEmpty()) {
+            exitWithError("Error: Empty corpus; pass -corpus DIR and/or -synth N.");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < cases.size(); i++) {
+            final Case c = cases.get(i);
+            final File caseDir = new File(work, "case" + i);
+            results.add(pool.submit(new java.util.concurrent.Callable<String>() {
+                public String call() throws Exception {
+                    caseDir.mkdirs();
+                    Run ref = runEngine(referenceDir, c, new File(caseDir, "reference"));
+                    Run cand = runEngine(candidateDir, c, new File(caseDir, "candidate"));
+                    return compare(ref, cand);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        int diverged = 0;
+        for (int i = 0; i < cases.size(); i++) {
+            String divergence;
+            try {
+                divergence = results.get(i).get();
+            } catch (java.util.concurrent.ExecutionException ex) {
+                divergence = "harness error: " + ex.getCause();
+            }
+            if (divergence == null) {
+                System.out.println("SAME     " + cases.get(i).name);
+            } else {
+                diverged++;
+                System.out.println("DIVERGED " + cases.get(i).name);
+                System.out.println(indent(divergence));
+            }
+        }
+        System.out.println(cases.size() + " ROMs, " + diverged + " diverged");
+        if (keepWork) {
+            System.out.println("work directory: " + work);
+        } else {
+            deleteTree(work);
+        }
+        System.exit(diverged == 0 ? 0 : 1);
+    }
+
+    private static void checkEngine(File dir) {
+        if (!new File(dir, "NESrev.class").isFile()) {
+            exitWithError("Error: " + dir + " has no compiled NESrev.class.");
+        }
+    }
+
+    private static void collectCorpus(File dir, ArrayList<Case> cases) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            exitWithError("Error: Couldn't read corpus directory " + dir + ".");
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (!f.isFile() || !f.getName().toLowerCase().endsWith(".prg")) {
+                continue;
+            }
+            ArrayList<String> a = new ArrayList<String>();
+            a.add(f.getPath());
+            File sidecar = new File(f.getPath() + ".args");
+            if (sidecar.isFile()) {
+                for (String line : Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8)) {
+                    int hashAt = line.indexOf('#');
+                    if (hashAt >= 0) {
+                        line = line.substring(0, hashAt);
+                    }
+                    for (String tok : line.trim().split("\\s+")) {
+                        if (tok.length() > 0) {
+                            a.add(tok);
+                        }
+                    }
+                }
+            }
+            cases.add(new Case(f.getPath(), a.toArray(new String[0])));
+        }
+    }
+
+    // Synthetic cases rotate through the supported PRG layouts.
+    private static Case synthCase(File work, int i) throws IOException {
+        NESrevSynth.Options opt = new NESrevSynth.Options();
+        opt.seed = 1000 + i;
+        switch (i % 4) {
+            case 0:  opt.mapper = 0; opt.prgSize = 0x4000; break;
+            case 1:  opt.mapper = 0; opt.prgSize = 0x8000; opt.chain = 32; break;
+            case 2:  opt.mapper = 1; opt.prgSize = 0x20000; break;
+            default: opt.mapper = 1; opt.prgSize = 0x40000; opt.jumpTableRate = 0.3; break;
+        }
+        String name = "synth" + i;
+        String[] args = NESrevSynth.generate(opt).write(work, name);
+        return new Case(name + " (seed " + opt.seed + ", mapper " + opt.mapper
+            + ", " + (opt.prgSize / 1024) + " KB)", args);
+    }
+
+    private static Run runEngine(File classDir, Case c, File prefix) throws Exception {
+        File out = new File(prefix.getPath() + ".asm");
+        File err = new File(prefix.getPath() + ".err");
+        File export = new File(prefix.getPath() + ".map");
+        ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        cmd.add("-cp");
+        cmd.add(classDir.getPath());
+        cmd.add("NESrev");
+        cmd.addAll(Arrays.asList(c.args));
+        cmd.add("-exportmap");
+        cmd.add(export.getPath());
+        Process p = new ProcessBuilder(cmd)
+            .redirectOutput(out)
+            .redirectError(err)
+            .start();
+        Run run = new Run();
+        run.exitCode = p.waitFor();
+        run.stdout = Files.readAllBytes(out.toPath());
+        run.stderr = new String(Files.readAllBytes(err.toPath()), StandardCharsets.UTF_8).trim();
+        if (run.exitCode == 0 && export.isFile()) {
+            run.export = AnalysisExport.read(export);
+        }
+        return run;
+    }
+
+/**
+* Returns a description of the first divergence, or null when the two runs
+* are equivalent. Of stderr only the first "Error:" line counts; the rest is
+* progress and timing output that differs from run to run.
+**/
+
+    static String compare(Run ref, Run cand) {
+        if (ref.exitCode != cand.exitCode || !firstError(ref.stderr).equals(firstError(cand.stderr))) {
+            return "exit status: reference " + ref.exitCode + " [" + firstError(ref.stderr) + "], candidate "
+                + cand.exitCode + " [" + firstError(cand.stderr) + "]";
+        }
+        if (ref.export != null && cand.export != null) {
+            String d = compareExports(ref.export, cand.export);
+            if (d != null) {
+                return d;
+            }
+        }
+        return compareText(ref.stdout, cand.stdout);
+    }
+
+    static String firstError(String stderr) {
+        String[] lines = stderr.split("\r?\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].startsWith("Error:")) {
+                return lines[i];
+            }
+        }
+        return "";
+    }
+
+    static String compareExports(AnalysisExport ref, AnalysisExport cand) {
+        if (ref.prgSize != cand.prgSize || ref.mapper != cand.mapper) {
+            return "PRG layout: reference mapper " + ref.mapper + "/" + ref.prgSize
+                + " bytes, candidate mapper " + cand.mapper + "/" + cand.prgSize + " bytes";
+        }
+        for (int i = 0; i < ref.prgSize; i++) {
+            if ((ref.map[i] & ~LABEL) != (cand.map[i] & ~LABEL)) {
+                return "classification at " + ref.cpuLabel(i) + " (PRG $" + Integer.toHexString(i).toUpperCase()
+                    + "): reference " + bits(ref.map[i]) + ", candidate " + bits(cand.map[i])
+                    + "\n" + mapContext(ref, cand, i);
+            }
+        }
+        for (int i = 0; i < ref.prgSize; i++) {
+            if ((ref.map[i] & LABEL) != (cand.map[i] & LABEL)) {
+                return "label at " + ref.cpuLabel(i) + ": "
+                    + ((ref.map[i] & LABEL) != 0 ? "reference only" : "candidate only")
+                    + "\n" + mapContext(ref, cand, i);
+            }
+        }
+        int n = Math.min(ref.callsites.length, cand.callsites.length);
+        for (int i = 0; i < n; i++) {
+            if (ref.callsites[i] != cand.callsites[i] || ref.recordEnds[i] != cand.recordEnds[i]) {
+                return "inline record " + i + ": reference " + ref.cpuLabel(ref.callsites[i])
+                    + "..PRG $" + Integer.toHexString(ref.recordEnds[i]).toUpperCase()
+                    + ", candidate " + cand.cpuLabel(cand.callsites[i])
+                    + "..PRG $" + Integer.toHexString(cand.recordEnds[i]).toUpperCase();
+            }
+        }
+        if (ref.callsites.length != cand.callsites.length) {
+            return "inline record count: reference " + ref.callsites.length
+                + ", candidate " + cand.callsites.length;
+        }
+        return null;
+    }
+
+    static String compareText(byte[] ref, byte[] cand) {
+        if (Arrays.equals(ref, cand)) {
+            return null;
+        }
+        String[] a = new String(ref, StandardCharsets.ISO_8859_1).split("\n", -1);
+        String[] b = new String(cand, StandardCharsets.ISO_8859_1).split("\n", -1);
+        int line = 0;
+        while (line < a.length && line < b.length && a[line].equals(b[line])) {
+            line++;
+        }
+        int from = Math.max(0, line - contextLines);
+        StringBuilder sb = new StringBuilder("output line " + (line + 1) + ":\n");
+        sb.append("--- reference\n");
+        appendLines(sb, a, from, line + contextLines + 1, line);
+        sb.append("+++ candidate\n");
+        appendLines(sb, b, from, line + contextLines + 1, line);
+        return sb.toString().trim();
+    }
+
+    private static void appendLines(StringBuilder sb, String[] lines, int from, int to, int mark) {
+        for (int i = from; i < to && i < lines.length; i++) {
+            sb.append(i == mark ? "> " : "  ").append(lines[i]).append('\n');
+        }
+    }
+
+    private static String mapContext(AnalysisExport ref, AnalysisExport cand, int at) {
+        StringBuilder sb = new StringBuilder();
+        int from = Math.max(0, at - 4);
+        int to = Math.min(ref.prgSize, at + 5);
+        for (int i = from; i < to; i++) {
+            sb.append(i == at ? "> " : "  ")
+                .append(String.format("%-10s", ref.cpuLabel(i)))
+                .append(String.format(" %-22s %s", bits(ref.map[i]), bits(cand.map[i])))
+                .append('\n');
+        }
+        sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    static String bits(int m) {
+        StringBuilder sb = new StringBuilder();
+        String[] names = { "CODE", "DATA", "LABEL", "PTR", "INSTR" };
+        int[] masks = { CODE, DATA, LABEL, PTR, INSTR };
+        for (int i = 0; i < masks.length; i++) {
+            if ((m & masks[i]) != 0) {
+                sb.append(sb.length() == 0 ? "" : "|").append(names[i]);
+            }
+        }
+        return sb.length() == 0 ? "-" : sb.toString();
+    }
+
+    private static String indent(String s) {
+        return "    " + s.replace("\n", "\n    ");
+    }
+
+    private static String hex4(int v) {
+        String s = Integer.toHexString(v & 0xFFFF).toUpperCase();
+        while (s.length() < 4) {
+            s = "0" + s;
+        }
+        return s;
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteTree(children[i]);
+            }
+        }
+        f.delete();
+    }
+}
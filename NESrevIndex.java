@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * NESrevIndex - Searches an -ngramindex corpus for an instruction sequence
+ *
+ * Every ROM disassembled with -ngramindex DIR leaves one segment in DIR.
+ * A query is a run of instructions, given as hex bytes or as assembly;
+ * operands are ignored, so relocated copies of a routine match too. Each
+ * match is printed as project, bank, CPU address and PRG offset.
+ **/
+
+public class NESrevIndex {
+
+    private static void printUsage() {
+        System.out.println("Syntax: java NESrevIndex DIR <-hex BYTES | -asm TEXT> <-limit N>");
+    }
+
+    private static void exitWithError(String message) {
+        System.err.println(message);
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            printUsage();
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        String query = null;
+        int limit = Integer.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                System.exit(1);
+            }
+            if (args[i].equals("-hex") || args[i].equals("-asm")) {
+                query = args[++i];
+            } else if (args[i].equals("-limit")) {
+                limit = Integer.parseInt(args[++i]);
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+        if (query == null) {
+            printUsage();
+            System.exit(1);
+        }
+        int[] ops;
+        try {
+            ops = NESrev.parseNgramQuery(query);
+        } catch (NESrev.ConfigException ex) {
+            exitWithError("Error: " + ex.getMessage());
+            return;
+        }
+
+        long start = System.nanoTime();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            exitWithError("Error: Couldn't read " + dir + ".");
+            return;
+        }
+        Arrays.sort(files);
+        int segments = 0;
+        int matches = 0;
+        ArrayList<String> lines = new ArrayList<String>();
+        for (int f = 0; f < files.length; f++) {
+            if (!files[f].getName().endsWith(".ngx")) {
+                continue;
+            }
+            NESrev.NgramSegment seg;
+            try {
+                seg = NESrev.NgramSegment.open(files[f]);
+            } catch (IOException ex) {
+                System.err.println("Warning: skipping " + files[f] + ": " + ex.getMessage());
+                continue;
+            }
+            segments++;
+            int[] found = NESrev.findNgramMatches(seg, ops);
+            for (int i = 0; i < found.length; i++) {
+                matches++;
+                if (lines.size() < limit) {
+                    lines.add(String.format("%s\tbank %d\t$%04X\tPRG $%05X",
+                        seg.name, found[i] >> 14, seg.cpu(found[i]), found[i]));
+                }
+            }
+        }
+        double ms = (System.nanoTime() - start) / 1e6;
+        for (int i = 0; i < lines.size(); i++) {
+            System.out.println(lines.get(i));
+        }
+        System.err.println(matches + " matches for " + ops.length + " instructions in " + segments
+            + " segments, " + String.format("%.3f", ms) + " ms");
+    }
+}
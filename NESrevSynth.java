@@ -0,0 +1,595 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * NESrevSynth - Deterministic synthetic PRG images and NESrev control files
+ *
+ * Generates NROM or MMC1 PRG images from a seed together with matching
+ * inlinecalls, dataranges, codepointers and codeentries files. The same
+ * options and seed always produce the same bytes, so benchmarks and stress
+ * tests can scale inputs without checking ROMs into the repository.
+ *
+ * Each 16 KB region (the whole PRG for NROM) holds a data block, chains of
+ * routines that JSR earlier routines, inline-call records after JSRs to
+ * configured callees, jump tables after JSRs to a dispatcher, and data gaps
+ * between routines, some of which are declared as data ranges.
+ **/
+
+public class NESrevSynth {
+
+    // Inline-call layouts, one callee per layout in the fixed region. Between
+    // them they use every InlineField kind and both pointer kinds, with and
+    // without adjustments.
+    static final String[] LAYOUTS = {
+        "u8",
+        "bytes(3)",
+        "u8,ptr16(code)",
+        "ptr16(data),u8*2",
+        "ptr16(code,-1)",
+        "counted8",
+        "u8,bytes(2),ptr16(data,1),counted8"
+    };
+
+    // Opcodes NESrev rejects as code; a jump table whose first pointer has one
+    // of these as its low byte rolls back on the first byte and is then read
+    // as a pointer table by the jsrchk path.
+    private static final int[] BAD_LOW_BYTES = {
+        0x02, 0x12, 0x22, 0x32, 0x42, 0x52, 0x62, 0x72, 0x92, 0xB2, 0xD2, 0xF2
+    };
+
+    // Room kept free at the end of a region for the closing routine, the
+    // code-pointer table and (in the fixed region) the vectors.
+    private static final int REGION_RESERVE = 0x140;
+    // Upper bound on the size of one generated routine, including its
+    // trailing data gap.
+    private static final int MAX_ROUTINE_SIZE = 0x180;
+
+/**
+* Generator knobs. Defaults give a mid-sized, moderately dense NROM-128
+* image.
+**/
+
+    public static final class Options {
+        public long seed = 1;
+        public int mapper = 0;
+        public int prgSize = 0x4000;
+        // Fraction of each region's bytes generated as routines rather than
+        // data gaps.
+        public double codeDensity = 0.6;
+        // Maximum JSRs from one routine to earlier routines.
+        public int fanout = 2;
+        // Probability that a routine ends in a JSR to the dispatcher followed
+        // by a jump table.
+        public double jumpTableRate = 0.1;
+        // Probability that a routine makes inline calls.
+        public double inlineRate = 0.3;
+        // Back-to-back inline records in one routine per region. Each record
+        // is only discovered once the previous one resolves, so this scales
+        // the number of fixed-point passes.
+        public int chain = 0;
+        // Probability that a data gap is declared in the dataranges file.
+        public double dataRangeRate = 0.5;
+    }
+
+/**
+* A generated image plus the text of its control files.
+**/
+
+    public static final class Result {
+        public final byte[] prg;
+        public final int mapper;
+        public final String inlineCalls;
+        public final String dataRanges;
+        public final String codePointers;
+        public final String codeEntries;
+        public final int routines;
+        public final int callsites;
+        public final int jumpTables;
+        public final int dataRangeCount;
+
+        Result(byte[] prg, int mapper, String inlineCalls, String dataRanges,
+               String codePointers, String codeEntries,
+               int routines, int callsites, int jumpTables, int dataRangeCount) {
+            this.prg = prg;
+            this.mapper = mapper;
+            this.inlineCalls = inlineCalls;
+            this.dataRanges = dataRanges;
+            this.codePointers = codePointers;
+            this.codeEntries = codeEntries;
+            this.routines = routines;
+            this.callsites = callsites;
+            this.jumpTables = jumpTables;
+            this.dataRangeCount = dataRangeCount;
+        }
+
+/**
+* Writes NAME.prg, NAME.inlinecalls, NAME.dataranges, NAME.codepointers and
+* NAME.codeentries into dir and returns the NESrev argument list for them.
+**/
+
+        public String[] write(File dir, String name) throws IOException {
+            File prgFile = new File(dir, name + ".prg");
+            try (FileOutputStream out = new FileOutputStream(prgFile)) {
+                out.write(prg);
+            }
+            File inlineFile = writeText(new File(dir, name + ".inlinecalls"), inlineCalls);
+            File rangesFile = writeText(new File(dir, name + ".dataranges"), dataRanges);
+            File pointersFile = writeText(new File(dir, name + ".codepointers"), codePointers);
+            File entriesFile = writeText(new File(dir, name + ".codeentries"), codeEntries);
+            return new String[] {
+                prgFile.getPath(),
+                "-mapper", Integer.toString(mapper),
+                "-inlinecalls", inlineFile.getPath(),
+                "-dataranges", rangesFile.getPath(),
+                "-codepointers", pointersFile.getPath(),
+                "-codeentries", entriesFile.getPath()
+            };
+        }
+    }
+
+/**
+* One independently addressed 16 KB bank, or the whole PRG for NROM.
+**/
+
+    private static final class Region {
+        final int bank;
+        final int start;
+        final int end;
+        final int cpuBase;
+        final boolean fixed;
+        final ArrayList<Integer> routines = new ArrayList<Integer>();
+        final ArrayList<Integer> badLowRoutines = new ArrayList<Integer>();
+        final ArrayList<Integer> dataBlocks = new ArrayList<Integer>();
+        int chainRoutine = -1;
+
+        Region(int bank, int start, int end, int cpuBase, boolean fixed) {
+            this.bank = bank;
+            this.start = start;
+            this.end = end;
+            this.cpuBase = cpuBase;
+            this.fixed = fixed;
+        }
+
+        int cpu(int ofs) {
+            return cpuBase + (ofs - start);
+        }
+    }
+
+    private final Options opt;
+    private final Random rnd;
+    private final byte[] rom;
+    private final Region[] regions;
+    private final Region fixedRegion;
+    private final int[] callees = new int[LAYOUTS.length];
+    private final NESrev.InlineLayout[] layouts = new NESrev.InlineLayout[LAYOUTS.length];
+    private int dispatcher;
+    private int pos;
+    private final StringBuilder inline = new StringBuilder();
+    private final StringBuilder ranges = new StringBuilder();
+    private final StringBuilder pointers = new StringBuilder();
+    private final StringBuilder entries = new StringBuilder();
+    private int routineCount = 0;
+    private int callsiteCount = 0;
+    private int jumpTableCount = 0;
+    private int dataRangeCount = 0;
+
+    private NESrevSynth(Options opt) {
+        this.opt = opt;
+        this.rnd = new Random(opt.seed);
+        this.rom = new byte[opt.prgSize];
+        if (opt.mapper == 0) {
+            regions = new Region[] {
+                new Region(0, 0, opt.prgSize, opt.prgSize == 0x4000 ? 0xC000 : 0x8000, true)
+            };
+        } else {
+            int banks = opt.prgSize / 0x4000;
+            regions = new Region[banks];
+            for (int b = 0; b < banks; b++) {
+                boolean fixed = b == banks - 1;
+                regions[b] = new Region(b, b * 0x4000, (b + 1) * 0x4000, fixed ? 0xC000 : 0x8000, fixed);
+            }
+        }
+        fixedRegion = regions[regions.length - 1];
+        for (int i = 0; i < LAYOUTS.length; i++) {
+            layouts[i] = NESrev.parseInlineLayout(LAYOUTS[i], i + 1);
+        }
+    }
+
+    public static Result generate(Options opt) {
+        if (opt.mapper == 0 && opt.prgSize != 0x4000 && opt.prgSize != 0x8000) {
+            throw new IllegalArgumentException("NROM PRG must be 16 KB or 32 KB");
+        }
+        if (opt.mapper == 1 && (opt.prgSize < 0x8000 || opt.prgSize > 0x40000
+            || opt.prgSize % 0x4000 != 0)) {
+            throw new IllegalArgumentException("MMC1 PRG must be 32 KB..256 KB in 16 KB units");
+        }
+        if (opt.mapper != 0 && opt.mapper != 1) {
+            throw new IllegalArgumentException("mapper must be 0 or 1");
+        }
+        return new NESrevSynth(opt).run();
+    }
+
+    private Result run() {
+        rnd.nextBytes(rom);
+        boolean banked = opt.mapper == 1;
+        inline.append(banked ? "bank|callee|layout\n" : "callee|layout\n");
+        ranges.append(banked ? "bank|addr|length\n" : "start|length\n");
+        pointers.append(banked ? "bank|addr|count\n" : "start|count\n");
+        entries.append(banked ? "bank|addr\n" : "addr\n");
+
+        // The fixed region goes first so switchable banks can call into it.
+        fillRegion(fixedRegion);
+        for (int b = 0; b < regions.length - 1; b++) {
+            fillRegion(regions[b]);
+        }
+        return new Result(rom, opt.mapper, inline.toString(), ranges.toString(),
+            pointers.toString(), entries.toString(),
+            routineCount, callsiteCount, jumpTableCount, dataRangeCount);
+    }
+
+    private void fillRegion(Region r) {
+        pos = r.start;
+        if (r.fixed) {
+            for (int i = 0; i < callees.length; i++) {
+                callees[i] = pos;
+                emit(0x60);                                  // RTS
+                appendBanked(inline, r, r.cpu(callees[i]));
+                inline.append('|').append(LAYOUTS[i]).append('\n');
+            }
+            dispatcher = pos;
+            emitDispatcher();
+        }
+        r.dataBlocks.add(pos);
+        pos += 32;
+
+        int limit = r.end - REGION_RESERVE;
+        int chainLeft = opt.chain;
+        while (pos + MAX_ROUTINE_SIZE < limit) {
+            if (chainLeft > 0) {
+                chainLeft = emitChainRoutine(r, chainLeft, limit);
+            } else {
+                emitRoutine(r);
+            }
+            emitGap(r, limit);
+        }
+
+        // Closing routine calls a spread of routines so most of the region is
+        // reachable; it is the reset target in the fixed region and a code
+        // entry elsewhere.
+        int entry = pos;
+        if (r.chainRoutine >= 0) {
+            jsr(r.chainRoutine, r);
+        }
+        int calls = Math.min(r.routines.size(), 40);
+        for (int i = 0; i < calls; i++) {
+            jsr(r.routines.get(r.routines.size() - 1 - i * r.routines.size() / Math.max(calls, 1)), r);
+        }
+        if (r.fixed) {
+            jmp(entry, r);
+        } else {
+            emit(0x60);
+            appendBanked(entries, r, r.cpu(entry));
+            entries.append('\n');
+        }
+
+        // One code-pointer table per region over a sample of routines.
+        int count = Math.min(r.routines.size(), 8);
+        if (count > 0) {
+            pos += 2;
+            int table = pos;
+            for (int i = 0; i < count; i++) {
+                word(r.cpu(r.routines.get(rnd.nextInt(r.routines.size()))));
+            }
+            if (opt.mapper == 1) {
+                appendBanked(pointers, r, r.cpu(table));
+            } else {
+                pointers.append(String.format("0x%04X", table));
+            }
+            pointers.append('|').append(count).append('\n');
+        }
+
+        if (r.fixed) {
+            int v = r.end - 6;
+            pos = v;
+            word(r.cpu(entry));                              // NMI
+            word(r.cpu(entry));                              // RESET
+            word(r.cpu(entry));                              // IRQ
+        }
+    }
+
+    private void emitRoutine(Region r) {
+        int start = pos;
+        int fillers = 2 + rnd.nextInt(10);
+        for (int i = 0; i < fillers; i++) {
+            emitFiller(r);
+        }
+        int calls = r.routines.isEmpty() ? 0 : rnd.nextInt(opt.fanout + 1);
+        for (int i = 0; i < calls; i++) {
+            jsr(pickRoutine(r), r);
+        }
+        if (rnd.nextDouble() < opt.inlineRate) {
+            int n = 1 + rnd.nextInt(3);
+            for (int i = 0; i < n; i++) {
+                emitInlineCall(r, start);
+                emitFiller(r);
+            }
+        }
+        if (rnd.nextDouble() < opt.jumpTableRate && emitJumpTable(r)) {
+            // jump table ends the routine
+        } else if (!r.routines.isEmpty() && rnd.nextInt(10) == 0) {
+            jmp(pickRoutine(r), r);                         // tail call
+        } else {
+            emit(0x60);                                      // RTS
+        }
+        addRoutine(r, start);
+    }
+
+    private int emitChainRoutine(Region r, int chainLeft, int limit) {
+        int start = pos;
+        if (r.chainRoutine < 0) {
+            r.chainRoutine = start;
+        }
+        while (chainLeft > 0 && pos + 64 < limit) {
+            emitInlineCall(r, start);
+            chainLeft--;
+        }
+        emit(0x60);
+        addRoutine(r, start);
+        return chainLeft;
+    }
+
+    private void addRoutine(Region r, int start) {
+        r.routines.add(start);
+        if (isBadLowByte(r.cpu(start) & 0xFF)) {
+            r.badLowRoutines.add(start);
+        }
+        routineCount++;
+    }
+
+/**
+* Unreachable bytes after a routine, sized so the region approaches the
+* configured code density. Some gaps are declared as data ranges; every gap
+* is followed directly by a routine.
+**/
+
+    private void emitGap(Region r, int limit) {
+        int routineLen = pos - r.routines.get(r.routines.size() - 1);
+        double density = Math.max(0.05, Math.min(1.0, opt.codeDensity));
+        int len = 1 + (int) (routineLen * (1.0 - density) / density * (0.5 + rnd.nextDouble()));
+        len = Math.min(len, Math.max(1, limit - pos - MAX_ROUTINE_SIZE));
+        int gap = pos;
+        pos += len;
+        // NESrev seeds code at the end of every data range, so any padding
+        // for the next routine's alignment belongs to the gap.
+        if (rnd.nextInt(4) == 0) {
+            alignToBadLowByte(r);
+            len = pos - gap;
+        }
+        r.dataBlocks.add(gap);
+        if (rnd.nextDouble() < opt.dataRangeRate) {
+            appendBanked(ranges, r, r.cpu(gap));
+            ranges.append('|').append(len).append('\n');
+            dataRangeCount++;
+        }
+    }
+
+    private void emitInlineCall(Region r, int self) {
+        int k = rnd.nextInt(LAYOUTS.length);
+        jsr(callees[k], r);
+        callsiteCount++;
+        NESrev.InlineField[] fields = layouts[k].fields;
+        for (int i = 0; i < fields.length; i++) {
+            NESrev.InlineField f = fields[i];
+            if (f.kind == NESrev.InlineField.COUNTED8) {
+                int count = rnd.nextInt(16);
+                emit(count);
+                for (int j = 0; j < count; j++) {
+                    emit(rnd.nextInt(256));
+                }
+            } else if (f.kind == NESrev.InlineField.PTR16) {
+                int target;
+                if (f.pointerKind == NESrev.PointerKind.CODE) {
+                    target = r.routines.isEmpty() ? self : pickRoutine(r);
+                } else {
+                    target = pickDataBlock(r);
+                }
+                word(cpuFor(target, r) - f.pointerAdjustment);
+            } else {
+                for (int j = 0; j < f.byteCount; j++) {
+                    emit(rnd.nextInt(256));
+                }
+            }
+        }
+    }
+
+/**
+* JSR to the dispatcher followed by a pointer table whose first entry has an
+* undefined-opcode low byte, then a zero word that stops the table scan.
+**/
+
+    private boolean emitJumpTable(Region r) {
+        ArrayList<Integer> firsts = r.badLowRoutines.isEmpty() && opt.mapper == 1
+            ? fixedRegion.badLowRoutines : r.badLowRoutines;
+        if (firsts.isEmpty()) {
+            return false;
+        }
+        jsr(dispatcher, r);
+        int cases = 2 + rnd.nextInt(7);
+        word(cpuFor(firsts.get(rnd.nextInt(firsts.size())), r));
+        for (int i = 1; i < cases; i++) {
+            word(cpuFor(pickRoutine(r), r));
+        }
+        word(0x0000);
+        jumpTableCount++;
+        return true;
+    }
+
+    private void emitDispatcher() {
+        // ASL A; TAY; PLA; STA $00; PLA; STA $01; INY; LDA ($00),Y; STA $02;
+        // INY; LDA ($00),Y; STA $03; JMP ($0002)
+        int[] code = {
+            0x0A, 0xA8, 0x68, 0x85, 0x00, 0x68, 0x85, 0x01, 0xC8, 0xB1, 0x00, 0x85, 0x02,
+            0xC8, 0xB1, 0x00, 0x85, 0x03, 0x6C, 0x02, 0x00
+        };
+        for (int i = 0; i < code.length; i++) {
+            emit(code[i]);
+        }
+    }
+
+    private void emitFiller(Region r) {
+        switch (rnd.nextInt(12)) {
+            case 0:  emit(0xA9); emit(rnd.nextInt(256)); break;                   // LDA #imm
+            case 1:  emit(0xA5); emit(rnd.nextInt(256)); break;                   // LDA zp
+            case 2:  emit(0x85); emit(rnd.nextInt(256)); break;                   // STA zp
+            case 3:  emit(0x8D); word(0x0200 + rnd.nextInt(0x600)); break;        // STA abs
+            case 4:  emit(0xBD); word(cpuFor(pickDataBlock(r), r)); break;        // LDA table,X
+            case 5:  emit(0x18); emit(0x69); emit(rnd.nextInt(256)); break;       // CLC; ADC #imm
+            case 6:  emit(0xE6); emit(rnd.nextInt(256)); break;                   // INC zp
+            case 7:  emit(0xAA); break;                                           // TAX
+            case 8:  emit(0x29); emit(rnd.nextInt(256)); break;                   // AND #imm
+            case 9:                                                               // LDX #n; DEX; BNE -3
+                emit(0xA2); emit(1 + rnd.nextInt(8)); emit(0xCA); emit(0xD0); emit(0xFD);
+                break;
+            case 10:                                                              // BEQ +2; LDA #imm
+                emit(0xF0); emit(0x02); emit(0xA9); emit(rnd.nextInt(256));
+                break;
+            default: emit(0xC9); emit(rnd.nextInt(256)); break;                   // CMP #imm
+        }
+    }
+
+    private void alignToBadLowByte(Region r) {
+        while (!isBadLowByte(r.cpu(pos) & 0xFF)) {
+            pos++;
+        }
+    }
+
+    private static boolean isBadLowByte(int b) {
+        for (int i = 0; i < BAD_LOW_BYTES.length; i++) {
+            if (BAD_LOW_BYTES[i] == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Routines visible from r: its own, plus the fixed region's for banks.
+    private int pickRoutine(Region r) {
+        if (r != fixedRegion && (r.routines.isEmpty() || rnd.nextInt(4) == 0)
+            && !fixedRegion.routines.isEmpty()) {
+            return fixedRegion.routines.get(rnd.nextInt(fixedRegion.routines.size()));
+        }
+        return r.routines.get(rnd.nextInt(r.routines.size()));
+    }
+
+    private int pickDataBlock(Region r) {
+        return r.dataBlocks.get(rnd.nextInt(r.dataBlocks.size()));
+    }
+
+    private int cpuFor(int ofs, Region from) {
+        return (ofs >= from.start && ofs < from.end) ? from.cpu(ofs) : fixedRegion.cpu(ofs);
+    }
+
+    private void jsr(int target, Region r) {
+        emit(0x20);
+        word(cpuFor(target, r));
+    }
+
+    private void jmp(int target, Region r) {
+        emit(0x4C);
+        word(cpuFor(target, r));
+    }
+
+    private void word(int cpu) {
+        emit(cpu & 0xFF);
+        emit((cpu >> 8) & 0xFF);
+    }
+
+    private void emit(int b) {
+        rom[pos++] = (byte) b;
+    }
+
+    private void appendBanked(StringBuilder sb, Region r, int cpu) {
+        if (opt.mapper == 1) {
+            sb.append(r.bank).append('|');
+        }
+        sb.append('$').append(String.format("%04X", cpu));
+    }
+
+    private static File writeText(File f, String text) throws IOException {
+        try (FileWriter w = new FileWriter(f)) {
+            w.write(text);
+        }
+        return f;
+    }
+
+    private static void printUsage() {
+        System.out.println("Syntax: java NESrevSynth [OUTDIR] [NAME] <-seed N> <-mapper 0|1> <-prgkb KB> <-density F> <-fanout N> <-jumptables F> <-inline F> <-chain N> <-dataranges F>");
+    }
+
+    private static void exitWithError(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            exitWithError("Error: Couldn't create " + args[0] + ".");
+        }
+        Options opt = new Options();
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                exitWithError("Error: Missing value after " + args[i] + ".");
+            }
+            String v = args[++i];
+            try {
+                if (args[i-1].equals("-seed")) {
+                    opt.seed = Long.decode(v);
+                } else if (args[i-1].equals("-mapper")) {
+                    opt.mapper = Integer.parseInt(v);
+                } else if (args[i-1].equals("-prgkb")) {
+                    opt.prgSize = Integer.parseInt(v) * 1024;
+                } else if (args[i-1].equals("-density")) {
+                    opt.codeDensity = Double.parseDouble(v);
+                } else if (args[i-1].equals("-fanout")) {
+                    opt.fanout = Integer.parseInt(v);
+                } else if (args[i-1].equals("-jumptables")) {
+                    opt.jumpTableRate = Double.parseDouble(v);
+                } else if (args[i-1].equals("-inline")) {
+                    opt.inlineRate = Double.parseDouble(v);
+                } else if (args[i-1].equals("-chain")) {
+                    opt.chain = Integer.parseInt(v);
+                } else if (args[i-1].equals("-dataranges")) {
+                    opt.dataRangeRate = Double.parseDouble(v);
+                } else {
+                    exitWithError("Bad argument: " + args[i-1]);
+                }
+            } catch (NumberFormatException ex) {
+                exitWithError("Error: Bad numeric value for " + args[i-1] + ": " + v);
+            }
+        }
+        Result result;
+        try {
+            result = generate(opt);
+        } catch (IllegalArgumentException ex) {
+            exitWithError("Error: " + ex.getMessage());
+            return;
+        }
+        String[] nesrevArgs = result.write(dir, args[1]);
+        StringBuilder cmd = new StringBuilder("java NESrev");
+        for (int i = 0; i < nesrevArgs.length; i++) {
+            cmd.append(' ').append(nesrevArgs[i]);
+        }
+        System.out.println(result.routines + " routines, " + result.callsites + " inline callsites, "
+            + result.jumpTables + " jump tables, " + result.dataRangeCount + " data ranges");
+        System.out.println(cmd);
+    }
+}
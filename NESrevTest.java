@@ -22,6 +22,8 @@ public class NESrevTest {
         testMmc1CodeEntriesTraceSwitchableBank();
         testMmc1SwitchableCodeFollowsSameBankJsr();
         testMmc1FixedBankCodePointersSeedAllSwitchableBanks();
+        testMmc1BankTrackingResolvesFixedBankJsr();
+        testMmc1BankTrackingFollowsSwitchRoutine();
         testGetAddressRejectsNonRomCpuAddress();
         testDisassembleUsesNrom256OrgBase();
         testMmc1DisassembleEmitsBankOrgsAndRoundTrips();
@@ -31,6 +33,41 @@ public class NESrevTest {
         testNrom256RelativeBranchUses32KbAddressSpace();
         testMmc1RelativeBranchDoesNotTraceSwitchableWindow();
         testVerifyDataLabelsMarksCodeToDataBoundary();
+        testStatsCountTracedAndRolledBackBytes();
+        testStatsCountAnalysisPasses();
+        testSynthIsDeterministic();
+        testSynthChainDrivesFixedPointPasses();
+        testOutputDirectoriesCreatedOnFirstWrite();
+        testExportMapRoundTripsThroughDiffReader();
+        testDiffReportsFirstDivergence();
+        testCycleTextAddsBranchAndPageCrossPenalties();
+        testRoutineCostCountsLoopOnceAndIncludesCallees();
+        testNmiBudgetAppliesLoopBoundsAndOamDma();
+        testPageCrossingBranchesAndTableReads();
+        testZeroPageReportWeightsLoopSites();
+        testEmulatorSeedsIndirectAndRtsDispatch();
+        testEmulatorBanksMmc1AndCountsCycles();
+        testEmulatorRmwResetsMmc1Once();
+        testProfilerAttributesCyclesAndFollowsInputScript();
+        testInputScriptButtonsReachController();
+        testStackDispatchSeedsSplitAndInterleavedTables();
+        testSplitPointerTablesSeedCodeAndLabelData();
+        testSplitTableRowsPinTables();
+        testCdlSeedsExecutedCodeAndBlocksReadData();
+        testCdlReadOnlyTargetIsWarning();
+        testTraceLogSeedsDistinctPcsAndWritesRunStarts();
+        testSpeculateRanksDeadRoutineFirst();
+        testSignaturesSeedNamedEntriesAndData();
+        testSignatureDataReachedByCodeIsDropped();
+        testDuplicateBanksShareOneTrace();
+        testBankCachePreloadsCallsitesAcrossProjects();
+        testNgramIndexFindsRelocatedRoutine();
+        testCloneReportProposesFromCorpus();
+        testCloneCorpusKeysProjectsByRomName();
+        testParallelEmitMatchesSerial();
+        testEmulatorSymbolsFromFinalLabels();
+        testSplitOutputRewritesOnlyChangedSegments();
+        testChangeReportAgainstPreviousExport();
         testProcessCodeFollowsJsrTarget();
         testProcessCodeSkipsNonRomJsrTarget();
         testProcessCodeQueuesRelativeBranchTarget();
@@ -305,6 +342,89 @@ public class NESrevTest {
             asm.contains(".DW L08120"));
     }
 
+    private static void testMmc1BankTrackingResolvesFixedBankJsr() throws Exception {
+        resetState();
+        configurePrgMapping(0x10000, 1);
+        int data = getIntField("DATA");
+        int[] rom = new int[0x10000];
+        int[] map = new int[0x10000];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = data;
+        }
+        int fixed = 0xC000;
+        // LDA #$01 ; five serial writes to $E000 ; JSR $8120 ; RTS
+        int at = fixed;
+        rom[at++] = 0xA9; rom[at++] = 0x01;
+        for (int i = 0; i < 5; i++) {
+            if (i > 0) {
+                rom[at++] = 0x4A;
+            }
+            rom[at++] = 0x8D; rom[at++] = 0x00; rom[at++] = 0xE0;
+        }
+        rom[at++] = 0x20; rom[at++] = 0x20; rom[at++] = 0x81;
+        rom[at++] = 0x60;
+        for (int bank = 0; bank < 3; bank++) {
+            rom[(bank * 0x4000) + 0x0120] = 0x60;
+        }
+        rom[0xFFFC] = 0x00;
+        rom[0xFFFD] = 0xC0;
+        setField("ROM", rom);
+        setField("map", map);
+        setField("blockedFromCode", new boolean[0x10000]);
+        invokePrivateNoArgs("appendFixedVectorTable");
+
+        NESrev.runAnalysisToFixedPoint();
+
+        assertTrue("JSR after selecting bank 1 should trace bank 1", NESrev.isCode(0x4120));
+        assertFalse("bank 0 copy of the JSR target must stay untraced", NESrev.isCode(0x0120));
+        assertFalse("bank 2 copy of the JSR target must stay untraced", NESrev.isCode(0x8120));
+        String asm = captureDisassemble();
+        assertContainsLine(asm, "JSR L18120");
+        assertContainsLine(asm, "L18120:");
+    }
+
+    private static void testMmc1BankTrackingFollowsSwitchRoutine() throws Exception {
+        resetState();
+        configurePrgMapping(0x10000, 1);
+        int data = getIntField("DATA");
+        int[] rom = new int[0x10000];
+        int[] map = new int[0x10000];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = data;
+        }
+        int fixed = 0xC000;
+        // $C000: LDA #$02 ; JSR $C100 ; JSR $8200 ; RTS
+        int at = fixed;
+        rom[at++] = 0xA9; rom[at++] = 0x02;
+        rom[at++] = 0x20; rom[at++] = 0x00; rom[at++] = 0xC1;
+        rom[at++] = 0x20; rom[at++] = 0x00; rom[at++] = 0x82;
+        rom[at++] = 0x60;
+        // $C100: the usual bank-switch helper taking the bank in A.
+        at = fixed + 0x0100;
+        for (int i = 0; i < 5; i++) {
+            if (i > 0) {
+                rom[at++] = 0x4A;
+            }
+            rom[at++] = 0x8D; rom[at++] = 0xFF; rom[at++] = 0xFF;
+        }
+        rom[at++] = 0x60;
+        rom[0x8200] = 0x60;
+        rom[0xFFFC] = 0x00;
+        rom[0xFFFD] = 0xC0;
+        setField("ROM", rom);
+        setField("map", map);
+        setField("blockedFromCode", new boolean[0x10000]);
+        invokePrivateNoArgs("appendFixedVectorTable");
+
+        NESrev.runAnalysisToFixedPoint();
+
+        assertTrue("bank-switch helper should be traced", NESrev.isCode(fixed + 0x0100));
+        assertTrue("JSR after the helper should resolve to bank 2", NESrev.isCode(0x8200));
+        assertFalse("bank 0 must not be traced for the resolved call", NESrev.isCode(0x0200));
+        String asm = captureDisassemble();
+        assertContainsLine(asm, "JSR L28200");
+    }
+
     private static void testGetAddressRejectsNonRomCpuAddress() throws Exception {
         resetState();
         int[] rom = new int[0x4000];
@@ -519,6 +639,1515 @@ public class NESrevTest {
         assertTrue("verifyDataLabels should set LABEL on code->data boundary", NESrev.isLabel(1));
     }
 
+    private static void testStatsCountTracedAndRolledBackBytes() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // LDA #$01 followed by an undefined opcode: both bytes roll back.
+        rom[0x0000] = 0xA9;
+        rom[0x0001] = 0x01;
+        rom[0x0002] = 0x02;
+        setField("ROM", rom);
+
+        NESrev.processCode(0x0000);
+
+        NESrev.AnalysisStats stats = (NESrev.AnalysisStats) getField("stats");
+        assertEquals("one seed processed", 1, (int) stats.seeds);
+        assertEquals("one processCodeSingle call", 1, (int) stats.processCodeSingleCalls);
+        assertEquals("LDA #imm bytes traced", 2, (int) stats.bytesTraced);
+        assertEquals("rollback covers the path and the bad byte", 3, (int) stats.bytesRolledBack);
+        assertEquals("worklist peak", 1, stats.worklistPeak);
+    }
+
+    private static void testStatsCountAnalysisPasses() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // Reset vector -> $C000: JSR $C010 ; RTS, with $C010: RTS.
+        rom[0x0000] = 0x20; rom[0x0001] = 0x10; rom[0x0002] = 0xC0;
+        rom[0x0003] = 0x60;
+        rom[0x0010] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        NESrev.runAnalysisToFixedPoint();
+        captureDisassemble();
+
+        NESrev.AnalysisStats stats = (NESrev.AnalysisStats) getField("stats");
+        assertEquals("no inline records means a single pass", 1, stats.passNanos.size());
+        assertTrue("pass time recorded", stats.passNanos.get(0) >= 0);
+        assertEquals("JSR, RTS and callee RTS traced", 5, (int) stats.bytesTraced);
+        assertTrue("emit time recorded", stats.emitNanos > 0);
+    }
+
+    private static void testSynthIsDeterministic() throws Exception {
+        NESrevSynth.Options opt = new NESrevSynth.Options();
+        opt.seed = 42;
+        opt.mapper = 1;
+        opt.prgSize = 0x10000;
+        NESrevSynth.Result a = NESrevSynth.generate(opt);
+        NESrevSynth.Result b = NESrevSynth.generate(opt);
+        assertTrue("same seed gives same PRG", java.util.Arrays.equals(a.prg, b.prg));
+        assertEquals("same seed gives same inlinecalls", a.inlineCalls, b.inlineCalls);
+        assertEquals("same seed gives same dataranges", a.dataRanges, b.dataRanges);
+        opt.seed = 43;
+        NESrevSynth.Result c = NESrevSynth.generate(opt);
+        assertFalse("different seed gives different PRG", java.util.Arrays.equals(a.prg, c.prg));
+        assertTrue("generator emits jump tables", a.jumpTables > 0);
+        assertTrue("generator emits data ranges", a.dataRangeCount > 0);
+    }
+
+    private static void testOutputDirectoriesCreatedOnFirstWrite() throws Exception {
+        resetState();
+        NESrevSynth.Options opt = new NESrevSynth.Options();
+        opt.seed = 7;
+        opt.prgSize = 0x4000;
+        NESrevSynth.Result synth = NESrevSynth.generate(opt);
+        File dir = Files.createTempDirectory("nesrev-outdirs-").toFile();
+        String[] args = synth.write(dir, "outdirs");
+        String[] options = { "-bankcache", "-ngramindex", "-clonecorpus", "-fceuxnl", "-splitout" };
+        String[] all = java.util.Arrays.copyOf(args, args.length + options.length * 2);
+        for (int k = 0; k < options.length; k++) {
+            all[args.length + k * 2] = options[k];
+            all[args.length + k * 2 + 1] = new File(dir, options[k].substring(1)).getPath();
+        }
+
+        NESrev.loadProject(all);
+        for (int k = 0; k < options.length; k++) {
+            assertFalse(options[k] + " not created while parsing", new File(dir, options[k].substring(1)).exists());
+        }
+        NESrev.runAnalysisToFixedPoint();
+        NESrev.writeFceuxSymbols(new File(dir, "fceuxnl").getPath());
+        assertTrue("created by its writer", new File(dir, "fceuxnl").isDirectory());
+        for (File f : new File(dir, "fceuxnl").listFiles()) {
+            f.delete();
+        }
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+        resetState();
+    }
+
+    private static void testSynthChainDrivesFixedPointPasses() throws Exception {
+        resetState();
+        NESrevSynth.Options opt = new NESrevSynth.Options();
+        opt.seed = 7;
+        opt.prgSize = 0x8000;
+        opt.chain = 40;
+        NESrevSynth.Result synth = NESrevSynth.generate(opt);
+        File dir = Files.createTempDirectory("nesrev-synth-").toFile();
+        String[] args = synth.write(dir, "chain");
+
+        NESrev.loadProject(args);
+        NESrev.runAnalysisToFixedPoint();
+
+        java.util.Map<?, ?> known = (java.util.Map<?, ?>) getField("knownCallsites");
+        NESrev.AnalysisStats stats = (NESrev.AnalysisStats) getField("stats");
+        assertTrue("every chained record resolves", known.size() >= opt.chain);
+        assertTrue("each chained record costs a pass", stats.passNanos.size() > opt.chain);
+        String asm = captureDisassemble();
+        assertTrue("disassembly is produced", asm.contains(".ORG $8000"));
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static void testExportMapRoundTripsThroughDiffReader() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // Reset vector -> $C000: JSR $C010 ; RTS, with $C010: RTS.
+        rom[0x0000] = 0x20; rom[0x0001] = 0x10; rom[0x0002] = 0xC0;
+        rom[0x0003] = 0x60;
+        rom[0x0010] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+
+        File f = File.createTempFile("nesrev-export-", ".map");
+        f.deleteOnExit();
+        NESrev.writeAnalysisExport(f.getPath());
+        NESrevDiff.AnalysisExport e = NESrevDiff.AnalysisExport.read(f);
+
+        int[] map = (int[]) getField("map");
+        assertEquals("export mapper", 0, e.mapper);
+        assertEquals("export PRG size", 0x4000, e.prgSize);
+        boolean same = true;
+        for (int i = 0; i < map.length; i++) {
+            same &= (e.map[i] & 0xFF) == map[i];
+        }
+        assertTrue("export map matches the status map", same);
+        assertEquals("no inline records", 0, e.callsites.length);
+        assertEquals("CPU label", "$C010", e.cpuLabel(0x0010));
+    }
+
+    private static void testDiffReportsFirstDivergence() throws Exception {
+        assertTrue("identical text has no divergence",
+            NESrevDiff.compareText("a\nb\n".getBytes(), "a\nb\n".getBytes()) == null);
+        String d = NESrevDiff.compareText("a\nb\nc\n".getBytes(), "a\nx\nc\n".getBytes());
+        assertTrue("text divergence names the line", d.startsWith("output line 2:"));
+        assertTrue("text divergence marks the reference line", d.contains("> b"));
+        assertTrue("text divergence marks the candidate line", d.contains("> x"));
+
+        NESrevDiff.Run r1 = new NESrevDiff.Run();
+        r1.stderr = "signatures: 3 patterns, 1 matches, 0 inside data ranges in 1.250 ms";
+        r1.stdout = "a\n".getBytes();
+        NESrevDiff.Run r2 = new NESrevDiff.Run();
+        r2.stderr = "signatures: 3 patterns, 1 matches, 0 inside data ranges in 0.870 ms";
+        r2.stdout = "a\n".getBytes();
+        assertTrue("timing lines are not a divergence", NESrevDiff.compare(r1, r2) == null);
+        r2.stderr = "Error: inline-data conflict at $C010\nsomething else";
+        assertTrue("error line is a divergence", NESrevDiff.compare(r1, r2).contains("Error: inline-data conflict"));
+
+        NESrevDiff.AnalysisExport a = new NESrevDiff.AnalysisExport();
+        a.prgSize = 0x4000;
+        a.map = new byte[0x4000];
+        a.callsites = new int[0];
+        a.recordEnds = new int[0];
+        NESrevDiff.AnalysisExport b = new NESrevDiff.AnalysisExport();
+        b.prgSize = 0x4000;
+        b.map = new byte[0x4000];
+        b.callsites = new int[0];
+        b.recordEnds = new int[0];
+        b.map[0x0123] = 0x04;
+        String m = NESrevDiff.compareExports(a, b);
+        assertTrue("label-only divergence is reported as a label", m.startsWith("label at $C123: candidate only"));
+        b.map[0x0010] = 0x11;
+        m = NESrevDiff.compareExports(a, b);
+        assertTrue("classification divergence wins and comes first",
+            m.startsWith("classification at $C010"));
+    }
+
+    private static void testCycleTextAddsBranchAndPageCrossPenalties() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        rom[0x0000] = 0xD0; rom[0x0001] = 0x02;   // $C000: BNE $C004 (same page)
+        rom[0x00FD] = 0xD0; rom[0x00FE] = 0x05;   // $C0FD: BNE $C104 (crosses)
+        rom[0x0010] = 0xBD; rom[0x0011] = 0x01; rom[0x0012] = 0x02;   // LDA $0201,X
+        rom[0x0013] = 0xBD; rom[0x0014] = 0x00; rom[0x0015] = 0x02;   // LDA $0200,X
+        rom[0x0016] = 0x9D; rom[0x0017] = 0x01; rom[0x0018] = 0x02;   // STA $0201,X
+        rom[0x0019] = 0xB1; rom[0x001A] = 0x10;                       // LDA ($10),Y
+        setField("ROM", rom);
+
+        assertEquals("same-page branch", "2/3", NESrev.cycleText(0x0000));
+        assertEquals("page-crossing branch", "2/4", NESrev.cycleText(0x00FD));
+        assertEquals("unaligned abs,X read may cross", "4/5", NESrev.cycleText(0x0010));
+        assertEquals("aligned abs,X read can't cross", "4", NESrev.cycleText(0x0013));
+        assertEquals("indexed store has no penalty", "5", NESrev.cycleText(0x0016));
+        assertEquals("(zp),Y read is charged", "5/6", NESrev.cycleText(0x0019));
+    }
+
+    private static void testRoutineCostCountsLoopOnceAndIncludesCallees() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDX #$03 / DEX / BNE $C002 / LDA $0201,X / JSR $C010 / RTS
+        rom[0x0000] = 0xA2; rom[0x0001] = 0x03;
+        rom[0x0002] = 0xCA;
+        rom[0x0003] = 0xD0; rom[0x0004] = 0xFD;
+        rom[0x0005] = 0xBD; rom[0x0006] = 0x01; rom[0x0007] = 0x02;
+        rom[0x0008] = 0x20; rom[0x0009] = 0x10; rom[0x000A] = 0xC0;
+        rom[0x000B] = 0x60;
+        // $C010: LDA ($10),Y / RTS
+        rom[0x0010] = 0xB1; rom[0x0011] = 0x10;
+        rom[0x0012] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+
+        NESrev.computeRoutineCosts();
+        NESrev.RoutineCost callee = NESrev.routineCost(0x0010);
+        assertEquals("callee best", 11, (int) callee.best);
+        assertEquals("callee worst", 12, (int) callee.worst);
+        assertTrue("callee is bounded", callee.isBounded());
+
+        NESrev.RoutineCost main = NESrev.routineCost(0x0000);
+        assertEquals("self best: loop body once, branch not taken", 22, (int) main.selfBest);
+        assertEquals("self worst adds the page-cross read", 23, (int) main.selfWorst);
+        assertEquals("inclusive best", 33, (int) main.best);
+        assertEquals("inclusive worst", 35, (int) main.worst);
+        assertTrue("loop header reported", main.loopHeaders.contains(0x0002));
+        assertFalse("a loop makes the worst case unbounded", main.isBounded());
+        assertEquals("one callee", 1, main.callees.size());
+
+        setField("annotateCycles", true);
+        String asm = captureDisassemble();
+        assertContainsLine(asm, "BNE LC002 ; 2/3");
+        assertContainsLine(asm, "JSR LC010 ; 6");
+    }
+
+    private static void testNmiBudgetAppliesLoopBoundsAndOamDma() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDX #$03 / LDA $0300,X / STA $2007 / DEX / BNE $C002 / JSR $C020 / RTI
+        rom[0x0000] = 0xA2; rom[0x0001] = 0x03;
+        rom[0x0002] = 0xBD; rom[0x0003] = 0x00; rom[0x0004] = 0x03;
+        rom[0x0005] = 0x8D; rom[0x0006] = 0x07; rom[0x0007] = 0x20;
+        rom[0x0008] = 0xCA;
+        rom[0x0009] = 0xD0; rom[0x000A] = 0xF7;
+        rom[0x000B] = 0x20; rom[0x000C] = 0x20; rom[0x000D] = 0xC0;
+        rom[0x000E] = 0x40;
+        // $C020: LDA #$02 / STA $4014 / RTS
+        rom[0x0020] = 0xA9; rom[0x0021] = 0x02;
+        rom[0x0022] = 0x8D; rom[0x0023] = 0x14; rom[0x0024] = 0x40;
+        rom[0x0025] = 0x60;
+        rom[0x3FFA] = 0x00; rom[0x3FFB] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+
+        assertEquals("sprite DMA stall", "517/518", NESrev.cycleText(0x0022));
+        NESrev.NmiBudget budget = NESrev.computeNmiBudget();
+        assertFalse("unbounded loop", budget.bounded);
+        assertTrue("loop header reported", budget.unboundedLoops.contains(0x0002));
+
+        File bounds = File.createTempFile("nesrev-loopbounds", ".csv");
+        bounds.deleteOnExit();
+        Files.write(bounds.toPath(), "addr|bound\n$C002|3 ; four-byte copy\n".getBytes("UTF-8"));
+        java.util.HashMap<Integer, Integer> parsed = NESrev.parseLoopBounds(bounds.getPath());
+        assertEquals("one bound", 1, parsed.size());
+        assertEquals("bound keyed by header offset", 3, (int) parsed.get(0x0002));
+        setField("loopBounds", parsed);
+
+        // one pass is 13 cycles (LDA 4, STA 4, DEX 2, taken BNE 3); two more
+        // are added at the header. The DMA write completes 7 + 40 + 6 + 2 +
+        // 518 cycles in.
+        budget = NESrev.computeNmiBudget();
+        assertTrue("bounded", budget.bounded);
+        assertEquals("best", 558, (int) budget.best);
+        assertEquals("worst", 585, (int) budget.worst);
+        assertEquals("last PPU write is the DMA", 573, (int) budget.lastPpuWrite);
+        assertEquals("two PPU writes", 2, budget.ppuWrites.size());
+        assertEquals("latest first", "$4014", budget.ppuWrites.get(0).register);
+        assertEquals("$2007 in the last iteration", 43, (int) budget.ppuWrites.get(1).worstCycles);
+        assertEquals("path reaches the DMA routine", 2, budget.criticalPath.size());
+        assertEquals("DMA routine entered after the JSR", 53, (int) budget.criticalPath.get(1)[1]);
+        assertFalse("fits NTSC", budget.exceeds(getIntField("VBLANK_NTSC_CYCLES")));
+
+        java.util.HashMap<Integer, Integer> slow = new java.util.HashMap<Integer, Integer>();
+        slow.put(0x0002, 200);
+        setField("loopBounds", slow);
+        budget = NESrev.computeNmiBudget();
+        assertEquals("199 extra passes", 3134, (int) budget.lastPpuWrite);
+        assertTrue("misses NTSC", budget.exceeds(getIntField("VBLANK_NTSC_CYCLES")));
+        assertFalse("fits PAL", budget.exceeds(getIntField("VBLANK_PAL_CYCLES")));
+    }
+
+    private static void testPageCrossingBranchesAndTableReads() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDX #$00 / LDA $C0F8,X / INX / CPX #$10 / BNE $C002 /
+        //        LDA $C108 / JSR $C1FC / LDA $C0E0,Y / RTS
+        rom[0x0000] = 0xA2; rom[0x0001] = 0x00;
+        rom[0x0002] = 0xBD; rom[0x0003] = 0xF8; rom[0x0004] = 0xC0;
+        rom[0x0005] = 0xE8;
+        rom[0x0006] = 0xE0; rom[0x0007] = 0x10;
+        rom[0x0008] = 0xD0; rom[0x0009] = 0xF8;
+        rom[0x000A] = 0xAD; rom[0x000B] = 0x08; rom[0x000C] = 0xC1;
+        rom[0x000D] = 0x20; rom[0x000E] = 0xFC; rom[0x000F] = 0xC1;
+        rom[0x0010] = 0xB9; rom[0x0011] = 0xE0; rom[0x0012] = 0xC0;
+        rom[0x0013] = 0x60;
+        // $C1FC: LDY #$02 / DEY / BNE $C1FE / RTS
+        rom[0x01FC] = 0xA0; rom[0x01FD] = 0x02;
+        rom[0x01FE] = 0x88;
+        rom[0x01FF] = 0xD0; rom[0x0200] = 0xFD;
+        rom[0x0201] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+        NESrev.verifyDataLabels();
+
+        int[] span = NESrev.tableReadSpan(0x0002);
+        assertTrue("$C0F8 table spans $C100", span != null);
+        assertEquals("table base", 0x00F8, span[0]);
+        assertEquals("table ends at the next label", 16, span[1]);
+        assertEquals("entries on the second page", 8, span[2]);
+        assertTrue("table within one page", NESrev.tableReadSpan(0x0010) == null);
+        assertTrue("same-page loop branch", NESrev.pageCrossNote(0x0008) == null);
+        assertEquals("branch over $C200", "[page cross when taken +1]", NESrev.pageCrossNote(0x01FF));
+
+        setField("annotatePageCrossing", true);
+        String asm = captureDisassemble();
+        assertContainsLine(asm, "LDA LC0F8,X ; [table crosses page: 8/16 entries +1]");
+        assertContainsLine(asm, "BNE LC002");
+        setField("annotateCycles", true);
+        asm = captureDisassemble();
+        assertContainsLine(asm, "BNE LC1FE ; 2/4 [page cross when taken +1]");
+
+        File report = File.createTempFile("nesrev-pagereport", ".json");
+        report.deleteOnExit();
+        NESrev.writePageReport(report.getPath());
+        String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+        assertTrue("branch listed", json.contains("\"target\": \"$C1FE\""));
+        assertTrue("expected cost", json.contains("\"expectedPenaltyCycles\": 0.5"));
+        assertTrue("padding to $C100", json.contains("\"alignPadding\": 8"));
+        assertTrue("one of each", json.contains("\"branches\": 1,") && json.contains("\"tableReads\": 1"));
+    }
+
+    private static void testZeroPageReportWeightsLoopSites() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDX #$04 / LDA $0010 / STA $0011,X / DEX / BNE $C002 /
+        //        INC $0010 / LDA $0300 / RTS
+        rom[0x0000] = 0xA2; rom[0x0001] = 0x04;
+        rom[0x0002] = 0xAD; rom[0x0003] = 0x10; rom[0x0004] = 0x00;
+        rom[0x0005] = 0x9D; rom[0x0006] = 0x11; rom[0x0007] = 0x00;
+        rom[0x0008] = 0xCA;
+        rom[0x0009] = 0xD0; rom[0x000A] = 0xF7;
+        rom[0x000B] = 0xEE; rom[0x000C] = 0x10; rom[0x000D] = 0x00;
+        rom[0x000E] = 0xAD; rom[0x000F] = 0x00; rom[0x0010] = 0x03;
+        rom[0x0011] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        java.util.HashMap<Integer, Integer> bounds = new java.util.HashMap<Integer, Integer>();
+        bounds.put(0x0002, 4);
+        setField("loopBounds", bounds);
+        NESrev.runAnalysisToFixedPoint();
+
+        NESrev.computeRoutineCosts();
+        NESrev.RoutineCost rc = NESrev.routineCost(0x0000);
+        HashSet<Integer> body = NESrev.loopBody(rc, 0x0002);
+        assertEquals("loop body is LDA/STA/DEX/BNE", 4, body.size());
+        assertFalse("loop exit is outside the body", body.contains(0x000B));
+        java.util.HashMap<Long, HashSet<Integer>> cache = new java.util.HashMap<Long, HashSet<Integer>>();
+        assertEquals("loop site runs 4 times", 4, (int) NESrev.executionsPerCall(rc, 0x0005, cache));
+        assertEquals("tail site runs once", 1, (int) NESrev.executionsPerCall(rc, 0x000B, cache));
+
+        File report = File.createTempFile("nesrev-zpreport", ".json");
+        report.deleteOnExit();
+        NESrev.writeZeroPageReport(report.getPath());
+        String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+        assertTrue("hotness from loop bounds", json.contains("\"hotness\": \"loopbounds\""));
+        assertTrue("three sites, 9 weighted cycles", json.contains("\"sites\": 3,\n    \"bytesSaved\": 3,\n"
+            + "    \"cyclesSaved\": 3,\n    \"weightedCycles\": 9"));
+        assertTrue("LDA $0010 ranked first", json.indexOf("\"cpu\": \"$C002\"") < json.indexOf("\"cpu\": \"$C00B\""));
+        assertTrue("indexed site flagged", json.contains("\"address\": \"$0011\",\n      \"indexed\": true"));
+        assertTrue("$0010 grouped", json.contains("\"address\": \"$0010\",\n      \"sites\": 2"));
+        assertFalse("$0300 is not zero page", json.contains("$0300"));
+    }
+
+    private static void testEmulatorSeedsIndirectAndRtsDispatch() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDA #$10 / STA $00 / LDA #$C0 / STA $01 / JMP ($0000)
+        int[] reset = { 0xA9, 0x10, 0x85, 0x00, 0xA9, 0xC0, 0x85, 0x01, 0x6C, 0x00, 0x00 };
+        // $C010: LDA #$C0 / PHA / LDA #$2F / PHA / RTS
+        int[] pushRts = { 0xA9, 0xC0, 0x48, 0xA9, 0x2F, 0x48, 0x60 };
+        // $C030: LDA #$80 / STA $2000 / JMP $C035
+        int[] idle = { 0xA9, 0x80, 0x8D, 0x00, 0x20, 0x4C, 0x35, 0xC0 };
+        // $C040: INC $02 / RTI
+        int[] nmi = { 0xE6, 0x02, 0x40 };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        System.arraycopy(pushRts, 0, rom, 0x0010, pushRts.length);
+        System.arraycopy(idle, 0, rom, 0x0030, idle.length);
+        System.arraycopy(nmi, 0, rom, 0x0040, nmi.length);
+        rom[0x3FFA] = 0x40; rom[0x3FFB] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        NESrev.Emulator emu = new NESrev.Emulator(rom, 0x4000, 0);
+        emu.reset();
+        emu.runFrames(3);
+        assertTrue("no halt", emu.halted == null);
+        assertEquals("NMI raised when enabled in vblank, then once per frame", 3, emu.ram[2]);
+        assertTrue("JMP (ind) target executed", emu.executed[0x0010]);
+        assertTrue("JMP (ind) target is a dispatch", emu.dispatched[0x0010]);
+        assertTrue("push/RTS target is a dispatch", emu.dispatched[0x0030]);
+        assertFalse("RTI return is not a dispatch", emu.dispatched[0x0035]);
+        assertTrue("frame cycles counted", emu.cycles >= 3L * NESrev.Emulator.FRAME_CYCLES);
+
+        NESrev.runAnalysisToFixedPoint();
+        assertFalse("static trace stops at JMP (ind)", NESrev.isCode(0x0010));
+        NESrev.runEmulation(3);
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("indirect target traced", NESrev.isInstr(0x0010));
+        assertTrue("indirect target labelled", NESrev.isLabel(0x0010));
+        assertTrue("RTS dispatch target traced", NESrev.isInstr(0x0030));
+        assertTrue("RTS dispatch target labelled", NESrev.isLabel(0x0030));
+    }
+
+    private static void testEmulatorBanksMmc1AndCountsCycles() throws Exception {
+        resetState();
+        int[] rom = new int[0x10000];
+        // fixed bank $C000: reset the MMC1 shifter, shift in PRG bank 2
+        // (bits 0,1,0,0,0), JSR $8000, idle
+        int[] fixed = {
+            0xA9, 0x80, 0x8D, 0x00, 0xE0,
+            0xA9, 0x00, 0x8D, 0x00, 0xE0,
+            0xA9, 0x01, 0x8D, 0x00, 0xE0,
+            0xA9, 0x00, 0x8D, 0x00, 0xE0,
+            0x8D, 0x00, 0xE0,
+            0x8D, 0x00, 0xE0,
+            0x20, 0x00, 0x80,
+            0x4C, 0x1D, 0xC0
+        };
+        System.arraycopy(fixed, 0, rom, 0xC000, fixed.length);
+        // bank 2 $8000: LDY #$01 / LDA $C0FF,Y / RTS
+        int[] banked = { 0xA0, 0x01, 0xB9, 0xFF, 0xC0, 0x60 };
+        System.arraycopy(banked, 0, rom, 0x8000, banked.length);
+        rom[0xFFFC] = 0x00; rom[0xFFFD] = 0xC0;
+
+        NESrev.Emulator emu = new NESrev.Emulator(rom, 0x10000, 1);
+        emu.reset();
+        for (int i = 0; i < 10; i++) {
+            emu.step();
+        }
+        assertEquals("at the JSR", 0xC01A, emu.pc);
+        assertEquals("JSR", 6, emu.step());
+        assertEquals("bank 2 mapped at $8000", 0x8000, emu.pc);
+        assertEquals("LDY #", 2, emu.step());
+        assertEquals("abs,Y read crossing into $C100", 5, emu.step());
+        assertEquals("RTS", 6, emu.step());
+        assertEquals("back after the JSR", 0xC01D, emu.pc);
+        assertTrue("bank 2 code executed", emu.executed[0x8002]);
+        assertFalse("bank 0 untouched", emu.executed[0x0002]);
+        assertFalse("normal return is not a dispatch", emu.dispatched[0xC01D]);
+    }
+
+    private static void testEmulatorRmwResetsMmc1Once() throws Exception {
+        resetState();
+        int[] rom = new int[0x10000];
+        // fixed bank $C000: leave one stray bit in the shifter, reset it with
+        // INC $DFF0 (a $FF byte: the RMW writes $FF, then $00), shift in PRG
+        // bank 2 (bits 0,1,0,0,0), JSR $8000
+        int[] fixed = {
+            0xA9, 0x01, 0x8D, 0x00, 0xE0,
+            0xEE, 0xF0, 0xDF,
+            0xA9, 0x00, 0x8D, 0x00, 0xE0,
+            0xA9, 0x01, 0x8D, 0x00, 0xE0,
+            0xA9, 0x00, 0x8D, 0x00, 0xE0,
+            0x8D, 0x00, 0xE0,
+            0x8D, 0x00, 0xE0,
+            0x20, 0x00, 0x80,
+            0x4C, 0x20, 0xC0
+        };
+        System.arraycopy(fixed, 0, rom, 0xC000, fixed.length);
+        rom[0xDFF0] = 0xFF;
+        rom[0x8000] = 0x60;   // bank 2 $8000: RTS
+        rom[0xFFFC] = 0x00; rom[0xFFFD] = 0xC0;
+
+        NESrev.Emulator emu = new NESrev.Emulator(rom, 0x10000, 1);
+        emu.reset();
+        for (int i = 0; i < 12; i++) {
+            emu.step();
+        }
+        assertEquals("in the switched bank", 0x8000, emu.pc);
+        assertEquals("bank 2 mapped at $8000", 0x8000, emu.prgOffset(0x8000));
+        emu.step();
+        assertTrue("bank 2 code executed", emu.executed[0x8000]);
+    }
+
+    private static void testProfilerAttributesCyclesAndFollowsInputScript() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDA #$80 / STA $2000 / JSR $C020 / JMP $C005
+        int[] reset = { 0xA9, 0x80, 0x8D, 0x00, 0x20, 0x20, 0x20, 0xC0, 0x4C, 0x05, 0xC0 };
+        // $C020: LDX #$05 / DEX / BNE $C022 / RTS  (32 cycles)
+        int[] delay = { 0xA2, 0x05, 0xCA, 0xD0, 0xFD, 0x60 };
+        // $C030: LDY #$03 / DEY / BNE $C032 / RTS  (22 cycles; leaves X alone
+        // for the $C020 loop it may interrupt)
+        int[] nmiDelay = { 0xA0, 0x03, 0x88, 0xD0, 0xFD, 0x60 };
+        // $C040: strobe the pad, read A, INC $03 when held, JSR $C030, RTI
+        int[] nmi = {
+            0xA9, 0x01, 0x8D, 0x16, 0x40, 0xA9, 0x00, 0x8D, 0x16, 0x40,
+            0xAD, 0x16, 0x40, 0x29, 0x01, 0xF0, 0x02, 0xE6, 0x03,
+            0x20, 0x30, 0xC0, 0x40
+        };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        System.arraycopy(delay, 0, rom, 0x0020, delay.length);
+        System.arraycopy(nmiDelay, 0, rom, 0x0030, nmiDelay.length);
+        System.arraycopy(nmi, 0, rom, 0x0040, nmi.length);
+        rom[0x3FFA] = 0x40; rom[0x3FFB] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        File script = File.createTempFile("nesrev-input", ".csv");
+        script.deleteOnExit();
+        Files.write(script.toPath(), "frame|buttons\n0|\n2|A+Start\n".getBytes("UTF-8"));
+        java.util.TreeMap<Integer, Integer> input = NESrev.parseInputScript(script.getPath());
+        assertEquals("A+Start", 0x09, (int) input.get(2));
+        setField("inputScript", input);
+        setField("profilePath", "unused");
+        NESrev.runEmulation(4);
+
+        NESrev.Profiler profile = (NESrev.Profiler) getField("profile");
+        NESrev.Profiler.Entry root = profile.routines.get(0x0000);
+        NESrev.Profiler.Entry sub = profile.routines.get(0x0020);
+        NESrev.Profiler.Entry handler = profile.routines.get(0x0040);
+        assertEquals("RESET and NMI split every cycle", (int) profile.totalCycles,
+            (int) (root.inclusive + handler.inclusive));
+        assertEquals("one NMI per frame", 4, (int) handler.calls);
+        assertEquals("leaf routine: inclusive == exclusive", (int) sub.inclusive, (int) sub.exclusive);
+        assertTrue("32 cycles per completed call",
+            sub.exclusive <= sub.calls * 32 && sub.exclusive >= (sub.calls - 1) * 32);
+        NESrev.Profiler.Entry nmiSub = profile.routines.get(0x0030);
+        assertEquals("handler inclusive = own + callee", (int) (handler.exclusive + nmiSub.inclusive),
+            (int) handler.inclusive);
+        assertEquals("four 22-cycle calls", 88, (int) nmiSub.inclusive);
+        assertTrue("per-frame buckets sum to the total", handler.frameCycles[0] + handler.frameCycles[1]
+            + handler.frameCycles[2] + handler.frameCycles[3] == handler.inclusive);
+        Object emuRam = getField("emulatedCode");
+        assertTrue("emulation ran", emuRam != null);
+
+        NESrev.runAnalysisToFixedPoint();
+        NESrev.verifyDataLabels();
+        String asm = captureDisassemble();
+        assertTrue("profile comment above the handler", asm.contains("; profile: 4 calls, " + handler.inclusive
+            + " cycles inclusive"));
+    }
+
+    private static void testInputScriptButtonsReachController() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // NMI at $C040 counts frames with A held into $03 (same handler as above, no JSR)
+        int[] reset = { 0xA9, 0x80, 0x8D, 0x00, 0x20, 0x4C, 0x05, 0xC0 };
+        int[] nmi = {
+            0xA9, 0x01, 0x8D, 0x16, 0x40, 0xA9, 0x00, 0x8D, 0x16, 0x40,
+            0xAD, 0x16, 0x40, 0x29, 0x01, 0xF0, 0x02, 0xE6, 0x03, 0x40
+        };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        System.arraycopy(nmi, 0, rom, 0x0040, nmi.length);
+        rom[0x3FFA] = 0x40; rom[0x3FFB] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        NESrev.Emulator emu = new NESrev.Emulator(rom, 0x4000, 0);
+        emu.reset();
+        int[] held = { 0x00, 0x00, 0x01, 0x01, 0x80 };
+        for (int f = 0; f < held.length; f++) {
+            emu.buttons = held[f];
+            emu.runFrame();
+        }
+        assertEquals("A seen in frames 2 and 3 only", 2, emu.ram[3]);
+    }
+
+    private static void testStackDispatchSeedsSplitAndInterleavedTables() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDA $00 / ASL A / TAY / JSR $C020 / JMP $C000
+        int[] main = { 0xA5, 0x00, 0x0A, 0xA8, 0x20, 0x20, 0xC0, 0x4C, 0x00, 0xC0 };
+        // $C020: LDA $C081,Y / PHA / LDA $C080,Y / PHA / RTS  (interleaved words)
+        int[] wordDispatch = { 0xB9, 0x81, 0xC0, 0x48, 0xB9, 0x80, 0xC0, 0x48, 0x60 };
+        // $C064: LDA $C0A3,X / PHA / LDA $C0A0,X / PHA / RTS  (split lo/hi),
+        // reached only through the first dispatcher
+        int[] splitDispatch = { 0xBD, 0xA3, 0xC0, 0x48, 0xBD, 0xA0, 0xC0, 0x48, 0x60 };
+        System.arraycopy(main, 0, rom, 0x0000, main.length);
+        System.arraycopy(wordDispatch, 0, rom, 0x0020, wordDispatch.length);
+        rom[0x0060] = 0x60;                                  // $C060: RTS
+        System.arraycopy(splitDispatch, 0, rom, 0x0064, splitDispatch.length);
+        rom[0x0070] = 0xE8; rom[0x0071] = 0x60;              // $C070: INX / RTS
+        rom[0x0072] = 0xCA; rom[0x0073] = 0x60;              // $C072: DEX / RTS
+        rom[0x0074] = 0x60;                                  // $C074: RTS
+        int[] words = { 0x5F, 0xC0, 0x63, 0xC0 };            // $C060-1, $C064-1
+        System.arraycopy(words, 0, rom, 0x0080, words.length);
+        int[] split = { 0x6F, 0x71, 0x73, 0xC0, 0xC0, 0xC0 }; // lo, then hi
+        System.arraycopy(split, 0, rom, 0x00A0, split.length);
+        rom[0x3FFA] = 0x00; rom[0x3FFB] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        rom[0x3FFE] = 0x00; rom[0x3FFF] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        NESrev.runAnalysisToFixedPoint();
+        int[] targets = { 0x0060, 0x0064, 0x0070, 0x0072, 0x0074 };
+        for (int i = 0; i < targets.length; i++) {
+            assertTrue("dispatch target traced: " + targets[i], NESrev.isInstr(targets[i]));
+            assertTrue("dispatch target labelled: " + targets[i], NESrev.isLabel(targets[i]));
+        }
+        assertTrue("tables stay data", NESrev.isData(0x0080) && NESrev.isData(0x00A5));
+        assertTrue("table starts labelled", NESrev.isLabel(0x0080) && NESrev.isLabel(0x00A0)
+            && NESrev.isLabel(0x00A3));
+        assertFalse("word table ends at the first non-ROM entry", NESrev.isCode(0x0084));
+        @SuppressWarnings("unchecked")
+        java.util.TreeMap<Integer, int[]> found = (java.util.TreeMap<Integer, int[]>) getField("stackDispatchers");
+        assertEquals("two dispatchers", 2, found.size());
+        assertEquals("interleaved stride", 2, found.get(0x0028)[2]);
+        assertEquals("two words", 2, found.get(0x0028)[3]);
+        assertEquals("split stride", 1, found.get(0x006C)[2]);
+        assertEquals("lo run stops at the hi table", 3, found.get(0x006C)[3]);
+
+        NESrev.verifyDataLabels();
+        String asm = captureDisassemble();
+        assertTrue("word dispatcher annotated", asm.contains("RTS ; RTS dispatch: 2 targets (words at LC080)"));
+        assertTrue("split dispatcher annotated",
+            asm.contains("RTS ; RTS dispatch: 3 targets (lo LC0A0, hi LC0A3)"));
+    }
+
+    private static void testSplitPointerTablesSeedCodeAndLabelData() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDX $00 / LDA $C0A0,X / STA $10 / LDA $C0A2,X / STA $11 / JSR $C020
+        //        LDA $C0C2,Y / STA $13 / LDA $C0C0,Y / STA $12 / LDA ($12),Y / JMP $C000
+        int[] main = {
+            0xA6, 0x00, 0xBD, 0xA0, 0xC0, 0x85, 0x10, 0xBD, 0xA2, 0xC0, 0x85, 0x11,
+            0x20, 0x20, 0xC0,
+            0xB9, 0xC2, 0xC0, 0x85, 0x13, 0xB9, 0xC0, 0xC0, 0x85, 0x12, 0xB1, 0x12,
+            0x4C, 0x00, 0xC0
+        };
+        System.arraycopy(main, 0, rom, 0x0000, main.length);
+        rom[0x0020] = 0x6C; rom[0x0021] = 0x10; rom[0x0022] = 0x00;  // $C020: JMP ($0010)
+        rom[0x0060] = 0x60;                                          // $C060: RTS
+        rom[0x0061] = 0xE8; rom[0x0062] = 0x60;                      // $C061: INX / RTS
+        int[] code = { 0x60, 0x61, 0xC0, 0xC0 };                     // lo lo hi hi
+        System.arraycopy(code, 0, rom, 0x00A0, code.length);
+        int[] data = { 0x00, 0x01, 0xC1, 0xC1 };                     // $C100, $C101
+        System.arraycopy(data, 0, rom, 0x00C0, data.length);
+        rom[0x3FFA] = 0x00; rom[0x3FFB] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        rom[0x3FFE] = 0x00; rom[0x3FFF] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("JMP (ptr) targets traced", NESrev.isInstr(0x0060) && NESrev.isInstr(0x0061));
+        assertTrue("JMP (ptr) targets labelled", NESrev.isLabel(0x0060) && NESrev.isLabel(0x0061));
+        assertTrue("(ptr),Y targets labelled", NESrev.isLabel(0x0100) && NESrev.isLabel(0x0101));
+        assertTrue("(ptr),Y targets stay data", NESrev.isData(0x0100) && NESrev.isData(0x0101));
+        @SuppressWarnings("unchecked")
+        java.util.TreeMap<Integer, int[]> found = (java.util.TreeMap<Integer, int[]>) getField("splitTables");
+        assertEquals("two split tables", 2, found.size());
+        int[] jump = found.get(0x0002);
+        assertEquals("code table lo", 0x00A0, jump[0]);
+        assertEquals("code table hi", 0x00A2, jump[1]);
+        assertEquals("lo run stops at the hi run", 2, jump[3]);
+        assertEquals("code kind", 1, jump[4]);
+        int[] read = found.get(0x000F);
+        assertEquals("hi loaded first: lo still from the STA ptr", 0x00C0, read[0]);
+        assertEquals("data kind", 0, read[4]);
+
+        NESrev.verifyDataLabels();
+        String asm = captureDisassemble();
+        assertTrue("code table annotated",
+            asm.contains("LDA LC0A0,X ; split table: 2 code targets (lo LC0A0, hi LC0A2)"));
+        assertTrue("data table annotated",
+            asm.contains("; split table: 2 data targets (lo LC0C0, hi LC0C2)"));
+    }
+
+    private static void testSplitTableRowsPinTables() throws Exception {
+        resetState();
+        File f = writeTempConfig("pointer-split",
+            "split|lo|hi|count\n"
+            + "split|0x00A0|0x00A4|3\n"
+            + "0x0200|1\n");
+        java.util.ArrayList<Integer> starts = new java.util.ArrayList<Integer>();
+        java.util.ArrayList<Integer> counts = new java.util.ArrayList<Integer>();
+        java.util.ArrayList<int[]> split = new java.util.ArrayList<int[]>();
+        java.lang.reflect.Method m = NESrev.class.getDeclaredMethod("parsePointerTableConfig",
+            String.class, String.class, java.util.ArrayList.class, java.util.ArrayList.class,
+            java.util.ArrayList.class);
+        m.setAccessible(true);
+        m.invoke(null, f.getAbsolutePath(), "code pointer", starts, counts, split);
+        assertEquals("word row kept", 1, starts.size());
+        assertEquals("split row parsed", 1, split.size());
+        assertEquals("split lo", 0x00A0, split.get(0)[0]);
+        assertEquals("split hi", 0x00A4, split.get(0)[1]);
+        assertEquals("split count", 3, split.get(0)[2]);
+
+        // no code reads the table; the row alone seeds $C060, $C061, $C062
+        int[] rom = makeRom();
+        rom[0x0000] = 0x4C; rom[0x0001] = 0x00; rom[0x0002] = 0xC0;  // $C000: JMP $C000
+        rom[0x0060] = 0xE8; rom[0x0061] = 0xC8; rom[0x0062] = 0x60;  // INX / INY / RTS
+        int[] table = { 0x60, 0x61, 0x62, 0x00, 0xC0, 0xC0, 0xC0 };
+        System.arraycopy(table, 0, rom, 0x00A0, table.length);
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        setField("splitCodePointers", split);
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("pinned targets traced", NESrev.isInstr(0x0060) && NESrev.isInstr(0x0061)
+            && NESrev.isInstr(0x0062));
+        assertTrue("pinned targets labelled", NESrev.isLabel(0x0061) && NESrev.isLabel(0x0062));
+        assertTrue("pinned runs labelled and left as data", NESrev.isLabel(0x00A0) && NESrev.isLabel(0x00A4)
+            && NESrev.isData(0x00A3));
+    }
+
+    private static void testCdlReadOnlyTargetIsWarning() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: JSR $C040 / JMP $C000 ; $C040: INX / RTS ; $C050: DEX / RTS
+        int[] reset = { 0x20, 0x40, 0xC0, 0x4C, 0x00, 0xC0 };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        rom[0x0040] = 0xE8; rom[0x0041] = 0x60;
+        rom[0x0050] = 0xCA; rom[0x0051] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        java.util.ArrayList<Integer> entries = new java.util.ArrayList<Integer>();
+        entries.add(0x0050);
+        setField("codeEntries", entries);
+
+        // a partial log that only ever saw $C040 and $C050 read
+        byte[] cdl = new byte[0x4000];
+        for (int i = 0; i < reset.length; i++) {
+            cdl[i] = NESrev.CDL_CODE;
+        }
+        cdl[0x0040] = NESrev.CDL_DATA;
+        cdl[0x0050] = NESrev.CDL_DATA;
+        File f = File.createTempFile("nesrev-cdl", ".cdl");
+        f.deleteOnExit();
+        Files.write(f.toPath(), cdl);
+        setField("cdlPath", f.getPath());
+        NESrev.loadCdl(f.getPath());
+
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("caller still traced", NESrev.isInstr(0x0000) && NESrev.isInstr(0x0003));
+        assertTrue("read-only targets stay data", NESrev.isData(0x0040) && NESrev.isData(0x0050));
+        @SuppressWarnings("unchecked")
+        java.util.TreeSet<Integer> conflicts = (java.util.TreeSet<Integer>) getField("cdlConflicts");
+        assertEquals("JSR and code entry targets warned", 2, conflicts.size());
+        assertTrue("warning offsets", conflicts.contains(0x0040) && conflicts.contains(0x0050));
+    }
+
+    private static void testCdlSeedsExecutedCodeAndBlocksReadData() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDA #$01 / BNE $C006 / .DB $A9, $05 / JMP ($0010)
+        int[] reset = { 0xA9, 0x01, 0xD0, 0x02, 0xA9, 0x05, 0x6C, 0x10, 0x00 };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        rom[0x0020] = 0xE8; rom[0x0021] = 0x60;   // $C020: INX / RTS, reached via ($0010)
+        rom[0x0030] = 0xCA; rom[0x0031] = 0x60;   // $C030: DEX / RTS, inside a data range
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        // FCEUX layout: one flag byte per PRG byte, then CHR (none here)
+        byte[] cdl = new byte[0x4000];
+        for (int i = 0; i < reset.length; i++) {
+            cdl[i] = NESrev.CDL_CODE;
+        }
+        cdl[0x0004] = NESrev.CDL_DATA;
+        cdl[0x0005] = NESrev.CDL_DATA;
+        cdl[0x0020] = NESrev.CDL_CODE | NESrev.CDL_FCEUX_INDIRECT_CODE;
+        cdl[0x0021] = NESrev.CDL_CODE;
+        cdl[0x0030] = NESrev.CDL_CODE;
+        cdl[0x0031] = NESrev.CDL_CODE;
+        File f = File.createTempFile("nesrev-cdl", ".cdl");
+        f.deleteOnExit();
+        Files.write(f.toPath(), cdl);
+        setField("cdlPath", f.getPath());
+        NESrev.loadCdl(f.getPath());
+        boolean[] starts = (boolean[]) getField("cdlCode");
+        assertTrue("run start decoded", starts[0x0000] && starts[0x0002]);
+        assertFalse("operand bytes are not instruction starts", starts[0x0001] || starts[0x0003]);
+        File ranges = writeTempConfig("cdl-ranges", "start|length\n$C030|2\n");
+        setField("dataRanges", NESrev.DataRangesConfig.parse(ranges.getPath()));
+
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("read-only bytes stay data", NESrev.isData(0x0004) && NESrev.isData(0x0005));
+        assertTrue("indirect target traced", NESrev.isInstr(0x0020) && NESrev.isInstr(0x0021));
+        assertTrue("indirect target labelled", NESrev.isLabel(0x0020));
+        assertTrue("data range wins", NESrev.isData(0x0030));
+        @SuppressWarnings("unchecked")
+        java.util.TreeSet<Integer> conflicts = (java.util.TreeSet<Integer>) getField("cdlConflicts");
+        assertEquals("conflicts reported", 2, conflicts.size());
+        assertTrue("conflict offsets", conflicts.contains(0x0030) && conflicts.contains(0x0031));
+        assertTrue("blocking source names the CDL",
+            NESrev.findBlockingSource(0x0004).contains(f.getPath()));
+
+        // Mesen 2: "CDLv2" + CRC32 header, jump targets flagged with $04
+        byte[] mesen = new byte[NESrev.CDL_MESEN_HEADER_SIZE + 0x4000];
+        System.arraycopy("CDLv2".getBytes("US-ASCII"), 0, mesen, 0, 5);
+        mesen[NESrev.CDL_MESEN_HEADER_SIZE + 0x0020] = NESrev.CDL_CODE | NESrev.CDL_MESEN_JUMP_TARGET;
+        mesen[NESrev.CDL_MESEN_HEADER_SIZE + 0x0040] = NESrev.CDL_DATA;
+        Files.write(f.toPath(), mesen);
+        NESrev.loadCdl(f.getPath());
+        assertTrue("Mesen jump target", ((boolean[]) getField("cdlEntry"))[0x0020]);
+        assertTrue("Mesen data", ((boolean[]) getField("cdlData"))[0x0040]);
+        assertFalse("header skipped", ((boolean[]) getField("cdlCode"))[0x0000]);
+    }
+
+    private static void testTraceLogSeedsDistinctPcsAndWritesRunStarts() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: LDA #$00 / BNE $C006 / JMP ($0010) at $C004 ... $C020: INX / RTS
+        int[] reset = { 0xA9, 0x00, 0xD0, 0x02, 0x6C, 0x10, 0x00 };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        rom[0x0020] = 0xE8; rom[0x0021] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        StringBuilder log = new StringBuilder();
+        for (int frame = 0; frame < 50; frame++) {
+            // FCEUX with counters and registers before the PC
+            log.append("f" + frame + "      c" + (frame * 29781) + "      i0"
+                + "        A:00 X:00 Y:00 S:FD P:nvubdIzc  $C000:A9 00     LDA #$00\n");
+            // Mesen default layout
+            log.append("C002  D0 02     BNE $C006          A:00 X:00 Y:00 S:FD P:nvubdIZc\r\n");
+            log.append("$C004:6C 10 00  JMP ($0010) = $C020\n");
+            // FCEUX with a bank column (ignored on NROM)
+            log.append("$00:C020:E8        INX\n");
+            log.append("$00:C021:60        RTS\n");
+            log.append("$0300:60        RTS\n");
+            log.append("frame " + frame + " ended\n");
+        }
+        File f = File.createTempFile("nesrev-trace", ".log");
+        f.deleteOnExit();
+        Files.write(f.toPath(), log.toString().getBytes("US-ASCII"));
+        setField("traceLogPath", f.getPath());
+        NESrev.loadTraceLog(f.getPath(), 3);
+        boolean[] traced = (boolean[]) getField("tracedCode");
+        int distinct = 0;
+        for (int i = 0; i < traced.length; i++) {
+            if (traced[i]) {
+                distinct++;
+            }
+        }
+        assertEquals("distinct ROM PCs", 5, distinct);
+        assertTrue("banked and unbanked PCs", traced[0x0000] && traced[0x0004] && traced[0x0020]);
+        byte[] counters = "f123   c999   i42   A:00 X:00 Y:00 S:FD P:nvubdIzc  $C000:A9 00     LDA #$00"
+            .getBytes("US-ASCII");
+        assertEquals("short counters are not PCs", 0xC000,
+            NESrev.tracePc(java.nio.ByteBuffer.wrap(counters), 0, counters.length));
+
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("traced PC seeded", NESrev.isInstr(0x0020) && NESrev.isInstr(0x0021));
+
+        File seeds = File.createTempFile("nesrev-traceseeds", ".txt");
+        seeds.deleteOnExit();
+        NESrev.writeTraceSeeds(seeds.getPath());
+        java.util.List<String> rows = Files.readAllLines(seeds.toPath());
+        assertEquals("comment + two run starts", 3, rows.size());
+        assertEquals("first run", "$C000", rows.get(1));
+        assertEquals("dispatch target run", "$C020", rows.get(2));
+
+        // MMC1: a bank column places $8000-$BFFF; without one it can't be placed
+        configurePrgMapping(0x10000, 1);
+        assertEquals("banked switchable PC", 0x4123, NESrev.tracePrgOffset(0x8123, 1));
+        assertEquals("fixed bank PC", 0xC123, NESrev.tracePrgOffset(0xC123, -1));
+        assertEquals("unbanked switchable PC", -2, NESrev.tracePrgOffset(0x8123, -1));
+        assertEquals("RAM PC", -1, NESrev.tracePrgOffset(0x0300, 3));
+        resetState();
+    }
+
+    private static void testSpeculateRanksDeadRoutineFirst() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        for (int i = 0x0020; i < 0x0100; i++) {
+            rom[i] = 0xFF;   // undefined opcode: never decodes
+        }
+        // $C000: JSR $C010 / JMP $C000 ; $C010: LDA $2002 / RTS
+        int[] main = { 0x20, 0x10, 0xC0, 0x4C, 0x00, 0xC0 };
+        int[] sub = { 0xAD, 0x02, 0x20, 0x60 };
+        // $C040, never called: LDA #$00 / STA $2001 / JSR $C010 / RTS
+        int[] dead = { 0xA9, 0x00, 0x8D, 0x01, 0x20, 0x20, 0x10, 0xC0, 0x60 };
+        // $C080: text that happens to decode: "HELLO"
+        int[] text = { 0x48, 0x45, 0x4C, 0x4C, 0x4F };
+        System.arraycopy(main, 0, rom, 0x0000, main.length);
+        System.arraycopy(sub, 0, rom, 0x0010, sub.length);
+        System.arraycopy(dead, 0, rom, 0x0040, dead.length);
+        System.arraycopy(text, 0, rom, 0x0080, text.length);
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+        assertFalse("dead routine not traced", NESrev.isCode(0x0040));
+
+        java.util.ArrayList<NESrev.SpeculativeCandidate> ranked = NESrev.speculateGaps(NESrev.dataGaps());
+        assertTrue("candidates found", ranked.size() >= 1);
+        NESrev.SpeculativeCandidate best = ranked.get(0);
+        assertEquals("dead routine ranked first", 0x0040, best.start);
+        assertEquals("whole routine", 0x0049, best.end);
+        assertEquals("four instructions", 4, best.instructions);
+        assertEquals("ends at RTS", "RTS", best.ending);
+        assertEquals("no evidence against", 0, best.bad);
+        for (int i = 0; i < ranked.size(); i++) {
+            NESrev.SpeculativeCandidate c = ranked.get(i);
+            assertTrue("never starts on $FF fill", rom[c.start] != 0xFF);
+            for (int j = i + 1; j < ranked.size(); j++) {
+                NESrev.SpeculativeCandidate d = ranked.get(j);
+                assertTrue("no overlap", c.end <= d.start || d.end <= c.start);
+            }
+            if (i > 0) {
+                assertTrue("ranked by score", ranked.get(i - 1).good - ranked.get(i - 1).bad >= c.good - c.bad);
+            }
+        }
+
+        File out = File.createTempFile("nesrev-speculate", ".json");
+        out.deleteOnExit();
+        NESrev.writeSpeculateReport(out.getPath());
+        String json = new String(Files.readAllBytes(out.toPath()), "UTF-8");
+        assertTrue("report lists the entry", json.contains("\"codeentry\": \"$C040\""));
+        assertTrue("report is read-only", NESrev.isData(0x0040));
+    }
+
+    private static void testSignaturesSeedNamedEntriesAndData() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        rom[0x0000] = 0x4C; rom[0x0001] = 0x00; rom[0x0002] = 0xC0;   // $C000: JMP $C000
+        // +00 LDX #0 / +02 LDA table,X / +05 STA $4000 / +08 INX / +09 CPX #3 / +0B BNE +02 / +0D RTS
+        // +0E table: 3 bytes / +11 LDA #0 / STA $4015 / RTS
+        int[] driver = { 0xA2, 0x00, 0xBD, 0x00, 0x00, 0x8D, 0x00, 0x40, 0xE8, 0xE0, 0x03, 0xD0, 0xF5, 0x60,
+                         0x11, 0x22, 0x33, 0xA9, 0x00, 0x8D, 0x15, 0x40, 0x60 };
+        int[] copies = { 0x0040, 0x0100, 0x0200 };
+        for (int k = 0; k < copies.length; k++) {
+            System.arraycopy(driver, 0, rom, copies[k], driver.length);
+            rom[copies[k] + 3] = (copies[k] + 0x0E) & 0xFF;
+            rom[copies[k] + 4] = 0xC0 + ((copies[k] + 0x0E) >> 8);
+        }
+        rom[0x010E] = 0x44;              // the second copy has its own table
+        rom[0x0203] = 0x4E;              // the third reads the first copy's table
+        rom[0x0204] = 0xC0;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        StringBuilder lib = new StringBuilder("name|pattern|layout\n");
+        lib.append("SndInit|A2 00 BD @+0E 8D @@ E8 E0 03 D0 F5 60 ?? ?? ?? A9 00 8D @@ 60|+0E+3=SndTable,+11=SndStop\n");
+        java.util.Random rnd = new java.util.Random(42);
+        for (int i = 0; i < 2000; i++) {
+            lib.append("Decoy").append(i).append('|');
+            for (int j = 0; j < 8; j++) {
+                lib.append(String.format("%02X ", 1 + rnd.nextInt(255)));
+            }
+            lib.append("??\n");
+        }
+        File cfg = writeTempConfig("signatures", lib.toString());
+        setField("signatureLibrary", NESrev.SignatureLibrary.parse(cfg.getPath()));
+        NESrev.matchSignatures();
+        NESrev.runAnalysisToFixedPoint();
+
+        assertTrue("entry traced", NESrev.isInstr(0x0040));
+        assertTrue("second entry traced", NESrev.isInstr(0x0051));
+        for (int i = 0x004E; i < 0x0051; i++) {
+            assertTrue("table stays data", NESrev.isData(i) && !NESrev.isCode(i));
+        }
+        assertTrue("repeat match traced", NESrev.isInstr(0x0100));
+        assertFalse("operand pointing outside the match rejects it", NESrev.isCode(0x0200));
+        String asm = captureDisassemble();
+        assertTrue("entry named", asm.contains("SndInit:"));
+        assertTrue("second entry named", asm.contains("SndStop:"));
+        assertTrue("operand uses the data name", asm.contains("LDA SndTable,X"));
+        assertTrue("repeat gets a suffixed name", asm.contains("SndInit_C100:"));
+        assertTrue("repeat table named", asm.contains("LDA SndTable_C10E,X"));
+
+        File bad = writeTempConfig("signatures", "name|pattern\nLoose|?? 00 ?? 01 02\n");
+        try {
+            NESrev.SignatureLibrary.parse(bad.getPath());
+            assertTrue("pattern without an anchor rejected", false);
+        } catch (NESrev.ConfigException ex) {
+            assertTrue("anchor error message", ex.getMessage().contains("consecutive literal bytes"));
+        }
+    }
+
+    private static void testSignatureDataReachedByCodeIsDropped() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: JSR $C010 / JSR $C013 / JMP $C000 ; $C010: LDA #1 / RTS ; $C013: INX / RTS
+        int[] reset = { 0x20, 0x10, 0xC0, 0x20, 0x13, 0xC0, 0x4C, 0x00, 0xC0 };
+        System.arraycopy(reset, 0, rom, 0x0000, reset.length);
+        int[] routine = { 0xA9, 0x01, 0x60, 0xE8, 0x60 };
+        System.arraycopy(routine, 0, rom, 0x0010, routine.length);
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+
+        // a false match: the library calls $C013-$C014 data
+        File cfg = writeTempConfig("signatures", "name|pattern|layout\nBlob|A9 01 60 E8 60|+03+2=BlobData\n");
+        setField("signatureLibrary", NESrev.SignatureLibrary.parse(cfg.getPath()));
+        NESrev.matchSignatures();
+        NESrev.runAnalysisToFixedPoint();
+
+        assertTrue("JSR target traced through the span", NESrev.isInstr(0x0013) && NESrev.isInstr(0x0014));
+        assertTrue("span dropped", ((java.util.Set<?>) getField("droppedSignatureData")).contains(0));
+        assertTrue("blocking source names the span",
+            NESrev.findBlockingSource(0x0013).contains("signature data span $C013-$C014"));
+        String asm = captureDisassemble();
+        assertTrue("entry keeps its name", asm.contains("Blob:"));
+        assertFalse("data name dropped", asm.contains("BlobData"));
+    }
+
+    private static void testDuplicateBanksShareOneTrace() throws Exception {
+        resetState();
+        configurePrgMapping(0x10000, 1);
+        int[] rom = new int[0x10000];
+        rom[0xC000] = 0x4C; rom[0xC001] = 0x00; rom[0xC002] = 0xC0;   // $C000: JMP $C000
+        rom[0xFFFA] = 0x00; rom[0xFFFB] = 0xC0;
+        rom[0xFFFC] = 0x00; rom[0xFFFD] = 0xC0;
+        rom[0xFFFE] = 0x00; rom[0xFFFF] = 0xC0;
+        // banks 0 and 2: $8000: LDA #1 / JSR $8010 / RTS ; $8010: INX / RTS ; $8020: DEY / RTS
+        int[] bank = { 0xA9, 0x01, 0x20, 0x10, 0x80, 0x60 };
+        for (int b = 0; b <= 2; b += 2) {
+            System.arraycopy(bank, 0, rom, b * 0x4000, bank.length);
+            rom[b * 0x4000 + 0x10] = 0xE8; rom[b * 0x4000 + 0x11] = 0x60;
+            rom[b * 0x4000 + 0x20] = 0x88; rom[b * 0x4000 + 0x21] = 0x60;
+        }
+        setField("ROM", rom);
+        setField("map", new int[0x10000]);
+        invokePrivateNoArgs("appendFixedVectorTable");
+        java.util.ArrayList<Integer> entries = new java.util.ArrayList<Integer>();
+        entries.add(0x8000);   // bank 2 $8000
+        entries.add(0x0020);   // bank 0 $8020
+        setField("codeEntries", entries);
+
+        NESrev.runAnalysisToFixedPoint();
+        assertFalse("without -dedupbanks each copy keeps its own seeds", NESrev.isCode(0x0000));
+
+        NESrev.findDuplicateBanks();
+        int[] canonical = (int[]) getField("bankCanonical");
+        assertEquals("bank 2 is a copy of bank 0", 0, canonical[2]);
+        assertEquals("bank 1 is unique", 1, canonical[1]);
+        NESrev.runAnalysisToFixedPoint();
+        int[] traced = { 0x0000, 0x0010, 0x0020, 0x8000, 0x8010, 0x8020 };
+        for (int i = 0; i < traced.length; i++) {
+            assertTrue("both copies carry the shared trace: " + traced[i], NESrev.isInstr(traced[i]));
+        }
+        assertTrue("projected labels", NESrev.isLabel(0x8010) && NESrev.isLabel(0x0010));
+        assertFalse("operand bytes stay unlabelled", NESrev.isLabel(0x8003));
+        assertFalse("unique bank untouched", NESrev.isCode(0x4000));
+        String asm = captureDisassemble();
+        assertTrue("bank 0 operand", asm.contains("JSR L08010"));
+        assertTrue("bank 2 operand", asm.contains("JSR L28010"));
+
+        // a data range in one copy only: that copy traces on its own
+        File ranges = writeTempConfig("dataranges", "bank|addr|length\n2|$8020|2\n");
+        setField("dataRanges", NESrev.DataRangesConfig.parse(ranges.getPath()));
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("bank 0 seed traced", NESrev.isInstr(0x0020));
+        assertFalse("bank 2 range stays data", NESrev.isCode(0x8020));
+        assertFalse("bank 0 no longer shares bank 2's seed", NESrev.isCode(0x0000));
+    }
+
+    private static int[] bankCacheRom() {
+        int[] rom = makeRom();
+        rom[0x0000] = 0x4C; rom[0x0001] = 0x00; rom[0x0002] = 0xC0;   // $C000: JMP $C000
+        // $C010: JSR $C030 / .DB $05 / RTS ; $C030: RTS (inline u8 callee)
+        rom[0x0010] = 0x20; rom[0x0011] = 0x30; rom[0x0012] = 0xC0;
+        rom[0x0013] = 0x05; rom[0x0014] = 0x60;
+        rom[0x0015] = 0x60;   // $C013 also decodes as ORA $60 / RTS
+        rom[0x0030] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        return rom;
+    }
+
+    private static void testBankCachePreloadsCallsitesAcrossProjects() throws Exception {
+        File dir = Files.createTempDirectory("nesrev-bankcache").toFile();
+        dir.deleteOnExit();
+
+        // project 1 knows the entry at $C010
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        java.util.ArrayList<Integer> entries = new java.util.ArrayList<Integer>();
+        entries.add(0x0010);
+        setField("codeEntries", entries);
+        NESrev.loadBankCache(dir.getPath());
+        assertEquals("cold cache preloads nothing", 0, ((java.util.Map<?, ?>) getField("knownCallsites")).size());
+        NESrev.runAnalysisToFixedPoint();
+        assertEquals("inline call costs a second pass", 2,
+            ((NESrev.AnalysisStats) getField("stats")).passNanos.size());
+        NESrev.storeBankCache(dir.getPath());
+        File[] files = dir.listFiles();
+        assertEquals("one bank written", 1, files.length);
+        assertTrue("content-addressed name", files[0].getName().matches("[0-9A-F]{64}\\.nrbc"));
+
+        // project 2: same bank, same inline rows and entry, another file layout
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("# another project's file\ncallee|layout\n$C030|u8\n");
+        setField("codeEntries", entries);
+        NESrev.loadBankCache(dir.getPath());
+        assertEquals("callsite preloaded", 1, ((java.util.Map<?, ?>) getField("knownCallsites")).size());
+        NESrev.runAnalysisToFixedPoint();
+        assertEquals("one pass with the callsite preloaded", 1,
+            ((NESrev.AnalysisStats) getField("stats")).passNanos.size());
+        assertTrue("cached entry traced", NESrev.isInstr(0x0010) && NESrev.isLabel(0x0010));
+        assertTrue("record continuation traced", NESrev.isInstr(0x0014));
+        assertFalse("record byte stays data", NESrev.isCode(0x0013));
+        long stamp = files[0].lastModified();
+        NESrev.storeBankCache(dir.getPath());
+        assertTrue("unchanged bank not rewritten", stamp == files[0].lastModified());
+
+        // project 3: the entry is gone; the cache must not keep its trace alive
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        NESrev.runAnalysisToFixedPoint();
+        int[] cold = ((int[]) getField("map")).clone();
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        NESrev.loadBankCache(dir.getPath());
+        assertEquals("stale callsite preloaded", 1, ((java.util.Map<?, ?>) getField("knownCallsites")).size());
+        NESrev.runAnalysisToFixedPoint();
+        assertFalse("removed entry not traced from the cache", NESrev.isCode(0x0010));
+        assertEquals("unreached callsite dropped", 0, ((java.util.Map<?, ?>) getField("knownCallsites")).size());
+        assertTrue("cached run matches the cold run", java.util.Arrays.equals(cold, (int[]) getField("map")));
+
+        // project 4: a code entry inside the stale record fails the cached pass
+        java.util.ArrayList<Integer> inRecord = new java.util.ArrayList<Integer>();
+        inRecord.add(0x0013);
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        setField("codeEntries", inRecord);
+        NESrev.runAnalysisToFixedPoint();
+        cold = ((int[]) getField("map")).clone();
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        setField("codeEntries", inRecord);
+        NESrev.loadBankCache(dir.getPath());
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("failed cached pass rerun cold", NESrev.isInstr(0x0013));
+        assertEquals("aborted pass plus the rerun", 2,
+            ((NESrev.AnalysisStats) getField("stats")).passNanos.size());
+        assertTrue("rerun matches the cold run", java.util.Arrays.equals(cold, (int[]) getField("map")));
+
+        // a data range in the bank changes the key: no reuse
+        resetState();
+        setField("ROM", bankCacheRom());
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        File ranges = writeTempConfig("dataranges", "start|length\n$C020|4\n");
+        setField("dataRanges", NESrev.DataRangesConfig.parse(ranges.getPath()));
+        NESrev.loadBankCache(dir.getPath());
+        assertTrue("different controls miss", getField("bankCacheSlices") == null);
+
+        assertEquals("eviction to zero drops the file", 1, NESrev.evictBankCache(dir, 0));
+        assertEquals("cache empty", 0, dir.listFiles().length);
+    }
+
+    private static void indexNgramRom(File dir, String romName, int at, int[] routine) throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: JSR routine / JMP $C000
+        int[] main = { 0x20, at & 0xFF, 0xC0 + (at >> 8), 0x4C, 0x00, 0xC0 };
+        System.arraycopy(main, 0, rom, 0, main.length);
+        System.arraycopy(routine, 0, rom, at, routine.length);
+        rom[0x0300] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setField("name", "rom.prg");   // every project's extracted PRG
+        setField("romName", romName);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+        NESrev.writeNgramSegment(dir.getPath());
+    }
+
+    private static void testNgramIndexFindsRelocatedRoutine() throws Exception {
+        File dir = Files.createTempDirectory("nesrev-ngram").toFile();
+        dir.deleteOnExit();
+        // LDA #imm / STA abs / LDX zp / JSR $C300 / INX / RTS, different operands per project
+        indexNgramRom(dir, "alpha.nes", 0x0040,
+            new int[] { 0xA9, 0x00, 0x8D, 0x01, 0x20, 0xA6, 0x10, 0x20, 0x00, 0xC3, 0xE8, 0x60 });
+        indexNgramRom(dir, "beta.nes", 0x0100,
+            new int[] { 0xA9, 0x05, 0x8D, 0x00, 0x20, 0xA6, 0x20, 0x20, 0x00, 0xC3, 0xE8, 0x60 });
+        indexNgramRom(dir, "beta.nes", 0x0180,   // re-indexing replaces the segment
+            new int[] { 0xA9, 0x05, 0x8D, 0x00, 0x20, 0xA6, 0x20, 0x20, 0x00, 0xC3, 0xE8, 0x60 });
+        assertEquals("one segment per project", 2, dir.listFiles().length);
+
+        File[] files = dir.listFiles();
+        java.util.Arrays.sort(files);
+        NESrev.NgramSegment alpha = NESrev.NgramSegment.open(files[0]);
+        NESrev.NgramSegment beta = NESrev.NgramSegment.open(files[1]);
+        assertEquals("segment keeps the ROM name", "alpha.nes", alpha.name);
+        assertEquals("CPU address", 0xC040, alpha.cpu(0x0040));
+
+        int[] hex = NESrev.parseNgramQuery("A9 00 8D 01 20 A6 10 20 00 C3 E8 60");
+        assertEquals("six instructions", 6, hex.length);
+        assertEquals("found in alpha", 1, NESrev.findNgramMatches(alpha, hex).length);
+        assertEquals("alpha offset", 0x0040, NESrev.findNgramMatches(alpha, hex)[0]);
+        assertEquals("beta relocated copy", 0x0180, NESrev.findNgramMatches(beta, hex)[0]);
+
+        int[] asm = NESrev.parseNgramQuery("L1: LDA #$07 ; set up\nSTA PPUMASK\nLDX $30 / JSR Helper / INX / RTS");
+        assertEquals("asm assembles to the same opcodes", java.util.Arrays.toString(hex), java.util.Arrays.toString(asm));
+        assertEquals("short prefix query", 1, NESrev.findNgramMatches(alpha, NESrev.parseNgramQuery("INX / RTS")).length);
+        assertEquals("absent sequence", 0,
+            NESrev.findNgramMatches(alpha, NESrev.parseNgramQuery("LDA #$00 / STA $2001 / LDX $10 / INX / RTS")).length);
+        try {
+            NESrev.parseNgramQuery("FF 00");
+            assertTrue("undefined opcode rejected", false);
+        } catch (NESrev.ConfigException ex) {
+            assertTrue("message names the byte", ex.getMessage().contains("$FF"));
+        }
+    }
+
+    // LDA $10 / CLC / ADC #1 / STA $10 / LDA $11 / ADC #0 / STA $11 / LDX #0
+    // loop: LDA $12 / STA $0200,X / INX / CPX #8 / BNE loop / RTS
+    private static final int[] CLONE_ROUTINE = {
+        0xA5, 0x10, 0x18, 0x69, 0x01, 0x85, 0x10, 0xA5, 0x11, 0x69, 0x00, 0x85, 0x11, 0xA2, 0x00,
+        0xA5, 0x12, 0x9D, 0x00, 0x02, 0xE8, 0xE0, 0x08, 0xD0, 0xF6, 0x60 };
+    // LDA #0 / STA $2006 / LDA #$20 / STA $2006 / LDA #$3F / STA $2007 / LDA #$0F / STA $2007 / RTS
+    private static final int[] CLONE_OTHER = {
+        0xA9, 0x00, 0x8D, 0x06, 0x20, 0xA9, 0x20, 0x8D, 0x06, 0x20, 0xA9, 0x3F, 0x8D, 0x07, 0x20,
+        0xA9, 0x0F, 0x8D, 0x07, 0x20, 0x60 };
+
+    private static void cloneCorpusProject(File dir, String romName, int at) throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        int[] main = { 0x20, at & 0xFF, 0xC0 + (at >> 8), 0x4C, 0x00, 0xC0 };
+        System.arraycopy(main, 0, rom, 0, main.length);
+        System.arraycopy(CLONE_ROUTINE, 0, rom, at, CLONE_ROUTINE.length);
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setField("name", "rom.prg");   // what the regen script extracts
+        setField("romName", romName);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+    }
+
+    private static void testCloneCorpusKeysProjectsByRomName() throws Exception {
+        File dir = Files.createTempDirectory("nesrev-clones").toFile();
+        dir.deleteOnExit();
+        cloneCorpusProject(dir, "Alpha (U).nes", 0x0040);
+        assertEquals("empty corpus", 0, NESrev.readCloneCorpus(dir.getPath()).size());
+        NESrev.writeCloneSketches(dir.getPath(), NESrev.routineSketches());
+
+        cloneCorpusProject(dir, "Beta (E).nes", 0x0100);
+        java.util.ArrayList<NESrev.RoutineSketch> corpus = NESrev.readCloneCorpus(dir.getPath());
+        assertEquals("same PRG file name, other project still read", 1, corpus.size());
+        assertEquals("keyed by ROM name", "Alpha (U).nes", corpus.get(0).project);
+        java.util.ArrayList<NESrev.RoutineSketch> own = NESrev.routineSketches();
+        assertEquals("relocated copy found", 1, NESrev.findClones(own, corpus).size());
+        NESrev.writeCloneSketches(dir.getPath(), own);
+        assertEquals("one sketch file per project", 2, dir.listFiles().length);
+    }
+
+    private static void testCloneReportProposesFromCorpus() throws Exception {
+        File dir = Files.createTempDirectory("nesrev-clones").toFile();
+        dir.deleteOnExit();
+
+        // alpha: $C000: JSR $C040 / .byte 5 / JSR $C080 / JMP $C000, with the
+        // routine at $C040 named and given an inline layout
+        resetState();
+        int[] rom = makeRom();
+        int[] main = { 0x20, 0x40, 0xC0, 0x05, 0x20, 0x80, 0xC0, 0x4C, 0x00, 0xC0 };
+        System.arraycopy(main, 0, rom, 0, main.length);
+        System.arraycopy(CLONE_ROUTINE, 0, rom, 0x0040, CLONE_ROUTINE.length);
+        System.arraycopy(CLONE_OTHER, 0, rom, 0x0080, CLONE_OTHER.length);
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setField("name", "alpha.nes");
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C040|u8\n");
+        java.util.HashMap<Integer, String> names = new java.util.HashMap<Integer, String>();
+        names.put(0x0040, "AddScore");
+        setField("signatureNames", names);
+        NESrev.runAnalysisToFixedPoint();
+        java.util.ArrayList<NESrev.RoutineSketch> alpha = NESrev.routineSketches();
+        assertEquals("short main routine not sketched", 2, alpha.size());
+        NESrev.writeCloneSketches(dir.getPath(), alpha);
+        java.util.ArrayList<NESrev.RoutineSketch> read = NESrev.readCloneSketches(dir.listFiles()[0]);
+        assertEquals("sketch keeps the name", "AddScore", read.get(0).label);
+        assertEquals("sketch keeps the layout", "u8", read.get(0).layout);
+        assertEquals("sketch keeps the project", "alpha.nes", read.get(0).project);
+
+        // beta: the routine relocated with other operands, a copy with one
+        // more instruction, and the unrelated routine
+        resetState();
+        rom = makeRom();
+        main = new int[] { 0x20, 0x00, 0xC1, 0x20, 0x40, 0xC1, 0x20, 0x80, 0xC1, 0x4C, 0x00, 0xC0 };
+        System.arraycopy(main, 0, rom, 0, main.length);
+        int[] moved = CLONE_ROUTINE.clone();
+        moved[1] = 0x20; moved[6] = 0x20; moved[18] = 0x03;
+        System.arraycopy(moved, 0, rom, 0x0100, moved.length);
+        System.arraycopy(CLONE_ROUTINE, 0, rom, 0x0140, CLONE_ROUTINE.length);
+        rom[0x0140 + CLONE_ROUTINE.length - 1] = 0xCA;   // DEX / RTS
+        rom[0x0140 + CLONE_ROUTINE.length] = 0x60;
+        System.arraycopy(CLONE_OTHER, 0, rom, 0x0180, CLONE_OTHER.length);
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setField("name", "beta.nes");
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+        java.util.ArrayList<NESrev.RoutineSketch> own = NESrev.routineSketches();
+        java.util.ArrayList<NESrev.RoutineSketch> corpus = NESrev.readCloneCorpus(dir.getPath());
+        assertEquals("three routines", 3, own.size());
+        assertEquals("corpus holds alpha", 2, corpus.size());
+
+        java.util.ArrayList<int[]> pairs = NESrev.findClones(own, corpus);
+        assertEquals("copies paired, unrelated routines not", 4, pairs.size());
+        assertEquals("relocated copy first", 0, pairs.get(0)[0]);
+        assertEquals("matches alpha's routine", 3, pairs.get(0)[1]);
+        assertEquals("identical opcodes, identical sketch", NESrev.CLONE_HASHES, pairs.get(0)[2]);
+        for (int[] p : pairs) {
+            assertTrue("unrelated routines never pair", (p[0] == 2) == (p[1] == 4));
+        }
+
+        File out = File.createTempFile("nesrev-clones", ".json");
+        out.deleteOnExit();
+        NESrev.writeCloneReport(out.getPath(), own, corpus);
+        String json = new String(Files.readAllBytes(out.toPath()), "UTF-8");
+        assertTrue("match names its project", json.contains("\"project\": \"alpha.nes\""));
+        assertTrue("name proposed", json.contains("\"label\": \"AddScore\""));
+        assertTrue("layout proposed", json.contains("\"layout\": \"u8\""));
+        assertEquals("proposals for the two copies only", 3, json.split("\"propose\"").length);
+        NESrev.writeCloneSketches(dir.getPath(), own);
+        assertEquals("one sketch file per project", 2, dir.listFiles().length);
+        assertEquals("own file left out of the corpus", 2, NESrev.readCloneCorpus(dir.getPath()).size());
+    }
+
+    private static void testParallelEmitMatchesSerial() throws Exception {
+        resetState();
+        configurePrgMapping(0x8000);
+        int[] rom = new int[0x8000];
+        // $8000: JMP $BFFE ; $BFFE: LDA $1234 / JMP $8000, the LDA running
+        // over the 16 KB boundary; .DB runs on both sides of it
+        rom[0x0000] = 0x4C; rom[0x0001] = 0xFE; rom[0x0002] = 0xBF;
+        int[] straddle = { 0xAD, 0x34, 0x12, 0x4C, 0x00, 0x80 };
+        System.arraycopy(straddle, 0, rom, 0x3FFE, straddle.length);
+        for (int v = 0x7FFA; v < 0x8000; v += 2) {
+            rom[v] = 0x00; rom[v + 1] = 0x80;
+        }
+        setField("ROM", rom);
+        setField("map", new int[0x8000]);
+        invokePrivateNoArgs("appendFixedVectorTable");
+        NESrev.runAnalysisToFixedPoint();
+        assertTrue("LDA straddles the boundary", NESrev.isInstr(0x3FFE) && NESrev.isCode(0x4000));
+
+        String serial = captureDisassemble();
+        setField("parallelEmit", true);
+        String parallel = captureDisassemble();
+        assertEquals("byte-identical output", serial, parallel);
+        assertEquals("straddling instruction emitted once", 2, parallel.split("LDA \\$1234").length);
+        setField("toHtml", true);
+        setField("parallelEmit", false);
+        setField("fceuxSymbolsPath", null);
+        setField("previousExportPath", null);
+        setField("previousExport", null);
+        setField("changeReportPath", null);
+        setField("splitOutPath", null);
+        setField("splitOutSize", 0x4000);
+        setField("mesenSymbolsPath", null);
+        serial = captureDisassemble();
+        setField("parallelEmit", true);
+        assertEquals("byte-identical HTML", serial, captureDisassemble());
+    }
+
+    private static void testEmulatorSymbolsFromFinalLabels() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: JSR $C030 / .byte 7 / JMP $C000 ; $C030: RTS ; data range $C020+4
+        int[] main = { 0x20, 0x30, 0xC0, 0x07, 0x4C, 0x00, 0xC0 };
+        System.arraycopy(main, 0, rom, 0, main.length);
+        rom[0x0030] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setField("name", "rom.prg");
+        setField("romName", "test.nes");   // FCEUX loads <rom>.nes.<bank>.nl
+        setupFixedVectorTable();
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        File ranges = writeTempConfig("dataranges", "start|length\n$C020|4\n");
+        setField("dataRanges", NESrev.DataRangesConfig.parse(ranges.getPath()));
+        NESrev.runAnalysisToFixedPoint();
+
+        File dir = Files.createTempDirectory("nesrev-nl").toFile();
+        dir.deleteOnExit();
+        NESrev.writeFceuxSymbols(dir.getPath());
+        assertEquals("one name list per bank", 1, dir.listFiles().length);
+        java.util.List<String> nl = Files.readAllLines(new File(dir, "test.nes.0.nl").toPath());
+        assertTrue("entry label", nl.contains("$C000#LC000#"));
+        assertTrue("inline record", nl.contains("$C003#LC003#inline record of JSR LC030 at $C000, 1 byte"));
+        assertTrue("data range with length", nl.contains("$C020/4#LC020#data range, 4 bytes"));
+        assertTrue("callee label", nl.contains("$C030#LC030#"));
+
+        File mlb = File.createTempFile("nesrev", ".mlb");
+        mlb.deleteOnExit();
+        NESrev.writeMesenSymbols(mlb.getPath());
+        java.util.List<String> lines = Files.readAllLines(mlb.toPath());
+        assertEquals("same symbols", nl.size(), lines.size());
+        assertTrue("PRG offset label", lines.contains("P:0030:LC030"));
+        assertTrue("data range extent", lines.contains("P:0020-0023:LC020:data range, 4 bytes"));
+    }
+
+    private static void testSplitOutputRewritesOnlyChangedSegments() throws Exception {
+        resetState();
+        configurePrgMapping(0x8000);
+        int[] rom = new int[0x8000];
+        // $8000: JMP $BFFE ; $BFFE: LDA $1234 / JMP $8000 across the halves
+        rom[0x0000] = 0x4C; rom[0x0001] = 0xFE; rom[0x0002] = 0xBF;
+        int[] straddle = { 0xAD, 0x34, 0x12, 0x4C, 0x00, 0x80 };
+        System.arraycopy(straddle, 0, rom, 0x3FFE, straddle.length);
+        for (int v = 0x7FFA; v < 0x8000; v += 2) {
+            rom[v] = 0x00; rom[v + 1] = 0x80;
+        }
+        setField("ROM", rom);
+        setField("name", "rom.prg");
+        setField("romName", "split.nes");
+        setField("map", new int[0x8000]);
+        invokePrivateNoArgs("appendFixedVectorTable");
+        NESrev.runAnalysisToFixedPoint();
+        String whole = captureDisassemble();
+
+        File dir = Files.createTempDirectory("nesrev-split").toFile();
+        dir.deleteOnExit();
+        NESrev.writeSplitOutput(dir.getPath());
+        java.util.List<String> master = Files.readAllLines(new File(dir, "split.nes.asm").toPath());
+        assertEquals("master includes both halves", "[.INCLUDE \"split.nes.00.asm\", "
+            + ".INCLUDE \"split.nes.01.asm\", .END]", master.toString());
+        File first = new File(dir, "split.nes.00.asm");
+        File second = new File(dir, "split.nes.01.asm");
+        String joined = new String(Files.readAllBytes(first.toPath()), "UTF-8")
+            + new String(Files.readAllBytes(second.toPath()), "UTF-8") + ".END" + System.lineSeparator();
+        assertEquals("segments join to the single listing", whole, joined);
+
+        first.setLastModified(1000000000000L);
+        second.setLastModified(1000000000000L);
+        rom[0x5000] = 0x42;   // a data byte in the second half
+        NESrev.writeSplitOutput(dir.getPath());
+        assertTrue("unchanged segment keeps its mtime", first.lastModified() == 1000000000000L);
+        assertTrue("changed segment rewritten", second.lastModified() != 1000000000000L);
+
+        setField("splitOutSize", 0x8000);
+        NESrev.writeSplitOutput(dir.getPath());
+        assertFalse("segment past the new count removed", second.exists());
+    }
+
+    private static void testChangeReportAgainstPreviousExport() throws Exception {
+        resetState();
+        int[] rom = makeRom();
+        // $C000: JSR $C030 / NOP / JMP $C000 ; $C030: RTS ; $C040, unreached: LDA #0 / RTS
+        int[] main = { 0x20, 0x30, 0xC0, 0xEA, 0x4C, 0x00, 0xC0 };
+        System.arraycopy(main, 0, rom, 0, main.length);
+        rom[0x0030] = 0x60;
+        rom[0x0040] = 0xA9; rom[0x0041] = 0x00; rom[0x0042] = 0x60;
+        rom[0x3FFC] = 0x00; rom[0x3FFD] = 0xC0;
+        setField("ROM", rom);
+        setupFixedVectorTable();
+        NESrev.runAnalysisToFixedPoint();
+        File export = File.createTempFile("nesrev-previous", ".map");
+        export.deleteOnExit();
+        NESrev.writeAnalysisExport(export.getPath());
+
+        // next regeneration: the NOP is an inline byte and $C040 an entry
+        loadInlineCallsConfig("callee|layout\n$C030|u8\n");
+        java.util.ArrayList<Integer> entries = new java.util.ArrayList<Integer>();
+        entries.add(0x0040);
+        setField("codeEntries", entries);
+        NESrev.runAnalysisToFixedPoint();
+        setField("previousExport", NESrev.PreviousExport.read(export.getPath()));
+        File out = File.createTempFile("nesrev-changes", ".json");
+        out.deleteOnExit();
+        NESrev.writeChangeReport(out.getPath());
+        String json = new String(Files.readAllBytes(out.toPath()), "UTF-8");
+        assertTrue("new code range", json.contains("\"range\": \"$C040-$C042\",\n      \"bytes\": 3"));
+        assertTrue("new data range", json.contains("\"range\": \"$C003-$C003\""));
+        assertTrue("entry label added", json.contains("\"label\": \"LC040\""));
+        assertTrue("record resolved", json.contains("\"change\": \"resolved\""));
+        assertTrue("record extent", json.contains("\"after\": \"$C003-$C003\""));
+        assertTrue("no labels removed", json.contains("\"labelsRemoved\": []"));
+        assertTrue("no pointer changes", json.contains("\"pointers\": []"));
+
+        setField("prgSize", 0x8000);
+        try {
+            NESrev.PreviousExport.read(export.getPath());
+            assertTrue("export of another ROM rejected", false);
+        } catch (java.io.IOException ex) {
+            assertTrue("message says why", ex.getMessage().contains("not this ROM"));
+        }
+    }
+
     private static void testProcessCodeFollowsJsrTarget() throws Exception {
         resetState();
         int data = getIntField("DATA");
@@ -2618,6 +4247,52 @@ public class NESrevTest {
         setField("dataRanges", NESrev.DataRangesConfig.EMPTY);
         setField("knownCallsites", new TreeMap<Integer, NESrev.ResolvedRecord>());
         setField("newlyDiscoveredCallsites", new java.util.LinkedHashSet<Integer>());
+        setField("pendingBankStates", new java.util.HashMap<Integer, Object>());
+        setField("bankResolvedOperands", new java.util.HashMap<Integer, Integer>());
+        setField("bankSwitchSummaries", new java.util.HashMap<Integer, Object>());
+        setField("stats", new NESrev.AnalysisStats());
+        setField("annotateCycles", false);
+        ((ThreadLocal<?>) getField("emitTarget")).remove();
+        setField("routineEntries", new java.util.TreeSet<Integer>());
+        setField("routineCosts", new java.util.HashMap<Integer, NESrev.RoutineCost>());
+        setField("loopBounds", new java.util.HashMap<Integer, Integer>());
+        setField("annotatePageCrossing", false);
+        setField("emulatedCode", null);
+        setField("emulatedDispatch", null);
+        setField("inputScript", null);
+        setField("profilePath", null);
+        setField("profile", null);
+        setField("stackDispatchers", new java.util.TreeMap<Integer, int[]>());
+        setField("splitTables", new java.util.TreeMap<Integer, int[]>());
+        setField("splitCodePointers", new java.util.ArrayList<int[]>());
+        setField("splitDataPointers", new java.util.ArrayList<int[]>());
+        setField("cdlPath", null);
+        setField("cdlCode", null);
+        setField("cdlData", null);
+        setField("cdlEntry", null);
+        setField("cdlConflicts", new java.util.TreeSet<Integer>());
+        setField("speculateReportPath", null);
+        setField("signatureLibrary", null);
+        setField("ngramIndexPath", null);
+        setField("cloneReportPath", null);
+        setField("cloneCorpusPath", null);
+        setField("romName", null);
+        setField("parallelEmit", false);
+        setField("bankCachePath", null);
+        setField("bankCacheSlices", null);
+        setField("bankCacheCallsites", null);
+        setField("bankCacheKeys", null);
+        setField("cachedCallsites", new java.util.TreeSet<Integer>());
+        setField("dedupBanks", false);
+        setField("bankCanonical", null);
+        setField("bankTracedAs", null);
+        setField("signatureEntries", new java.util.ArrayList<Integer>());
+        setField("signatureData", new java.util.ArrayList<int[]>());
+        setField("droppedSignatureData", new java.util.TreeSet<Integer>());
+        setField("signatureNames", new java.util.HashMap<Integer, String>());
+        setField("traceLogPath", null);
+        setField("traceSeedsPath", null);
+        setField("tracedCode", null);
         setField("analysisPassLimit", 0x4000);
         setField("codePointersStart", new java.util.ArrayList<Integer>());
         setField("codePointersCount", new java.util.ArrayList<Integer>());
@@ -159,7 +159,7 @@ dd if="${REF_NES}" of="${RAW_PRG}" bs=1 skip="${PRG_OFFSET}" count="${PRG_SIZE}"
 
 javac NESrev.java -Xlint:unchecked >/dev/null
 
-cmd=(java NESrev "${RAW_PRG}" -mapper "${MAPPER_NUMBER}")
+cmd=(java NESrev "${RAW_PRG}" -mapper "${MAPPER_NUMBER}" -romname "$(basename "${REF_NES}")")
 if [[ -n "${CODEPOINTERS_CSV}" ]]; then
   cmd+=(-codepointers "${CODEPOINTERS_CSV}")
 fi